@@ -0,0 +1,52 @@
+package com.napthats.android.evernote;
+
+import java.util.Random;
+
+
+/**
+ * Synthetic note bodies for benchmarks.
+ */
+final class BenchmarkNotes {
+  private static final String[] WORDS = {
+    "evernote", "note", "tag", "sync", "the", "a", "of", "<b>bold</b>", "&amp;", "&lt;x&gt;",
+    "caf&eacute;", "&#12354;", "日本語", "<span style=\"color:red\">red</span>", "1 &gt; 0"};
+
+  private BenchmarkNotes() {}
+
+  /**
+   * ENML of about size chars, made of div lines with inline tags and entities.
+   */
+  static String enml(int size) {
+    Random random = new Random(size);
+    StringBuilder sb = new StringBuilder(size + 256);
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+      .append("<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">")
+      .append("<en-note>");
+    while (sb.length() < size) {
+      sb.append("<div>");
+      int words = 3 + random.nextInt(12);
+      for (int i = 0; i < words; i++) {
+        sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      sb.append(random.nextInt(8) == 0 ? "<br/></div>" : "</div>");
+    }
+    return sb.append("</en-note>").toString();
+  }
+
+  /**
+   * Plain text of about size chars, with lines and characters which need escaping.
+   */
+  static String plain(int size) {
+    Random random = new Random(size);
+    StringBuilder sb = new StringBuilder(size + 64);
+    String[] words = {"evernote", "note", "a < b", "x & y", "\"quoted\"", "café", "日本語", "tag"};
+    while (sb.length() < size) {
+      int n = 3 + random.nextInt(12);
+      for (int i = 0; i < n; i++) {
+        sb.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,50 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+
+/**
+ * ENML to plain text: the regex based conversion getPlainContent used before against EnmlTextExtractor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnmlPlainTextBenchmark {
+  @Param({"1024", "65536", "1048576", "5242880"})
+  public int size;
+
+  private String enml;
+  private StringBuilder buffer;
+
+  @Setup
+  public void setUp() {
+    enml = BenchmarkNotes.enml(size);
+    buffer = new StringBuilder(enml.length());
+  }
+
+  @Benchmark
+  public String legacy() {
+    return StringEscapeUtils.unescapeHtml4(
+             enml
+               .replaceAll("</div>", "\n")
+               .replaceAll("<.*?>", ""));
+  }
+
+  @Benchmark
+  public String extractor() {
+    return EnmlTextExtractor.toPlainText(enml, new StringBuilder(enml.length())).toString();
+  }
+
+  @Benchmark
+  public StringBuilder extractorReusedBuffer() {
+    buffer.setLength(0);
+    return EnmlTextExtractor.toPlainText(enml, buffer);
+  }
+}
@@ -0,0 +1,54 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+
+/**
+ * Plain text to ENML: the escapeHtml4 and replaceAll based conversion setPlainContent used before against EnmlWriter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnmlWriterBenchmark {
+  @Param({"1024", "65536", "1048576", "5242880"})
+  public int size;
+
+  private String plain;
+  private ByteArrayOutputStream bytes;
+
+  @Setup
+  public void setUp() {
+    plain = BenchmarkNotes.plain(size);
+    bytes = new ByteArrayOutputStream(EnmlWriter.length(plain) * 3);
+  }
+
+  @Benchmark
+  public String legacy() {
+    return EnmlWriter.NOTE_PREFIX
+      + EnmlWriter.LINE_PREFIX
+      + StringEscapeUtils.escapeHtml4(plain).replaceAll("\n", EnmlWriter.LINE_SUFFIX + EnmlWriter.LINE_PREFIX)
+      + EnmlWriter.LINE_SUFFIX
+      + EnmlWriter.NOTE_SUFFIX;
+  }
+
+  @Benchmark
+  public String writer() {
+    return EnmlWriter.toEnml(plain);
+  }
+
+  @Benchmark
+  public int writerUtf8() throws IOException {
+    bytes.reset();
+    EnmlWriter.write(plain, bytes);
+    return bytes.size();
+  }
+}
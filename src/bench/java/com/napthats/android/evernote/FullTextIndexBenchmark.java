@@ -0,0 +1,120 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Queries against a FullTextIndex of 100k synthetic notes of about 80 words each.
+ * Words are drawn from a vocabulary of 20k made-up words with a skewed frequency, as in natural text,
+ * so "term" hits about 900 notes. "prefix" hits about 46k notes with 3 chars, and fewer with 5.
+ * "search" is a term and a prefix of 4 chars, limited to 20 notes.
+ * "scan" finds the term by looking through the plain texts, as a search without the index does locally.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class FullTextIndexBenchmark {
+  private static final int NOTES = 100 * 1000;
+  private static final int WORDS_PER_NOTE = 80;
+  private static final int VOCABULARY = 20 * 1000;
+  private static final String[] SYLLABLES = {
+    "ka", "ri", "to", "men", "sa", "lo", "vi", "ne", "du", "pa", "shi", "ro", "te", "mu", "ga", "el"};
+
+  @Param({"3", "5"})
+  public int prefix_length;
+
+  private File dir;
+  private FullTextIndex index;
+  private String[] texts;
+  private String[] queries;
+  private int next = 0;
+
+  @Setup
+  public void setUp() throws Exception {
+    Random random = new Random(1);
+    String[] words = new String[VOCABULARY];
+    for (int i = 0; i < words.length; i++) {
+      StringBuilder word = new StringBuilder();
+      for (int n = i; n > 0 || word.length() == 0; n /= SYLLABLES.length) {
+        word.append(SYLLABLES[n % SYLLABLES.length]);
+      }
+      words[i] = word.toString();
+    }
+    dir = File.createTempFile("full-text-index", "");
+    dir.delete();
+    index = new FullTextIndex(dir);
+    texts = new String[NOTES];
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < NOTES; i++) {
+      text.setLength(0);
+      for (int j = 0; j < WORDS_PER_NOTE; j++) {
+        //Small indexes are much more frequent than large ones.
+        text.append(words[random.nextInt(random.nextInt(VOCABULARY) + 1)]).append(j % 12 == 11 ? '\n' : ' ');
+      }
+      texts[i] = text.toString();
+      index.put("note-" + i, texts[i], i + 1);
+    }
+    //Words from the middle of the frequency range.
+    queries = new String[64];
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = words[2000 + i * 97];
+    }
+    System.out.println();
+    System.out.println("terms=" + index.getTermCount() + " postings_bytes=" + index.getPostingsBytes()
+                       + " term_hits=" + index.findTerm(queries[0]).size()
+                       + " prefix_hits=" + index.findPrefix(queries[0].substring(0, prefix_length)).size());
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private String nextQuery() {
+    next = (next + 1) % queries.length;
+    return queries[next];
+  }
+
+  @Benchmark
+  public List<String> term() {
+    return index.findTerm(nextQuery());
+  }
+
+  @Benchmark
+  public List<String> prefix() {
+    return index.findPrefix(nextQuery().substring(0, prefix_length));
+  }
+
+  @Benchmark
+  public List<String> search() {
+    String query = nextQuery();
+    return index.search(query + " " + queries[(next + 1) % queries.length].substring(0, 4), 20);
+  }
+
+  @Benchmark
+  public int scan() {
+    String query = nextQuery();
+    int hits = 0;
+    for (String text : texts) {
+      int i = text.toLowerCase(Locale.ROOT).indexOf(query);
+      //A whole word only.
+      if (i >= 0 && (i == 0 || text.charAt(i - 1) <= ' ')
+          && (i + query.length() == text.length() || text.charAt(i + query.length()) <= ' ')) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,84 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.evernote.edam.type.Note;
+
+
+/**
+ * Plain text of stored notes: contents kept as heap Strings against NoteContentStore.
+ * Run with -prof gc to compare allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteContentStoreBenchmark {
+  private static final int NOTES = 64;
+
+  @Param({"1024", "65536", "1048576"})
+  public int size;
+
+  private File dir;
+  private NoteContentStore store;
+  private Map<String, String> heap;
+  private StringBuilder buffer;
+  private int next = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = File.createTempFile("content-bench", "");
+    dir.delete();
+    store = new NoteContentStore(dir);
+    heap = new HashMap<String, String>();
+    for (int i = 0; i < NOTES; i++) {
+      String content = BenchmarkNotes.enml(size + i);
+      heap.put("n" + i, content);
+      store.put("n" + i, content, i);
+    }
+    buffer = new StringBuilder(size);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private String nextGuid() {
+    next = (next + 1) % NOTES;
+    return "n" + next;
+  }
+
+  @Benchmark
+  public String heapString() {
+    Note note = new Note();
+    note.setContent(heap.get(nextGuid()));
+    return EvernoteActivity.Util.getPlainContent(note);
+  }
+
+  @Benchmark
+  public StringBuilder mapped() throws IOException {
+    buffer.setLength(0);
+    store.getPlainContent(nextGuid(), buffer);
+    return buffer;
+  }
+
+  @Benchmark
+  public String mappedToString() throws IOException {
+    Note note = new Note();
+    note.setContent(store.getContent(nextGuid()));
+    return EvernoteActivity.Util.getPlainContent(note);
+  }
+}
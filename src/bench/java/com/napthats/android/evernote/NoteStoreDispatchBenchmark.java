@@ -0,0 +1,137 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.TimeUnit;
+
+import java.lang.reflect.Proxy;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.edam.notestore.NoteStoreIface;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.NoteStoreProxy;
+
+
+/**
+ * Per-call cost of dispatching a NoteStoreProxy method to the NoteStore client.
+ * "legacy" replicates the getMethod based lookup the handler did before the dispatch table.
+ * "table" goes through the handler, including borrowing the client from the pool.
+ * "policy" adds the checks of a ResiliencePolicy to "table".
+ * "metrics" adds the recording of NoteStoreMetrics to "table".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteStoreDispatchBenchmark {
+  private static final Notebook NOTEBOOK = new Notebook();
+
+  /**
+   * A NoteStore client answering without any transport.
+   */
+  static class LocalClient extends NoteStore.Client {
+    LocalClient() {
+      super(null);
+    }
+
+    @Override
+    public Notebook getDefaultNotebook(String authToken) {
+      return NOTEBOOK;
+    }
+  }
+
+  private NoteStoreProxy legacy_proxy;
+  private NoteStoreProxy table_proxy;
+  private NoteStoreProxy policy_proxy;
+  private NoteStoreProxy metrics_proxy;
+  private NoteStoreInvocationHandler table_handler;
+  private NoteStoreIface note_store;
+  private Method callback_method;
+
+  @Setup
+  public void setUp() throws Exception {
+    note_store = new LocalClient();
+    NoteStoreClientPool pool = new NoteStoreClientPool(
+      new NoteStoreClientPool.Factory() {
+        public NoteStoreIface create() {
+          return note_store;
+        }
+      },
+      new NoteStoreClientPool.Validator() {
+        public boolean isHealthy(NoteStoreIface client) {
+          return true;
+        }
+      },
+      1, Long.MAX_VALUE, Long.MAX_VALUE);
+    table_handler = new NoteStoreInvocationHandler(NoteStoreProxy.class, pool, new APIExecutor(), APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY);
+    table_proxy = newProxy(table_handler);
+    policy_proxy = newProxy(new NoteStoreInvocationHandler(NoteStoreProxy.class, pool, new APIExecutor(), APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY,
+                                                           new ResiliencePolicy()));
+    metrics_proxy = newProxy(new NoteStoreInvocationHandler(NoteStoreProxy.class, pool, new APIExecutor(), APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY,
+                                                            null, new NoteStoreMetrics()));
+    legacy_proxy = newProxy(new InvocationHandler() {
+      public Object invoke(Object proxy, Method proxy_method, Object[] args) throws Throwable {
+        Method method = note_store.getClass().getMethod(proxy_method.getName(), proxy_method.getParameterTypes());
+        try {
+          return method.invoke(note_store, args);
+        }
+        catch (Throwable e) {
+          throw e.getCause();
+        }
+      }
+    });
+    callback_method = NoteStoreProxy.class.getMethod("getDefaultNotebook", String.class, APICallBack.class);
+  }
+
+  private static NoteStoreProxy newProxy(InvocationHandler handler) {
+    return (NoteStoreProxy) Proxy.newProxyInstance(
+      NoteStoreProxy.class.getClassLoader(),
+      new Class[] {NoteStoreProxy.class},
+      handler);
+  }
+
+  @Benchmark
+  public Notebook blockingLegacy() {
+    return legacy_proxy.getDefaultNotebook("token");
+  }
+
+  @Benchmark
+  public Notebook blockingTable() {
+    return table_proxy.getDefaultNotebook("token");
+  }
+
+  @Benchmark
+  public Notebook blockingPolicy() {
+    return policy_proxy.getDefaultNotebook("token");
+  }
+
+  @Benchmark
+  public Notebook blockingMetrics() {
+    return metrics_proxy.getDefaultNotebook("token");
+  }
+
+  @Benchmark
+  public Method callbackResolveLegacy() throws Exception {
+    Class<?>[] types = callback_method.getParameterTypes();
+    try {
+      return note_store.getClass().getMethod(callback_method.getName(), types);
+    }
+    catch (NoSuchMethodException e) {
+      //The legacy handler fell back to the callback-stripped lookup here.
+    }
+    Class<?>[] callback_deleted_types = new Class<?>[types.length - 1];
+    System.arraycopy(types, 0, callback_deleted_types, 0, types.length - 1);
+    return note_store.getClass().getMethod(callback_method.getName(), callback_deleted_types);
+  }
+
+  @Benchmark
+  public Method callbackResolveTable() {
+    return table_handler.dispatchFor(callback_method).target;
+  }
+}
@@ -0,0 +1,87 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.evernote.edam.notestore.NoteFilter;
+import com.evernote.edam.notestore.NoteMetadata;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.NotesMetadataResultSpec;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Tag;
+
+
+/**
+ * Throughput of blocking NoteStore calls from several threads over Thrift on localhost,
+ * against a FakeNoteStore seeded with 100k notes and 10k tags and a fixed latency per call.
+ * The pool size bounds the calls in flight.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@Threads(8)
+@State(Scope.Benchmark)
+public class NoteStoreLoadBenchmark {
+  @Param({"0", "10"})
+  public int latency_millis;
+
+  @Param({"2", "8"})
+  public int pool_size;
+
+  private FakeNoteStoreServer server;
+  private NoteStoreClientPool pool;
+  private NoteStoreIface note_store;
+  private String[] note_guids;
+  private String[] tag_guids;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next = 0;
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    FakeNoteStore fake = FakeNoteStore.seeded(1, 100 * 1000, 10 * 1000);
+    List<NoteMetadata> notes = fake.getNoteStore().findNotesMetadata("token", new NoteFilter(), 0, 1024, new NotesMetadataResultSpec()).getNotes();
+    note_guids = new String[notes.size()];
+    for (int i = 0; i < note_guids.length; i++) {
+      note_guids[i] = notes.get(i).getGuid();
+    }
+    List<Tag> tags = fake.getNoteStore().listTags("token");
+    tag_guids = new String[1024];
+    for (int i = 0; i < tag_guids.length; i++) {
+      tag_guids[i] = tags.get(i * 7 % tags.size()).getGuid();
+    }
+    fake.setLatency(latency_millis);
+    server = new FakeNoteStoreServer(fake.getNoteStore());
+    pool = new NoteStoreClientPool(NoteStoreClientPool.httpFactory(server.getUrl()),
+      NoteStoreClientPool.TRANSPORT_VALIDATOR, pool_size, 60 * 1000, 60 * 1000);
+    note_store = (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new NoteStoreInvocationHandler(NoteStoreIface.class, pool, new APIExecutor(), APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY));
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.close();
+    server.stop();
+  }
+
+  @Benchmark
+  public Note getNote(Cursor cursor) throws Exception {
+    cursor.next = (cursor.next + 1) % note_guids.length;
+    return note_store.getNote("token", note_guids[cursor.next], true, false, false, false);
+  }
+
+  @Benchmark
+  public Tag getTag(Cursor cursor) throws Exception {
+    cursor.next = (cursor.next + 1) % tag_guids.length;
+    return note_store.getTag("token", tag_guids[cursor.next]);
+  }
+}
@@ -0,0 +1,94 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.Tag;
+
+
+/**
+ * Resolution of an existing tag by name against an in-memory NoteStore.
+ * "legacy" lists all tags and compares names, as getOrCreateTagByName did before TagIndex.
+ * "index" goes through TagIndex. Neither counts round trips, which "legacy" makes at every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TagIndexBenchmark {
+  @Param({"10", "1000"})
+  public int tags;
+
+  private NoteStoreIface note_store;
+  private TagIndex index;
+  private String[] names;
+  private int next = 0;
+
+  public static class Server {
+    private final List<Tag> tags = new ArrayList<Tag>();
+
+    Server(int count) {
+      for (int i = 0; i < count; i++) {
+        Tag tag = new Tag();
+        tag.setGuid("guid-" + i);
+        tag.setName("Tag " + i);
+        tag.setUpdateSequenceNum(i + 1);
+        tags.add(tag);
+      }
+    }
+
+    //A client deserializes new objects at every call.
+    public List<Tag> listTags(String authToken) {
+      List<Tag> copy = new ArrayList<Tag>(tags.size());
+      for (Tag tag : tags) {
+        copy.add(tag.deepCopy());
+      }
+      return copy;
+    }
+
+    public SyncState getSyncState(String authToken) {
+      SyncState state = new SyncState();
+      state.setUpdateCount(tags.size());
+      return state;
+    }
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    note_store = NoteStoreStubs.stub(new Server(tags));
+    index = new TagIndex(note_store, "token");
+    names = new String[64];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = "tag " + (i * 7919 % tags);
+    }
+    index.getOrCreateTag(names[0]);
+  }
+
+  private String nextName() {
+    next = (next + 1) % names.length;
+    return names[next];
+  }
+
+  @Benchmark
+  public Tag legacy() throws Exception {
+    String name = nextName();
+    for (Tag tag : note_store.listTags("token")) {
+      if (tag.getName().equalsIgnoreCase(name)) {
+        return tag;
+      }
+    }
+    return null;
+  }
+
+  @Benchmark
+  public Tag index() throws Exception {
+    return index.getOrCreateTag(nextName());
+  }
+}
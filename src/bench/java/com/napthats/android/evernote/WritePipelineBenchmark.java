@@ -0,0 +1,95 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+/**
+ * A burst of createNote against a local NoteStore with a fixed latency:
+ * one call after another against WritePipeline.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WritePipelineBenchmark {
+  private static final int NOTES = 100;
+
+  @Param({"5", "20"})
+  public int latency_millis;
+
+  @Param({"4", "8"})
+  public int max_in_flight;
+
+  private NoteStoreIface note_store;
+  private APIExecutor executor;
+
+  public static class Server {
+    private final int latency_millis;
+
+    Server(int latency_millis) {
+      this.latency_millis = latency_millis;
+    }
+
+    public Note createNote(String authToken, Note note) throws InterruptedException {
+      Thread.sleep(latency_millis);
+      return note;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    note_store = NoteStoreStubs.stub(new Server(latency_millis));
+    executor = new APIExecutor(max_in_flight, APIExecutor.DEFAULT_QUEUE_CAPACITY);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public int serial() throws Exception {
+    int created = 0;
+    for (int i = 0; i < NOTES; i++) {
+      if (note_store.createNote("token", new Note()) != null) {
+        created++;
+      }
+    }
+    return created;
+  }
+
+  @Benchmark
+  public int pipelined() throws Exception {
+    final AtomicInteger created = new AtomicInteger();
+    APICallBack<Note> callback = new APICallBack<Note>() {
+      public void call(APIResult<Note> result) {
+        try {
+          result.get();
+          created.incrementAndGet();
+        }
+        catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    WritePipeline pipeline = new WritePipeline(note_store, "token", executor, APIExecutor.DIRECT_DELIVERY,
+                                               max_in_flight, WritePipeline.DEFAULT_CAPACITY, APIExecutor.NORM_PRIORITY);
+    for (int i = 0; i < NOTES; i++) {
+      pipeline.createNote(new Note(), callback);
+    }
+    pipeline.awaitIdle(1, TimeUnit.MINUTES);
+    pipeline.close();
+    return created.get();
+  }
+}
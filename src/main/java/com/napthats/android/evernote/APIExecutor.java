@@ -0,0 +1,206 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Executor running API calls in background threads.
+ * At most parallelism tasks run at once and at most queue_capacity tasks wait for them.
+ * execute() blocks the caller while the queue is full, tryExecute() refuses the task instead.
+ * A task holds its place in the queue until it ends or calls releaseSlot(), which tasks do before giving
+ * results to callbacks, so that callbacks making more calls do not wait for their own places.
+ * Waiting tasks run in order of priority (higher first), and in order of submission for the same priority.
+ */
+public final class APIExecutor implements Executor {
+  public static final int DEFAULT_PARALLELISM = 4;
+  public static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+  public static final int LOW_PRIORITY = -10;
+  public static final int NORM_PRIORITY = 0;
+  public static final int HIGH_PRIORITY = 10;
+
+  private final ThreadPoolExecutor pool;
+  private final Semaphore slots;
+  private final AtomicLong sequence = new AtomicLong();
+  private final ThreadLocal<PrioritizedTask> running = new ThreadLocal<PrioritizedTask>();
+
+
+  /**
+   * Deliver results of API calls to callbacks.
+   * A delivery decides which thread APICallBack.call() runs on.
+   */
+  public interface ResultDelivery {
+    public void deliver(Runnable callback);
+  }
+
+  /**
+   * Call callbacks directly in the background thread which made the API call.
+   */
+  public static final ResultDelivery DIRECT_DELIVERY = new ResultDelivery() {
+    public void deliver(Runnable callback) {
+      callback.run();
+    }
+  };
+
+
+  public APIExecutor() {
+    this(DEFAULT_PARALLELISM, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param parallelism the number of background threads.
+   * @param queue_capacity the number of tasks allowed to wait for a thread.
+   */
+  public APIExecutor(int parallelism, int queue_capacity) {
+    if (parallelism <= 0) {throw new IllegalArgumentException("parallelism must be positive");}
+    if (queue_capacity < 0) {throw new IllegalArgumentException("queue_capacity must not be negative");}
+    slots = new Semaphore(parallelism + queue_capacity, true);
+    pool = new ThreadPoolExecutor(
+      parallelism, parallelism, 30, TimeUnit.SECONDS,
+      new PriorityBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "evernote-api-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+
+  public void execute(Runnable task) {
+    execute(task, NORM_PRIORITY);
+  }
+
+  /**
+   * Run a task. Block while the queue is full.
+   * Called in a thread of this executor, the task runs in the caller instead of blocking,
+   * as the places in the queue might be freed only by the caller and other blocked threads.
+   *
+   * @param task a task.
+   * @param priority priority of the task.
+   * @throws RejectedExecutionException when the executor is shut down or the caller is interrupted.
+   */
+  public void execute(Runnable task, int priority) {
+    if (running.get() != null) {
+      if (slots.tryAcquire()) {
+        submit(task, priority);
+      }
+      else {
+        task.run();
+      }
+      return;
+    }
+    try {
+      slots.acquire();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException(e);
+    }
+    submit(task, priority);
+  }
+
+  /**
+   * Run a task only when the queue has room for it.
+   *
+   * @return false if the queue is full.
+   * @throws RejectedExecutionException when the executor is shut down.
+   */
+  public boolean tryExecute(Runnable task, int priority) {
+    if (!slots.tryAcquire()) {
+      return false;
+    }
+    submit(task, priority);
+    return true;
+  }
+
+  /**
+   * Give back the place in the queue of the task running in the current thread, before the task ends.
+   * Tasks call this before giving their results to callbacks or futures. Does nothing outside of tasks.
+   */
+  void releaseSlot() {
+    PrioritizedTask task = running.get();
+    if (task != null) {
+      task.releaseSlot();
+    }
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return pool.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * @return the number of tasks waiting for a thread.
+   */
+  public int getQueuedCount() {
+    return pool.getQueue().size();
+  }
+
+  public int getParallelism() {
+    return pool.getMaximumPoolSize();
+  }
+
+
+  private void submit(Runnable task, int priority) {
+    try {
+      pool.execute(new PrioritizedTask(task, priority, sequence.getAndIncrement()));
+    }
+    catch (RejectedExecutionException e) {
+      slots.release();
+      throw e;
+    }
+  }
+
+  private final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+    private final Runnable task;
+    private final int priority;
+    private final long sequence;
+    private boolean holds_slot = true;
+
+    PrioritizedTask(Runnable task, int priority, long sequence) {
+      this.task = task;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    public void run() {
+      running.set(this);
+      try {
+        task.run();
+      }
+      finally {
+        running.remove();
+        releaseSlot();
+      }
+    }
+
+    void releaseSlot() {
+      if (holds_slot) {
+        holds_slot = false;
+        slots.release();
+      }
+    }
+
+    public int compareTo(PrioritizedTask other) {
+      if (priority != other.priority) {
+        return priority > other.priority ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+}
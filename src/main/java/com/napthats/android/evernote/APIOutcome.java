@@ -0,0 +1,65 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.UndeclaredThrowableException;
+
+import com.evernote.edam.error.*;
+
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+/**
+ * APIResult holding either a value or the exception of an API call.
+ * Checked exceptions other than EDAM ones (TException etc.) are thrown as UndeclaredThrowableException,
+ * as blocking NoteStoreProxy methods do.
+ */
+final class APIOutcome<T> implements APIResult<T> {
+  private final T value;
+  private final Throwable error;
+
+  private APIOutcome(T value, Throwable error) {
+    this.value = value;
+    this.error = error;
+  }
+
+  static <T> APIOutcome<T> success(T value) {
+    return new APIOutcome<T>(value, null);
+  }
+
+  static <T> APIOutcome<T> failure(Throwable error) {
+    return new APIOutcome<T>(null, error);
+  }
+
+  boolean isSuccess() {
+    return error == null;
+  }
+
+  T getValue() {
+    return value;
+  }
+
+  Throwable getError() {
+    return error;
+  }
+
+  public T get() throws EDAMUserException, EDAMSystemException, EDAMNotFoundException {
+    if (error == null) {
+      return value;
+    }
+    if (error instanceof EDAMUserException) {
+      throw (EDAMUserException) error;
+    }
+    if (error instanceof EDAMSystemException) {
+      throw (EDAMSystemException) error;
+    }
+    if (error instanceof EDAMNotFoundException) {
+      throw (EDAMNotFoundException) error;
+    }
+    if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    }
+    if (error instanceof Error) {
+      throw (Error) error;
+    }
+    throw new UndeclaredThrowableException(error);
+  }
+}
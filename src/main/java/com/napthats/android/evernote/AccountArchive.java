@@ -0,0 +1,350 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.evernote.thrift.TBase;
+import com.evernote.thrift.TException;
+
+
+/**
+ * File format of account archives, written by AccountExporter and read by AccountImporter.
+ *
+ * The file is a header of the magic, the version and the update count when the export started,
+ * followed by frames. A frame is its header and a Deflate-compressed payload. The header holds the compressed
+ * length, the CRC32 of the rest of the frame, the phase, the checkpoint USN and the raw length.
+ * A payload is a sequence of records, each of which is the type, the length and a Thrift struct in the binary protocol.
+ *
+ * Containers (notebooks, tags and searches) come in frames of the CONTAINERS phase, then notes in frames of
+ * the NOTES phase, and a frame of the DONE phase ends a complete archive. Every entry of the account up to the
+ * checkpoint USN of a frame is in the frames of its phase up to that frame, so an export resumes after the last
+ * complete frame. An entry changed during the export comes again at its new USN, and the last record of a GUID
+ * is its latest version. Containers changed during the NOTES phase come again among the notes.
+ * AccountImporter brings notes up to their latest versions. It imports containers by their last records in the
+ * CONTAINERS phase, and does not apply records among the notes of containers it has imported already.
+ * A frame torn by a crash is told by its CRC.
+ *
+ * An interrupt closes a FileChannel in I/O, so the interrupt status of the thread is cleared around I/O and set again.
+ * An interrupt arriving during I/O still closes it with ClosedByInterruptException, and the file is left resumable.
+ */
+final class AccountArchive {
+  static final int MAGIC = 0x454e4152; //"ENAR"
+  static final int VERSION = 1;
+  static final int FILE_HEADER_SIZE = 12;
+  static final int FRAME_HEADER_SIZE = 17;
+  //Frames are cut when their payload reaches this size, so a frame is this size or one note larger.
+  static final int FRAME_SIZE = 1024 * 1024;
+  //Longer frames are regarded as broken.
+  static final int MAX_FRAME_LENGTH = 1024 * 1024 * 1024;
+  //Deflate shrinks data by this ratio at most.
+  private static final int MAX_DEFLATE_RATIO = 1032;
+
+  static final byte CONTAINERS = 1;
+  static final byte NOTES = 2;
+  static final byte DONE = 3;
+
+  static final byte NOTEBOOK = 1;
+  static final byte TAG = 2;
+  static final byte SEARCH = 3;
+  static final byte NOTE = 4;
+
+  private AccountArchive() {}
+
+
+  /**
+   * A frame read from a file.
+   */
+  static final class Frame {
+    final long offset;
+    final long next_offset;
+    final byte phase;
+    final int usn;
+    final byte[] payload;
+
+    Frame(long offset, long next_offset, byte phase, int usn, byte[] payload) {
+      this.offset = offset;
+      this.next_offset = next_offset;
+      this.phase = phase;
+      this.usn = usn;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Writer of frames at the end of a file.
+   */
+  static final class Writer {
+    private final FileChannel channel;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream records = new DataOutputStream(buffer);
+    private final Deflater deflater = new Deflater();
+
+    Writer(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void add(byte type, TBase<?> struct) throws IOException, TException {
+      byte[] bytes = ThriftRecords.toBytes(struct);
+      records.writeByte(type);
+      records.writeInt(bytes.length);
+      records.write(bytes);
+    }
+
+    int getBufferedSize() {
+      return buffer.size();
+    }
+
+    /**
+     * Write the buffered records as a frame, and sync it to the disk.
+     * A frame without records marks a checkpoint.
+     */
+    void flush(byte phase, int usn) throws IOException {
+      byte[] raw = buffer.toByteArray();
+      buffer.reset();
+      deflater.reset();
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+      byte[] chunk = new byte[64 * 1024];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(chunk);
+        compressed.write(chunk, 0, n);
+      }
+      byte[] data = compressed.toByteArray();
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+      header.putInt(data.length);
+      header.putInt(crc(phase, usn, raw.length, data));
+      header.put(phase);
+      header.putInt(usn);
+      header.putInt(raw.length);
+      header.flip();
+      boolean interrupted = Thread.interrupted();
+      try {
+        writeFully(channel, header);
+        writeFully(channel, ByteBuffer.wrap(data));
+        channel.force(false);
+      }
+      finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    void close() {
+      deflater.end();
+    }
+  }
+
+
+  static void writeHeader(FileChannel channel, int update_count) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(update_count);
+    header.flip();
+    boolean interrupted = Thread.interrupted();
+    try {
+      channel.position(0);
+      writeFully(channel, header);
+      channel.force(false);
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Cut a file at an offset and move to there.
+   */
+  static void truncate(FileChannel channel, long offset) throws IOException {
+    boolean interrupted = Thread.interrupted();
+    try {
+      channel.truncate(offset);
+      channel.position(offset);
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Read the header of a file.
+   *
+   * @return the update count when the export started.
+   * @throws IOException when the file is not an archive of this version.
+   */
+  static int readHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    if (!readFully(channel, header, 0) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      throw new IOException("Not an account archive");
+    }
+    return header.getInt(8);
+  }
+
+  /**
+   * Read a frame.
+   *
+   * Lengths in the header are checked against the rest of the file before anything is allocated,
+   * so a broken header does not take memory.
+   *
+   * @return the frame, or null at the end of the file or at a broken or torn frame.
+   */
+  static Frame readFrame(FileChannel channel, long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    if (!readFully(channel, header, offset)) {
+      return null;
+    }
+    header.flip();
+    int length = header.getInt();
+    int expected_crc = header.getInt();
+    byte phase = header.get();
+    int usn = header.getInt();
+    int raw_length = header.getInt();
+    long available = size(channel) - offset - FRAME_HEADER_SIZE;
+    if (length < 0 || length > Math.min(MAX_FRAME_LENGTH, available)
+        || raw_length < 0 || raw_length > Math.min(MAX_FRAME_LENGTH, (long) length * MAX_DEFLATE_RATIO)) {
+      return null;
+    }
+    ByteBuffer data = ByteBuffer.allocate(length);
+    if (!readFully(channel, data, offset + FRAME_HEADER_SIZE)) {
+      return null;
+    }
+    if (crc(phase, usn, raw_length, data.array()) != expected_crc) {
+      return null;
+    }
+    byte[] raw = new byte[raw_length];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data.array());
+      int n = 0;
+      while (n < raw_length && !inflater.finished()) {
+        int inflated = inflater.inflate(raw, n, raw_length - n);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += inflated;
+      }
+      if (n != raw_length) {
+        return null;
+      }
+    }
+    catch (DataFormatException e) {
+      return null;
+    }
+    finally {
+      inflater.end();
+    }
+    return new Frame(offset, offset + FRAME_HEADER_SIZE + length, phase, usn, raw);
+  }
+
+  private static int crc(byte phase, int usn, int raw_length, byte[] data) {
+    CRC32 crc = new CRC32();
+    ByteBuffer fields = ByteBuffer.allocate(9);
+    fields.put(phase);
+    fields.putInt(usn);
+    fields.putInt(raw_length);
+    crc.update(fields.array(), 0, 9);
+    crc.update(data, 0, data.length);
+    return (int) crc.getValue();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static long size(FileChannel channel) throws IOException {
+    boolean interrupted = Thread.interrupted();
+    try {
+      return channel.size();
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Read a file at a position, without having the channel closed by an interrupt pending on the thread.
+   *
+   * @return false if the file ends before the buffer is full.
+   */
+  private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    boolean interrupted = Thread.interrupted();
+    try {
+      while (buffer.hasRemaining()) {
+        int n = channel.read(buffer, position + buffer.position());
+        if (n < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Reader of the records of a payload.
+   */
+  static final class Records {
+    private final ByteBuffer payload;
+    private byte type;
+    private byte[] bytes;
+
+    Records(byte[] payload) {
+      this.payload = ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false at the end of the payload.
+     */
+    boolean next() throws IOException {
+      if (!payload.hasRemaining()) {
+        return false;
+      }
+      try {
+        type = payload.get();
+        bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+      }
+      catch (RuntimeException e) {
+        throw new EOFException("Broken record in an account archive");
+      }
+      return true;
+    }
+
+    byte getType() {
+      return type;
+    }
+
+    <T extends TBase<?>> T read(T struct) throws IOException {
+      try {
+        return ThriftRecords.fromBytes(bytes, struct);
+      }
+      catch (TException e) {
+        throw new IOException("Broken record in an account archive", e);
+      }
+    }
+  }
+}
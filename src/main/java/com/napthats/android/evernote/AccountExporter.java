@@ -0,0 +1,250 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.SavedSearch;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.TBase;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Export of an account into an archive file, in the format of AccountArchive.
+ * The account is read by sync chunks twice, first for notebooks, tags and searches, then for notes,
+ * which are fetched one by one with their content and resource data. Only a frame of records is held in memory
+ * besides the note being fetched, whatever the size of the account.
+ *
+ * Every frame written is a checkpoint. export() stops at a checkpoint when the thread is interrupted,
+ * and a call on the same file, by this or another exporter, resumes after the last complete frame.
+ * The export follows the account up to its update count when the export ends, not when it started.
+ * An entry changed while the export runs is written again at its new USN, and AccountImporter brings notes up to
+ * its last version. Notebooks, tags and searches changed after their phase are written again among the notes,
+ * where new ones are imported, and changes of ones imported already, such as renames, are not applied.
+ */
+public final class AccountExporter {
+  public static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private final NoteStoreIface note_store;
+  private final String auth_token;
+  private final SyncEngine.ChunkSource source;
+  private final File archive;
+  private volatile int max_entries = DEFAULT_MAX_ENTRIES;
+  private volatile int frame_size = AccountArchive.FRAME_SIZE;
+  //Notes written by the running export. Guarded by this.
+  private int written;
+
+
+  /**
+   * @param note_store a blocking NoteStore, such as EvernoteActivity.createBlockingNoteStore().
+   * @param auth_token the auth token of the account.
+   * @param archive the archive file. Created if it does not exist.
+   */
+  public AccountExporter(NoteStoreIface note_store, String auth_token, File archive) {
+    this.note_store = note_store;
+    this.auth_token = auth_token;
+    this.source = SyncEngine.accountSource(note_store, auth_token);
+    this.archive = archive;
+  }
+
+
+  /**
+   * Set the max number of entries in a sync chunk.
+   */
+  public void setMaxEntries(int max_entries) {
+    if (max_entries <= 0) {
+      throw new IllegalArgumentException("max_entries must be positive: " + max_entries);
+    }
+    this.max_entries = max_entries;
+  }
+
+  /**
+   * Set the size of records at which a frame is written.
+   * Larger frames compress better, smaller ones lose less on interruption.
+   */
+  void setFrameSize(int frame_size) {
+    if (frame_size <= 0) {
+      throw new IllegalArgumentException("frame_size must be positive: " + frame_size);
+    }
+    this.frame_size = frame_size;
+  }
+
+  public File getArchive() {
+    return archive;
+  }
+
+  /**
+   * Export the account, or the rest of it when the archive has been partly written.
+   * The export stops at a checkpoint when the thread is interrupted. Call again to resume.
+   *
+   * @return the number of notes written by this call.
+   * @throws IOException when the file cannot be written or is not an archive.
+   */
+  public synchronized int export()
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    FileChannel channel = FileChannel.open(
+      archive.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    AccountArchive.Writer writer = new AccountArchive.Writer(channel);
+    try {
+      byte phase = AccountArchive.CONTAINERS;
+      int usn = 0;
+      int containers_usn = 0;
+      long end;
+      if (archive.length() < AccountArchive.FILE_HEADER_SIZE) {
+        AccountArchive.writeHeader(channel, source.getSyncState().getUpdateCount());
+        end = AccountArchive.FILE_HEADER_SIZE;
+      }
+      else {
+        AccountArchive.readHeader(channel);
+        end = AccountArchive.FILE_HEADER_SIZE;
+        for (AccountArchive.Frame frame = AccountArchive.readFrame(channel, end); frame != null;
+             frame = AccountArchive.readFrame(channel, end)) {
+          phase = frame.phase;
+          usn = frame.usn;
+          if (phase == AccountArchive.CONTAINERS) {
+            containers_usn = usn;
+          }
+          end = frame.next_offset;
+        }
+        if (phase == AccountArchive.DONE) {
+          return 0;
+        }
+      }
+      //A frame torn by a crash is dropped and written again.
+      AccountArchive.truncate(channel, end);
+
+      written = 0;
+      if (phase == AccountArchive.CONTAINERS) {
+        containers_usn = exportPhase(writer, AccountArchive.CONTAINERS, usn, 0);
+        if (containers_usn < 0) {
+          return written;
+        }
+        usn = 0;
+      }
+      usn = exportPhase(writer, AccountArchive.NOTES, usn, containers_usn);
+      if (usn < 0) {
+        return written;
+      }
+      writer.flush(AccountArchive.DONE, usn);
+      return written;
+    }
+    finally {
+      writer.close();
+      channel.close();
+    }
+  }
+
+  /**
+   * Write the entries of a phase after a USN up to the update count of the account, and a frame with the USN reached.
+   *
+   * @param containers_usn the USN after which notebooks, tags and searches are written in the phase.
+   * @return the USN reached, or -1 when the thread has been interrupted.
+   */
+  private int exportPhase(AccountArchive.Writer writer, byte phase, int usn, int containers_usn)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    while (true) {
+      if (Thread.currentThread().isInterrupted()) {
+        writer.flush(phase, usn);
+        return -1;
+      }
+      SyncChunk chunk = source.getSyncChunk(usn, max_entries, true);
+      //A chunk without chunkHighUSN has nothing after afterUSN.
+      if (!chunk.isSetChunkHighUSN() || chunk.getChunkHighUSN() <= usn) {
+        break;
+      }
+      for (Entry entry : entriesOf(chunk, phase == AccountArchive.NOTES, containers_usn)) {
+        if (entry.type == AccountArchive.NOTE) {
+          Note note = (Note) entry.struct;
+          if (note.isSetActive() && !note.isActive()) {
+            continue;
+          }
+          Note full;
+          try {
+            full = note_store.getNote(auth_token, note.getGuid(), true, true, false, false);
+          }
+          catch (EDAMNotFoundException e) {
+            //Expunged since the chunk.
+            continue;
+          }
+          writer.add(AccountArchive.NOTE, full);
+          written++;
+        }
+        else {
+          writer.add(entry.type, entry.struct);
+        }
+        //Entries up to this one are written, and the rest of the chunk has larger USNs.
+        if (writer.getBufferedSize() >= frame_size) {
+          writer.flush(phase, entry.usn);
+        }
+      }
+      usn = chunk.getChunkHighUSN();
+    }
+    writer.flush(phase, usn);
+    return usn;
+  }
+
+  private static final class Entry {
+    final int usn;
+    final byte type;
+    final TBase<?> struct;
+
+    Entry(int usn, byte type, TBase<?> struct) {
+      this.usn = usn;
+      this.type = type;
+      this.struct = struct;
+    }
+  }
+
+  /**
+   * Get the entries of a chunk in the order of USNs.
+   *
+   * @param notes whether to take notes.
+   * @param containers_usn the USN after which notebooks, tags and searches are taken.
+   */
+  private static List<Entry> entriesOf(SyncChunk chunk, boolean notes, int containers_usn) {
+    List<Entry> entries = new ArrayList<Entry>();
+    if (notes && chunk.isSetNotes()) {
+      for (Note note : chunk.getNotes()) {
+        entries.add(new Entry(note.getUpdateSequenceNum(), AccountArchive.NOTE, note));
+      }
+    }
+    if (chunk.isSetNotebooks()) {
+      for (Notebook notebook : chunk.getNotebooks()) {
+        if (notebook.getUpdateSequenceNum() > containers_usn) {
+          entries.add(new Entry(notebook.getUpdateSequenceNum(), AccountArchive.NOTEBOOK, notebook));
+        }
+      }
+    }
+    if (chunk.isSetTags()) {
+      for (Tag tag : chunk.getTags()) {
+        if (tag.getUpdateSequenceNum() > containers_usn) {
+          entries.add(new Entry(tag.getUpdateSequenceNum(), AccountArchive.TAG, tag));
+        }
+      }
+    }
+    if (chunk.isSetSearches()) {
+      for (SavedSearch search : chunk.getSearches()) {
+        if (search.getUpdateSequenceNum() > containers_usn) {
+          entries.add(new Entry(search.getUpdateSequenceNum(), AccountArchive.SEARCH, search));
+        }
+      }
+    }
+    Collections.sort(entries, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.usn < b.usn ? -1 : (a.usn == b.usn ? 0 : 1);
+      }
+    });
+    return entries;
+  }
+}
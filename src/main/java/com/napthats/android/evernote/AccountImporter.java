@@ -0,0 +1,712 @@
+package com.napthats.android.evernote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.Resource;
+import com.evernote.edam.type.SavedSearch;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.TException;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+/**
+ * Import of an archive written by AccountExporter into an account.
+ * Notebooks, tags and searches are matched by name with those of the account, and the missing ones are created.
+ * Notes are created through a WritePipeline a frame at a time, with their notebooks and tags mapped to the account.
+ * A note which comes again in the archive, as it changed during the export, updates the note created from it.
+ * Notebooks, tags and searches are imported by their last records before the notes. Records of them among the notes
+ * are imported only for new ones, so a rename during the export of notes is not applied.
+ * Only a frame and the notes in flight are held in memory besides the maps of guids, whatever the size of the archive.
+ *
+ * The progress is saved in a checkpoint file next to the archive after every frame, and the notes created are
+ * appended to a log next to it. importArchive() stops between notes when the thread is interrupted, and a call on
+ * the same archive resumes from the checkpoint. A create which fails stops the import at its frame, and a later call
+ * tries the frame again without creating its other notes again.
+ * An archive still being exported is imported up to its last complete frame, and the rest on a later call.
+ */
+public final class AccountImporter {
+  private static final int CHECKPOINT_MAGIC = 0x454e4943; //"ENIC"
+  private static final String CHECKPOINT_SUFFIX = ".import";
+  private static final String NOTES_SUFFIX = ".notes";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final NoteStoreIface note_store;
+  private final String auth_token;
+  private final APIExecutor executor;
+  private final File archive;
+  private final File checkpoint;
+  private final File notes_log;
+
+  //Guids of the archive to guids of the account. Written in callbacks.
+  private final Map<String, String> notebook_guids = new ConcurrentHashMap<String, String>();
+  private final Map<String, String> tag_guids = new ConcurrentHashMap<String, String>();
+  //Notes of the archive imported, by guid. Written in callbacks, and appended to the log at checkpoints.
+  private final Map<String, Imported> note_guids = new ConcurrentHashMap<String, Imported>();
+  private final ConcurrentLinkedQueue<Imported> unsaved = new ConcurrentLinkedQueue<Imported>();
+  //Names of the account in lower case to guids, loaded when needed. Written in callbacks.
+  private Map<String, String> notebook_names = null;
+  private Map<String, String> tag_names = null;
+  private Map<String, String> search_names = null;
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicReference<Throwable> first_error = new AtomicReference<Throwable>();
+
+
+  /**
+   * A note of the archive imported.
+   */
+  private static final class Imported {
+    final String source_guid;
+    final String guid;
+    final int usn;
+
+    Imported(String source_guid, String guid, int usn) {
+      this.source_guid = source_guid;
+      this.guid = guid;
+      this.usn = usn;
+    }
+  }
+
+
+  /**
+   * @param note_store a thread-safe blocking NoteStore, such as EvernoteActivity.createBlockingNoteStore().
+   * @param auth_token the auth token of the account.
+   * @param executor the executor running creates.
+   * @param archive the archive file.
+   */
+  public AccountImporter(NoteStoreIface note_store, String auth_token, APIExecutor executor, File archive) {
+    this.note_store = note_store;
+    this.auth_token = auth_token;
+    this.executor = executor;
+    this.archive = archive;
+    this.checkpoint = new File(archive.getPath() + CHECKPOINT_SUFFIX);
+    this.notes_log = new File(checkpoint.getPath() + NOTES_SUFFIX);
+  }
+
+
+  public File getCheckpointFile() {
+    return checkpoint;
+  }
+
+  /**
+   * Get the log of notes created, which is next to the checkpoint file.
+   */
+  public File getNotesLogFile() {
+    return notes_log;
+  }
+
+  /**
+   * Get the number of notes, notebooks, tags and searches created or updated by this importer.
+   */
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  /**
+   * Get the number of creates which failed.
+   * The import stops at the frame of a failed create, and the entry is tried again on the next call.
+   */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * Get the error of the first failed create, or null.
+   */
+  public Throwable getFirstError() {
+    return first_error.get();
+  }
+
+  /**
+   * Import the archive, or the rest of it after the checkpoint.
+   * The import stops between notes when the thread is interrupted, and at a frame where a create fails.
+   * Call again to resume.
+   *
+   * @return the number of notes created by this call.
+   * @throws IOException when the archive cannot be read or the checkpoint cannot be written.
+   */
+  public synchronized int importArchive()
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+    //A window as narrow as the queue keeps few notes in memory.
+    int window = Math.min(WritePipeline.DEFAULT_MAX_IN_FLIGHT, executor.getParallelism());
+    WritePipeline pipeline = new WritePipeline(
+      note_store, auth_token, executor, APIExecutor.DIRECT_DELIVERY, window, window, APIExecutor.NORM_PRIORITY);
+    notebook_names = null;
+    tag_names = null;
+    search_names = null;
+    try {
+      AccountArchive.readHeader(channel);
+      long offset;
+      int skip = 0;
+      if (checkpoint.exists()) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+        try {
+          if (in.readInt() != CHECKPOINT_MAGIC) {
+            throw new IOException("Broken checkpoint: " + checkpoint);
+          }
+          offset = in.readLong();
+          skip = in.readInt();
+          readGuids(in, notebook_guids);
+          readGuids(in, tag_guids);
+        }
+        finally {
+          in.close();
+        }
+        readNotesLog();
+      }
+      else {
+        note_guids.clear();
+        unsaved.clear();
+        if (notes_log.exists() && !notes_log.delete()) {
+          throw new IOException("Cannot delete " + notes_log);
+        }
+        offset = importContainers(channel, pipeline);
+        if (offset < 0) {
+          return 0;
+        }
+        saveCheckpoint(offset, 0);
+      }
+      return importNotes(channel, pipeline, offset, skip);
+    }
+    finally {
+      pipeline.close();
+      channel.close();
+    }
+  }
+
+
+  /**
+   * Create the notebooks, tags and searches of the archive which the account does not have.
+   * Containers are matched by name, so this is repeated safely when interrupted or when a create fails.
+   *
+   * @return the offset of the first frame of notes, or -1 when the archive does not reach there yet or a create failed.
+   */
+  private long importContainers(FileChannel channel, WritePipeline pipeline)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    //The last record of a guid is its latest version.
+    Map<String, Notebook> notebooks = new LinkedHashMap<String, Notebook>();
+    Map<String, Tag> tags = new LinkedHashMap<String, Tag>();
+    Map<String, SavedSearch> searches = new LinkedHashMap<String, SavedSearch>();
+    long offset = AccountArchive.FILE_HEADER_SIZE;
+    AccountArchive.Frame frame;
+    while ((frame = AccountArchive.readFrame(channel, offset)) != null && frame.phase == AccountArchive.CONTAINERS) {
+      AccountArchive.Records records = new AccountArchive.Records(frame.payload);
+      while (records.next()) {
+        switch (records.getType()) {
+        case AccountArchive.NOTEBOOK:
+          Notebook notebook = records.read(new Notebook());
+          notebooks.put(notebook.getGuid(), notebook);
+          break;
+        case AccountArchive.TAG:
+          Tag tag = records.read(new Tag());
+          tags.put(tag.getGuid(), tag);
+          break;
+        case AccountArchive.SEARCH:
+          SavedSearch search = records.read(new SavedSearch());
+          searches.put(search.getGuid(), search);
+          break;
+        default:
+          break;
+        }
+      }
+      offset = frame.next_offset;
+    }
+    if (frame == null) {
+      return -1;
+    }
+
+    long failed_before = failed.get();
+    for (Notebook notebook : notebooks.values()) {
+      importNotebook(pipeline, notebook);
+    }
+    for (SavedSearch search : searches.values()) {
+      importSearch(pipeline, search);
+    }
+    List<Tag> pending = new ArrayList<Tag>();
+    for (Tag tag : tags.values()) {
+      if (!tag_guids.containsKey(tag.getGuid()) && !matchTag(tag)) {
+        pending.add(tag);
+      }
+    }
+    //Parents are created before their children, a generation at a time.
+    while (!pending.isEmpty()) {
+      Set<String> pending_guids = new HashSet<String>();
+      for (Tag tag : pending) {
+        pending_guids.add(tag.getGuid());
+      }
+      List<Tag> generation = new ArrayList<Tag>();
+      for (Iterator<Tag> i = pending.iterator(); i.hasNext();) {
+        Tag tag = i.next();
+        if (!tag.isSetParentGuid() || !pending_guids.contains(tag.getParentGuid())) {
+          generation.add(tag);
+          i.remove();
+        }
+      }
+      if (generation.isEmpty()) {
+        //Parents in a cycle.
+        generation.addAll(pending);
+        pending.clear();
+      }
+      for (Tag tag : generation) {
+        createTag(pipeline, tag);
+      }
+      awaitIdle(pipeline);
+    }
+    awaitIdle(pipeline);
+    return failed.get() == failed_before ? offset : -1;
+  }
+
+  /**
+   * Create the notes of frames from an offset, skipping records at the head of the first frame.
+   * Containers among the notes changed during the export, and are imported before the notes after them.
+   */
+  private int importNotes(FileChannel channel, WritePipeline pipeline, long offset, int skip)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    final AtomicLong notes = new AtomicLong();
+    Set<String> in_flight = new HashSet<String>();
+    AccountArchive.Frame frame;
+    while ((frame = AccountArchive.readFrame(channel, offset)) != null && frame.phase != AccountArchive.DONE) {
+      long failed_before = failed.get();
+      AccountArchive.Records records = new AccountArchive.Records(frame.payload);
+      for (int index = 0; records.next(); index++) {
+        if (index < skip) {
+          continue;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          awaitIdle(pipeline);
+          //A create failed in the frame is tried again from the head of the frame.
+          saveCheckpoint(offset, failed.get() != failed_before ? skip : index);
+          return (int) notes.get();
+        }
+        switch (records.getType()) {
+        case AccountArchive.NOTE:
+          Note note = records.read(new Note());
+          if (!in_flight.add(note.getGuid())) {
+            //An earlier version of the note is being written.
+            awaitIdle(pipeline);
+            in_flight.clear();
+            in_flight.add(note.getGuid());
+          }
+          importNote(pipeline, note, notes);
+          break;
+        case AccountArchive.NOTEBOOK:
+          importNotebook(pipeline, records.read(new Notebook()));
+          awaitIdle(pipeline);
+          break;
+        case AccountArchive.TAG:
+          Tag tag = records.read(new Tag());
+          if (!tag_guids.containsKey(tag.getGuid()) && !matchTag(tag)) {
+            createTag(pipeline, tag);
+            awaitIdle(pipeline);
+          }
+          break;
+        case AccountArchive.SEARCH:
+          importSearch(pipeline, records.read(new SavedSearch()));
+          break;
+        default:
+          break;
+        }
+      }
+      awaitIdle(pipeline);
+      in_flight.clear();
+      if (failed.get() != failed_before) {
+        //Notes created in the frame are skipped when it is tried again.
+        saveCheckpoint(offset, skip);
+        return (int) notes.get();
+      }
+      offset = frame.next_offset;
+      skip = 0;
+      saveCheckpoint(offset, 0);
+    }
+    return (int) notes.get();
+  }
+
+  /**
+   * Create a note, or update the note created from an earlier version of it.
+   */
+  private void importNote(WritePipeline pipeline, final Note note, final AtomicLong notes) {
+    final Imported imported = note_guids.get(note.getGuid());
+    if (imported != null && imported.usn >= note.getUpdateSequenceNum()) {
+      //Imported before an interruption or a failure.
+      return;
+    }
+    submit(pipeline, new WritePipeline.Write<Note>() {
+      public Note apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        Note copy = copyForCreate(note);
+        if (imported == null) {
+          return note_store.createNote(auth_token, copy);
+        }
+        copy.setGuid(imported.guid);
+        return note_store.updateNote(auth_token, copy);
+      }
+    }, new Created<Note>() {
+      void onCreated(Note result) {
+        Imported done = new Imported(note.getGuid(), result.getGuid(), note.getUpdateSequenceNum());
+        note_guids.put(note.getGuid(), done);
+        unsaved.add(done);
+        if (imported == null) {
+          notes.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  private void importNotebook(WritePipeline pipeline, final Notebook notebook)
+  throws EDAMUserException, EDAMSystemException, TException {
+    if (notebook_guids.containsKey(notebook.getGuid())) {
+      return;
+    }
+    loadNames();
+    String guid = notebook_names.get(notebook.getName().toLowerCase(Locale.ENGLISH));
+    if (guid != null) {
+      notebook_guids.put(notebook.getGuid(), guid);
+      return;
+    }
+    submit(pipeline, new WritePipeline.Write<Notebook>() {
+      public Notebook apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, TException {
+        return note_store.createNotebook(auth_token, copyForCreate(notebook));
+      }
+    }, new Created<Notebook>() {
+      void onCreated(Notebook result) {
+        notebook_guids.put(notebook.getGuid(), result.getGuid());
+        notebook_names.put(result.getName().toLowerCase(Locale.ENGLISH), result.getGuid());
+      }
+    });
+  }
+
+  private void importSearch(WritePipeline pipeline, final SavedSearch search)
+  throws EDAMUserException, EDAMSystemException, TException {
+    if (search_names == null) {
+      search_names = new ConcurrentHashMap<String, String>();
+      for (SavedSearch other : note_store.listSearches(auth_token)) {
+        search_names.put(other.getName().toLowerCase(Locale.ENGLISH), other.getGuid());
+      }
+    }
+    if (search_names.containsKey(search.getName().toLowerCase(Locale.ENGLISH))) {
+      return;
+    }
+    submit(pipeline, new WritePipeline.Write<SavedSearch>() {
+      public SavedSearch apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, TException {
+        SavedSearch copy = search.deepCopy();
+        copy.unsetGuid();
+        copy.unsetUpdateSequenceNum();
+        return note_store.createSearch(auth_token, copy);
+      }
+    }, new Created<SavedSearch>() {
+      void onCreated(SavedSearch result) {
+        search_names.put(result.getName().toLowerCase(Locale.ENGLISH), result.getGuid());
+      }
+    });
+  }
+
+  /**
+   * Map a tag to the tag of the same name in the account.
+   *
+   * @return false if the account has no tag of the name.
+   */
+  private boolean matchTag(Tag tag) throws EDAMUserException, EDAMSystemException, TException {
+    loadNames();
+    String guid = tag_names.get(tag.getName().toLowerCase(Locale.ENGLISH));
+    if (guid == null) {
+      return false;
+    }
+    tag_guids.put(tag.getGuid(), guid);
+    return true;
+  }
+
+  /**
+   * Create a tag under the tag created from its parent. Its parent is created before it.
+   */
+  private void createTag(WritePipeline pipeline, final Tag tag) {
+    submit(pipeline, new WritePipeline.Write<Tag>() {
+      public Tag apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        Tag copy = tag.deepCopy();
+        copy.unsetGuid();
+        copy.unsetUpdateSequenceNum();
+        String parent_guid = tag.isSetParentGuid() ? tag_guids.get(tag.getParentGuid()) : null;
+        if (parent_guid != null) {
+          copy.setParentGuid(parent_guid);
+        }
+        else {
+          copy.unsetParentGuid();
+        }
+        return note_store.createTag(auth_token, copy);
+      }
+    }, new Created<Tag>() {
+      void onCreated(Tag result) {
+        tag_guids.put(tag.getGuid(), result.getGuid());
+        tag_names.put(result.getName().toLowerCase(Locale.ENGLISH), result.getGuid());
+      }
+    });
+  }
+
+  private void loadNames() throws EDAMUserException, EDAMSystemException, TException {
+    if (notebook_names != null) {
+      return;
+    }
+    Map<String, String> notebooks = new ConcurrentHashMap<String, String>();
+    for (Notebook notebook : note_store.listNotebooks(auth_token)) {
+      notebooks.put(notebook.getName().toLowerCase(Locale.ENGLISH), notebook.getGuid());
+    }
+    Map<String, String> tags = new ConcurrentHashMap<String, String>();
+    for (Tag tag : note_store.listTags(auth_token)) {
+      tags.put(tag.getName().toLowerCase(Locale.ENGLISH), tag.getGuid());
+    }
+    tag_names = tags;
+    notebook_names = notebooks;
+  }
+
+  private static Notebook copyForCreate(Notebook notebook) {
+    Notebook copy = notebook.deepCopy();
+    copy.unsetGuid();
+    copy.unsetUpdateSequenceNum();
+    copy.unsetDefaultNotebook();
+    copy.unsetPublishing();
+    copy.unsetPublished();
+    copy.unsetSharedNotebookIds();
+    copy.unsetSharedNotebooks();
+    return copy;
+  }
+
+  private Note copyForCreate(Note note) {
+    Note copy = note.deepCopy();
+    copy.unsetGuid();
+    copy.unsetUpdateSequenceNum();
+    copy.unsetContentHash();
+    copy.unsetContentLength();
+    copy.unsetDeleted();
+    copy.unsetActive();
+    copy.unsetTagNames();
+    String notebook_guid = note.isSetNotebookGuid() ? notebook_guids.get(note.getNotebookGuid()) : null;
+    if (notebook_guid != null) {
+      copy.setNotebookGuid(notebook_guid);
+    }
+    else {
+      copy.unsetNotebookGuid();
+    }
+    copy.unsetTagGuids();
+    if (note.isSetTagGuids()) {
+      for (String tag_guid : note.getTagGuids()) {
+        String mapped = tag_guids.get(tag_guid);
+        if (mapped != null) {
+          copy.addToTagGuids(mapped);
+        }
+      }
+    }
+    if (copy.isSetResources()) {
+      for (Resource resource : copy.getResources()) {
+        resource.unsetGuid();
+        resource.unsetNoteGuid();
+        resource.unsetUpdateSequenceNum();
+        resource.unsetRecognition();
+        resource.unsetAlternateData();
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Callback counting creates.
+   */
+  private class Created<T> implements APICallBack<T> {
+    public void call(APIResult<T> result) {
+      T value;
+      try {
+        value = result.get();
+      }
+      catch (Exception e) {
+        failed.incrementAndGet();
+        first_error.compareAndSet(null, e);
+        return;
+      }
+      created.incrementAndGet();
+      onCreated(value);
+    }
+
+    void onCreated(T result) {}
+  }
+
+  /**
+   * Submit a write, waiting for the queue without being interrupted.
+   */
+  private static <T> void submit(WritePipeline pipeline, WritePipeline.Write<T> write, APICallBack<T> callback) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          pipeline.submit(write, callback);
+          return;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Wait until the writes submitted have completed, without being interrupted.
+   */
+  private static void awaitIdle(WritePipeline pipeline) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          pipeline.awaitIdle(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+          return;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void saveCheckpoint(long offset, int skip) throws IOException {
+    appendNotesLog();
+    File temp = new File(checkpoint.getPath() + TEMP_SUFFIX);
+    FileOutputStream file = new FileOutputStream(temp);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeLong(offset);
+      out.writeInt(skip);
+      writeGuids(out, notebook_guids);
+      writeGuids(out, tag_guids);
+      out.flush();
+      file.getFD().sync();
+    }
+    finally {
+      file.close();
+    }
+    if (!temp.renameTo(checkpoint)) {
+      throw new IOException("Cannot replace the checkpoint " + checkpoint);
+    }
+  }
+
+  /**
+   * Append the notes created since the last checkpoint to the log, and sync it to the disk.
+   */
+  private void appendNotesLog() throws IOException {
+    if (unsaved.isEmpty()) {
+      return;
+    }
+    FileOutputStream file = new FileOutputStream(notes_log, true);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      for (Imported imported; (imported = unsaved.poll()) != null;) {
+        out.writeUTF(imported.source_guid);
+        out.writeUTF(imported.guid);
+        out.writeInt(imported.usn);
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Read the log of notes created. A record torn by a crash is cut off.
+   */
+  private void readNotesLog() throws IOException {
+    note_guids.clear();
+    unsaved.clear();
+    if (!notes_log.exists()) {
+      return;
+    }
+    RandomAccessFile file = new RandomAccessFile(notes_log, "rw");
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+      long valid = 0;
+      try {
+        while (valid < file.length()) {
+          String source_guid = in.readUTF();
+          String guid = in.readUTF();
+          int usn = in.readInt();
+          note_guids.put(source_guid, new Imported(source_guid, guid, usn));
+          valid += utfLength(source_guid) + utfLength(guid) + 4;
+        }
+      }
+      catch (EOFException e) {
+        file.setLength(valid);
+      }
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Get the length of a string written by writeUTF().
+   */
+  private static int utfLength(String s) {
+    int length = 2;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      length += c >= 0x0001 && c <= 0x007f ? 1 : (c <= 0x07ff ? 2 : 3);
+    }
+    return length;
+  }
+
+  private static void writeGuids(DataOutputStream out, Map<String, String> guids) throws IOException {
+    out.writeInt(guids.size());
+    for (Map.Entry<String, String> entry : guids.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeUTF(entry.getValue());
+    }
+  }
+
+  private static void readGuids(DataInputStream in, Map<String, String> guids) throws IOException {
+    guids.clear();
+    for (int i = in.readInt(); i > 0; i--) {
+      guids.put(in.readUTF(), in.readUTF());
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.napthats.android.evernote;
+
+
+/**
+ * The source of the current time of expiry and timeouts, so that tests can move it by hand.
+ */
+interface Clock {
+  Clock SYSTEM = new Clock() {
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  long currentTimeMillis();
+}
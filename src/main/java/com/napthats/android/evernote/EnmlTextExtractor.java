@@ -0,0 +1,364 @@
+package com.napthats.android.evernote;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.text.translate.EntityArrays;
+
+
+/**
+ * Single-pass converter from ENML to plain text.
+ * Tags, comments, the XML declaration and the DOCTYPE are removed, entities are unescaped
+ * and CDATA sections are copied as they are.
+ * End of div, p and li and br tags become newlines. A block ending right after a br does not add
+ * another newline, so that an empty line written as "&lt;div&gt;&lt;br/&gt;&lt;/div&gt;" is one newline.
+ *
+ * ENML can be given in chunks by write(). The state between chunks is kept in the extractor,
+ * so a tag or an entity may be split across chunks. Call finish() after the last chunk.
+ */
+public final class EnmlTextExtractor {
+  private static final Map<String, String> ENTITIES = new HashMap<String, String>();
+  static {
+    for (String[][] entities : new String[][][] {
+           EntityArrays.BASIC_UNESCAPE(),
+           EntityArrays.APOS_UNESCAPE(),
+           EntityArrays.ISO8859_1_UNESCAPE(),
+           EntityArrays.HTML40_EXTENDED_UNESCAPE()}) {
+      for (String[] entity : entities) {
+        //Keys are like "&amp;". Keep only the name.
+        ENTITIES.put(entity[0].substring(1, entity[0].length() - 1), entity[1]);
+      }
+    }
+  }
+  private static final int MAX_ENTITY_LENGTH = 32;
+
+  private static final int TEXT = 0;
+  private static final int ENTITY = 1;
+  private static final int MARKUP_START = 2;
+  private static final int TAG_NAME = 3;
+  private static final int TAG_BODY = 4;
+  private static final int TAG_QUOTED = 5;
+  private static final int DECLARATION = 6;
+  private static final int COMMENT = 7;
+  private static final int CDATA = 8;
+
+  private static final String CDATA_START = "![CDATA[";
+
+  private Appendable out;
+  private int state = TEXT;
+  //Entity name, tag name or the head of "<!..." under examination.
+  private final StringBuilder pending = new StringBuilder();
+  private boolean end_tag = false;
+  private char quote = 0;
+  //Count of '-' before '>' in comments, or of ']' before '>' in CDATA sections.
+  private int closing_count = 0;
+  private boolean after_break = false;
+
+
+  public EnmlTextExtractor(Appendable out) {
+    this.out = out;
+  }
+
+  /**
+   * Convert a whole ENML document.
+   *
+   * @param enml ENML.
+   * @param out a buffer to which the plain text is appended. It can be reused across calls.
+   * @return out.
+   */
+  public static StringBuilder toPlainText(CharSequence enml, StringBuilder out) {
+    EnmlTextExtractor extractor = new EnmlTextExtractor(out);
+    try {
+      extractor.write(enml, 0, enml.length());
+      extractor.finish();
+    }
+    catch (IOException e) {
+      throw new AssertionError(e); //StringBuilder never throws.
+    }
+    return out;
+  }
+
+  /**
+   * Start over with another output.
+   */
+  public void reset(Appendable out) {
+    this.out = out;
+    state = TEXT;
+    pending.setLength(0);
+    end_tag = false;
+    quote = 0;
+    closing_count = 0;
+    after_break = false;
+  }
+
+  /**
+   * Convert a chunk of ENML.
+   */
+  public void write(CharSequence enml, int start, int end) throws IOException {
+    int i = start;
+    while (i < end) {
+      if (state == TEXT) {
+        //Copy a run of plain characters at once.
+        int run = i;
+        while (run < end) {
+          char c = enml.charAt(run);
+          if (c == '<' || c == '&') {
+            break;
+          }
+          run++;
+        }
+        if (run > i) {
+          out.append(enml, i, run);
+          after_break = false;
+          i = run;
+          continue;
+        }
+      }
+      else if (state == CDATA) {
+        int run = i;
+        while (run < end && enml.charAt(run) != ']' && enml.charAt(run) != '>') {
+          run++;
+        }
+        if (run > i) {
+          flushCdataBrackets();
+          out.append(enml, i, run);
+          after_break = false;
+          i = run;
+          continue;
+        }
+      }
+      write(enml.charAt(i));
+      i++;
+    }
+  }
+
+  /**
+   * Convert a chunk of ENML.
+   */
+  public void write(char[] enml, int offset, int length) throws IOException {
+    write(CharBuffer.wrap(enml), offset, offset + length);
+  }
+
+  /**
+   * Finish the conversion. An incomplete entity at the end is written as it is.
+   */
+  public void finish() throws IOException {
+    if (state == ENTITY) {
+      out.append('&').append(pending);
+    }
+    else if (state == CDATA) {
+      flushCdataBrackets();
+    }
+    pending.setLength(0);
+    state = TEXT;
+  }
+
+
+  private void write(char c) throws IOException {
+    switch (state) {
+    case TEXT:
+      if (c == '<') {
+        state = MARKUP_START;
+      }
+      else if (c == '&') {
+        pending.setLength(0);
+        state = ENTITY;
+      }
+      else {
+        out.append(c);
+        after_break = false;
+      }
+      return;
+
+    case ENTITY:
+      if (c == ';') {
+        unescape();
+        state = TEXT;
+      }
+      else if (isEntityChar(c) && pending.length() < MAX_ENTITY_LENGTH) {
+        pending.append(c);
+      }
+      else {
+        //Not an entity. Write it as it is and read c again as text.
+        out.append('&').append(pending);
+        after_break = false;
+        state = TEXT;
+        write(c);
+      }
+      return;
+
+    case MARKUP_START:
+      pending.setLength(0);
+      if (c == '/') {
+        end_tag = true;
+        state = TAG_NAME;
+      }
+      else if (c == '!') {
+        pending.append(c);
+        state = DECLARATION;
+      }
+      else if (c == '?') {
+        state = TAG_BODY;
+        end_tag = false;
+      }
+      else {
+        end_tag = false;
+        pending.append(c);
+        state = TAG_NAME;
+      }
+      return;
+
+    case TAG_NAME:
+      if (c == '>') {
+        endOfTag();
+      }
+      else if (c == '/' || Character.isWhitespace(c)) {
+        state = TAG_BODY;
+      }
+      else {
+        pending.append(c);
+      }
+      return;
+
+    case TAG_BODY:
+      if (c == '>') {
+        endOfTag();
+      }
+      else if (c == '"' || c == '\'') {
+        quote = c;
+        state = TAG_QUOTED;
+      }
+      return;
+
+    case TAG_QUOTED:
+      if (c == quote) {
+        state = TAG_BODY;
+      }
+      return;
+
+    case DECLARATION:
+      //pending holds the head of "<!...>" until it turns out to be a comment, CDATA or a DOCTYPE.
+      if (pending.length() < CDATA_START.length()) {
+        pending.append(c);
+        if (pending.length() == 3 && pending.charAt(1) == '-' && pending.charAt(2) == '-') {
+          closing_count = 0;
+          state = COMMENT;
+          return;
+        }
+        if (pending.length() == CDATA_START.length() && CDATA_START.contentEquals(pending)) {
+          closing_count = 0;
+          state = CDATA;
+          return;
+        }
+      }
+      if (c == '"' || c == '\'') {
+        quote = c;
+        state = TAG_QUOTED;
+      }
+      else if (c == '>') {
+        pending.setLength(0);
+        state = TEXT;
+      }
+      return;
+
+    case COMMENT:
+      if (c == '>' && closing_count >= 2) {
+        state = TEXT;
+      }
+      else {
+        closing_count = c == '-' ? closing_count + 1 : 0;
+      }
+      return;
+
+    case CDATA:
+      if (c == ']') {
+        closing_count++;
+      }
+      else if (c == '>' && closing_count >= 2) {
+        for (int i = 2; i < closing_count; i++) {
+          out.append(']');
+        }
+        closing_count = 0;
+        state = TEXT;
+      }
+      else {
+        flushCdataBrackets();
+        out.append(c);
+        after_break = false;
+      }
+      return;
+
+    default:
+      throw new AssertionError(state);
+    }
+  }
+
+  private void flushCdataBrackets() throws IOException {
+    for (; closing_count > 0; closing_count--) {
+      out.append(']');
+      after_break = false;
+    }
+  }
+
+  private void endOfTag() throws IOException {
+    state = TEXT;
+    if (isTag("br")) {
+      out.append('\n');
+      after_break = true;
+    }
+    else if (end_tag && (isTag("div") || isTag("p") || isTag("li"))) {
+      if (!after_break) {
+        out.append('\n');
+      }
+      after_break = false;
+    }
+    pending.setLength(0);
+  }
+
+  private boolean isTag(String name) {
+    if (pending.length() != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (Character.toLowerCase(pending.charAt(i)) != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void unescape() throws IOException {
+    String decoded = null;
+    if (pending.length() > 1 && pending.charAt(0) == '#') {
+      try {
+        int code_point = pending.charAt(1) == 'x' || pending.charAt(1) == 'X'
+          ? Integer.parseInt(pending.substring(2), 16)
+          : Integer.parseInt(pending.substring(1), 10);
+        if (Character.isValidCodePoint(code_point)) {
+          out.append(new String(Character.toChars(code_point)));
+          after_break = false;
+          return;
+        }
+      }
+      catch (NumberFormatException e) {
+        //Not a numeric entity. Write it as it is.
+      }
+    }
+    else {
+      decoded = ENTITIES.get(pending.toString());
+    }
+    if (decoded == null) {
+      out.append('&').append(pending).append(';');
+    }
+    else {
+      out.append(decoded);
+    }
+    after_break = false;
+  }
+
+  private static boolean isEntityChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '#';
+  }
+}
@@ -0,0 +1,222 @@
+package com.napthats.android.evernote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+import org.apache.commons.lang3.text.translate.EntityArrays;
+
+
+/**
+ * Single-pass writer from plain text to ENML.
+ * Each line becomes a div and characters are escaped as StringEscapeUtils.escapeHtml4() does,
+ * so the output is exactly what Util.setPlainContent() has always produced.
+ */
+public final class EnmlWriter {
+  static final String NOTE_PREFIX =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">" +
+            "<en-note>";
+  static final String NOTE_SUFFIX = "</en-note>";
+  static final String LINE_PREFIX = "<div>";
+  static final String LINE_SUFFIX = "</div>";
+  private static final String LINE_BREAK = LINE_SUFFIX + LINE_PREFIX;
+
+  //Entity for each char, or null if the char is written as it is.
+  private static final String[] ESCAPES;
+  static {
+    String[][][] tables = {
+      EntityArrays.BASIC_ESCAPE(),
+      EntityArrays.ISO8859_1_ESCAPE(),
+      EntityArrays.HTML40_EXTENDED_ESCAPE()};
+    int max = 0;
+    for (String[][] table : tables) {
+      for (String[] entry : table) {
+        max = Math.max(max, entry[0].charAt(0));
+      }
+    }
+    ESCAPES = new String[max + 1];
+    for (String[][] table : tables) {
+      for (String[] entry : table) {
+        ESCAPES[entry[0].charAt(0)] = entry[1];
+      }
+    }
+  }
+
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private EnmlWriter() {}
+
+
+  /**
+   * Write a plain text as ENML.
+   */
+  public static void write(CharSequence plain, Appendable out) throws IOException {
+    out.append(NOTE_PREFIX).append(LINE_PREFIX);
+    writeBody(plain, 0, plain.length(), out);
+    out.append(LINE_SUFFIX).append(NOTE_SUFFIX);
+  }
+
+  /**
+   * Write a plain text read from a Reader as ENML. The reader is not closed.
+   */
+  public static void write(Reader plain, Appendable out) throws IOException {
+    out.append(NOTE_PREFIX).append(LINE_PREFIX);
+    char[] buf = new char[READ_BUFFER_SIZE];
+    CharBuffer chars = CharBuffer.wrap(buf);
+    int n;
+    while ((n = plain.read(buf)) >= 0) {
+      writeBody(chars, 0, n, out);
+    }
+    out.append(LINE_SUFFIX).append(NOTE_SUFFIX);
+  }
+
+  /**
+   * Write a plain text as UTF-8 encoded ENML, without building the ENML string.
+   */
+  public static void write(CharSequence plain, OutputStream out) throws IOException {
+    Utf8Output utf8 = new Utf8Output(out);
+    write(plain, utf8);
+    utf8.flush();
+  }
+
+  /**
+   * Get the length of the ENML for a plain text.
+   * This makes a buffer of exact size possible before writing.
+   */
+  public static int length(CharSequence plain) {
+    int length = NOTE_PREFIX.length() + LINE_PREFIX.length() + LINE_SUFFIX.length() + NOTE_SUFFIX.length();
+    for (int i = 0, n = plain.length(); i < n; i++) {
+      char c = plain.charAt(i);
+      if (c == '\n') {
+        length += LINE_BREAK.length();
+      }
+      else if (c < ESCAPES.length && ESCAPES[c] != null) {
+        length += ESCAPES[c].length();
+      }
+      else {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Convert a plain text to ENML.
+   */
+  public static String toEnml(CharSequence plain) {
+    StringBuilder sb = new StringBuilder(length(plain));
+    try {
+      write(plain, sb);
+    }
+    catch (IOException e) {
+      throw new AssertionError(e); //StringBuilder never throws.
+    }
+    return sb.toString();
+  }
+
+
+  private static void writeBody(CharSequence plain, int start, int end, Appendable out) throws IOException {
+    int run = start;
+    for (int i = start; i < end; i++) {
+      char c = plain.charAt(i);
+      String replacement;
+      if (c == '\n') {
+        replacement = LINE_BREAK;
+      }
+      else if (c < ESCAPES.length && ESCAPES[c] != null) {
+        replacement = ESCAPES[c];
+      }
+      else {
+        continue;
+      }
+      out.append(plain, run, i).append(replacement);
+      run = i + 1;
+    }
+    out.append(plain, run, end);
+  }
+
+
+  /**
+   * Appendable encoding chars to UTF-8 into a buffer of fixed size.
+   */
+  private static final class Utf8Output implements Appendable {
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos = 0;
+    private char high_surrogate = 0;
+
+    Utf8Output(OutputStream out) {
+      this.out = out;
+    }
+
+    public Appendable append(CharSequence csq) throws IOException {
+      return append(csq, 0, csq.length());
+    }
+
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        append(csq.charAt(i));
+      }
+      return this;
+    }
+
+    public Appendable append(char c) throws IOException {
+      if (buf.length - pos < 4) {
+        flushBuffer();
+      }
+      if (high_surrogate != 0) {
+        char high = high_surrogate;
+        high_surrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          int code_point = Character.toCodePoint(high, c);
+          buf[pos++] = (byte) (0xf0 | (code_point >> 18));
+          buf[pos++] = (byte) (0x80 | ((code_point >> 12) & 0x3f));
+          buf[pos++] = (byte) (0x80 | ((code_point >> 6) & 0x3f));
+          buf[pos++] = (byte) (0x80 | (code_point & 0x3f));
+          return this;
+        }
+        //A lone surrogate is replaced as String.getBytes() does.
+        buf[pos++] = '?';
+        return append(c);
+      }
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      }
+      else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c)) {
+        high_surrogate = c;
+      }
+      else if (Character.isLowSurrogate(c)) {
+        buf[pos++] = '?';
+      }
+      else {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+      return this;
+    }
+
+    void flush() throws IOException {
+      if (high_surrogate != 0) {
+        high_surrogate = 0;
+        if (buf.length - pos < 1) {
+          flushBuffer();
+        }
+        buf[pos++] = '?';
+      }
+      flushBuffer();
+      out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+}
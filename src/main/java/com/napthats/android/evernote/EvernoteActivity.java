@@ -1,23 +1,14 @@
 package com.napthats.android.evernote;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
-import java.util.Hashtable;
 import java.util.Map;
 
-import java.util.regex.*;
-
-import java.lang.reflect.Proxy;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.InvocationTargetException;
-
 import android.app.Activity;
 import android.os.Environment;
-import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
-import android.util.Log;
 
 import com.evernote.edam.type.*;
 import com.evernote.edam.notestore.*;
@@ -26,129 +17,75 @@ import com.evernote.edam.error.*;
 import com.evernote.client.oauth.android.EvernoteSession;
 import com.evernote.thrift.transport.TTransportException;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-
 
+/**
+ * Activity using Evernote, as an adapter of EvernoteClient to the Android session and main thread.
+ * Callbacks of callback version methods are called in the main thread.
+ * See EvernoteClient for everything which does not need Android.
+ */
 public class EvernoteActivity extends Activity
 {
-  private final String EVERNOTE_HOST = "www.evernote.com";
+  private final String EVERNOTE_HOST = EvernoteClient.DEFAULT_HOST;
 
   private EvernoteSession session = null;
+  private APIExecutor.ResultDelivery result_delivery = null;
+  private final EvernoteClient client = new EvernoteClient(
+    new EvernoteClient.Credentials() {
+      public String getAuthToken() {
+        return session.getAuthToken();
+      }
+      public boolean isLoggedIn() {
+        return session.isLoggedIn();
+      }
+      public NoteStoreIface createNoteStore() throws TTransportException {
+        return session.createNoteStore();
+      }
+      public String getNoteStoreUrl() {
+        com.evernote.client.oauth.android.AuthenticationResult result = session.getmAuthenticationResult();
+        return result == null ? null : result.getNoteStoreUrl();
+      }
+    },
+    new APIExecutor.ResultDelivery() {
+      public void deliver(Runnable callback) {
+        getResultDelivery().deliver(callback);
+      }
+    });
 
 
   /**
    * Some utilities.
+   * See EvernoteClient.Util for the ones which do not need an activity.
    */
-  public static class Util {
-    private static final String NOTE_PREFIX =
-      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
-          "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">" +
-              "<en-note>";
-    private static final String NOTE_SUFFIX = "</en-note>";
-    private static final String LINE_PREFIX = "<div>";
-    private static final String LINE_SUFFIX = "</div>";
-
-
+  public static class Util extends EvernoteClient.Util {
     /**
-     * Get a plain content from a note.
-     * Remove all tags/attributes and adds newlines corresponded to div tags.
+     * Get or create a tag with the given name.
+     * Create a tag only when there is no tag with the name. Names are compared case-insensitively.
+     * Tags are looked up in the TagIndex of the activity, so tags are not listed at every call.
      *
-     * @param note a taget note
-     * @return a result string
-     */
-    public static final String getPlainContent(Note note) {
-      if (note.getContent() == null) {
-        return "";
-      }
-      return StringEscapeUtils.unescapeHtml4(
-               note.getContent()
-                 .replaceAll(LINE_SUFFIX, "\n")
-                 .replaceAll("<.*?>", ""));
-    }
-
-    /** 
-     * Set a plain content to a note.
-     * Retain attributes in the note.
-     * 
-     * @param note a target note
-     * @param plain_content a target plain content
+     * @param ea EvernoteActivity.
+     * @param name the tag name.
+     * @param callback callback dealing with the result tag.
      */
-    public static final void setPlainContent(Note note, String _plain_content) {
-      String plain_content = StringEscapeUtils.escapeHtml4(_plain_content);
-      if (note.getContent() == null) {
-        note.setContent("");
-      }
-      note.setContent(
-        NOTE_PREFIX
-        + LINE_PREFIX
-        + plain_content.replaceAll("\n", LINE_SUFFIX + LINE_PREFIX)
-        + LINE_SUFFIX
-        + NOTE_SUFFIX
-      );
+    public static void getOrCreateTagByName(EvernoteActivity ea, String name, APICallBack<Tag> callback) throws TTransportException {
+      ea.checkInitialized();
+      getOrCreateTagByName(ea.client, name, callback);
     }
 
     /**
-     * Get or create a tag with the given name.
-     * Create a tag only when there is no tag with the name.
+     * Get or create tags with the given names.
+     * Tags are looked up with one listing at most, and missing ones are created.
      *
      * @param ea EvernoteActivity.
-     * @param name the tag name.
-     * @param callback callback dealing with the result tag.
+     * @param names the tag names.
+     * @param callback callback dealing with a map from the given names to tags.
      */
-    public static void getOrCreateTagByName(final EvernoteActivity ea, final String name, final APICallBack<Tag> callback) throws TTransportException {
-      ea.createNoteStore().listTags(ea.getAuthToken(), new APICallBack<List<Tag>>() {
-        public void call(APIResult<List<Tag>> result) {
-          try {
-            Tag[] tag_array = (Tag[])result.get().toArray(new Tag[0]);
-            for (Tag tag : tag_array) {
-              if (tag.getName().equals(name)) {
-                //A tag with the given name is found.
-                final Tag finaled_tag = tag;
-                callback.call(new APIResult<Tag>() {
-                  public Tag get() {
-                    return finaled_tag;
-                  }
-                });
-                return;
-              }
-            }
-            Tag new_tag = new Tag();
-            new_tag.setName(name);
-            ea.createNoteStore().createTag(ea.getAuthToken(), new_tag, callback);
-          }
-          catch (final EDAMUserException ue) {
-            callback.call(new APIResult<Tag>() {
-              public Tag get() throws EDAMUserException {
-                throw ue;
-              }
-            });
-          }
-          catch (final EDAMSystemException se) {
-            callback.call(new APIResult<Tag>() {
-              public Tag get() throws EDAMSystemException {
-                throw se;
-              }
-            });
-          }
-          catch (final EDAMNotFoundException nfe) {
-            callback.call(new APIResult<Tag>() {
-              public Tag get() throws EDAMNotFoundException {
-                throw nfe;
-              }
-            });
-          }
-          catch (TTransportException te) {
-            //It means that network access was broken after the previous api call.
-            //It occurs rarely. (hopefully...)
-          }
-          return;
-        }
-      });
-      return;
+    public static void getOrCreateTagsByName(EvernoteActivity ea, Collection<String> names, APICallBack<Map<String, Tag>> callback) {
+      ea.checkInitialized();
+      getOrCreateTagsByName(ea.client, names, callback);
     }
   }
 
- 
+
   /**
    * Initialize settings of Evernote.
    * This method have to be called before all other methods.
@@ -178,6 +115,27 @@ public class EvernoteActivity extends Activity
       temp_file = new File(Environment.getExternalStorageDirectory(), temp_dir_name);
     }
     session = EvernoteSession.init((android.content.Context)this, c_key, c_secret, evernote_host, temp_file);
+    client.init(temp_file != null ? temp_file : new File(getFilesDir(), "evernote"));
+  }
+
+  /**
+   * Get the client this activity is an adapter of.
+   */
+  public final EvernoteClient getClient() {
+    checkInitialized();
+    return client;
+  }
+
+  /**
+   * Create NoteStore clients by a factory instead of the session, for example to use a local server
+   * made by NoteStoreClientPool.httpFactory(). Clients made by the session are used again after initEvernote
+   * when factory is null.
+   * Proxies created before this call keep using the previous clients.
+   *
+   * @param factory a factory of NoteStore clients, or null.
+   */
+  public final void setNoteStoreFactory(NoteStoreClientPool.Factory factory) {
+    client.setNoteStoreFactory(factory);
   }
 
 
@@ -218,115 +176,252 @@ public class EvernoteActivity extends Activity
     }
   }
 
-
   /**
    * Get a NoteStore proxy.
    * It has same methods from the original NoteStore, which methods don't throw Exceptions.
-   * Additionally, callback version methods is provided. They are executed in AsyncTask.
+   * Additionally, callback version methods is provided. They are executed in the APIExecutor
+   * of this activity and their callbacks are called in the main thread.
+   * Proxies share NoteStore clients through the pool of this activity.
    */
   public final NoteStoreProxy createNoteStore() throws TTransportException {
+    return createNoteStore(APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * Get a NoteStore proxy whose callback version methods run with the given priority.
+   *
+   * @param priority priority in the APIExecutor. See APIExecutor.LOW_PRIORITY etc.
+   */
+  public final NoteStoreProxy createNoteStore(int priority) throws TTransportException {
     checkInitialized();
-    return (NoteStoreProxy) Proxy.newProxyInstance(
-      NoteStoreProxy.class.getClassLoader(),
-      new Class[] {NoteStoreProxy.class},
-      new InvocationHandler() {
-        private NoteStore.Client note_store = null;
-        {
-          note_store = session.createNoteStore();
-        }
-        public Object invoke(Object proxy, Method proxy_method, Object[] args)
-        throws Throwable {
-          try {
-            Method nocallback_method = note_store.getClass().getMethod(proxy_method.getName(), proxy_method.getParameterTypes());
-            try {
-              return nocallback_method.invoke(note_store, args);
-            }
-            catch (Throwable e) {
-              throw e.getCause();
-            }
-          }
-          catch (Exception e) {
-            //Try to remove callback in a following part.
-          }
-
-          final Object callback = args[args.length - 1];
-          Object[] callback_deleted_args = new Object[args.length - 1];
-          System.arraycopy(args, 0, callback_deleted_args, 0, args.length - 1);
-          Class[] callback_deleted_argsclass = new Class[args.length - 1];
-          System.arraycopy(proxy_method.getParameterTypes(), 0, callback_deleted_argsclass, 0, args.length - 1);
-          final Method method = note_store.getClass().getMethod(proxy_method.getName(), callback_deleted_argsclass);
-
-          new AsyncTask<Object, Void, APIResult<Object>>() {
-            @Override
-            public APIResult<Object> doInBackground(Object... api_args) {
-              try {
-                final Object result = method.invoke(note_store, api_args);
-                return new APIResult<Object>() {
-                  @Override
-                  public Object get() {
-                    return result;
-                  }
-                };
-              }
-              catch (Throwable e) {
-                try {
-                  throw e.getCause();
-                }
-                catch (final EDAMUserException eu) {
-                  return new APIResult<Object>() {
-                    @Override
-                    public Object get() throws EDAMUserException {
-                      throw eu;
-                    }
-                  };
-                }
-                catch (final EDAMSystemException es) {
-                  return new APIResult<Object>() {
-                    @Override
-                    public Object get() throws EDAMSystemException {
-                      throw es;
-                    }
-                  };
-                }
-                catch (final EDAMNotFoundException en) {
-                  return new APIResult<Object>() {
-                    @Override
-                    public Object get() throws EDAMNotFoundException {
-                      throw en;
-                    }
-                  };
-                }
-                catch (final RuntimeException er) {
-                  return new APIResult<Object>() {
-                    @Override
-                    public Object get() {
-                      throw er;
-                    }
-                  };
-                }
-                catch (Throwable t) {
-                  assert false; //Never reach.
-                }
-                assert false; //Never reach.
-                return null;
-             }
-           }
-            
-            @Override
-            public void onPostExecute(APIResult<Object> result) {
-              try {
-                Method method = callback.getClass().getMethod("call", APIResult.class);
-                method.invoke(callback, result);
-              }
-              catch (Throwable e) {
-                assert false; //Never reach.
-              }
-            }
-          }.execute(callback_deleted_args);
-          return null; //Never used.
-        }
-      }
-    );
+    return client.createNoteStore(priority);
+  }
+
+  /**
+   * Get a NoteStore which has the same methods as the original NoteStore.
+   * Calls run in the caller thread with clients borrowed from the pool of this activity.
+   */
+  public final NoteStoreIface createBlockingNoteStore() {
+    checkInitialized();
+    return client.createBlockingNoteStore();
+  }
+
+  /**
+   * Get a NoteStore proxy whose methods return CompletableFuture.
+   * Calls run in the APIExecutor of this activity, so independent calls run in parallel
+   * and can be joined with CompletableFuture.allOf().
+   */
+  public final NoteStoreFutureProxy createFutureNoteStore() {
+    return createFutureNoteStore(APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * Get a NoteStore proxy returning CompletableFuture whose calls run with the given priority.
+   *
+   * @param priority priority in the APIExecutor. See APIExecutor.LOW_PRIORITY etc.
+   */
+  public final NoteStoreFutureProxy createFutureNoteStore(int priority) {
+    checkInitialized();
+    return client.createFutureNoteStore(priority);
+  }
+
+  /**
+   * Get a NoteStore proxy whose read calls are answered from the cache of this activity.
+   * It works as createNoteStore() otherwise. See NoteStoreCache for what is cached.
+   */
+  public final NoteStoreProxy createCachingNoteStore() {
+    return createCachingNoteStore(APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * Get a caching NoteStore proxy whose callback version methods run with the given priority.
+   *
+   * @param priority priority in the APIExecutor. See APIExecutor.LOW_PRIORITY etc.
+   */
+  public final NoteStoreProxy createCachingNoteStore(int priority) {
+    checkInitialized();
+    return client.createCachingNoteStore(priority);
+  }
+
+  /**
+   * Get a scanner of the notes matching a filter.
+   * Pages are fetched in the APIExecutor of this activity.
+   *
+   * @param filter the filter of notes.
+   * @param result_spec the fields of notes to get.
+   */
+  public final NotesMetadataScanner scanNotesMetadata(NoteFilter filter, NotesMetadataResultSpec result_spec) {
+    checkInitialized();
+    return client.scanNotesMetadata(filter, result_spec);
+  }
+
+  /**
+   * Get a pipeline of write calls of the current account.
+   * Writes run in the APIExecutor of this activity, and results are given to callbacks as callback version methods do.
+   * Close it when the burst of writes is over.
+   */
+  public final WritePipeline createWritePipeline() {
+    checkInitialized();
+    return client.createWritePipeline();
+  }
+
+  /**
+   * Get an exporter of the current account into an archive file.
+   * Run export() off the main thread.
+   */
+  public final AccountExporter createAccountExporter(File archive) {
+    checkInitialized();
+    return client.createAccountExporter(archive);
+  }
+
+  /**
+   * Get an importer of an archive file into the current account.
+   * Creates run in the APIExecutor of this activity. Run importArchive() off the main thread.
+   */
+  public final AccountImporter createAccountImporter(File archive) {
+    checkInitialized();
+    return client.createAccountImporter(archive);
+  }
+
+  /**
+   * Get the tag index of the current account.
+   * It is created at the first call after initialization or after the auth token changes.
+   */
+  public final TagIndex getTagIndex() {
+    checkInitialized();
+    return client.getTagIndex();
+  }
+
+  /**
+   * Get the sync engine of this activity.
+   * Its store is in "sync" under the directory of the account, which is in the data directory, the temp directory
+   * given to initEvernote or "evernote" under the files directory of the application.
+   * Stores of an account are closed and dropped when the auth token changes.
+   * The engine makes blocking calls, so run sync() off the main thread, for example in the APIExecutor.
+   */
+  public final SyncEngine getSyncEngine() throws IOException {
+    checkInitialized();
+    return client.getSyncEngine();
+  }
+
+  /**
+   * Get the coordinator syncing the account of this activity with its linked notebooks.
+   * See EvernoteClient.getSyncCoordinator(). Run sync() off the main thread, as for the engine.
+   */
+  public final SyncCoordinator getSyncCoordinator() throws IOException {
+    checkInitialized();
+    return client.getSyncCoordinator();
+  }
+
+  /**
+   * Get the change tracker of this activity, which turns updates of notes into deltas.
+   * See EvernoteClient.getNoteChangeTracker().
+   */
+  public final NoteChangeTracker getNoteChangeTracker() {
+    checkInitialized();
+    return client.getNoteChangeTracker();
+  }
+
+  /**
+   * Get the cache of read calls shared by caching NoteStore proxies of this activity.
+   * It is kept in sync with states given by the sync engine of this activity.
+   */
+  public final NoteStoreCache getNoteStoreCache() {
+    checkInitialized();
+    return client.getNoteStoreCache();
+  }
+
+  /**
+   * Get the note content store of this activity.
+   * It is in "content" under the directory of the account. See getSyncEngine().
+   */
+  public final NoteContentStore getContentStore() throws IOException {
+    checkInitialized();
+    return client.getContentStore();
+  }
+
+  /**
+   * Get the full-text index of this activity.
+   * It is in "index" under the directory of the account. See getSyncEngine().
+   * Put notes to it as they are fetched with content, and save() it from time to time.
+   * Notes expunged or moved to the trash are removed from it by the sync engine of this activity.
+   */
+  public final FullTextIndex getFullTextIndex() throws IOException {
+    checkInitialized();
+    return client.getFullTextIndex();
+  }
+
+  /**
+   * Get the loader of notes of the current account.
+   * Resource bodies of its handles are in "resources" under the directory of the account. See getSyncEngine().
+   * It is created at the first call after initialization or after the auth token changes.
+   * Handles make blocking calls, so use them off the main thread.
+   */
+  public final NoteLoader getNoteLoader() {
+    checkInitialized();
+    return client.getNoteLoader();
+  }
+
+  /**
+   * Replace the executor of callback and future version methods.
+   * Proxies created before this call keep using the previous executor.
+   *
+   * @param executor a new executor.
+   */
+  public final void setAPIExecutor(APIExecutor executor) {
+    client.setAPIExecutor(executor);
+  }
+
+  /**
+   * Get the executor of callback and future version methods.
+   * An executor with default settings is created at the first call.
+   */
+  public final APIExecutor getAPIExecutor() {
+    return client.getAPIExecutor();
+  }
+
+  /**
+   * Replace the retry and circuit breaker policy of NoteStore calls.
+   * Proxies created before this call keep using the previous policy.
+   *
+   * @param policy a new policy.
+   */
+  public final void setResiliencePolicy(ResiliencePolicy policy) {
+    client.setResiliencePolicy(policy);
+  }
+
+  /**
+   * Get the retry and circuit breaker policy of NoteStore calls.
+   * A policy with default settings is created at the first call, and shared by all proxies of this activity.
+   */
+  public final ResiliencePolicy getResiliencePolicy() {
+    return client.getResiliencePolicy();
+  }
+
+  /**
+   * Replace the metrics of NoteStore calls.
+   * Proxies created before this call keep recording in the previous metrics.
+   *
+   * @param metrics new metrics.
+   */
+  public final void setNoteStoreMetrics(NoteStoreMetrics metrics) {
+    client.setNoteStoreMetrics(metrics);
+  }
+
+  /**
+   * Get the metrics of NoteStore calls.
+   * They are created at the first call, and shared by all proxies of this activity.
+   * See NoteStoreMetrics for what is recorded.
+   */
+  public final NoteStoreMetrics getNoteStoreMetrics() {
+    return client.getNoteStoreMetrics();
+  }
+
+  private synchronized APIExecutor.ResultDelivery getResultDelivery() {
+    if (result_delivery == null) {
+      result_delivery = new MainThreadDelivery();
+    }
+    return result_delivery;
   }
 
   public interface APIResult<T> {
@@ -371,7 +466,7 @@ public class EvernoteActivity extends Activity
     public Tag createTag(String authToken, Tag tag);
     public void createTag(String authToken, Tag tag, APICallBack<Tag> callback);
     public int updateTag(String authToken, Tag tag);
-    public void updateTag(String authToken, Tag tag, APICallBack<Tag> callback);
+    public void updateTag(String authToken, Tag tag, APICallBack<Integer> callback);
     public void untagAll(String authToken, int guid);
     public void untagAll(String authToken, int guid, APICallBack<Void> callback);
     public int expungeTag(String authToken, int guid);
@@ -494,12 +589,20 @@ public class EvernoteActivity extends Activity
    */
   public final String getAuthToken() {
     checkInitialized();
-    return session.getAuthToken();
+    return client.getAuthToken();
   }
 
   public final boolean isLoggedIn() {
     checkInitialized();
-    return session.isLoggedIn();
+    return client.isLoggedIn();
+  }
+
+  /**
+   * Get the pool of NoteStore clients shared by proxies.
+   */
+  public final NoteStoreClientPool getNoteStorePool() {
+    checkInitialized();
+    return client.getNoteStorePool();
   }
 
 
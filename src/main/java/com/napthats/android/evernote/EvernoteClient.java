@@ -0,0 +1,814 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+
+import com.evernote.edam.type.*;
+import com.evernote.edam.notestore.*;
+import com.evernote.edam.userstore.UserStore;
+import com.evernote.thrift.TException;
+import com.evernote.thrift.protocol.TBinaryProtocol;
+import com.evernote.thrift.transport.THttpClient;
+import com.evernote.thrift.transport.TTransportException;
+
+import org.apache.commons.lang3.ObjectUtils;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.NoteStoreProxy;
+
+
+/**
+ * Client of an Evernote account without Android, which EvernoteActivity is built on.
+ * It holds the NoteStore client pool, the APIExecutor, proxies and the local stores of the account,
+ * and runs on any JVM, for example for batch jobs with a developer token:
+ *
+ *   EvernoteClient client = EvernoteClient.create(developer_token, "www.evernote.com", new File("evernote"));
+ *
+ * Local stores are in a directory of the account under the data directory. They and the other state of
+ * the account, such as the tag index and the change tracker, are closed and made again when the auth token changes.
+ *
+ * Callbacks are given in executor threads unless another result delivery is given.
+ * Close the client when it is no longer used.
+ *
+ * This class is thread-safe.
+ */
+public final class EvernoteClient {
+  public static final String DEFAULT_HOST = "www.evernote.com";
+
+  private final Credentials credentials;
+  private final APIExecutor.ResultDelivery result_delivery;
+  private volatile NoteStoreClientPool note_store_pool = null;
+  //Guarded by this.
+  private APIExecutor api_executor = null;
+  private ResiliencePolicy resilience_policy = null;
+  private NoteStoreMetrics note_store_metrics = null;
+  private File data_dir = null;
+  //The auth token the state of the account below was made for.
+  private String account_token = null;
+  private TagIndex tag_index = null;
+  private SyncEngine sync_engine = null;
+  private SyncCoordinator sync_coordinator = null;
+  private NoteContentStore content_store = null;
+  private FullTextIndex full_text_index = null;
+  private NoteChangeTracker note_change_tracker = null;
+  private NoteLoader note_loader = null;
+  private NoteStoreCache note_store_cache = null;
+  private NoteStoreClientPool.Factory note_store_factory = null;
+
+
+  /**
+   * The account a client works for.
+   */
+  public interface Credentials {
+    public String getAuthToken();
+    public boolean isLoggedIn();
+    /**
+     * Create a NoteStore client of the account.
+     */
+    public NoteStoreIface createNoteStore() throws TTransportException;
+    /**
+     * Get the NoteStore URL of the account, or null if it is not known.
+     * Resource bodies are streamed from beside it when it is known.
+     */
+    public String getNoteStoreUrl();
+  }
+
+  /**
+   * Some utilities.
+   */
+  public static class Util {
+    /**
+     * Get a plain content from a note.
+     * Remove all tags/attributes and adds newlines corresponded to div, p, li and br tags.
+     * See EnmlTextExtractor for details.
+     *
+     * @param note a taget note
+     * @return a result string
+     */
+    public static final String getPlainContent(Note note) {
+      if (note.getContent() == null) {
+        return "";
+      }
+      String content = note.getContent();
+      return EnmlTextExtractor.toPlainText(content, new StringBuilder(content.length())).toString();
+    }
+
+    /**
+     * Set a plain content to a note.
+     * Retain attributes in the note.
+     *
+     * @param note a target note
+     * @param plain_content a target plain content
+     */
+    public static final void setPlainContent(Note note, String plain_content) {
+      note.setContent(EnmlWriter.toEnml(plain_content));
+    }
+
+    /**
+     * Set a plain content read from a reader to a note.
+     * Retain attributes in the note.
+     *
+     * @param note a target note
+     * @param plain_content a reader of a target plain content. It is not closed.
+     */
+    public static final void setPlainContent(Note note, Reader plain_content) throws IOException {
+      StringBuilder content = new StringBuilder();
+      EnmlWriter.write(plain_content, content);
+      note.setContent(content.toString());
+    }
+
+    /**
+     * Get or create a tag with the given name.
+     * Create a tag only when there is no tag with the name. Names are compared case-insensitively.
+     * Tags are looked up in the TagIndex of the client, so tags are not listed at every call.
+     *
+     * @param client EvernoteClient.
+     * @param name the tag name.
+     * @param callback callback dealing with the result tag.
+     */
+    public static void getOrCreateTagByName(EvernoteClient client, final String name, final APICallBack<Tag> callback) {
+      final TagIndex tag_index = client.getTagIndex();
+      client.getAPIExecutor().execute(new DeliveredCall<Tag>(client.getAPIExecutor(), client.getResultDelivery(), callback) {
+        Tag call() throws Exception {
+          return tag_index.getOrCreateTag(name);
+        }
+      });
+    }
+
+    /**
+     * Get or create tags with the given names.
+     * Tags are looked up with one listing at most, and missing ones are created.
+     *
+     * @param client EvernoteClient.
+     * @param names the tag names.
+     * @param callback callback dealing with a map from the given names to tags.
+     */
+    public static void getOrCreateTagsByName(EvernoteClient client, final Collection<String> names, final APICallBack<Map<String, Tag>> callback) {
+      final TagIndex tag_index = client.getTagIndex();
+      client.getAPIExecutor().execute(new DeliveredCall<Map<String, Tag>>(client.getAPIExecutor(), client.getResultDelivery(), callback) {
+        Map<String, Tag> call() throws Exception {
+          return tag_index.getOrCreateTags(names);
+        }
+      });
+    }
+  }
+
+  /**
+   * A call run in the APIExecutor whose result is given to a callback through a delivery.
+   */
+  private abstract static class DeliveredCall<T> implements Runnable {
+    private final APIExecutor executor;
+    private final APIExecutor.ResultDelivery delivery;
+    private final APICallBack<T> callback;
+    private APIOutcome<T> result = null;
+
+    DeliveredCall(APIExecutor executor, APIExecutor.ResultDelivery delivery, APICallBack<T> callback) {
+      this.executor = executor;
+      this.delivery = delivery;
+      this.callback = callback;
+    }
+
+    abstract T call() throws Exception;
+
+    public final void run() {
+      if (result != null) {
+        callback.call(result);
+        return;
+      }
+      try {
+        result = APIOutcome.success(call());
+      }
+      catch (Throwable e) {
+        result = APIOutcome.failure(e);
+      }
+      executor.releaseSlot();
+      delivery.deliver(this);
+    }
+  }
+
+
+  /**
+   * Create a client of the account of a developer token, whose callbacks are given in executor threads.
+   *
+   * @param developer_token the developer token.
+   * @param host the Evernote host, such as DEFAULT_HOST or "sandbox.evernote.com".
+   * @param data_dir the data directory of the local stores. It is created when a store is first used.
+   */
+  public static EvernoteClient create(String developer_token, String host, File data_dir) {
+    return new EvernoteClient(developerToken(developer_token, host), data_dir, APIExecutor.DIRECT_DELIVERY);
+  }
+
+  /**
+   * Get credentials of a developer token.
+   * The NoteStore URL of the account is asked to the UserStore of the host when it is first needed,
+   * by the first client or by getNoteStoreUrl().
+   */
+  public static Credentials developerToken(final String developer_token, final String host) {
+    return new Credentials() {
+      private volatile String note_store_url = null;
+
+      public String getAuthToken() {
+        return developer_token;
+      }
+
+      public boolean isLoggedIn() {
+        return true;
+      }
+
+      public NoteStoreIface createNoteStore() throws TTransportException {
+        return NoteStoreClientPool.httpFactory(resolveNoteStoreUrl()).create();
+      }
+
+      public String getNoteStoreUrl() {
+        try {
+          return resolveNoteStoreUrl();
+        }
+        catch (TTransportException e) {
+          return null;
+        }
+      }
+
+      private String resolveNoteStoreUrl() throws TTransportException {
+        if (note_store_url == null) {
+          THttpClient transport = new THttpClient("https://" + host + "/edam/user");
+          try {
+            note_store_url = new UserStore.Client(new TBinaryProtocol(transport)).getNoteStoreUrl(developer_token);
+          }
+          catch (TTransportException e) {
+            throw e;
+          }
+          catch (Exception e) {
+            throw new TTransportException("Cannot get the NoteStore URL from " + host, e);
+          }
+          finally {
+            transport.close();
+          }
+        }
+        return note_store_url;
+      }
+    };
+  }
+
+  /**
+   * @param credentials the account.
+   * @param data_dir the data directory of the local stores. It is created when a store is first used.
+   * @param result_delivery the delivery of results to callbacks, such as APIExecutor.DIRECT_DELIVERY.
+   */
+  public EvernoteClient(Credentials credentials, File data_dir, APIExecutor.ResultDelivery result_delivery) {
+    this(credentials, result_delivery);
+    init(data_dir);
+  }
+
+  /**
+   * Create a client which is not usable until init() is called.
+   */
+  EvernoteClient(Credentials credentials, APIExecutor.ResultDelivery result_delivery) {
+    this.credentials = credentials;
+    this.result_delivery = result_delivery;
+  }
+
+
+  /**
+   * Close the local stores and set the data directory, and start over with a new pool of NoteStore clients.
+   */
+  void init(File data_dir) {
+    NoteStoreClientPool.Factory factory;
+    synchronized (this) {
+      closeStores();
+      this.data_dir = data_dir;
+      factory = note_store_factory;
+    }
+    if (factory == null) {
+      factory = new NoteStoreClientPool.Factory() {
+        public NoteStoreIface create() throws TTransportException {
+          return credentials.createNoteStore();
+        }
+      };
+    }
+    resetNoteStorePool(factory);
+  }
+
+  /**
+   * Close the pool of NoteStore clients and the local stores.
+   * The APIExecutor is not shut down, since it may be shared.
+   */
+  public void close() {
+    if (note_store_pool != null) {
+      note_store_pool.close();
+    }
+    synchronized (this) {
+      closeStores();
+      dropAccountState();
+    }
+  }
+
+  /**
+   * Create NoteStore clients by a factory instead of the credentials, for example to use a local server
+   * made by NoteStoreClientPool.httpFactory(). Clients made by the credentials are used again after init
+   * when factory is null.
+   * Proxies created before this call keep using the previous clients.
+   *
+   * @param factory a factory of NoteStore clients, or null.
+   */
+  public void setNoteStoreFactory(NoteStoreClientPool.Factory factory) {
+    synchronized (this) {
+      note_store_factory = factory;
+    }
+    if (factory != null) {
+      resetNoteStorePool(factory);
+    }
+  }
+
+  /**
+   * Replace the pool of NoteStore clients, and drop everything bound to the previous one.
+   */
+  private void resetNoteStorePool(NoteStoreClientPool.Factory factory) {
+    if (note_store_pool != null) {
+      note_store_pool.close();
+    }
+    synchronized (this) {
+      dropAccountState();
+    }
+    note_store_pool = new NoteStoreClientPool(factory);
+  }
+
+  private void closeStores() {
+    if (content_store != null) {
+      try {
+        content_store.close();
+      }
+      catch (IOException e) {
+        //Records torn by closing are dropped at the next open.
+      }
+      content_store = null;
+    }
+    if (full_text_index != null) {
+      try {
+        full_text_index.close();
+      }
+      catch (IOException e) {
+        //Notes changed since the last save are found by their USN and indexed again.
+      }
+      full_text_index = null;
+    }
+  }
+
+  /**
+   * Close and drop the state of the previous account when the auth token has changed since it was made.
+   */
+  private void checkAccount() {
+    String auth_token = getAuthToken();
+    if (!ObjectUtils.equals(auth_token, account_token)) {
+      closeStores();
+      dropAccountState();
+      account_token = auth_token;
+    }
+  }
+
+  /**
+   * Get the directory of the local stores of the current account under the data directory.
+   */
+  synchronized File getAccountDir() {
+    checkAccount();
+    return new File(data_dir, accountDirName(account_token));
+  }
+
+  /**
+   * Get the name of the directory of an account.
+   * Evernote auth tokens carry the user id as "U=<hex>", so new tokens of the same user share the directory.
+   * Other tokens get a directory of their hash.
+   */
+  static String accountDirName(String auth_token) {
+    if (auth_token == null) {
+      return "anonymous";
+    }
+    for (String field : auth_token.split(":")) {
+      if (field.startsWith("U=") && field.length() > 2 && field.substring(2).matches("[0-9a-fA-F]+")) {
+        return "user-" + field.substring(2).toLowerCase(Locale.ENGLISH);
+      }
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(auth_token.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder("token-");
+      for (int i = 0; i < 8; i++) {
+        name.append(String.format("%02x", digest[i] & 0xff));
+      }
+      return name.toString();
+    }
+    catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void dropAccountState() {
+    tag_index = null;
+    note_store_cache = null;
+    note_loader = null;
+    note_change_tracker = null;
+    if (sync_engine != null) {
+      try {
+        sync_engine.getStore().close();
+      }
+      catch (IOException e) {
+        //Every applied chunk is already synced to the disk.
+      }
+      sync_engine = null;
+    }
+    if (sync_coordinator != null) {
+      try {
+        sync_coordinator.close();
+      }
+      catch (IOException e) {
+        //Every applied chunk is already synced to the disk.
+      }
+      sync_coordinator = null;
+    }
+  }
+
+
+  /**
+   * Get a NoteStore proxy.
+   * It has same methods from the original NoteStore, which methods don't throw Exceptions.
+   * Additionally, callback version methods is provided. They are executed in the APIExecutor
+   * of this client and their callbacks are given through its result delivery.
+   * Proxies share NoteStore clients through the pool of this client.
+   */
+  public NoteStoreProxy createNoteStore() {
+    return createNoteStore(APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * Get a NoteStore proxy whose callback version methods run with the given priority.
+   *
+   * @param priority priority in the APIExecutor. See APIExecutor.LOW_PRIORITY etc.
+   */
+  public NoteStoreProxy createNoteStore(int priority) {
+    return (NoteStoreProxy) Proxy.newProxyInstance(
+      NoteStoreProxy.class.getClassLoader(),
+      new Class[] {NoteStoreProxy.class},
+      new NoteStoreInvocationHandler(NoteStoreProxy.class, note_store_pool, getAPIExecutor(), getResultDelivery(), priority,
+        getResiliencePolicy(), getNoteStoreMetrics()));
+  }
+
+  /**
+   * Get a NoteStore which has the same methods as the original NoteStore.
+   * Calls run in the caller thread with clients borrowed from the pool of this client.
+   */
+  public NoteStoreIface createBlockingNoteStore() {
+    return (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new NoteStoreInvocationHandler(NoteStoreIface.class, note_store_pool, getAPIExecutor(), getResultDelivery(), APIExecutor.NORM_PRIORITY,
+        getResiliencePolicy(), getNoteStoreMetrics()));
+  }
+
+  /**
+   * Get a NoteStore proxy whose methods return CompletableFuture.
+   * Calls run in the APIExecutor of this client, so independent calls run in parallel
+   * and can be joined with CompletableFuture.allOf().
+   */
+  public NoteStoreFutureProxy createFutureNoteStore() {
+    return createFutureNoteStore(APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * Get a NoteStore proxy returning CompletableFuture whose calls run with the given priority.
+   *
+   * @param priority priority in the APIExecutor. See APIExecutor.LOW_PRIORITY etc.
+   */
+  public NoteStoreFutureProxy createFutureNoteStore(int priority) {
+    return (NoteStoreFutureProxy) Proxy.newProxyInstance(
+      NoteStoreFutureProxy.class.getClassLoader(),
+      new Class[] {NoteStoreFutureProxy.class},
+      new NoteStoreInvocationHandler(NoteStoreFutureProxy.class, note_store_pool, getAPIExecutor(), getResultDelivery(), priority,
+        getResiliencePolicy(), getNoteStoreMetrics()));
+  }
+
+  /**
+   * Get a NoteStore proxy whose read calls are answered from the cache of this client.
+   * It works as createNoteStore() otherwise. See NoteStoreCache for what is cached.
+   */
+  public NoteStoreProxy createCachingNoteStore() {
+    return createCachingNoteStore(APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * Get a caching NoteStore proxy whose callback version methods run with the given priority.
+   *
+   * @param priority priority in the APIExecutor. See APIExecutor.LOW_PRIORITY etc.
+   */
+  public NoteStoreProxy createCachingNoteStore(int priority) {
+    NoteStoreClientPool pool = NoteStoreClientPool.shared(getNoteStoreCache().getNoteStore(), getNoteStorePool().getMaxSize());
+    //Misses of the cache already follow the policy and are recorded in the metrics in its blocking NoteStore.
+    return (NoteStoreProxy) Proxy.newProxyInstance(
+      NoteStoreProxy.class.getClassLoader(),
+      new Class[] {NoteStoreProxy.class},
+      new NoteStoreInvocationHandler(NoteStoreProxy.class, pool, getAPIExecutor(), getResultDelivery(), priority));
+  }
+
+  /**
+   * Get a scanner of the notes matching a filter.
+   * Pages are fetched in the APIExecutor of this client.
+   *
+   * @param filter the filter of notes.
+   * @param result_spec the fields of notes to get.
+   */
+  public NotesMetadataScanner scanNotesMetadata(NoteFilter filter, NotesMetadataResultSpec result_spec) {
+    return new NotesMetadataScanner(createFutureNoteStore(), getAuthToken(), filter, result_spec);
+  }
+
+  /**
+   * Get a pipeline of write calls of the current account.
+   * Writes run in the APIExecutor of this client, and results are given to callbacks as callback version methods do.
+   * Close it when the burst of writes is over.
+   */
+  public WritePipeline createWritePipeline() {
+    return new WritePipeline(createBlockingNoteStore(), getAuthToken(), getAPIExecutor(), getResultDelivery());
+  }
+
+  /**
+   * Get an exporter of the current account into an archive file.
+   * Run export() off the main thread.
+   */
+  public AccountExporter createAccountExporter(File archive) {
+    return new AccountExporter(createBlockingNoteStore(), getAuthToken(), archive);
+  }
+
+  /**
+   * Get an importer of an archive file into the current account.
+   * Creates run in the APIExecutor of this client. Run importArchive() off the main thread.
+   */
+  public AccountImporter createAccountImporter(File archive) {
+    return new AccountImporter(createBlockingNoteStore(), getAuthToken(), getAPIExecutor(), archive);
+  }
+
+  /**
+   * Get the tag index of the current account.
+   * It is created at the first call after initialization or after the auth token changes.
+   */
+  public synchronized TagIndex getTagIndex() {
+    checkAccount();
+    if (tag_index == null) {
+      tag_index = new TagIndex(createBlockingNoteStore(), account_token);
+    }
+    return tag_index;
+  }
+
+  /**
+   * Get the sync engine of this client.
+   * Its store is in "sync" under the directory of the account.
+   * The engine makes blocking calls, so run sync() off threads which must not block, for example in the APIExecutor.
+   */
+  public synchronized SyncEngine getSyncEngine() throws IOException {
+    File account_dir = getAccountDir();
+    if (sync_engine == null) {
+      sync_engine = new SyncEngine(createBlockingNoteStore(), account_token, new SyncStore(new File(account_dir, "sync")));
+      sync_engine.addListener(new SyncEngine.Listener() {
+        public void onChunk(SyncChunk chunk, int target) {
+          onSyncChunk(chunk);
+        }
+        public void onSynced(SyncState state) {
+          onSyncState(state);
+        }
+      });
+    }
+    return sync_engine;
+  }
+
+  /**
+   * Get the coordinator syncing the account of this client with its linked notebooks.
+   * The account is synced by getSyncEngine(), and linked notebooks into stores in "linked" under the directory of the account.
+   * Linked notebooks are read from their own shards, not through the NoteStore pool of this client.
+   * Run sync() off threads which must not block, as for the engine.
+   */
+  public synchronized SyncCoordinator getSyncCoordinator() throws IOException {
+    File account_dir = getAccountDir();
+    if (sync_coordinator == null) {
+      sync_coordinator = new SyncCoordinator(getSyncEngine(), account_token, new File(account_dir, "linked"),
+                                             SyncCoordinator.HTTP_NOTE_STORES);
+    }
+    return sync_coordinator;
+  }
+
+  /**
+   * Remove notes expunged, moved to the trash or changed since they were indexed in a sync chunk
+   * from the full-text index, and give the notes in the chunk to the change tracker.
+   */
+  private synchronized void onSyncChunk(SyncChunk chunk) {
+    if (chunk.isSetExpungedNotes()) {
+      for (String guid : chunk.getExpungedNotes()) {
+        if (full_text_index != null) {
+          full_text_index.remove(guid);
+        }
+        if (note_change_tracker != null) {
+          note_change_tracker.forget(guid);
+        }
+      }
+    }
+    if (chunk.isSetNotes()) {
+      for (Note note : chunk.getNotes()) {
+        //A note changed on the server is indexed again when it is fetched with content.
+        if (full_text_index != null
+            && (note.isSetDeleted() || note.getUpdateSequenceNum() > full_text_index.getUpdateSequenceNum(note.getGuid()))) {
+          full_text_index.remove(note.getGuid());
+        }
+        if (note_change_tracker != null) {
+          note_change_tracker.track(note);
+        }
+      }
+    }
+  }
+
+  /**
+   * Give a sync state to the caches of this client.
+   */
+  private synchronized void onSyncState(SyncState state) {
+    if (tag_index != null) {
+      tag_index.onSyncState(state);
+    }
+    if (note_store_cache != null) {
+      note_store_cache.onSyncState(state);
+    }
+  }
+
+  /**
+   * Get the change tracker of this client, which turns updates of notes into deltas.
+   * Notes in sync chunks of the sync engine of this client are tracked. Track notes fetched otherwise,
+   * and update them by NoteChangeTracker.updateNote() or WritePipeline.updateNote() with the tracker.
+   */
+  public synchronized NoteChangeTracker getNoteChangeTracker() {
+    checkAccount();
+    if (note_change_tracker == null) {
+      note_change_tracker = new NoteChangeTracker();
+    }
+    return note_change_tracker;
+  }
+
+  /**
+   * Get the cache of read calls shared by caching NoteStore proxies of this client.
+   * It is kept in sync with states given by the sync engine of this client.
+   */
+  public synchronized NoteStoreCache getNoteStoreCache() {
+    checkAccount();
+    if (note_store_cache == null) {
+      note_store_cache = new NoteStoreCache(createBlockingNoteStore());
+    }
+    return note_store_cache;
+  }
+
+  /**
+   * Get the note content store of this client.
+   * It is in "content" under the directory of the account.
+   */
+  public synchronized NoteContentStore getContentStore() throws IOException {
+    File account_dir = getAccountDir();
+    if (content_store == null) {
+      content_store = new NoteContentStore(new File(account_dir, "content"));
+    }
+    return content_store;
+  }
+
+  /**
+   * Get the full-text index of this client.
+   * It is in "index" under the directory of the account.
+   * Put notes to it as they are fetched with content, and save() it from time to time.
+   * Notes expunged, moved to the trash or changed since they were put are removed from it by the sync engine of this client.
+   */
+  public synchronized FullTextIndex getFullTextIndex() throws IOException {
+    File account_dir = getAccountDir();
+    if (full_text_index == null) {
+      full_text_index = new FullTextIndex(new File(account_dir, "index"));
+    }
+    return full_text_index;
+  }
+
+  /**
+   * Get the loader of notes of the current account.
+   * Resource bodies of its handles are in "resources" under the directory of the account.
+   * Resource bodies are streamed from beside the NoteStore URL of the credentials,
+   * or fetched by getResourceData when the URL is not known.
+   * It is created at the first call after initialization or after the auth token changes.
+   * Handles make blocking calls.
+   */
+  public NoteLoader getNoteLoader() {
+    while (true) {
+      String token;
+      synchronized (this) {
+        getAccountDir();
+        if (note_loader != null) {
+          return note_loader;
+        }
+        token = account_token;
+      }
+      //The URL may be asked to the server, so other methods are not blocked meanwhile.
+      String note_store_url = credentials.getNoteStoreUrl();
+      synchronized (this) {
+        File account_dir = getAccountDir();
+        if (note_loader != null) {
+          return note_loader;
+        }
+        //The URL of a previous account is resolved again.
+        if (ObjectUtils.equals(token, account_token)) {
+          note_loader = new NoteLoader(createBlockingNoteStore(), account_token, new File(account_dir, "resources"),
+                                       NoteLoader.DEFAULT_MEMORY_BUDGET,
+                                       note_store_url == null ? null : NoteLoader.httpFetcher(note_store_url));
+          return note_loader;
+        }
+      }
+    }
+  }
+
+  /**
+   * Replace the executor of callback and future version methods.
+   * Proxies created before this call keep using the previous executor.
+   *
+   * @param executor a new executor.
+   */
+  public synchronized void setAPIExecutor(APIExecutor executor) {
+    api_executor = executor;
+  }
+
+  /**
+   * Get the executor of callback and future version methods.
+   * An executor with default settings is created at the first call.
+   */
+  public synchronized APIExecutor getAPIExecutor() {
+    if (api_executor == null) {
+      api_executor = new APIExecutor();
+    }
+    return api_executor;
+  }
+
+  /**
+   * Replace the retry and circuit breaker policy of NoteStore calls.
+   * Proxies created before this call keep using the previous policy.
+   *
+   * @param policy a new policy.
+   */
+  public synchronized void setResiliencePolicy(ResiliencePolicy policy) {
+    resilience_policy = policy;
+  }
+
+  /**
+   * Get the retry and circuit breaker policy of NoteStore calls.
+   * A policy with default settings is created at the first call, and shared by all proxies of this client.
+   */
+  public synchronized ResiliencePolicy getResiliencePolicy() {
+    if (resilience_policy == null) {
+      resilience_policy = new ResiliencePolicy();
+    }
+    return resilience_policy;
+  }
+
+  /**
+   * Replace the metrics of NoteStore calls.
+   * Proxies created before this call keep recording in the previous metrics.
+   *
+   * @param metrics new metrics.
+   */
+  public synchronized void setNoteStoreMetrics(NoteStoreMetrics metrics) {
+    note_store_metrics = metrics;
+  }
+
+  /**
+   * Get the metrics of NoteStore calls.
+   * They are created at the first call, and shared by all proxies of this client.
+   * See NoteStoreMetrics for what is recorded.
+   */
+  public synchronized NoteStoreMetrics getNoteStoreMetrics() {
+    if (note_store_metrics == null) {
+      note_store_metrics = new NoteStoreMetrics();
+    }
+    return note_store_metrics;
+  }
+
+  APIExecutor.ResultDelivery getResultDelivery() {
+    return result_delivery;
+  }
+
+  public String getAuthToken() {
+    return credentials.getAuthToken();
+  }
+
+  public boolean isLoggedIn() {
+    return credentials.isLoggedIn();
+  }
+
+  /**
+   * Get the pool of NoteStore clients shared by proxies.
+   */
+  public NoteStoreClientPool getNoteStorePool() {
+    return note_store_pool;
+  }
+}
@@ -0,0 +1,540 @@
+package com.napthats.android.evernote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.evernote.edam.type.Note;
+
+
+/**
+ * Local full-text index of notes, answering term and prefix queries without the server.
+ *
+ * Text is split into terms at characters other than letters and digits, and terms are lower-cased.
+ * Runs of Han, Hiragana, Katakana and Hangul, which are written without spaces, are indexed as
+ * overlapping pairs of characters, so a query of two characters or more finds them anywhere in the run.
+ *
+ * Each put gives the note a new document number, larger than any before, and the previous one is left dead.
+ * So a posting list only grows at its end, and is kept as varint-encoded deltas of document numbers in a byte array.
+ * Terms are in a sorted map, and a prefix query reads the posting lists of the terms in its range.
+ * Dead documents are dropped by renumbering all postings when they outnumber live ones, and when saving.
+ *
+ * save() writes the index to "index" in the directory, replacing it atomically by renaming,
+ * and the index is read from there on open. Changes after the last save() are lost on a crash,
+ * so keep the USN given to put() and index again the notes changed since.
+ *
+ * This class is thread-safe.
+ */
+public final class FullTextIndex {
+  private static final String FILE = "index";
+  private static final String TEMP_FILE = "index.tmp";
+  private static final int MAGIC = 0x454e4649; //"ENFI"
+  private static final int MAX_TERM_LENGTH = 64;
+  private static final int MIN_COMPACTION_DOCS = 1024;
+
+  private final File dir;
+  private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+  private final Map<String, Integer> doc_ids = new HashMap<String, Integer>();
+  private String[] guids = new String[64];
+  private int[] usns = new int[64];
+  private int doc_count = 0;
+  private int dead_count = 0;
+  private boolean dirty = false;
+
+
+  /**
+   * Document numbers having a term, in increasing order.
+   */
+  static final class Postings {
+    byte[] bytes = new byte[4];
+    int length = 0;
+    int count = 0;
+    int last = -1;
+
+    void add(int doc) {
+      if (length + 5 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(length + 5, bytes.length * 2));
+      }
+      int delta = doc - last;
+      while ((delta & ~0x7f) != 0) {
+        bytes[length++] = (byte) ((delta & 0x7f) | 0x80);
+        delta >>>= 7;
+      }
+      bytes[length++] = (byte) delta;
+      last = doc;
+      count++;
+    }
+
+    /**
+     * Set the bits of the documents in a bitmap.
+     */
+    void addTo(long[] docs) {
+      int doc = -1;
+      int i = 0;
+      while (i < length) {
+        int delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = bytes[i++];
+          delta |= (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+        doc += delta;
+        docs[doc >>> 6] |= 1L << doc;
+      }
+    }
+
+    /**
+     * Get the postings with the documents renumbered.
+     *
+     * @param new_ids new numbers by old numbers, -1 to drop the document.
+     */
+    Postings renumber(int[] new_ids) {
+      long[] docs = new long[(new_ids.length + 63) >>> 6];
+      addTo(docs);
+      Postings renumbered = new Postings();
+      for (int doc = 0; doc < new_ids.length; doc++) {
+        if ((docs[doc >>> 6] & (1L << doc)) != 0 && new_ids[doc] >= 0) {
+          renumbered.add(new_ids[doc]);
+        }
+      }
+      if (renumbered.bytes.length > renumbered.length) {
+        renumbered.bytes = Arrays.copyOf(renumbered.bytes, Math.max(renumbered.length, 1));
+      }
+      return renumbered;
+    }
+  }
+
+
+  /**
+   * Open an index in a directory. The directory is created if it does not exist.
+   */
+  public FullTextIndex(File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    load();
+  }
+
+
+  /**
+   * Index the title and the plain content of a note, replacing its previous text.
+   * Nothing is done when the note has no content.
+   */
+  public void put(Note note) {
+    if (note.isSetContent()) {
+      String title = note.isSetTitle() ? note.getTitle() : "";
+      put(note.getGuid(), title + "\n" + EvernoteClient.Util.getPlainContent(note), note.getUpdateSequenceNum());
+    }
+  }
+
+  /**
+   * Index a text of a note, replacing its previous text.
+   *
+   * @param guid the GUID of the note.
+   * @param text plain text.
+   * @param usn the USN of the note, which can be compared with the one in the server later.
+   */
+  public void put(String guid, CharSequence text, int usn) {
+    Set<String> doc_terms = new LinkedHashSet<String>();
+    tokenize(text, doc_terms);
+    synchronized (this) {
+      removeDoc(guid);
+      int doc = doc_count++;
+      if (doc == guids.length) {
+        guids = Arrays.copyOf(guids, doc * 2);
+        usns = Arrays.copyOf(usns, doc * 2);
+      }
+      guids[doc] = guid;
+      usns[doc] = usn;
+      doc_ids.put(guid, doc);
+      for (String term : doc_terms) {
+        Postings postings = terms.get(term);
+        if (postings == null) {
+          postings = new Postings();
+          terms.put(term, postings);
+        }
+        postings.add(doc);
+      }
+      dirty = true;
+      compactIfSparse();
+    }
+  }
+
+  /**
+   * Remove a note from the index.
+   */
+  public synchronized void remove(String guid) {
+    if (removeDoc(guid)) {
+      dirty = true;
+      compactIfSparse();
+    }
+  }
+
+  public synchronized boolean contains(String guid) {
+    return doc_ids.containsKey(guid);
+  }
+
+  /**
+   * Get the USN given with the text, or -1 if the note is not indexed.
+   */
+  public synchronized int getUpdateSequenceNum(String guid) {
+    Integer doc = doc_ids.get(guid);
+    return doc == null ? -1 : usns[doc];
+  }
+
+  /**
+   * Get the number of indexed notes.
+   */
+  public synchronized int size() {
+    return doc_ids.size();
+  }
+
+  /**
+   * Get the number of distinct terms, dead documents included.
+   */
+  public synchronized int getTermCount() {
+    return terms.size();
+  }
+
+  /**
+   * Get the size of all posting lists in bytes.
+   */
+  public synchronized long getPostingsBytes() {
+    long bytes = 0;
+    for (Postings postings : terms.values()) {
+      bytes += postings.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Find notes having a term.
+   *
+   * @param term a term, which is normalized as indexed terms are.
+   * @return GUIDs of notes, the last put first.
+   */
+  public List<String> findTerm(String term) {
+    return find(normalize(term), false, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Find notes having a term starting with a prefix.
+   *
+   * @param prefix a prefix, which is normalized as indexed terms are.
+   * @return GUIDs of notes, the last put first.
+   */
+  public List<String> findPrefix(String prefix) {
+    return find(normalize(prefix), true, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Find notes having every term of a query, as search-as-you-type does.
+   * The last term is taken as a prefix, unless the query ends with a separator.
+   *
+   * @param query a text, split into terms as indexed texts are.
+   * @param limit the maximum number of notes to return.
+   * @return GUIDs of notes, the last put first. Empty when the query has no term.
+   */
+  public List<String> search(String query, int limit) {
+    List<String> query_terms = new ArrayList<String>();
+    tokenize(query, query_terms);
+    if (query_terms.isEmpty()) {
+      return new ArrayList<String>();
+    }
+    boolean last_is_prefix = !isSeparator(query.codePointBefore(query.length()));
+    synchronized (this) {
+      long[] docs = null;
+      for (int i = 0; i < query_terms.size(); i++) {
+        long[] term_docs = docsOf(query_terms.get(i), last_is_prefix && i == query_terms.size() - 1);
+        if (docs == null) {
+          docs = term_docs;
+          continue;
+        }
+        boolean empty = true;
+        for (int j = 0; j < docs.length; j++) {
+          docs[j] &= term_docs[j];
+          empty &= docs[j] == 0;
+        }
+        if (empty) {
+          break;
+        }
+      }
+      return guidsOf(docs, limit);
+    }
+  }
+
+  /**
+   * Write the index to the disk, if anything has changed since it was read or written.
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    if (dead_count > 0) {
+      compact();
+    }
+    File temp = new File(dir, TEMP_FILE);
+    FileOutputStream file = new FileOutputStream(temp);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      out.writeInt(MAGIC);
+      out.writeInt(doc_count);
+      for (int doc = 0; doc < doc_count; doc++) {
+        out.writeUTF(guids[doc]);
+        out.writeInt(usns[doc]);
+      }
+      out.writeInt(terms.size());
+      for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+        Postings postings = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeInt(postings.count);
+        out.writeInt(postings.last);
+        out.writeInt(postings.length);
+        out.write(postings.bytes, 0, postings.length);
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    finally {
+      file.close();
+    }
+    if (!temp.renameTo(new File(dir, FILE))) {
+      throw new IOException("Cannot replace the index in " + dir);
+    }
+    dirty = false;
+  }
+
+  /**
+   * Save the index.
+   */
+  public void close() throws IOException {
+    save();
+  }
+
+
+  /**
+   * Split a text into normalized terms.
+   */
+  static void tokenize(CharSequence text, Collection<String> out) {
+    StringBuilder word = new StringBuilder();
+    int previous_cjk = -1;
+    boolean cjk_pair = false;
+    int i = 0;
+    while (i < text.length()) {
+      int c = Character.codePointAt(text, i);
+      i += Character.charCount(c);
+      if (isCJK(c)) {
+        flushWord(word, out);
+        if (previous_cjk >= 0) {
+          out.add(new StringBuilder().appendCodePoint(previous_cjk).appendCodePoint(c).toString());
+          cjk_pair = true;
+        }
+        previous_cjk = c;
+        continue;
+      }
+      flushCJK(previous_cjk, cjk_pair, out);
+      previous_cjk = -1;
+      cjk_pair = false;
+      if (isSeparator(c)) {
+        flushWord(word, out);
+      }
+      else {
+        word.appendCodePoint(c);
+      }
+    }
+    flushCJK(previous_cjk, cjk_pair, out);
+    flushWord(word, out);
+  }
+
+  private static void flushWord(StringBuilder word, Collection<String> out) {
+    if (word.length() > 0) {
+      out.add(normalize(word.toString()));
+      word.setLength(0);
+    }
+  }
+
+  private static void flushCJK(int previous_cjk, boolean cjk_pair, Collection<String> out) {
+    //A single character is indexed as is.
+    if (previous_cjk >= 0 && !cjk_pair) {
+      out.add(new String(Character.toChars(previous_cjk)));
+    }
+  }
+
+  private static String normalize(String term) {
+    String lower = term.toLowerCase(Locale.ROOT);
+    if (lower.length() > MAX_TERM_LENGTH) {
+      int end = MAX_TERM_LENGTH;
+      if (Character.isHighSurrogate(lower.charAt(end - 1))) {
+        end--;
+      }
+      lower = lower.substring(0, end);
+    }
+    return lower;
+  }
+
+  private static boolean isSeparator(int c) {
+    return !Character.isLetterOrDigit(c) && !isCJK(c);
+  }
+
+  private static boolean isCJK(int c) {
+    if (c < 0x1100) {
+      return false;
+    }
+    Character.UnicodeScript script = Character.UnicodeScript.of(c);
+    return script == Character.UnicodeScript.HAN
+      || script == Character.UnicodeScript.HIRAGANA
+      || script == Character.UnicodeScript.KATAKANA
+      || script == Character.UnicodeScript.HANGUL;
+  }
+
+
+  private List<String> find(String term, boolean prefix, int limit) {
+    if (term.isEmpty()) {
+      return new ArrayList<String>();
+    }
+    synchronized (this) {
+      return guidsOf(docsOf(term, prefix), limit);
+    }
+  }
+
+  /**
+   * Get the bitmap of the documents having a term, or a term starting with a prefix.
+   */
+  private long[] docsOf(String term, boolean prefix) {
+    long[] docs = new long[(doc_count + 63) >>> 6];
+    if (prefix) {
+      //Every term starting with the prefix is smaller than the prefix followed by the largest char.
+      for (Postings postings : terms.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+        postings.addTo(docs);
+      }
+    }
+    else {
+      Postings postings = terms.get(term);
+      if (postings != null) {
+        postings.addTo(docs);
+      }
+    }
+    return docs;
+  }
+
+  private List<String> guidsOf(long[] docs, int limit) {
+    List<String> result = new ArrayList<String>();
+    for (int word = docs.length - 1; word >= 0; word--) {
+      long bits = docs[word];
+      while (bits != 0) {
+        int bit = 63 - Long.numberOfLeadingZeros(bits);
+        bits &= ~(1L << bit);
+        String guid = guids[(word << 6) + bit];
+        if (guid != null) {
+          if (result.size() == limit) {
+            return result;
+          }
+          result.add(guid);
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean removeDoc(String guid) {
+    Integer doc = doc_ids.remove(guid);
+    if (doc == null) {
+      return false;
+    }
+    guids[doc] = null;
+    dead_count++;
+    return true;
+  }
+
+  private void compactIfSparse() {
+    if (dead_count > MIN_COMPACTION_DOCS && dead_count > doc_ids.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Renumber live documents from 0 and drop dead ones from postings.
+   */
+  private void compact() {
+    int[] new_ids = new int[doc_count];
+    int live = 0;
+    for (int doc = 0; doc < doc_count; doc++) {
+      new_ids[doc] = guids[doc] == null ? -1 : live++;
+    }
+    String[] new_guids = new String[Math.max(64, live * 2)];
+    int[] new_usns = new int[new_guids.length];
+    for (int doc = 0; doc < doc_count; doc++) {
+      if (new_ids[doc] >= 0) {
+        new_guids[new_ids[doc]] = guids[doc];
+        new_usns[new_ids[doc]] = usns[doc];
+        doc_ids.put(guids[doc], new_ids[doc]);
+      }
+    }
+    TreeMap<String, Postings> renumbered = new TreeMap<String, Postings>();
+    for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+      Postings postings = entry.getValue().renumber(new_ids);
+      if (postings.count > 0) {
+        renumbered.put(entry.getKey(), postings);
+      }
+    }
+    terms.clear();
+    terms.putAll(renumbered);
+    guids = new_guids;
+    usns = new_usns;
+    doc_count = live;
+    dead_count = 0;
+  }
+
+  private void load() throws IOException {
+    File file = new File(dir, FILE);
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a full-text index: " + file);
+      }
+      doc_count = in.readInt();
+      guids = new String[Math.max(64, doc_count * 2)];
+      usns = new int[guids.length];
+      for (int doc = 0; doc < doc_count; doc++) {
+        guids[doc] = in.readUTF();
+        usns[doc] = in.readInt();
+        doc_ids.put(guids[doc], doc);
+      }
+      int term_count = in.readInt();
+      for (int i = 0; i < term_count; i++) {
+        String term = in.readUTF();
+        Postings postings = new Postings();
+        postings.count = in.readInt();
+        postings.last = in.readInt();
+        postings.length = in.readInt();
+        postings.bytes = new byte[Math.max(postings.length, 1)];
+        in.readFully(postings.bytes, 0, postings.length);
+        terms.put(term, postings);
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of durations in nanoseconds, recorded without locks.
+ *
+ * Values are counted in log-linear buckets as HdrHistogram does: values below 64 have their own buckets,
+ * and every power of two above is split into 32 buckets, so a value is known within about 3%.
+ * The buckets take fixed memory, about 15KB, whatever the range of values.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+
+  /**
+   * Record a duration. Negative values are recorded as 0.
+   *
+   * @param nanos a duration in nanoseconds.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(indexOf(nanos));
+    sum.addAndGet(nanos);
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Get a copy of the recorded values.
+   * Values recorded while copying may or may not be in it.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(copy, count, sum.get(), max.get());
+  }
+
+  static int indexOf(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * Get the largest value counted in a bucket.
+   */
+  static long highestValueAt(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+    long top = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+
+
+  /**
+   * Recorded values of a LatencyHistogram at some point.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the largest value recorded in nanoseconds, exactly.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @return the mean of values in nanoseconds, or 0 when nothing is recorded.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Get the value under which a given percentage of values are.
+     *
+     * @param percentile a percentage from 0 to 100.
+     * @return a value in nanoseconds, not smaller than the actual one and not larger than getMax().
+     * 0 when nothing is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile must be from 0 to 100: " + percentile);
+      }
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(highestValueAt(i), max);
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + count + " mean=" + (long) getMean() + "ns p50=" + getValueAtPercentile(50)
+        + "ns p99=" + getValueAtPercentile(99) + "ns max=" + max + "ns";
+    }
+  }
+}
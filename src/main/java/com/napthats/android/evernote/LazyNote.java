@@ -0,0 +1,206 @@
+package com.napthats.android.evernote;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Resource;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Handle of a note opened by NoteLoader.
+ * The metadata is fetched on open, and the content and each resource body at the first access.
+ *
+ * A resource body is written to a file of this handle, checked against the MD5 hash in its data,
+ * and read from the file after that. See NoteLoader for the memory taken by handles.
+ *
+ * This class is thread-safe.
+ */
+public final class LazyNote {
+  private final NoteLoader loader;
+  private final Note metadata;
+  private final Map<String, Resource> resources = new HashMap<String, Resource>();
+  //Guarded by this.
+  private String content = null;
+  private long content_bytes = 0;
+  private File dir = null;
+  private final Map<String, File> files = new HashMap<String, File>();
+  private boolean closed = false;
+
+
+  LazyNote(NoteLoader loader, Note metadata) {
+    this.loader = loader;
+    this.metadata = metadata;
+    if (metadata.isSetResources()) {
+      for (Resource resource : metadata.getResources()) {
+        resources.put(resource.getGuid(), resource);
+      }
+    }
+  }
+
+
+  public String getGuid() {
+    return metadata.getGuid();
+  }
+
+  /**
+   * Get the note without content, whose resources have no body.
+   * Do not modify it.
+   */
+  public Note getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * Get the resources of the note, without bodies.
+   */
+  public List<Resource> getResources() {
+    return metadata.isSetResources() ? new ArrayList<Resource>(metadata.getResources()) : new ArrayList<Resource>();
+  }
+
+  /**
+   * Get the content of the note.
+   * It is fetched at the first call, and kept in this handle while it fits in the memory budget.
+   */
+  public String getContent()
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    synchronized (this) {
+      checkOpen();
+      if (content != null) {
+        return content;
+      }
+    }
+    String fetched = loader.getContent(metadata.getGuid());
+    long bytes = 2L * fetched.length();
+    synchronized (this) {
+      if (content == null && !closed && loader.tryAcquire(bytes)) {
+        content = fetched;
+        content_bytes = bytes;
+      }
+    }
+    return fetched;
+  }
+
+  /**
+   * Get the plain text of the content, as Util.getPlainContent() does.
+   */
+  public String getPlainContent()
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    Note note = new Note();
+    note.setContent(getContent());
+    return EvernoteClient.Util.getPlainContent(note);
+  }
+
+  /**
+   * Open the body of a resource.
+   * It is fetched to a file at the first call, and read from the file.
+   *
+   * @param resource_guid the GUID of a resource of the note.
+   * @throws IllegalArgumentException when the note has no such resource.
+   * @throws IOException when the body cannot be written, or does not match its hash.
+   */
+  public InputStream openResource(String resource_guid)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    return new FileInputStream(getResourceFile(resource_guid));
+  }
+
+  /**
+   * Get the file of the body of a resource, fetching it at the first call.
+   * The file is deleted when this handle is closed.
+   *
+   * @see #openResource(String)
+   */
+  public synchronized File getResourceFile(String resource_guid)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    checkOpen();
+    Resource resource = resources.get(resource_guid);
+    if (resource == null) {
+      throw new IllegalArgumentException("No resource " + resource_guid + " in note " + metadata.getGuid());
+    }
+    File file = files.get(resource_guid);
+    if (file != null) {
+      return file;
+    }
+    if (dir == null) {
+      dir = loader.createDir();
+    }
+    file = new File(dir, resource_guid);
+    fetchTo(resource, file);
+    files.put(resource_guid, file);
+    return file;
+  }
+
+  /**
+   * Drop the content, delete the resource files and give back the memory of this handle.
+   * Streams opened before keep reading their files where the platform allows it.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (content != null) {
+      content = null;
+      loader.release(content_bytes);
+    }
+    for (File file : files.values()) {
+      file.delete();
+    }
+    files.clear();
+    if (dir != null) {
+      dir.delete();
+    }
+  }
+
+
+  private void fetchTo(Resource resource, File file)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); //Every Java platform has MD5.
+    }
+    boolean done = false;
+    OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(file), NoteLoader.STREAM_BUFFER_SIZE), md5);
+    try {
+      loader.fetch(resource, out);
+      out.close();
+      if (resource.isSetData() && resource.getData().isSetBodyHash()
+          && !Arrays.equals(resource.getData().getBodyHash(), md5.digest())) {
+        throw new IOException("The body of resource " + resource.getGuid() + " does not match its hash");
+      }
+      done = true;
+    }
+    finally {
+      if (!done) {
+        out.close();
+        file.delete();
+      }
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("The note handle is closed");
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package com.napthats.android.evernote;
+
+import android.os.Handler;
+import android.os.Looper;
+
+
+/**
+ * Deliver results to callbacks on the Android main thread, as AsyncTask.onPostExecute() did.
+ */
+final class MainThreadDelivery implements APIExecutor.ResultDelivery {
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  public void deliver(Runnable callback) {
+    handler.post(callback);
+  }
+}
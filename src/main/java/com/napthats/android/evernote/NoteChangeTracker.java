@@ -0,0 +1,354 @@
+package com.napthats.android.evernote;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.ObjectUtils;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Resource;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Tracker of the notes as the server has them, which turns updates of notes into deltas.
+ *
+ * The tracker keeps the metadata of each tracked note and the MD5 hash of its content, the same hash as
+ * Note.contentHash, but not the content itself. updateNote() compares a note with its tracked version,
+ * sends only the fields which changed, and skips the call when nothing changed. The content is sent only
+ * when its hash differs, and resources only when one of them differs in GUID, MIME type, body hash or attributes.
+ *
+ * A field not set in a note is not changed by updateNote, as the service does. Every field set in a note
+ * which is not tracked is sent.
+ * Notes are tracked from the results of getNote, createNote and updateNote, and from sync chunks.
+ *
+ * This class is thread-safe.
+ */
+public final class NoteChangeTracker {
+  /**
+   * Fields of a note compared by the tracker.
+   */
+  public enum Field {
+    TITLE, CONTENT, NOTEBOOK, TAGS, RESOURCES, ATTRIBUTES, CREATED, UPDATED, DELETED, ACTIVE
+  }
+
+  //Guarded by this.
+  private final Map<String, Note> notes = new HashMap<String, Note>();
+  private long updates = 0;
+  private long skipped = 0;
+  private long bytes_saved = 0;
+
+
+  /**
+   * Track a note as the server has it.
+   * The tracked content hash is the hash of the content when it is set, and contentHash otherwise.
+   * Nothing is tracked for a note without GUID.
+   */
+  public synchronized void track(Note note) {
+    if (!note.isSetGuid()) {
+      return;
+    }
+    notes.put(note.getGuid(), strip(note, note.isSetContent() ? contentHash(note.getContent()) : note.getContentHash()));
+  }
+
+  /**
+   * Stop tracking a note, such as an expunged one.
+   */
+  public synchronized void forget(String guid) {
+    notes.remove(guid);
+  }
+
+  public synchronized boolean isTracked(String guid) {
+    return notes.containsKey(guid);
+  }
+
+  public synchronized int size() {
+    return notes.size();
+  }
+
+  /**
+   * Get the fields of a note which differ from its tracked version.
+   */
+  public synchronized EnumSet<Field> getDirtyFields(Note note) {
+    return dirtyFields(notes.get(note.getGuid()), note);
+  }
+
+  /**
+   * Get the note updateNote() would send for a note.
+   * It has the GUID, the title, which the service requires, and the dirty fields.
+   *
+   * @return the delta, or null when nothing changed.
+   */
+  public synchronized Note getDelta(Note note) {
+    Note tracked = notes.get(note.getGuid());
+    EnumSet<Field> dirty = dirtyFields(tracked, note);
+    return dirty.isEmpty() && tracked != null ? null : delta(tracked, note, dirty);
+  }
+
+  /**
+   * Update a note with the fields which changed, and track the result.
+   *
+   * @param note_store a blocking NoteStore.
+   * @param auth_token the auth token of the account.
+   * @param note the note as the caller wants it.
+   * @return the result of updateNote, or the tracked note without content when nothing changed.
+   */
+  public Note updateNote(NoteStoreIface note_store, String auth_token, Note note)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    long full_size = ThriftRecords.sizeOf(note);
+    Note delta;
+    byte[] sent_hash;
+    synchronized (this) {
+      Note tracked = notes.get(note.getGuid());
+      EnumSet<Field> dirty = dirtyFields(tracked, note);
+      if (dirty.isEmpty() && tracked != null) {
+        skipped++;
+        bytes_saved += full_size;
+        return tracked.deepCopy();
+      }
+      delta = delta(tracked, note, dirty);
+      sent_hash = delta.isSetContent() ? contentHash(delta.getContent())
+                  : tracked != null ? tracked.getContentHash() : null;
+    }
+    long delta_size = ThriftRecords.sizeOf(delta);
+    Note result = note_store.updateNote(auth_token, delta);
+    synchronized (this) {
+      updates++;
+      bytes_saved += full_size - delta_size;
+      //What the result leaves out is as tracked before with the delta on it.
+      Note tracked = notes.get(note.getGuid());
+      Note updated = tracked != null ? tracked.deepCopy() : new Note();
+      overlay(updated, delta);
+      overlay(updated, result);
+      //The result has no content. Its contentHash is the one of the server, if any.
+      notes.put(note.getGuid(), strip(updated, result.isSetContentHash() ? result.getContentHash() : sent_hash));
+    }
+    return result;
+  }
+
+  /**
+   * Get the number of updateNote calls made.
+   */
+  public synchronized long getUpdateCount() {
+    return updates;
+  }
+
+  /**
+   * Get the number of updates skipped because nothing changed.
+   */
+  public synchronized long getSkippedCount() {
+    return skipped;
+  }
+
+  /**
+   * Get the bytes not sent, as the size of the notes given to updateNote() less the size of the deltas sent
+   * in the Thrift binary protocol.
+   */
+  public synchronized long getBytesSaved() {
+    return bytes_saved;
+  }
+
+
+  private static EnumSet<Field> dirtyFields(Note tracked, Note note) {
+    if (tracked == null) {
+      return setFields(note);
+    }
+    EnumSet<Field> dirty = EnumSet.noneOf(Field.class);
+    if (note.isSetTitle() && !note.getTitle().equals(tracked.getTitle())) {
+      dirty.add(Field.TITLE);
+    }
+    if (note.isSetContent()
+        && (!tracked.isSetContentHash() || !Arrays.equals(contentHash(note.getContent()), tracked.getContentHash()))) {
+      dirty.add(Field.CONTENT);
+    }
+    if (note.isSetNotebookGuid() && !note.getNotebookGuid().equals(tracked.getNotebookGuid())) {
+      dirty.add(Field.NOTEBOOK);
+    }
+    //Tag names are resolved by the service, so they cannot be compared.
+    if (note.isSetTagNames() || (note.isSetTagGuids() && !sameTags(note.getTagGuids(), tracked))) {
+      dirty.add(Field.TAGS);
+    }
+    if (note.isSetResources() && !sameResources(note.getResources(), tracked)) {
+      dirty.add(Field.RESOURCES);
+    }
+    if (note.isSetAttributes() && !note.getAttributes().equals(tracked.getAttributes())) {
+      dirty.add(Field.ATTRIBUTES);
+    }
+    if (note.isSetCreated() && (!tracked.isSetCreated() || note.getCreated() != tracked.getCreated())) {
+      dirty.add(Field.CREATED);
+    }
+    if (note.isSetUpdated() && (!tracked.isSetUpdated() || note.getUpdated() != tracked.getUpdated())) {
+      dirty.add(Field.UPDATED);
+    }
+    if (note.isSetDeleted() && (!tracked.isSetDeleted() || note.getDeleted() != tracked.getDeleted())) {
+      dirty.add(Field.DELETED);
+    }
+    if (note.isSetActive() && (!tracked.isSetActive() || note.isActive() != tracked.isActive())) {
+      dirty.add(Field.ACTIVE);
+    }
+    return dirty;
+  }
+
+  /**
+   * Get the fields set in a note, all of which are dirty when the note is not tracked.
+   */
+  private static EnumSet<Field> setFields(Note note) {
+    EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+    if (note.isSetTitle()) {fields.add(Field.TITLE);}
+    if (note.isSetContent()) {fields.add(Field.CONTENT);}
+    if (note.isSetNotebookGuid()) {fields.add(Field.NOTEBOOK);}
+    if (note.isSetTagGuids() || note.isSetTagNames()) {fields.add(Field.TAGS);}
+    if (note.isSetResources()) {fields.add(Field.RESOURCES);}
+    if (note.isSetAttributes()) {fields.add(Field.ATTRIBUTES);}
+    if (note.isSetCreated()) {fields.add(Field.CREATED);}
+    if (note.isSetUpdated()) {fields.add(Field.UPDATED);}
+    if (note.isSetDeleted()) {fields.add(Field.DELETED);}
+    if (note.isSetActive()) {fields.add(Field.ACTIVE);}
+    return fields;
+  }
+
+  private static boolean sameTags(List<String> tag_guids, Note tracked) {
+    if (!tracked.isSetTagGuids()) {
+      return tag_guids.isEmpty();
+    }
+    return new HashSet<String>(tag_guids).equals(new HashSet<String>(tracked.getTagGuids()));
+  }
+
+  private static boolean sameResources(List<Resource> resources, Note tracked) {
+    if (!tracked.isSetResources()) {
+      return resources.isEmpty();
+    }
+    if (resources.size() != tracked.getResources().size()) {
+      return false;
+    }
+    for (int i = 0; i < resources.size(); i++) {
+      Resource resource = resources.get(i);
+      Resource tracked_resource = tracked.getResources().get(i);
+      if (!resource.isSetGuid() || !resource.getGuid().equals(tracked_resource.getGuid())
+          || !ObjectUtils.equals(resource.getMime(), tracked_resource.getMime())
+          || !Arrays.equals(bodyHash(resource), bodyHash(tracked_resource))
+          || !ObjectUtils.equals(resource.getAttributes(), tracked_resource.getAttributes())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] bodyHash(Resource resource) {
+    if (!resource.isSetData()) {
+      return null;
+    }
+    if (resource.getData().isSetBodyHash()) {
+      return resource.getData().getBodyHash();
+    }
+    return resource.getData().isSetBody() ? md5(resource.getData().getBody()) : null;
+  }
+
+  private static Note delta(Note tracked, Note note, EnumSet<Field> dirty) {
+    Note delta = new Note();
+    delta.setGuid(note.getGuid());
+    if (note.isSetTitle()) {
+      delta.setTitle(note.getTitle());
+    }
+    else if (tracked != null && tracked.isSetTitle()) {
+      delta.setTitle(tracked.getTitle());
+    }
+    if (dirty.contains(Field.CONTENT)) {
+      delta.setContent(note.getContent());
+    }
+    if (dirty.contains(Field.NOTEBOOK)) {
+      delta.setNotebookGuid(note.getNotebookGuid());
+    }
+    if (dirty.contains(Field.TAGS)) {
+      delta.setTagGuids(note.getTagGuids());
+      delta.setTagNames(note.getTagNames());
+    }
+    if (dirty.contains(Field.RESOURCES)) {
+      delta.setResources(note.getResources());
+    }
+    if (dirty.contains(Field.ATTRIBUTES)) {
+      delta.setAttributes(note.getAttributes());
+    }
+    if (dirty.contains(Field.CREATED)) {
+      delta.setCreated(note.getCreated());
+    }
+    if (dirty.contains(Field.UPDATED)) {
+      delta.setUpdated(note.getUpdated());
+    }
+    if (dirty.contains(Field.DELETED)) {
+      delta.setDeleted(note.getDeleted());
+    }
+    if (dirty.contains(Field.ACTIVE)) {
+      delta.setActive(note.isActive());
+    }
+    return delta;
+  }
+
+  /**
+   * Set the metadata fields set in a source note to a target note.
+   */
+  private static void overlay(Note target, Note source) {
+    if (source.isSetGuid()) {target.setGuid(source.getGuid());}
+    if (source.isSetTitle()) {target.setTitle(source.getTitle());}
+    if (source.isSetContentHash()) {target.setContentHash(source.getContentHash());}
+    if (source.isSetContentLength()) {target.setContentLength(source.getContentLength());}
+    if (source.isSetNotebookGuid()) {target.setNotebookGuid(source.getNotebookGuid());}
+    if (source.isSetTagGuids()) {target.setTagGuids(source.getTagGuids());}
+    if (source.isSetResources()) {target.setResources(source.getResources());}
+    if (source.isSetAttributes()) {target.setAttributes(source.getAttributes());}
+    if (source.isSetCreated()) {target.setCreated(source.getCreated());}
+    if (source.isSetUpdated()) {target.setUpdated(source.getUpdated());}
+    if (source.isSetDeleted()) {target.setDeleted(source.getDeleted());}
+    if (source.isSetActive()) {target.setActive(source.isActive());}
+    if (source.isSetUpdateSequenceNum()) {target.setUpdateSequenceNum(source.getUpdateSequenceNum());}
+  }
+
+  /**
+   * Copy a note without content and resource bodies, with the given content hash.
+   */
+  private static Note strip(Note note, byte[] content_hash) {
+    Note stripped = note.deepCopy();
+    stripped.unsetContent();
+    stripped.setContentHash(content_hash);
+    if (stripped.isSetResources()) {
+      for (Resource resource : stripped.getResources()) {
+        if (resource.isSetData()) {
+          if (!resource.getData().isSetBodyHash() && resource.getData().isSetBody()) {
+            resource.getData().setBodyHash(md5(resource.getData().getBody()));
+          }
+          resource.getData().unsetBody();
+        }
+        resource.unsetRecognition();
+        resource.unsetAlternateData();
+      }
+    }
+    return stripped;
+  }
+
+  private static byte[] contentHash(String content) {
+    try {
+      return md5(content.getBytes("UTF-8"));
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e); //Every Java platform has UTF-8.
+    }
+  }
+
+  private static byte[] md5(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); //Every Java platform has MD5.
+    }
+  }
+}
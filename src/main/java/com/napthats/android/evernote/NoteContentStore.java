@@ -0,0 +1,531 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.evernote.edam.type.Note;
+
+
+/**
+ * Append-only store of note contents, read through a memory mapping of the file.
+ * Contents stay out of the Java heap until they are asked for, and getPlainContent() converts
+ * the mapped bytes to plain text chunk by chunk without making the content String.
+ *
+ * The file is a sequence of records, each of which is the length, the CRC32 and the body.
+ * A body is a content blob, a put of a note GUID to a blob or a removal of a GUID.
+ * Contents are deduplicated by MD5, the same hash as Note.contentHash, so notes with the same content
+ * share one blob. The index from GUIDs to blobs is built by scanning the file on open. Scanning stops at
+ * the first broken record, which is what a crash in the middle of an append leaves, and the file is
+ * truncated there. compact() rewrites the file with live blobs only and replaces it by renaming.
+ *
+ * The file is mapped in windows of fixed size, and a few of them are held at a time, so a large store
+ * does not take as much address space. Windows overlap, so that a content starting in a window is read from it
+ * unless it is longer than the overlap. Longer contents, and contents appended after their window was mapped,
+ * are read into the heap. The window at the end of the file is mapped again only when the file has grown by
+ * as much as the mapping, so appends and reads in turn do not make a mapping each.
+ * This class is thread-safe.
+ */
+public final class NoteContentStore {
+  private static final String FILE = "content";
+  private static final String COMPACT_FILE = "content.compact";
+  private static final int MAGIC = 0x454e4353; //"ENCS"
+  private static final int FILE_HEADER_SIZE = 4;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int HASH_SIZE = 16;
+  private static final byte BLOB = 1;
+  private static final byte PUT = 2;
+  private static final byte REMOVE = 3;
+  private static final int DECODE_BUFFER_SIZE = 8192;
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+  private static final int WINDOW_OVERLAP = 8 * 1024 * 1024;
+  private static final int MAX_WINDOWS = 4;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File dir;
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private long size;
+  //Mapped windows by index, in the order of use.
+  private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+      //A dropped mapping is unmapped when it is collected.
+      return size() > MAX_WINDOWS;
+    }
+  };
+  private int map_count = 0;
+
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private final Map<ByteBuffer, Blob> blobs_by_hash = new HashMap<ByteBuffer, Blob>();
+  private final Map<Long, Blob> blobs_by_offset = new HashMap<Long, Blob>();
+  private long live_bytes = 0;
+
+
+  /**
+   * Content of a note in the file.
+   */
+  private static final class Blob {
+    final long record_offset;
+    final long offset;
+    final int length;
+    final byte[] hash;
+    int references = 0;
+
+    Blob(long record_offset, long offset, int length, byte[] hash) {
+      this.record_offset = record_offset;
+      this.offset = offset;
+      this.length = length;
+      this.hash = hash;
+    }
+  }
+
+  private static final class Entry {
+    final Blob blob;
+    final int usn;
+
+    Entry(Blob blob, int usn) {
+      this.blob = blob;
+      this.usn = usn;
+    }
+  }
+
+
+  /**
+   * Open a store in a directory. The directory is created if it does not exist.
+   */
+  public NoteContentStore(File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    open();
+  }
+
+
+  /**
+   * Put the content of a note.
+   * Nothing is written when the note has no content.
+   */
+  public void put(Note note) throws IOException {
+    if (note.isSetContent()) {
+      put(note.getGuid(), note.getContent(), note.getUpdateSequenceNum());
+    }
+  }
+
+  /**
+   * Put the content of a note.
+   *
+   * @param guid the GUID of the note.
+   * @param content ENML.
+   * @param usn the USN of the note, which can be compared with the one in the server later.
+   */
+  public void put(String guid, String content, int usn) throws IOException {
+    put(guid, content.getBytes(UTF8), usn);
+  }
+
+  /**
+   * Put the content of a note as UTF-8 bytes.
+   */
+  public synchronized void put(String guid, byte[] content, int usn) throws IOException {
+    checkOpen();
+    byte[] hash = md5(content);
+    Blob blob = blobs_by_hash.get(ByteBuffer.wrap(hash));
+    if (blob == null) {
+      ByteBuffer body = ByteBuffer.allocate(1 + HASH_SIZE + content.length);
+      body.put(BLOB).put(hash).put(content);
+      long record_offset = append(body);
+      blob = new Blob(record_offset, record_offset + RECORD_HEADER_SIZE + 1 + HASH_SIZE, content.length, hash);
+      addBlob(blob);
+    }
+    byte[] guid_bytes = guid.getBytes(UTF8);
+    ByteBuffer body = ByteBuffer.allocate(1 + 8 + 4 + guid_bytes.length);
+    body.put(PUT).putLong(blob.record_offset).putInt(usn).put(guid_bytes);
+    append(body);
+    setEntry(guid, new Entry(blob, usn));
+  }
+
+  /**
+   * Remove the content of a note.
+   */
+  public synchronized void remove(String guid) throws IOException {
+    checkOpen();
+    if (!entries.containsKey(guid)) {
+      return;
+    }
+    byte[] guid_bytes = guid.getBytes(UTF8);
+    ByteBuffer body = ByteBuffer.allocate(1 + guid_bytes.length);
+    body.put(REMOVE).put(guid_bytes);
+    append(body);
+    setEntry(guid, null);
+  }
+
+  public synchronized boolean contains(String guid) {
+    return entries.containsKey(guid);
+  }
+
+  /**
+   * Get the USN given with the content, or -1 if there is no content of the note.
+   */
+  public synchronized int getUpdateSequenceNum(String guid) {
+    Entry entry = entries.get(guid);
+    return entry == null ? -1 : entry.usn;
+  }
+
+  /**
+   * Get the MD5 hash of the content, or null if there is no content of the note.
+   */
+  public synchronized byte[] getContentHash(String guid) {
+    Entry entry = entries.get(guid);
+    return entry == null ? null : entry.blob.hash.clone();
+  }
+
+  /**
+   * Get the content as UTF-8 bytes in the mapped file, or a copy of them
+   * when they are not in a mapped window.
+   *
+   * @return a read-only buffer, or null if there is no content of the note.
+   */
+  public synchronized ByteBuffer getContentBytes(String guid) throws IOException {
+    checkOpen();
+    Entry entry = entries.get(guid);
+    if (entry == null) {
+      return null;
+    }
+    return region(entry.blob.offset, entry.blob.length);
+  }
+
+  /**
+   * Get the content as a String.
+   *
+   * @return the content, or null if there is no content of the note.
+   */
+  public String getContent(String guid) throws IOException {
+    ByteBuffer bytes = getContentBytes(guid);
+    return bytes == null ? null : UTF8.decode(bytes).toString();
+  }
+
+  /**
+   * Convert the content to plain text as Util.getPlainContent() does.
+   * The mapped bytes are decoded and converted in chunks of fixed size.
+   *
+   * @param guid the GUID of the note.
+   * @param out output of the plain text.
+   * @return false if there is no content of the note.
+   */
+  public boolean getPlainContent(String guid, Appendable out) throws IOException {
+    ByteBuffer bytes = getContentBytes(guid);
+    if (bytes == null) {
+      return false;
+    }
+    CharsetDecoder decoder = UTF8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+    EnmlTextExtractor extractor = new EnmlTextExtractor(out);
+    while (true) {
+      CoderResult result = decoder.decode(bytes, chars, true);
+      if (result.isUnderflow()) {
+        decoder.flush(chars);
+      }
+      chars.flip();
+      extractor.write(chars.array(), 0, chars.limit());
+      chars.clear();
+      if (result.isUnderflow()) {
+        break;
+      }
+    }
+    extractor.finish();
+    return true;
+  }
+
+  /**
+   * Get the number of notes with content.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get the size of the file.
+   */
+  public synchronized long getFileBytes() {
+    return size;
+  }
+
+  /**
+   * Get the size of the file after compaction.
+   */
+  public synchronized long getLiveBytes() {
+    return live_bytes;
+  }
+
+  /**
+   * Rewrite the file with the contents of the current notes only.
+   */
+  public synchronized void compact() throws IOException {
+    checkOpen();
+    File compact_file = new File(dir, COMPACT_FILE);
+    RandomAccessFile out = new RandomAccessFile(compact_file, "rw");
+    try {
+      out.setLength(0);
+      FileChannel out_channel = out.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+      header.putInt(MAGIC).flip();
+      out_channel.write(header);
+      Map<Blob, Long> moved = new HashMap<Blob, Long>();
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Blob blob = e.getValue().blob;
+        Long record_offset = moved.get(blob);
+        if (record_offset == null) {
+          record_offset = out_channel.position();
+          int record_length = RECORD_HEADER_SIZE + 1 + HASH_SIZE + blob.length;
+          writeFully(out_channel, region(blob.record_offset, record_length));
+          moved.put(blob, record_offset);
+        }
+        byte[] guid_bytes = e.getKey().getBytes(UTF8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 4 + guid_bytes.length);
+        body.put(PUT).putLong(record_offset).putInt(e.getValue().usn).put(guid_bytes);
+        writeFully(out_channel, frame(body));
+      }
+      out_channel.force(true);
+    }
+    finally {
+      out.close();
+    }
+    close();
+    if (!compact_file.renameTo(new File(dir, FILE))) {
+      //Go on with the old file.
+      open();
+      throw new IOException("Cannot replace the content file in " + dir);
+    }
+    open();
+  }
+
+  /**
+   * Write appended records to the disk.
+   */
+  public synchronized void flush() throws IOException {
+    checkOpen();
+    channel.force(false);
+  }
+
+  public synchronized void close() throws IOException {
+    if (file != null) {
+      file.close();
+      file = null;
+      channel = null;
+      windows.clear();
+    }
+  }
+
+  /**
+   * Get the number of mappings made since the store was created.
+   */
+  synchronized int getMapCount() {
+    return map_count;
+  }
+
+
+  private void open() throws IOException {
+    entries.clear();
+    blobs_by_hash.clear();
+    blobs_by_offset.clear();
+    live_bytes = FILE_HEADER_SIZE;
+    file = new RandomAccessFile(new File(dir, FILE), "rw");
+    channel = file.getChannel();
+    size = channel.size();
+    if (size < FILE_HEADER_SIZE) {
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+      header.putInt(MAGIC).flip();
+      channel.truncate(0);
+      writeFully(channel, header, 0);
+      size = FILE_HEADER_SIZE;
+    }
+    if (region(0, FILE_HEADER_SIZE).getInt(0) != MAGIC) {
+      close();
+      throw new IOException("Not a content store: " + dir);
+    }
+    long valid = scan();
+    if (valid < size) {
+      //Drop records torn by a crash.
+      windows.clear();
+      channel.truncate(valid);
+      size = valid;
+    }
+  }
+
+  /**
+   * Build the index from the records.
+   *
+   * @return the end of the last valid record.
+   */
+  private long scan() throws IOException {
+    long position = FILE_HEADER_SIZE;
+    CRC32 crc = new CRC32();
+    while (position + RECORD_HEADER_SIZE <= size) {
+      ByteBuffer header = region(position, RECORD_HEADER_SIZE);
+      int length = header.getInt(0);
+      int expected_crc = header.getInt(4);
+      if (length < 1 || position + RECORD_HEADER_SIZE + length > size) {
+        break;
+      }
+      ByteBuffer body = region(position + RECORD_HEADER_SIZE, length);
+      crc.reset();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != expected_crc || !replay(position, body)) {
+        break;
+      }
+      position += RECORD_HEADER_SIZE + length;
+    }
+    return position;
+  }
+
+  private boolean replay(long record_offset, ByteBuffer body) {
+    byte type = body.get();
+    if (type == BLOB) {
+      if (body.remaining() < HASH_SIZE) {
+        return false;
+      }
+      byte[] hash = new byte[HASH_SIZE];
+      body.get(hash);
+      addBlob(new Blob(record_offset, record_offset + RECORD_HEADER_SIZE + 1 + HASH_SIZE, body.remaining(), hash));
+      return true;
+    }
+    if (type == PUT) {
+      if (body.remaining() < 12) {
+        return false;
+      }
+      Blob blob = blobs_by_offset.get(body.getLong());
+      if (blob == null) {
+        return false;
+      }
+      int usn = body.getInt();
+      setEntry(UTF8.decode(body).toString(), new Entry(blob, usn));
+      return true;
+    }
+    if (type == REMOVE) {
+      setEntry(UTF8.decode(body).toString(), null);
+      return true;
+    }
+    return false;
+  }
+
+  private void addBlob(Blob blob) {
+    blobs_by_hash.put(ByteBuffer.wrap(blob.hash), blob);
+    blobs_by_offset.put(blob.record_offset, blob);
+  }
+
+  private void setEntry(String guid, Entry entry) {
+    Entry old = entry == null ? entries.remove(guid) : entries.put(guid, entry);
+    int guid_length = guid.getBytes(UTF8).length;
+    if (old != null) {
+      live_bytes -= RECORD_HEADER_SIZE + 1 + 8 + 4 + guid_length;
+      if (--old.blob.references == 0) {
+        live_bytes -= RECORD_HEADER_SIZE + 1 + HASH_SIZE + old.blob.length;
+      }
+    }
+    if (entry != null) {
+      live_bytes += RECORD_HEADER_SIZE + 1 + 8 + 4 + guid_length;
+      if (entry.blob.references++ == 0) {
+        live_bytes += RECORD_HEADER_SIZE + 1 + HASH_SIZE + entry.blob.length;
+      }
+    }
+  }
+
+  private long append(ByteBuffer body) throws IOException {
+    long record_offset = size;
+    ByteBuffer record = frame(body);
+    int record_length = record.remaining();
+    writeFully(channel, record, record_offset);
+    size += record_length;
+    return record_offset;
+  }
+
+  private static ByteBuffer frame(ByteBuffer body) {
+    body.flip();
+    CRC32 crc = new CRC32();
+    crc.update(body.duplicate());
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.remaining());
+    record.putInt(body.remaining()).putInt((int) crc.getValue()).put(body).flip();
+    return record;
+  }
+
+  /**
+   * Get a read-only buffer of a region of the file, from its mapped window or read into the heap.
+   */
+  private ByteBuffer region(long offset, int length) throws IOException {
+    long index = offset / WINDOW_SIZE;
+    long start = index * WINDOW_SIZE;
+    long end = Math.min(size, start + WINDOW_SIZE + WINDOW_OVERLAP);
+    if (offset + length > end) {
+      return read(offset, length);
+    }
+    MappedByteBuffer window = windows.get(index);
+    if (window == null || offset + length > start + window.capacity()) {
+      //The file has grown past the mapping. Map it again once it has grown as much as the mapping.
+      if (window != null && end - start < 2L * window.capacity() && end < start + WINDOW_SIZE + WINDOW_OVERLAP) {
+        return read(offset, length);
+      }
+      window = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      windows.put(index, window);
+      map_count++;
+    }
+    ByteBuffer bytes = window.duplicate();
+    bytes.position((int) (offset - start));
+    bytes.limit((int) (offset - start) + length);
+    return bytes.slice();
+  }
+
+  private ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate(length);
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes, offset + bytes.position()) < 0) {
+        throw new IOException("The content file ends at " + (offset + bytes.position()));
+      }
+    }
+    bytes.flip();
+    return bytes.asReadOnlyBuffer();
+  }
+
+  private void checkOpen() throws IOException {
+    if (file == null) {
+      throw new IOException("The content store is closed");
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static byte[] md5(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); //Every Java platform has MD5.
+    }
+  }
+}
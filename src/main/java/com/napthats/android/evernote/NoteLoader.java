@@ -0,0 +1,231 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Resource;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Opens notes as LazyNote handles, which fetch the metadata first and the content and resources when asked.
+ *
+ * Resource bodies are written to files under the cache directory, and read from there as streams.
+ * Heap taken by note contents and by resource bodies on their way to files is bounded by a memory budget
+ * shared by every handle of this loader:
+ * - A content is kept in its handle while it fits in the budget, and fetched again at every call otherwise.
+ * - A fetcher which receives a whole body in heap, as the NoteStore does, waits until the body fits in the budget.
+ *   A body which does not fit goes over the budget when no other body is on its way,
+ *   so one body at a time can exceed it. Contents kept in handles never make a fetch wait longer than that.
+ * - httpFetcher() streams bodies through a buffer of fixed size.
+ *
+ * This class is thread-safe.
+ */
+public final class NoteLoader {
+  public static final long DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+  static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final NoteStoreIface note_store;
+  private final String auth_token;
+  private final File cache_dir;
+  private final long memory_budget;
+  private final ResourceFetcher fetcher;
+  //Guarded by this.
+  private long memory_used = 0;
+  private int bodies_in_transit = 0;
+
+
+  /**
+   * Fetcher of resource bodies.
+   */
+  public interface ResourceFetcher {
+    /**
+     * Write the body of a resource.
+     *
+     * @param auth_token the auth token of the account.
+     * @param resource the resource, with its data but without the body.
+     * @param out output of the body.
+     */
+    public void fetch(String auth_token, Resource resource, OutputStream out)
+    throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException;
+  }
+
+  /**
+   * Get a fetcher streaming resource bodies over HTTP, as the service serves them beside the NoteStore.
+   * A body is asked for by posting the auth token to "res/GUID" next to the NoteStore URL.
+   *
+   * @param note_store_url the NoteStore URL of the account, such as "https://www.evernote.com/shard/s1/notestore".
+   */
+  public static ResourceFetcher httpFetcher(String note_store_url) {
+    final String base_url = note_store_url.substring(0, note_store_url.lastIndexOf('/') + 1) + "res/";
+    return new ResourceFetcher() {
+      public void fetch(String auth_token, Resource resource, OutputStream out) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(base_url + resource.getGuid()).openConnection();
+        try {
+          connection.setRequestMethod("POST");
+          connection.setDoOutput(true);
+          connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+          OutputStream request = connection.getOutputStream();
+          request.write(("auth=" + URLEncoder.encode(auth_token, "UTF-8")).getBytes("UTF-8"));
+          request.close();
+          int status = connection.getResponseCode();
+          if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP " + status + " for resource " + resource.getGuid());
+          }
+          InputStream in = connection.getInputStream();
+          try {
+            byte[] buf = new byte[STREAM_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+              out.write(buf, 0, n);
+            }
+          }
+          finally {
+            in.close();
+          }
+        }
+        finally {
+          connection.disconnect();
+        }
+      }
+    };
+  }
+
+
+  /**
+   * Create a loader fetching resource bodies from the NoteStore, with the default memory budget.
+   */
+  public NoteLoader(NoteStoreIface note_store, String auth_token, File cache_dir) {
+    this(note_store, auth_token, cache_dir, DEFAULT_MEMORY_BUDGET, null);
+  }
+
+  /**
+   * @param note_store the NoteStore, which is called from the threads using handles.
+   * @param auth_token the auth token of the account.
+   * @param cache_dir the directory of resource files. It is created if it does not exist.
+   * @param memory_budget the bytes of heap which handles of this loader can take.
+   * @param fetcher the fetcher of resource bodies, or null to call getResourceData of the NoteStore.
+   */
+  public NoteLoader(NoteStoreIface note_store, String auth_token, File cache_dir, long memory_budget, ResourceFetcher fetcher) {
+    if (memory_budget <= 0) {throw new IllegalArgumentException("memory_budget must be positive");}
+    this.note_store = note_store;
+    this.auth_token = auth_token;
+    this.cache_dir = cache_dir;
+    this.memory_budget = memory_budget;
+    this.fetcher = fetcher != null ? fetcher : new NoteStoreFetcher();
+  }
+
+  /**
+   * Open a note. Only its metadata is fetched, with resources without bodies.
+   * Close the handle to give back its memory and delete its resource files.
+   */
+  public LazyNote open(String guid)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    Note metadata = note_store.getNote(auth_token, guid, false, false, false, false);
+    return new LazyNote(this, metadata);
+  }
+
+  public long getMemoryBudget() {
+    return memory_budget;
+  }
+
+  /**
+   * Get the bytes of the budget taken now.
+   */
+  public synchronized long getMemoryUsed() {
+    return memory_used;
+  }
+
+
+  String getContent(String guid)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    return note_store.getNoteContent(auth_token, guid);
+  }
+
+  void fetch(Resource resource, OutputStream out)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    fetcher.fetch(auth_token, resource, out);
+  }
+
+  /**
+   * Make a directory for the resource files of a handle.
+   */
+  File createDir() throws IOException {
+    if (!cache_dir.isDirectory() && !cache_dir.mkdirs()) {
+      throw new IOException("Cannot create " + cache_dir);
+    }
+    File dir = File.createTempFile("note", "", cache_dir);
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Cannot create a directory in " + cache_dir);
+    }
+    return dir;
+  }
+
+  /**
+   * Take bytes from the budget if they fit now.
+   */
+  synchronized boolean tryAcquire(long bytes) {
+    if (memory_used + bytes > memory_budget) {
+      return false;
+    }
+    memory_used += bytes;
+    return true;
+  }
+
+  /**
+   * Take bytes of a body from the budget, waiting until they fit or no other body is taken.
+   */
+  synchronized void acquireBody(long bytes) throws InterruptedIOException {
+    while (bodies_in_transit > 0 && memory_used + bytes > memory_budget) {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the memory budget");
+      }
+    }
+    memory_used += bytes;
+    bodies_in_transit++;
+  }
+
+  synchronized void releaseBody(long bytes) {
+    bodies_in_transit--;
+    release(bytes);
+  }
+
+  synchronized void release(long bytes) {
+    memory_used -= bytes;
+    notifyAll();
+  }
+
+
+  /**
+   * Fetcher calling getResourceData, which receives the whole body in heap.
+   */
+  private final class NoteStoreFetcher implements ResourceFetcher {
+    public void fetch(String auth_token, Resource resource, OutputStream out)
+    throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+      long size = resource.isSetData() && resource.getData().isSetSize() ? resource.getData().getSize() : 0;
+      acquireBody(size);
+      try {
+        byte[] body = note_store.getResourceData(auth_token, resource.getGuid());
+        out.write(body);
+      }
+      finally {
+        releaseBody(size);
+      }
+    }
+  }
+}
@@ -0,0 +1,360 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.thrift.TBase;
+
+
+/**
+ * Cache of read calls of a NoteStore.
+ * getNoteStore() gives a NoteStore which answers getNotebook, getDefaultNotebook, listNotebooks, listTags,
+ * listTagsByNotebook, getTag, listSearches, getSearch, getNote, getNoteContent and getNoteTagNames
+ * from the cache, and forwards other calls.
+ *
+ * Identical calls in flight are merged into one call to the delegate.
+ * Results are kept in an LRU of bounded size for a time to live. Errors are not kept.
+ * A write call of NoteStore (create*, update*, expunge* etc.) drops the results of the kinds of objects it may change,
+ * and an update count advancing in getSyncState or onSyncState() drops everything. Other calls drop nothing, and
+ * hashCode(), equals() and toString() of the NoteStore are answered by its identity.
+ * Results are copied when they are returned, so callers may modify them.
+ */
+public final class NoteStoreCache {
+  public static final int DEFAULT_MAX_ENTRIES = 256;
+  public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+  /**
+   * Kinds of objects whose results are dropped together.
+   */
+  private enum Kind {NOTEBOOK, TAG, SEARCH, NOTE}
+
+  private static final Map<String, Kind> CACHED = new HashMap<String, Kind>();
+  static {
+    for (String name : new String[] {"getNotebook", "getDefaultNotebook", "listNotebooks"}) {
+      CACHED.put(name, Kind.NOTEBOOK);
+    }
+    for (String name : new String[] {"listTags", "listTagsByNotebook", "getTag"}) {
+      CACHED.put(name, Kind.TAG);
+    }
+    for (String name : new String[] {"listSearches", "getSearch"}) {
+      CACHED.put(name, Kind.SEARCH);
+    }
+    for (String name : new String[] {"getNote", "getNoteContent", "getNoteTagNames"}) {
+      CACHED.put(name, Kind.NOTE);
+    }
+  }
+  //Write calls of NoteStore and the kinds of objects they may change.
+  private static final Map<String, EnumSet<Kind>> WRITES = new HashMap<String, EnumSet<Kind>>();
+  static {
+    for (String name : new String[] {
+        "createNotebook", "updateNotebook", "expungeNotebook",
+        "createLinkedNotebook", "updateLinkedNotebook", "expungeLinkedNotebook",
+        "createSharedNotebook", "updateSharedNotebook", "expungeSharedNotebooks",
+        "createTag", "updateTag", "untagAll", "expungeTag",
+        "createSearch", "updateSearch", "expungeSearch",
+        "createNote", "updateNote", "deleteNote", "expungeNote", "expungeNotes", "expungeInactiveNotes", "copyNote",
+        "shareNote", "stopSharingNote", "setNoteApplicationDataEntry", "unsetNoteApplicationDataEntry",
+        "updateResource", "setResourceApplicationDataEntry", "unsetResourceApplicationDataEntry"}) {
+      WRITES.put(name, changedKinds(name));
+    }
+  }
+
+  private final NoteStoreIface delegate;
+  private final NoteStoreIface note_store;
+  private final int max_entries;
+  private final long ttl_millis;
+  private volatile Clock clock = Clock.SYSTEM;
+
+  //Guarded by this.
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private int update_count = -1;
+  //Incremented at every invalidation, so that a call started before it does not store its result.
+  private long generation = 0;
+
+  private final ConcurrentHashMap<Key, CompletableFuture<Object>> in_flight =
+    new ConcurrentHashMap<Key, CompletableFuture<Object>>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+
+  private static final class Key {
+    final Method method;
+    final List<Object> args;
+    final Kind kind;
+
+    Key(Method method, Object[] args, Kind kind) {
+      this.method = method;
+      this.args = Arrays.asList(args);
+      this.kind = kind;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).method.equals(method) && ((Key) o).args.equals(args);
+    }
+
+    @Override
+    public int hashCode() {
+      return method.hashCode() * 31 + args.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    final Object value;
+    final long expires_at;
+
+    Entry(Object value, long expires_at) {
+      this.value = value;
+      this.expires_at = expires_at;
+    }
+  }
+
+
+  public NoteStoreCache(NoteStoreIface delegate) {
+    this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+  }
+
+  /**
+   * @param delegate the NoteStore to cache. It has to be thread-safe.
+   * @param max_entries the max number of results kept.
+   * @param ttl_millis how long a result is kept.
+   */
+  public NoteStoreCache(NoteStoreIface delegate, int max_entries, long ttl_millis) {
+    if (max_entries <= 0) {throw new IllegalArgumentException("max_entries must be positive");}
+    this.delegate = delegate;
+    this.max_entries = max_entries;
+    this.ttl_millis = ttl_millis;
+    this.note_store = (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+          }
+          return call(method, args == null ? new Object[0] : args);
+        }
+      });
+  }
+
+
+  /**
+   * Get the NoteStore answering from the cache.
+   */
+  public NoteStoreIface getNoteStore() {
+    return note_store;
+  }
+
+  /**
+   * Give a sync state obtained elsewhere. Everything is dropped if the update count has advanced.
+   */
+  public synchronized void onSyncState(SyncState state) {
+    if (update_count >= 0 && state.getUpdateCount() != update_count) {
+      invalidateAll();
+    }
+    update_count = state.getUpdateCount();
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    generation++;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Get the number of calls answered by merging into an identical call in flight.
+   * They are counted as hits too.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Replace the clock of the time to live.
+   */
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+
+  private Object call(Method method, Object[] args) throws Throwable {
+    Kind kind = CACHED.get(method.getName());
+    if (kind == null) {
+      return forward(method, args);
+    }
+    Key key = new Key(method, args, kind);
+    long started;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expires_at - clock.currentTimeMillis() > 0) {
+          hits.incrementAndGet();
+          return copy(entry.value);
+        }
+        entries.remove(key);
+      }
+      started = generation;
+    }
+
+    CompletableFuture<Object> future = new CompletableFuture<Object>();
+    CompletableFuture<Object> running = in_flight.putIfAbsent(key, future);
+    if (running != null) {
+      hits.incrementAndGet();
+      coalesced.incrementAndGet();
+      try {
+        return copy(running.get());
+      }
+      catch (ExecutionException e) {
+        throw e.getCause();
+      }
+    }
+    misses.incrementAndGet();
+    try {
+      Object value = invoke(method, args);
+      synchronized (this) {
+        if (generation == started) {
+          entries.put(key, new Entry(value, clock.currentTimeMillis() + ttl_millis));
+          if (entries.size() > max_entries) {
+            Iterator<Key> eldest = entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+          }
+        }
+      }
+      future.complete(value);
+      return copy(value);
+    }
+    catch (Throwable e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      in_flight.remove(key, future);
+    }
+  }
+
+  private Object forward(Method method, Object[] args) throws Throwable {
+    EnumSet<Kind> changed = WRITES.get(method.getName());
+    if (changed == null) {
+      Object value = invoke(method, args);
+      if (value instanceof SyncState) {
+        onSyncState((SyncState) value);
+      }
+      return value;
+    }
+    try {
+      return invoke(method, args);
+    }
+    finally {
+      //Drop results even when the call fails, since it may have reached the server.
+      invalidate(changed);
+    }
+  }
+
+  /**
+   * Answer hashCode(), equals() and toString() of the NoteStore by its identity, without a call to the delegate.
+   */
+  private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+    String name = method.getName();
+    if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    if (name.equals("equals")) {
+      return proxy == args[0];
+    }
+    if (name.equals("toString")) {
+      return "NoteStoreCache@" + Integer.toHexString(System.identityHashCode(proxy));
+    }
+    throw new UnsupportedOperationException(method.toString());
+  }
+
+  private Object invoke(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(delegate, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private synchronized void invalidate(EnumSet<Kind> kinds) {
+    for (Iterator<Key> i = entries.keySet().iterator(); i.hasNext();) {
+      if (kinds.contains(i.next().kind)) {
+        i.remove();
+      }
+    }
+    generation++;
+  }
+
+  /**
+   * Get the kinds of objects a write call may change.
+   */
+  private static EnumSet<Kind> changedKinds(String name) {
+    EnumSet<Kind> kinds = EnumSet.noneOf(Kind.class);
+    if (name.contains("Notebook")) {
+      //Notes of an expunged notebook go with it.
+      kinds.add(Kind.NOTEBOOK);
+      kinds.add(Kind.NOTE);
+    }
+    else if (name.contains("Note") || name.contains("Resource")) {
+      //Tags may be created by tagNames of a note.
+      kinds.add(Kind.NOTE);
+      kinds.add(Kind.TAG);
+    }
+    if (name.contains("Tag") || name.equals("untagAll")) {
+      kinds.add(Kind.TAG);
+      kinds.add(Kind.NOTE);
+    }
+    if (name.contains("Search")) {
+      kinds.add(Kind.SEARCH);
+    }
+    return kinds;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object copy(Object value) {
+    if (value instanceof TBase) {
+      return ((TBase<?>) value).deepCopy();
+    }
+    if (value instanceof List) {
+      List<Object> copy = new ArrayList<Object>(((List<Object>) value).size());
+      for (Object element : (List<Object>) value) {
+        copy.add(copy(element));
+      }
+      return copy;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,255 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.thrift.TServiceClient;
+import com.evernote.thrift.protocol.TBinaryProtocol;
+import com.evernote.thrift.transport.THttpClient;
+import com.evernote.thrift.transport.TTransport;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * A bounded pool of NoteStore clients.
+ * Borrowed clients have to be given back by release(), or by invalidate() when they are broken.
+ * Idle clients are evicted lazily on borrow/release when they have not been used for a while.
+ */
+public final class NoteStoreClientPool {
+  public static final int DEFAULT_MAX_SIZE = 4;
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+  public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30 * 1000;
+
+  private final Factory factory;
+  private final Validator validator;
+  private final int max_size;
+  private final long idle_timeout_millis;
+  private final long borrow_timeout_millis;
+  private final Semaphore permits;
+  private final Deque<Entry> idle = new ArrayDeque<Entry>();
+  private boolean closed = false;
+
+
+  /**
+   * Create a new NoteStore client.
+   */
+  public interface Factory {
+    public NoteStoreIface create() throws TTransportException;
+  }
+
+  /**
+   * Check whether an idle client can be reused.
+   */
+  public interface Validator {
+    public boolean isHealthy(NoteStoreIface client);
+  }
+
+  /**
+   * Default health check.
+   * A Thrift client is healthy while both of its transports are open. This only tells something for transports
+   * keeping a connection, such as sockets. THttpClient makes a connection per call and is always open, so HTTP
+   * clients always pass: a broken one is found by its failing call and given back by invalidate() instead.
+   */
+  public static final Validator TRANSPORT_VALIDATOR = new Validator() {
+    public boolean isHealthy(NoteStoreIface client) {
+      if (!(client instanceof TServiceClient)) {
+        return true;
+      }
+      TServiceClient service_client = (TServiceClient) client;
+      TTransport input = service_client.getInputProtocol().getTransport();
+      TTransport output = service_client.getOutputProtocol().getTransport();
+      if (input instanceof THttpClient && output instanceof THttpClient) {
+        return true;
+      }
+      return input.isOpen() && output.isOpen();
+    }
+  };
+
+  private static final class Entry {
+    final NoteStoreIface client;
+    final long last_used;
+
+    Entry(NoteStoreIface client, long last_used) {
+      this.client = client;
+      this.last_used = last_used;
+    }
+  }
+
+
+  /**
+   * Get a pool lending one thread-safe NoteStore, such as a NoteStoreCache, to up to max_size callers at a time.
+   */
+  public static NoteStoreClientPool shared(final NoteStoreIface note_store, int max_size) {
+    return new NoteStoreClientPool(
+      new Factory() {
+        public NoteStoreIface create() {
+          return note_store;
+        }
+      },
+      new Validator() {
+        public boolean isHealthy(NoteStoreIface client) {
+          return true;
+        }
+      },
+      max_size, Long.MAX_VALUE, DEFAULT_BORROW_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Get a factory of NoteStore clients talking Thrift over HTTP to a URL, such as a local fake server.
+   */
+  public static Factory httpFactory(final String note_store_url) {
+    return new Factory() {
+      public NoteStoreIface create() throws TTransportException {
+        THttpClient transport = new THttpClient(note_store_url);
+        return new NoteStore.Client(new TBinaryProtocol(transport), new TBinaryProtocol(transport));
+      }
+    };
+  }
+
+  public NoteStoreClientPool(Factory factory) {
+    this(factory, TRANSPORT_VALIDATOR, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param factory factory of new clients.
+   * @param validator health check for idle clients.
+   * @param max_size the maximum number of clients, borrowed or idle.
+   * @param idle_timeout_millis idle clients older than this are evicted.
+   * @param borrow_timeout_millis how long borrow() waits for a client to be released.
+   */
+  public NoteStoreClientPool(Factory factory, Validator validator, int max_size, long idle_timeout_millis, long borrow_timeout_millis) {
+    if (max_size <= 0) {throw new IllegalArgumentException("max_size must be positive");}
+    this.factory = factory;
+    this.validator = validator;
+    this.max_size = max_size;
+    this.idle_timeout_millis = idle_timeout_millis;
+    this.borrow_timeout_millis = borrow_timeout_millis;
+    this.permits = new Semaphore(max_size, true);
+  }
+
+
+  /**
+   * Borrow a client.
+   * A warm idle client is preferred. A new one is created when there is no healthy idle client.
+   * Wait for another client to be released when max_size clients are already borrowed.
+   *
+   * @return a client which has to be given back by release() or invalidate().
+   * @throws TTransportException when no client is available in time or a client cannot be created.
+   */
+  public NoteStoreIface borrow() throws TTransportException {
+    try {
+      if (!permits.tryAcquire(borrow_timeout_millis, TimeUnit.MILLISECONDS)) {
+        throw new TTransportException(TTransportException.TIMED_OUT, "No NoteStore client is available in the pool.");
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TTransportException(TTransportException.UNKNOWN, e);
+    }
+
+    try {
+      Entry entry;
+      while ((entry = pollIdle()) != null) {
+        if (validator.isHealthy(entry.client)) {
+          return entry.client;
+        }
+        discard(entry.client);
+      }
+      return factory.create();
+    }
+    catch (TTransportException e) {
+      permits.release();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Give back a healthy client.
+   */
+  public void release(NoteStoreIface client) {
+    synchronized (this) {
+      if (closed) {
+        discard(client);
+      }
+      else {
+        idle.push(new Entry(client, System.currentTimeMillis()));
+      }
+      evictIdle(System.currentTimeMillis());
+    }
+    permits.release();
+  }
+
+  /**
+   * Give back a broken client. The client is discarded.
+   */
+  public void invalidate(NoteStoreIface client) {
+    discard(client);
+    permits.release();
+  }
+
+  /**
+   * Evict idle clients unused for longer than the idle timeout.
+   */
+  public synchronized void evictIdle() {
+    evictIdle(System.currentTimeMillis());
+  }
+
+  /**
+   * Discard all idle clients. Clients borrowed at this time are discarded when they are released.
+   */
+  public synchronized void close() {
+    closed = true;
+    for (Entry entry : idle) {
+      discard(entry.client);
+    }
+    idle.clear();
+  }
+
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  public int getActiveCount() {
+    return max_size - permits.availablePermits();
+  }
+
+  public int getMaxSize() {
+    return max_size;
+  }
+
+
+  private synchronized Entry pollIdle() {
+    evictIdle(System.currentTimeMillis());
+    return idle.poll();
+  }
+
+  private void evictIdle(long now) {
+    //Idle clients are pushed to the head, so the oldest are at the tail.
+    Iterator<Entry> it = idle.descendingIterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (now - entry.last_used < idle_timeout_millis) {
+        break;
+      }
+      it.remove();
+      discard(entry.client);
+    }
+  }
+
+  private static void discard(NoteStoreIface client) {
+    if (client instanceof TServiceClient) {
+      TServiceClient service_client = (TServiceClient) client;
+      service_client.getInputProtocol().getTransport().close();
+      service_client.getOutputProtocol().getTransport().close();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.napthats.android.evernote;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.evernote.edam.type.*;
+import com.evernote.edam.notestore.*;
+import com.evernote.edam.userstore.AuthenticationResult;
+
+
+/**
+ * NoteStore proxy whose methods return CompletableFuture.
+ * It has same methods from the original NoteStore. Calls run in the APIExecutor,
+ * and EDAM exceptions complete the futures exceptionally instead of being thrown.
+ * A call whose future is cancelled while it waits in the executor is not made.
+ * Dependent stages without an executor run in the APIExecutor thread which completed the call.
+ */
+public interface NoteStoreFutureProxy {
+  public CompletableFuture<SyncState> getSyncState(String authToken);
+  public CompletableFuture<SyncState> getSyncStateWithMetrics(String authToken, ClientUsageMetrics metrics);
+  public CompletableFuture<SyncChunk> getSyncChunk(String authToken, int afterUSN, int maxEntries, boolean fullSyncOnly);
+  public CompletableFuture<SyncChunk> getFilteredSyncChunk(String authToken, int afterUSN, int maxEntries, SyncChunkFilter filter);
+  public CompletableFuture<SyncState> getLinkedNotebookSyncState(String authToken, LinkedNotebook notebook);
+  public CompletableFuture<SyncChunk> getLinkedNotebookSyncChunk(String authToken, LinkedNotebook notebook, int afterUSN, int maxEntries, boolean fullSyncOnly);
+  public CompletableFuture<List<Notebook>> listNotebooks(String authToken);
+  public CompletableFuture<Notebook> getNotebook(String authToken, String guid);
+  public CompletableFuture<Notebook> getDefaultNotebook(String authToken);
+  public CompletableFuture<Notebook> createNotebook(String authToken, Notebook notebook);
+  public CompletableFuture<Integer> updateNotebook(String authToken, Notebook notebook);
+  public CompletableFuture<Integer> expungeNotebook(String authToken, String guid);
+  public CompletableFuture<List<Tag>> listTags(String authToken);
+  public CompletableFuture<List<Tag>> listTagsByNotebook(String authToken, String notebookGuid);
+  public CompletableFuture<Tag> getTag(String authToken, String guid);
+  public CompletableFuture<Tag> createTag(String authToken, Tag tag);
+  public CompletableFuture<Integer> updateTag(String authToken, Tag tag);
+  public CompletableFuture<Void> untagAll(String authToken, String guid);
+  public CompletableFuture<Integer> expungeTag(String authToken, String guid);
+  public CompletableFuture<List<SavedSearch>> listSearches(String authToken);
+  public CompletableFuture<SavedSearch> getSearch(String authToken, String guid);
+  public CompletableFuture<SavedSearch> createSearch(String authToken, SavedSearch search);
+  public CompletableFuture<Integer> updateSearch(String authToken, SavedSearch search);
+  public CompletableFuture<Integer> expungeSearch(String authToken, String guid);
+  public CompletableFuture<NoteList> findNotes(String authToken, NoteFilter filter, int offset, int maxNotes);
+  public CompletableFuture<Integer> findNoteOffset(String authToken, NoteFilter filter, String guid);
+  public CompletableFuture<NotesMetadataList> findNotesMetadata(String authToken, NoteFilter filter, int offset, int maxNotes, NotesMetadataResultSpec resultSpec);
+  public CompletableFuture<NoteCollectionCounts> findNoteCounts(String authToken, NoteFilter filter, boolean withTrash);
+  public CompletableFuture<Note> getNote(String authToken, String guid, boolean withContent, boolean withResourcesData, boolean withResourcesRecognition, boolean withResourcesAlternateData);
+  public CompletableFuture<LazyMap> getNoteApplicationData(String authToken, String guid);
+  public CompletableFuture<String> getNoteApplicationDataEntry(String authToken, String guid, String key);
+  public CompletableFuture<Integer> setNoteApplicationDataEntry(String authToken, String guid, String key, String value);
+  public CompletableFuture<Integer> unsetNoteApplicationDataEntry(String authToken, String guid, String key);
+  public CompletableFuture<String> getNoteContent(String authToken, String guid);
+  public CompletableFuture<String> getNoteSearchText(String authToken, String guid, boolean noteOnly, boolean tokenizeForIndexing);
+  public CompletableFuture<String> getResourceSearchText(String authToken, String guid);
+  public CompletableFuture<List<String>> getNoteTagNames(String authToken, String guid);
+  public CompletableFuture<Note> createNote(String authToken, Note note);
+  public CompletableFuture<Note> updateNote(String authToken, Note note);
+  public CompletableFuture<Integer> deleteNote(String authToken, String guid);
+  public CompletableFuture<Integer> expungeNote(String authToken, String guid);
+  public CompletableFuture<Integer> expungeNotes(String authToken, List<String> noteGuids);
+  public CompletableFuture<Integer> expungeInactiveNotes(String authToken);
+  public CompletableFuture<Note> copyNote(String authToken, String noteGuid, String toNotebookGuid);
+  public CompletableFuture<List<NoteVersionId>> listNoteVersions(String authToken, String noteGuid);
+  public CompletableFuture<Note> getNoteVersion(String authToken, String noteGuid, int updateSequenceNum, boolean withResourcesData, boolean withResourcesRecognition, boolean withResourcesAlternateData);
+  public CompletableFuture<Resource> getResource(String authToken, String guid, boolean withData, boolean withRecognition, boolean withAttributes, boolean withAlternateData);
+  public CompletableFuture<LazyMap> getResourceApplicationData(String authToken, String guid);
+  public CompletableFuture<String> getResourceApplicationDataEntry(String authToken, String guid, String key);
+  public CompletableFuture<Integer> setResourceApplicationDataEntry(String authToken, String guid, String key, String value);
+  public CompletableFuture<Integer> unsetResourceApplicationDataEntry(String authToken, String guid, String key);
+  public CompletableFuture<Integer> updateResource(String authToken, Resource resource);
+  public CompletableFuture<byte[]> getResourceData(String authToken, String guid);
+  public CompletableFuture<Resource> getResourceByHash(String authToken, String noteGuid, byte[] contentHash, boolean withData, boolean withRecognition, boolean withAlternateData);
+  public CompletableFuture<byte[]> getResourceRecognition(String authToken, String guid);
+  public CompletableFuture<byte[]> getResourceAlternateData(String authToken, String guid);
+  public CompletableFuture<ResourceAttributes> getResourceAttributes(String authToken, String guid);
+  public CompletableFuture<Notebook> getPublicNotebook(int userId, String publicUri);
+  public CompletableFuture<SharedNotebook> createSharedNotebook(String authToken, SharedNotebook notebook);
+  public CompletableFuture<Integer> updateSharedNotebook(String authToken, SharedNotebook notebook);
+  public CompletableFuture<Integer> sendMessageToSharedNotebookMembers(String authToken, String notebookGuid, String messageText, List<String> recipients);
+  public CompletableFuture<List<SharedNotebook>> listSharedNotebooks(String authToken);
+  public CompletableFuture<Integer> expungeSharedNotebooks(String authToken, List<Long> sharedNotebookIds);
+  public CompletableFuture<LinkedNotebook> createLinkedNotebook(String authToken, LinkedNotebook notebook);
+  public CompletableFuture<Integer> updateLinkedNotebook(String authToken, LinkedNotebook notebook);
+  public CompletableFuture<List<LinkedNotebook>> listLinkedNotebooks(String authToken);
+  public CompletableFuture<Integer> expungeLinkedNotebook(String authToken, String guid);
+  public CompletableFuture<AuthenticationResult> authenticateToSharedNotebook(String shareKey, String authToken);
+  public CompletableFuture<SharedNotebook> getSharedNotebookByAuth(String authToken);
+  public CompletableFuture<Void> emailNote(String authToken, NoteEmailParameters params);
+  public CompletableFuture<String> shareNote(String authToken, String guid);
+  public CompletableFuture<Void> stopSharingNote(String authToken, String guid);
+  public CompletableFuture<AuthenticationResult> authenticateToSharedNote(String guid, String noteKey);
+  public CompletableFuture<RelatedResult> findRelated(String authToken, RelatedQuery query, RelatedResultSpec resultSpec);
+}
@@ -0,0 +1,348 @@
+package com.napthats.android.evernote;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.thrift.TException;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+
+
+/**
+ * InvocationHandler behind the NoteStore proxies.
+ * Every proxy method is resolved to its NoteStore target once per proxy interface,
+ * so that a call does no reflective lookup and throws no exception for dispatching.
+ */
+final class NoteStoreInvocationHandler implements InvocationHandler {
+  private static final Map<Class<?>, Map<Method, Dispatch>> TABLES =
+    new ConcurrentHashMap<Class<?>, Map<Method, Dispatch>>();
+
+  private final Class<?> proxy_class;
+  private final NoteStoreClientPool pool;
+  private final APIExecutor executor;
+  private final APIExecutor.ResultDelivery delivery;
+  private final int priority;
+  private final ResiliencePolicy policy;
+  private final NoteStoreMetrics metrics;
+  private final Map<Method, Dispatch> table;
+
+
+  /**
+   * How a proxy method calls its NoteStore method.
+   */
+  enum Kind {
+    /** Call in the caller thread and return the result. */
+    BLOCKING,
+    /** Call in the executor and give the result to the trailing APICallBack argument. */
+    CALLBACK,
+    /** Call in the executor and return a CompletableFuture of the result. */
+    FUTURE
+  }
+
+  /**
+   * A resolved proxy method.
+   * target is null when no NoteStore method matches the proxy method.
+   */
+  static final class Dispatch {
+    final Method target;
+    final Kind kind;
+    final int argc;
+
+    Dispatch(Method target, Kind kind, int argc) {
+      this.target = target;
+      this.kind = kind;
+      this.argc = argc;
+    }
+  }
+
+
+  /**
+   * @param proxy_class the proxy interface.
+   * @param pool the pool of NoteStore clients.
+   * @param executor the executor running callback and future version methods.
+   * @param delivery the delivery of results to callbacks.
+   * @param priority the priority of callback and future version methods in the executor.
+   */
+  NoteStoreInvocationHandler(Class<?> proxy_class, NoteStoreClientPool pool, APIExecutor executor, APIExecutor.ResultDelivery delivery, int priority) {
+    this(proxy_class, pool, executor, delivery, priority, null);
+  }
+
+  /**
+   * @param policy retry and circuit breaker policy of calls, or null to make every call once.
+   */
+  NoteStoreInvocationHandler(Class<?> proxy_class, NoteStoreClientPool pool, APIExecutor executor, APIExecutor.ResultDelivery delivery, int priority,
+                             ResiliencePolicy policy) {
+    this(proxy_class, pool, executor, delivery, priority, policy, null);
+  }
+
+  /**
+   * @param metrics metrics recording calls, or null to record nothing.
+   */
+  NoteStoreInvocationHandler(Class<?> proxy_class, NoteStoreClientPool pool, APIExecutor executor, APIExecutor.ResultDelivery delivery, int priority,
+                             ResiliencePolicy policy, NoteStoreMetrics metrics) {
+    this.proxy_class = proxy_class;
+    this.pool = pool;
+    this.executor = executor;
+    this.delivery = delivery;
+    this.priority = priority;
+    this.policy = policy;
+    this.metrics = metrics;
+    this.table = tableFor(proxy_class);
+  }
+
+  /**
+   * Get the dispatch table of a proxy interface.
+   * The table is built at the first call for each interface and shared after that.
+   *
+   * @param proxy_class a proxy interface.
+   * @return an immutable map from proxy methods to NoteStore methods.
+   */
+  static Map<Method, Dispatch> tableFor(Class<?> proxy_class) {
+    Map<Method, Dispatch> table = TABLES.get(proxy_class);
+    if (table == null) {
+      table = buildTable(proxy_class);
+      TABLES.put(proxy_class, table);
+    }
+    return table;
+  }
+
+  private static Map<Method, Dispatch> buildTable(Class<?> proxy_class) {
+    Map<String, Method> by_signature = new HashMap<String, Method>();
+    for (Method method : NoteStoreIface.class.getMethods()) {
+      by_signature.put(signature(method.getName(), method.getParameterTypes(), method.getParameterTypes().length), method);
+    }
+
+    Map<Method, Dispatch> table = new HashMap<Method, Dispatch>();
+    for (Method proxy_method : proxy_class.getMethods()) {
+      Class<?>[] types = proxy_method.getParameterTypes();
+      Method target = by_signature.get(signature(proxy_method.getName(), types, types.length));
+      Kind kind = proxy_method.getReturnType() == CompletableFuture.class ? Kind.FUTURE : Kind.BLOCKING;
+      int argc = types.length;
+      if (target == null
+          && types.length > 0
+          && types[types.length - 1] == APICallBack.class) {
+        target = by_signature.get(signature(proxy_method.getName(), types, types.length - 1));
+        kind = Kind.CALLBACK;
+        argc = types.length - 1;
+      }
+      table.put(proxy_method, new Dispatch(target, kind, argc));
+    }
+    return table;
+  }
+
+  private static String signature(String name, Class<?>[] types, int length) {
+    StringBuilder sb = new StringBuilder(name).append('(');
+    for (int i = 0; i < length; i++) {
+      sb.append(types[i].getName()).append(',');
+    }
+    return sb.append(')').toString();
+  }
+
+  /**
+   * Get the dispatch of a proxy method.
+   */
+  Dispatch dispatchFor(Method proxy_method) {
+    return table.get(proxy_method);
+  }
+
+
+  public Object invoke(Object proxy, Method proxy_method, Object[] args)
+  throws Throwable {
+    if (proxy_method.getDeclaringClass() == Object.class) {
+      return invokeObjectMethod(proxy, proxy_method, args);
+    }
+    final Dispatch dispatch = table.get(proxy_method);
+    if (dispatch == null || dispatch.target == null) {
+      throw new NoSuchMethodException(proxy_method.toString());
+    }
+    switch (dispatch.kind) {
+    case BLOCKING:
+      try {
+        return call(dispatch.target, args, System.nanoTime());
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+
+    case CALLBACK:
+      @SuppressWarnings("unchecked")
+      APICallBack<Object> callback = (APICallBack<Object>) args[args.length - 1];
+      Object[] callback_deleted_args = new Object[dispatch.argc];
+      System.arraycopy(args, 0, callback_deleted_args, 0, dispatch.argc);
+      executor.execute(new AsyncCall(dispatch.target, callback_deleted_args, callback, null), priority);
+      return null; //Never used.
+
+    default:
+      CompletableFuture<Object> future = new CompletableFuture<Object>();
+      executor.execute(new AsyncCall(dispatch.target, args, null, future), priority);
+      return future;
+    }
+  }
+
+  /**
+   * Answer hashCode(), equals() and toString() of a proxy by its identity, without a NoteStore call.
+   */
+  private Object invokeObjectMethod(Object proxy, Method proxy_method, Object[] args) {
+    String name = proxy_method.getName();
+    if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    if (name.equals("equals")) {
+      return proxy == args[0];
+    }
+    if (name.equals("toString")) {
+      return proxy_class.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy))
+        + "[priority=" + priority + "]";
+    }
+    throw new UnsupportedOperationException(proxy_method.toString());
+  }
+
+  /**
+   * An asynchronous call.
+   * It runs first in the executor to make the call.
+   * Then a future is completed there, or it runs again through the delivery to call the callback.
+   */
+  private final class AsyncCall implements Runnable {
+    private final Method target;
+    private final Object[] args;
+    private final APICallBack<Object> callback;
+    private final CompletableFuture<Object> future;
+    private final long queued_at = System.nanoTime();
+    private APIOutcome<Object> result = null;
+
+    AsyncCall(Method target, Object[] args, APICallBack<Object> callback, CompletableFuture<Object> future) {
+      this.target = target;
+      this.args = args;
+      this.callback = callback;
+      this.future = future;
+    }
+
+    public void run() {
+      if (result != null) {
+        callback.call(result);
+        return;
+      }
+      if (future != null && future.isCancelled()) {
+        //Cancelled while queued.
+        return;
+      }
+      try {
+        result = APIOutcome.success(call(target, args, queued_at));
+      }
+      catch (InvocationTargetException e) {
+        result = APIOutcome.failure(e.getCause());
+      }
+      catch (Throwable e) {
+        result = APIOutcome.failure(e);
+      }
+      //Callbacks and continuations may make calls of their own.
+      executor.releaseSlot();
+      if (future == null) {
+        delivery.deliver(this);
+      }
+      else if (result.isSuccess()) {
+        future.complete(result.getValue());
+      }
+      else {
+        future.completeExceptionally(result.getError());
+      }
+    }
+  }
+
+  /**
+   * Call a NoteStore method following the policy.
+   * Failures of the policy are thrown as InvocationTargetException, as errors of the method are.
+   * Retries wait in the calling thread.
+   *
+   * @param queued_at System.nanoTime() when the call was made.
+   */
+  private Object call(Method target, Object[] args, long queued_at)
+  throws TException, IllegalAccessException, InvocationTargetException {
+    if (policy == null) {
+      return callOnce(target, args, queued_at);
+    }
+    for (int retries = 0;; retries++) {
+      boolean trial;
+      try {
+        trial = policy.acquire();
+      }
+      catch (Exception e) {
+        throw new InvocationTargetException(e);
+      }
+      Throwable error;
+      try {
+        Object value = callOnce(target, args, queued_at);
+        policy.onSuccess();
+        return value;
+      }
+      catch (InvocationTargetException e) {
+        error = e.getCause();
+      }
+      catch (TException e) {
+        error = e;
+      }
+      catch (Throwable e) {
+        //Failed without reaching the service, such as in making a client.
+        policy.abort(trial);
+        throw e;
+      }
+      long delay = policy.onFailure(target.getName(), error, retries);
+      if (delay < 0) {
+        throw new InvocationTargetException(error);
+      }
+      try {
+        Thread.sleep(delay);
+        queued_at = System.nanoTime();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InvocationTargetException(error);
+      }
+    }
+  }
+
+  /**
+   * Call a NoteStore method with a client borrowed from the pool.
+   * The client is discarded when the call fails in the transport layer.
+   * The attempt is recorded in the metrics after the client is back.
+   */
+  private Object callOnce(Method target, Object[] args, long queued_at)
+  throws TException, IllegalAccessException, InvocationTargetException {
+    NoteStoreIface note_store = pool.borrow();
+    long started = 0;
+    if (metrics != null) {
+      started = System.nanoTime();
+      metrics.onStart(target.getName(), started - queued_at);
+    }
+    Throwable error = null;
+    try {
+      return target.invoke(note_store, args);
+    }
+    catch (InvocationTargetException e) {
+      error = e.getCause();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      error = e;
+      throw e;
+    }
+    finally {
+      if (error instanceof TException) {
+        pool.invalidate(note_store);
+      }
+      else {
+        pool.release(note_store);
+      }
+      if (metrics != null) {
+        metrics.onFinish(target.getName(), started - queued_at, System.nanoTime() - started, error);
+      }
+    }
+  }
+}
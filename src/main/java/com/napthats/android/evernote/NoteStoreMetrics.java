@@ -0,0 +1,180 @@
+package com.napthats.android.evernote;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Per-method metrics of NoteStore calls made through NoteStore proxies.
+ *
+ * Each attempt of a call is recorded, retries of a ResiliencePolicy included, with two durations:
+ * the queue wait, from the call or the retry until a client is borrowed from the pool,
+ * which includes the wait in the APIExecutor for callback and future version methods,
+ * and the latency, from then until the NoteStore client returns.
+ * Calls rejected by an open circuit reach no client and are not recorded.
+ *
+ * Recording takes no lock. Listeners are called in the thread which made the attempt.
+ */
+public final class NoteStoreMetrics {
+  private final ConcurrentHashMap<String, MethodMetrics> methods = new ConcurrentHashMap<String, MethodMetrics>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+
+  /**
+   * Listener of attempts of NoteStore calls.
+   * It is called in the thread of the call, so it has to be quick and thread-safe.
+   */
+  public interface Listener {
+    /**
+     * @param method the name of the NoteStore method.
+     * @param queue_nanos the queue wait in nanoseconds.
+     * @param latency_nanos the latency in nanoseconds.
+     * @param error the error of the call, or null when it succeeded.
+     */
+    public void onCall(String method, long queue_nanos, long latency_nanos, Throwable error);
+  }
+
+  /**
+   * Metrics of a NoteStore method at some point.
+   */
+  public static final class MethodSnapshot {
+    private final long calls;
+    private final long errors;
+    private final int in_flight;
+    private final LatencyHistogram.Snapshot queue_wait;
+    private final LatencyHistogram.Snapshot latency;
+
+    MethodSnapshot(long calls, long errors, int in_flight, LatencyHistogram.Snapshot queue_wait, LatencyHistogram.Snapshot latency) {
+      this.calls = calls;
+      this.errors = errors;
+      this.in_flight = in_flight;
+      this.queue_wait = queue_wait;
+      this.latency = latency;
+    }
+
+    /**
+     * @return the number of finished attempts.
+     */
+    public long getCallCount() {
+      return calls;
+    }
+
+    /**
+     * @return the number of finished attempts which threw an exception.
+     */
+    public long getErrorCount() {
+      return errors;
+    }
+
+    /**
+     * @return the number of attempts holding a client at that point.
+     */
+    public int getInFlightCount() {
+      return in_flight;
+    }
+
+    public LatencyHistogram.Snapshot getQueueWait() {
+      return queue_wait;
+    }
+
+    public LatencyHistogram.Snapshot getLatency() {
+      return latency;
+    }
+
+    @Override
+    public String toString() {
+      return "calls=" + calls + " errors=" + errors + " in_flight=" + in_flight
+        + " queue_wait=[" + queue_wait + "] latency=[" + latency + "]";
+    }
+  }
+
+  private static final class MethodMetrics {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicInteger in_flight = new AtomicInteger();
+    final LatencyHistogram queue_wait = new LatencyHistogram();
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Get the metrics of every method called so far.
+   *
+   * @return an immutable map from method names to their metrics, in order of names.
+   */
+  public SortedMap<String, MethodSnapshot> snapshot() {
+    SortedMap<String, MethodSnapshot> snapshot = new TreeMap<String, MethodSnapshot>();
+    for (Map.Entry<String, MethodMetrics> entry : methods.entrySet()) {
+      snapshot.put(entry.getKey(), snapshotOf(entry.getValue()));
+    }
+    return Collections.unmodifiableSortedMap(snapshot);
+  }
+
+  /**
+   * Get the metrics of a method.
+   *
+   * @return the metrics, or null when the method has not been called.
+   */
+  public MethodSnapshot snapshot(String method) {
+    MethodMetrics metrics = methods.get(method);
+    return metrics == null ? null : snapshotOf(metrics);
+  }
+
+
+  /**
+   * Record that an attempt borrowed a client after waiting queue_nanos.
+   */
+  void onStart(String method, long queue_nanos) {
+    MethodMetrics metrics = metricsOf(method);
+    metrics.in_flight.incrementAndGet();
+    metrics.queue_wait.record(queue_nanos);
+  }
+
+  /**
+   * Record the end of an attempt started with onStart.
+   */
+  void onFinish(String method, long queue_nanos, long latency_nanos, Throwable error) {
+    MethodMetrics metrics = metricsOf(method);
+    metrics.in_flight.decrementAndGet();
+    metrics.latency.record(latency_nanos);
+    metrics.calls.incrementAndGet();
+    if (error != null) {
+      metrics.errors.incrementAndGet();
+    }
+    for (Listener listener : listeners) {
+      listener.onCall(method, queue_nanos, latency_nanos, error);
+    }
+  }
+
+  private static MethodSnapshot snapshotOf(MethodMetrics metrics) {
+    return new MethodSnapshot(metrics.calls.get(), metrics.errors.get(), metrics.in_flight.get(),
+      metrics.queue_wait.snapshot(), metrics.latency.snapshot());
+  }
+
+  private MethodMetrics metricsOf(String method) {
+    MethodMetrics metrics = methods.get(method);
+    if (metrics == null) {
+      metrics = new MethodMetrics();
+      MethodMetrics previous = methods.putIfAbsent(method, metrics);
+      if (previous != null) {
+        metrics = previous;
+      }
+    }
+    return metrics;
+  }
+}
@@ -0,0 +1,195 @@
+package com.napthats.android.evernote;
+
+import java.io.Closeable;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.evernote.edam.notestore.NoteFilter;
+import com.evernote.edam.notestore.NoteMetadata;
+import com.evernote.edam.notestore.NotesMetadataList;
+import com.evernote.edam.notestore.NotesMetadataResultSpec;
+
+
+/**
+ * Scanner of the notes matching a filter by findNotesMetadata.
+ * The first page tells the total number of notes, and the following pages are fetched concurrently,
+ * up to the parallelism ahead of the consumer. Notes are given in the order of the server.
+ *
+ * Each iterator() or stream() makes a new scan. A scan sees notes shifting between pages
+ * if notes are added or removed during the scan, as a serial listing does.
+ * Errors of API calls are thrown from the iterator as UndeclaredThrowableException.
+ */
+public final class NotesMetadataScanner implements Iterable<NoteMetadata> {
+  /** The max number of notes in a page which the server allows. */
+  public static final int MAX_PAGE_SIZE = 250;
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  private final NoteStoreFutureProxy note_store;
+  private final String auth_token;
+  private final NoteFilter filter;
+  private final NotesMetadataResultSpec result_spec;
+  private int page_size = DEFAULT_PAGE_SIZE;
+  private int parallelism = DEFAULT_PARALLELISM;
+
+
+  /**
+   * @param note_store a NoteStore whose calls run in an executor.
+   * @param auth_token an auth token.
+   * @param filter the filter of notes.
+   * @param result_spec the fields of notes to get. Ask only for the fields you need.
+   */
+  public NotesMetadataScanner(NoteStoreFutureProxy note_store, String auth_token, NoteFilter filter, NotesMetadataResultSpec result_spec) {
+    this.note_store = note_store;
+    this.auth_token = auth_token;
+    this.filter = filter;
+    this.result_spec = result_spec;
+  }
+
+  /**
+   * Set the number of notes in a page, up to MAX_PAGE_SIZE.
+   */
+  public NotesMetadataScanner setPageSize(int page_size) {
+    if (page_size <= 0 || page_size > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException("page_size must be in 1.." + MAX_PAGE_SIZE + ": " + page_size);
+    }
+    this.page_size = page_size;
+    return this;
+  }
+
+  /**
+   * Set the max number of pages fetched at the same time.
+   * Pages are fetched at most this number ahead of the consumer.
+   */
+  public NotesMetadataScanner setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  public Scan iterator() {
+    return new Scan();
+  }
+
+  /**
+   * Get the notes as a sequential stream. Closing the stream cancels the scan.
+   */
+  public Stream<NoteMetadata> stream() {
+    final Scan scan = iterator();
+    return StreamSupport.stream(
+      Spliterators.spliteratorUnknownSize(scan, Spliterator.ORDERED | Spliterator.NONNULL), false)
+      .onClose(new Runnable() {
+        public void run() {
+          scan.close();
+        }
+      });
+  }
+
+
+  /**
+   * A scan. Close it to cancel the pages fetched ahead when it is not read to the end.
+   */
+  public final class Scan implements Iterator<NoteMetadata>, Closeable {
+    private final ArrayDeque<CompletableFuture<NotesMetadataList>> pages =
+      new ArrayDeque<CompletableFuture<NotesMetadataList>>();
+    private Iterator<NoteMetadata> current = Collections.<NoteMetadata>emptyList().iterator();
+    //Offset of the next page to request, and the end known from the first page.
+    private int next_offset = 0;
+    private int total = -1;
+    private boolean closed = false;
+
+    Scan() {
+      request();
+    }
+
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (pages.isEmpty()) {
+          return false;
+        }
+        NotesMetadataList page = await(pages.poll());
+        if (total < 0) {
+          total = page.getTotalNotes();
+          fill();
+        }
+        List<NoteMetadata> notes = page.isSetNotes() ? page.getNotes() : Collections.<NoteMetadata>emptyList();
+        if (notes.isEmpty()) {
+          //Notes were removed during the scan. Later pages are past the end.
+          close();
+          return false;
+        }
+        current = notes.iterator();
+        fill();
+      }
+      return true;
+    }
+
+    public NoteMetadata next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * End the scan and cancel the pages fetched ahead.
+     */
+    public void close() {
+      closed = true;
+      current = Collections.<NoteMetadata>emptyList().iterator();
+      for (CompletableFuture<NotesMetadataList> page : pages) {
+        page.cancel(false);
+      }
+      pages.clear();
+    }
+
+    private void fill() {
+      while (!closed && total >= 0 && next_offset < total && pages.size() < parallelism) {
+        request();
+      }
+    }
+
+    private void request() {
+      pages.add(note_store.findNotesMetadata(auth_token, filter, next_offset, page_size, result_spec));
+      next_offset += page_size;
+    }
+
+    private NotesMetadataList await(CompletableFuture<NotesMetadataList> page) {
+      try {
+        return page.get();
+      }
+      catch (InterruptedException e) {
+        close();
+        Thread.currentThread().interrupt();
+        throw new UndeclaredThrowableException(e);
+      }
+      catch (ExecutionException e) {
+        close();
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new UndeclaredThrowableException(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.napthats.android.evernote;
+
+import com.evernote.edam.error.EDAMSystemException;
+
+
+/**
+ * EDAMSystemException telling that calls are refused for a while because of a rate limit.
+ * It is thrown by ResiliencePolicy while the service is throttling, without calling the service.
+ * The SDK in use has no rateLimitDuration, so this class carries it. See RateLimits.
+ */
+public class RateLimitException extends EDAMSystemException {
+  private static final long serialVersionUID = 1L;
+
+  private final int rate_limit_duration;
+
+  /**
+   * @param rate_limit_duration the seconds to wait before the next call.
+   */
+  public RateLimitException(int rate_limit_duration) {
+    this.rate_limit_duration = rate_limit_duration;
+    setMessage("Rate limit reached. Retry after " + rate_limit_duration + " seconds.");
+  }
+
+  /**
+   * Get the seconds to wait before the next call, as EDAMSystemException of newer SDKs does.
+   */
+  public int getRateLimitDuration() {
+    return rate_limit_duration;
+  }
+}
@@ -0,0 +1,59 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.Method;
+
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.thrift.protocol.TProtocolException;
+
+
+/**
+ * Detection of rate limit errors.
+ *
+ * The SDK in use predates RATE_LIMIT_REACHED and rateLimitDuration of EDAMSystemException.
+ * It reads an error code it does not know as null, and then fails validation of the required error code,
+ * so such a TProtocolException is taken as a rate limit, and so is an EDAMSystemException without an error code.
+ * The duration is read from getRateLimitDuration() when the exception class has it, as newer SDKs do.
+ */
+final class RateLimits {
+  /** Seconds to wait when the duration is unknown. */
+  static final int DEFAULT_DURATION_SECONDS = 60;
+  //Message of the validation failing on an error code unknown to the SDK.
+  private static final String UNREADABLE_ERROR_CODE = "Required field 'errorCode' is unset! Struct:EDAMSystemException";
+
+  private RateLimits() {}
+
+  /**
+   * Get the seconds to wait before the next call.
+   *
+   * @param error an error of an API call.
+   * @return the seconds, or -1 if error is not a rate limit error.
+   */
+  static int durationSeconds(Throwable error) {
+    if (error instanceof TProtocolException
+        && error.getMessage() != null
+        && error.getMessage().startsWith(UNREADABLE_ERROR_CODE)) {
+      return DEFAULT_DURATION_SECONDS;
+    }
+    if (!(error instanceof EDAMSystemException)) {
+      return -1;
+    }
+    EDAMSystemException e = (EDAMSystemException) error;
+    if (e.getErrorCode() != null && !e.getErrorCode().name().equals("RATE_LIMIT_REACHED")) {
+      return -1;
+    }
+    try {
+      Method method = e.getClass().getMethod("getRateLimitDuration");
+      Object duration = method.invoke(e);
+      if (duration instanceof Integer && (Integer) duration >= 0) {
+        return (Integer) duration;
+      }
+    }
+    catch (NoSuchMethodException ignored) {
+      //Old SDK.
+    }
+    catch (Exception ignored) {
+      //Fall back to the default.
+    }
+    return DEFAULT_DURATION_SECONDS;
+  }
+}
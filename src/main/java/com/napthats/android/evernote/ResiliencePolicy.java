@@ -0,0 +1,233 @@
+package com.napthats.android.evernote;
+
+import java.util.Random;
+
+import com.evernote.thrift.TException;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * Retry and circuit breaker policy of NoteStore calls, shared by the proxies of an activity.
+ *
+ * Calls failing in the transport layer are retried after an exponential backoff with jitter.
+ * Only read calls (get*, list*, find* etc.) are retried by default, since a write may have reached the server.
+ * Calls hitting a rate limit are retried after the duration the server asks if it is short enough.
+ *
+ * The circuit opens when the service throttles or after consecutive transport failures.
+ * While it is open, calls fail fast without reaching the service: with RateLimitException while throttled,
+ * and with TTransportException otherwise. After a transport outage, one trial call is let through
+ * when the open time has passed, and the circuit closes when it succeeds.
+ */
+public final class ResiliencePolicy {
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final long DEFAULT_BASE_BACKOFF_MILLIS = 200;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10 * 1000;
+  public static final int DEFAULT_MAX_RATE_LIMIT_WAIT_SECONDS = 5;
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+  //Calls which change nothing on the server.
+  private static final String[] READ_PREFIXES = {"get", "list", "find", "authenticate"};
+
+  private enum State {CLOSED, OPEN, HALF_OPEN}
+
+  private volatile int max_retries = DEFAULT_MAX_RETRIES;
+  private volatile long base_backoff_millis = DEFAULT_BASE_BACKOFF_MILLIS;
+  private volatile long max_backoff_millis = DEFAULT_MAX_BACKOFF_MILLIS;
+  private volatile int max_rate_limit_wait_seconds = DEFAULT_MAX_RATE_LIMIT_WAIT_SECONDS;
+  private volatile int failure_threshold = DEFAULT_FAILURE_THRESHOLD;
+  private volatile long open_millis = DEFAULT_OPEN_MILLIS;
+  private volatile boolean retry_writes = false;
+  private final Random random = new Random();
+  private volatile Clock clock = Clock.SYSTEM;
+
+  //Guarded by this.
+  private State state = State.CLOSED;
+  private int failures = 0;
+  private long open_until = 0;
+  private boolean throttled = false;
+  private boolean trial_running = false;
+  private long rejected = 0;
+
+
+  /**
+   * Set how many times a call is retried.
+   */
+  public void setMaxRetries(int max_retries) {
+    if (max_retries < 0) {
+      throw new IllegalArgumentException("max_retries must not be negative: " + max_retries);
+    }
+    this.max_retries = max_retries;
+  }
+
+  /**
+   * Set the backoff of retries after transport failures.
+   * The n-th retry waits a random time between half and all of min(base * 2^n, max).
+   */
+  public void setBackoff(long base_backoff_millis, long max_backoff_millis) {
+    if (base_backoff_millis < 0 || max_backoff_millis < base_backoff_millis) {
+      throw new IllegalArgumentException("invalid backoff: " + base_backoff_millis + ", " + max_backoff_millis);
+    }
+    this.base_backoff_millis = base_backoff_millis;
+    this.max_backoff_millis = max_backoff_millis;
+  }
+
+  /**
+   * Set the longest rate limit a call waits for in its thread before retrying.
+   * Calls hitting longer limits fail with the error of the server.
+   */
+  public void setMaxRateLimitWaitSeconds(int max_rate_limit_wait_seconds) {
+    this.max_rate_limit_wait_seconds = max_rate_limit_wait_seconds;
+  }
+
+  /**
+   * Set the circuit breaker.
+   *
+   * @param failure_threshold the number of consecutive transport failures opening the circuit.
+   * @param open_millis how long the circuit stays open after them.
+   */
+  public void setCircuitBreaker(int failure_threshold, long open_millis) {
+    if (failure_threshold <= 0) {
+      throw new IllegalArgumentException("failure_threshold must be positive: " + failure_threshold);
+    }
+    this.failure_threshold = failure_threshold;
+    this.open_millis = open_millis;
+  }
+
+  /**
+   * Retry write calls after transport failures too.
+   * Writes may then be applied twice when the failure happens after the server has received them.
+   */
+  public void setRetryWrites(boolean retry_writes) {
+    this.retry_writes = retry_writes;
+  }
+
+  /**
+   * Replace the clock of the open time.
+   */
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public synchronized boolean isOpen() {
+    return state != State.CLOSED;
+  }
+
+  /**
+   * Get the number of calls failed fast by the open circuit.
+   */
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+
+
+  /**
+   * Let a call through, or fail it fast while the circuit is open.
+   * A call let through is recorded by onSuccess() or onFailure(), or by abort() when it fails before reaching the service.
+   *
+   * @return true if the call is the trial of the half-open circuit.
+   */
+  synchronized boolean acquire() throws TTransportException, RateLimitException {
+    long now = clock.currentTimeMillis();
+    if (state == State.OPEN && open_until - now <= 0) {
+      //The server told when throttling ends, so no trial is needed.
+      state = throttled ? State.CLOSED : State.HALF_OPEN;
+      trial_running = false;
+    }
+    if (state == State.CLOSED) {
+      return false;
+    }
+    if (state == State.HALF_OPEN && !trial_running) {
+      trial_running = true;
+      return true;
+    }
+    rejected++;
+    if (throttled) {
+      throw new RateLimitException((int) ((open_until - now + 999) / 1000));
+    }
+    throw new TTransportException(TTransportException.NOT_OPEN, "The circuit of the NoteStore is open.");
+  }
+
+  /**
+   * Record a call which reached the service, successfully or with an error of the service.
+   */
+  synchronized void onSuccess() {
+    state = State.CLOSED;
+    failures = 0;
+    trial_running = false;
+  }
+
+  /**
+   * Record a call which failed before reaching the service, such as in making a client.
+   * The trial is left to a later call if this was the trial.
+   */
+  synchronized void abort(boolean trial) {
+    if (trial && state == State.HALF_OPEN) {
+      trial_running = false;
+    }
+  }
+
+  /**
+   * Record a failed call and decide whether to retry it.
+   *
+   * @param method the name of the NoteStore method.
+   * @param error the error of the call.
+   * @param retries the number of retries already made.
+   * @return the milliseconds to wait before retrying, or -1 to give up.
+   */
+  long onFailure(String method, Throwable error, int retries) {
+    int duration = RateLimits.durationSeconds(error);
+    if (duration >= 0) {
+      synchronized (this) {
+        open(duration * 1000L, true);
+      }
+      return retries < max_retries && duration <= max_rate_limit_wait_seconds ? duration * 1000L : -1;
+    }
+    if (!(error instanceof TException)) {
+      onSuccess();
+      return -1;
+    }
+    synchronized (this) {
+      failures++;
+      if (state == State.HALF_OPEN || failures >= failure_threshold) {
+        open(open_millis, false);
+        return -1;
+      }
+    }
+    if (!(error instanceof TTransportException)
+        || retries >= max_retries
+        || !(retry_writes || isRead(method))) {
+      return -1;
+    }
+    return backoffMillis(retries);
+  }
+
+  long backoffMillis(int retries) {
+    long cap = Math.min(max_backoff_millis, base_backoff_millis << Math.min(retries, 30));
+    synchronized (random) {
+      return cap / 2 + (long) (random.nextDouble() * (cap - cap / 2));
+    }
+  }
+
+
+  private void open(long millis, boolean throttled) {
+    long until = clock.currentTimeMillis() + millis;
+    if (state == State.OPEN && this.throttled && open_until - until > 0) {
+      //Keep the longer throttling.
+      return;
+    }
+    state = State.OPEN;
+    open_until = until;
+    this.throttled = throttled;
+    trial_running = false;
+  }
+
+  private static boolean isRead(String name) {
+    for (String prefix : READ_PREFIXES) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
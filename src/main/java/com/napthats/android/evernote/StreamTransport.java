@@ -0,0 +1,70 @@
+package com.napthats.android.evernote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.evernote.thrift.transport.TTransport;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * Thrift transport over plain java.io streams.
+ * Either side may be null when the transport is used only for reading or writing.
+ */
+final class StreamTransport extends TTransport {
+  private final InputStream in;
+  private final OutputStream out;
+
+  StreamTransport(InputStream in, OutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public void open() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public int read(byte[] buf, int off, int len) throws TTransportException {
+    try {
+      int n = in.read(buf, off, len);
+      if (n < 0) {
+        throw new TTransportException(TTransportException.END_OF_FILE);
+      }
+      return n;
+    }
+    catch (IOException e) {
+      throw new TTransportException(e);
+    }
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) throws TTransportException {
+    try {
+      out.write(buf, off, len);
+    }
+    catch (IOException e) {
+      throw new TTransportException(e);
+    }
+  }
+
+  @Override
+  public void flush() throws TTransportException {
+    try {
+      out.flush();
+    }
+    catch (IOException e) {
+      throw new TTransportException(e);
+    }
+  }
+}
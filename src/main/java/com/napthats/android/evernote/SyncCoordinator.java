@@ -0,0 +1,342 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.LinkedNotebook;
+import com.evernote.thrift.TException;
+import com.evernote.thrift.transport.TTransportException;
+
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+/**
+ * Sync of an account and its linked notebooks in parallel.
+ *
+ * Each linked notebook has its own SyncStore in a directory named by its GUID, whose update count is
+ * the checkpoint the next sync resumes from. Linked notebooks are known from the store of the account:
+ * the ones in it when sync() starts are synced along with the account, and the ones which the account
+ * sync brings are synced after it. Stores of linked notebooks no longer in the account are deleted.
+ *
+ * A shared notebook is authenticated by its share key at every sync; a public one is read with the
+ * auth token of the account. Calls to the NoteStore of a linked notebook take a permit of its host,
+ * which bounds the calls in flight to a host. Calls of the account are not counted.
+ *
+ * One sync runs at a time for a coordinator.
+ */
+public final class SyncCoordinator {
+  public static final String PERSONAL = "personal";
+  public static final int DEFAULT_MAX_CALLS_PER_HOST = 2;
+  public static final int DEFAULT_MAX_THREADS = 8;
+
+  private final SyncEngine personal;
+  private final String auth_token;
+  private final File linked_dir;
+  private final LinkedNoteStores linked_note_stores;
+  private final Object sync_lock = new Object();
+  private volatile int max_calls_per_host = DEFAULT_MAX_CALLS_PER_HOST;
+  private volatile int max_threads = DEFAULT_MAX_THREADS;
+  //Guarded by this.
+  private final Map<String, SyncStore> stores = new HashMap<String, SyncStore>();
+  private final Map<String, Semaphore> hosts = new HashMap<String, Semaphore>();
+
+
+  /**
+   * Opener of the NoteStores of linked notebooks.
+   */
+  public interface LinkedNoteStores {
+    /**
+     * Get a NoteStore of the shard of a linked notebook.
+     * It is used by one thread at a time for the sync of the notebook.
+     */
+    public NoteStoreIface open(LinkedNotebook notebook) throws TTransportException;
+  }
+
+  /**
+   * Opener of Thrift clients of the noteStoreUrl of linked notebooks.
+   */
+  public static final LinkedNoteStores HTTP_NOTE_STORES = new LinkedNoteStores() {
+    public NoteStoreIface open(LinkedNotebook notebook) throws TTransportException {
+      return NoteStoreClientPool.httpFactory(notebook.getNoteStoreUrl()).create();
+    }
+  };
+
+
+  /**
+   * @param personal the sync engine of the account.
+   * @param auth_token the auth token of the account.
+   * @param linked_dir the directory of the stores of linked notebooks. It is created if it does not exist.
+   * @param linked_note_stores opener of the NoteStores of linked notebooks, such as HTTP_NOTE_STORES.
+   */
+  public SyncCoordinator(SyncEngine personal, String auth_token, File linked_dir, LinkedNoteStores linked_note_stores) {
+    this.personal = personal;
+    this.auth_token = auth_token;
+    this.linked_dir = linked_dir;
+    this.linked_note_stores = linked_note_stores;
+  }
+
+
+  /**
+   * Set the max number of calls in flight to a host.
+   * It waits for a running sync to end, so that the calls of a sync share the permits of a host.
+   */
+  public void setMaxCallsPerHost(int max_calls_per_host) {
+    if (max_calls_per_host <= 0) {
+      throw new IllegalArgumentException("max_calls_per_host must be positive: " + max_calls_per_host);
+    }
+    synchronized (sync_lock) {
+      synchronized (this) {
+        this.max_calls_per_host = max_calls_per_host;
+        hosts.clear();
+      }
+    }
+  }
+
+  /**
+   * Set the max number of notebooks synced at a time, the account included.
+   */
+  public void setMaxThreads(int max_threads) {
+    if (max_threads <= 0) {
+      throw new IllegalArgumentException("max_threads must be positive: " + max_threads);
+    }
+    this.max_threads = max_threads;
+  }
+
+  public SyncEngine getPersonalEngine() {
+    return personal;
+  }
+
+  /**
+   * Get the store of a linked notebook.
+   *
+   * @return the store, or null when the notebook has not been synced by this coordinator.
+   */
+  public synchronized SyncStore getLinkedStore(String linked_notebook_guid) {
+    return stores.get(linked_notebook_guid);
+  }
+
+  /**
+   * Sync the account and its linked notebooks.
+   * A failure of a notebook does not stop the others. When the thread is interrupted, syncs stop between chunks.
+   *
+   * @return the number of chunks applied or the error, by linked notebook GUID and by PERSONAL for the account.
+   * Results are in order of start.
+   */
+  public Map<String, APIResult<Integer>> sync() throws InterruptedException, IOException {
+    synchronized (sync_lock) {
+      ExecutorService threads = Executors.newFixedThreadPool(max_threads);
+      try {
+        return sync(threads);
+      }
+      finally {
+        threads.shutdownNow();
+        awaitTermination(threads);
+      }
+    }
+  }
+
+  /**
+   * Close the stores of linked notebooks. The store of the account is left open.
+   */
+  public synchronized void close() throws IOException {
+    for (SyncStore store : stores.values()) {
+      store.close();
+    }
+    stores.clear();
+  }
+
+
+  private Map<String, APIResult<Integer>> sync(ExecutorService threads) throws InterruptedException, IOException {
+    Map<String, Future<Integer>> futures = new LinkedHashMap<String, Future<Integer>>();
+    futures.put(PERSONAL, threads.submit(new Callable<Integer>() {
+      public Integer call() throws Exception {
+        return personal.sync();
+      }
+    }));
+    for (LinkedNotebook notebook : personal.getStore().getLinkedNotebooks()) {
+      futures.put(notebook.getGuid(), threads.submit(linkedSync(notebook)));
+    }
+    Map<String, APIResult<Integer>> results = new LinkedHashMap<String, APIResult<Integer>>();
+    APIOutcome<Integer> personal_outcome = outcomeOf(futures.get(PERSONAL));
+    results.put(PERSONAL, personal_outcome);
+    //The linked notebooks now, or null when they are unknown.
+    Set<String> current = null;
+    if (personal_outcome.isSuccess()) {
+      current = new HashSet<String>();
+      for (LinkedNotebook notebook : personal.getStore().getLinkedNotebooks()) {
+        current.add(notebook.getGuid());
+        if (!futures.containsKey(notebook.getGuid())) {
+          futures.put(notebook.getGuid(), threads.submit(linkedSync(notebook)));
+        }
+      }
+    }
+    for (String guid : futures.keySet()) {
+      if (guid.equals(PERSONAL)) {
+        continue;
+      }
+      APIOutcome<Integer> outcome = outcomeOf(futures.get(guid));
+      //A notebook unlinked by the sync of the account is left out.
+      if (current == null || current.contains(guid)) {
+        results.put(guid, outcome);
+      }
+    }
+    if (current != null) {
+      deleteUnlinked(current);
+    }
+    return results;
+  }
+
+  /**
+   * Wait for the syncs stopped by an interrupt, so that none of them writes a store after sync() returns.
+   */
+  private static void awaitTermination(ExecutorService threads) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        threads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        break;
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static APIOutcome<Integer> outcomeOf(Future<Integer> future) throws InterruptedException {
+    try {
+      return APIOutcome.success(future.get());
+    }
+    catch (ExecutionException e) {
+      return APIOutcome.failure(e.getCause());
+    }
+  }
+
+  private Callable<Integer> linkedSync(final LinkedNotebook notebook) {
+    return new Callable<Integer>() {
+      public Integer call() throws Exception {
+        SyncStore store = storeOf(notebook.getGuid());
+        Semaphore host = hostOf(notebook);
+        NoteStoreIface note_store = linked_note_stores.open(notebook);
+        String token = auth_token;
+        if (notebook.isSetShareKey()) {
+          host.acquireUninterruptibly();
+          try {
+            token = note_store.authenticateToSharedNotebook(notebook.getShareKey(), auth_token).getAuthenticationToken();
+          }
+          finally {
+            host.release();
+          }
+        }
+        return new SyncEngine(linkedSource(note_store, token, notebook, host), store).sync();
+      }
+    };
+  }
+
+  /**
+   * A source of a linked notebook whose calls take a permit of the host.
+   */
+  private static SyncEngine.ChunkSource linkedSource(final NoteStoreIface note_store, final String token,
+                                                     final LinkedNotebook notebook, final Semaphore host) {
+    return new SyncEngine.ChunkSource() {
+      public SyncState getSyncState()
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        host.acquireUninterruptibly();
+        try {
+          return note_store.getLinkedNotebookSyncState(token, notebook);
+        }
+        finally {
+          host.release();
+        }
+      }
+      public SyncChunk getSyncChunk(int afterUSN, int maxEntries, boolean fullSyncOnly)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        host.acquireUninterruptibly();
+        try {
+          return note_store.getLinkedNotebookSyncChunk(token, notebook, afterUSN, maxEntries, fullSyncOnly);
+        }
+        finally {
+          host.release();
+        }
+      }
+    };
+  }
+
+  private synchronized SyncStore storeOf(String guid) throws IOException {
+    SyncStore store = stores.get(guid);
+    if (store == null) {
+      store = new SyncStore(new File(linked_dir, guid));
+      stores.put(guid, store);
+    }
+    return store;
+  }
+
+  private synchronized Semaphore hostOf(LinkedNotebook notebook) {
+    String host = "";
+    try {
+      if (notebook.isSetNoteStoreUrl()) {
+        host = new URL(notebook.getNoteStoreUrl()).getHost();
+      }
+    }
+    catch (MalformedURLException e) {
+      //Opening the NoteStore fails in the sync of the notebook.
+    }
+    Semaphore permits = hosts.get(host);
+    if (permits == null) {
+      permits = new Semaphore(max_calls_per_host);
+      hosts.put(host, permits);
+    }
+    return permits;
+  }
+
+  /**
+   * Close and delete the stores of linked notebooks not in a set.
+   */
+  private synchronized void deleteUnlinked(Set<String> current) throws IOException {
+    for (Iterator<Map.Entry<String, SyncStore>> entries = stores.entrySet().iterator(); entries.hasNext();) {
+      Map.Entry<String, SyncStore> entry = entries.next();
+      if (!current.contains(entry.getKey())) {
+        entry.getValue().close();
+        entries.remove();
+      }
+    }
+    File[] dirs = linked_dir.listFiles();
+    if (dirs == null) {
+      return;
+    }
+    for (File dir : dirs) {
+      if (dir.isDirectory() && !current.contains(dir.getName())) {
+        File[] files = dir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+          if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+          }
+        }
+        if (!dir.delete()) {
+          throw new IOException("Cannot delete " + dir);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.napthats.android.evernote;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Incremental sync of an account into a SyncStore.
+ * sync() asks the sync state, and fetches and applies chunks after the USN of the store until the store
+ * catches up. Every chunk is persisted when applied, so an interrupted sync resumes from there.
+ * A full sync is made on the first sync and when the server requires it by fullSyncBefore.
+ *
+ * One sync runs at a time for an engine.
+ */
+public final class SyncEngine {
+  public static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private final ChunkSource source;
+  private final SyncStore store;
+  private volatile int max_entries = DEFAULT_MAX_ENTRIES;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+
+  /**
+   * Where chunks come from.
+   * The account of the auth token is the usual source. Linked notebooks are another.
+   */
+  public interface ChunkSource {
+    public SyncState getSyncState()
+    throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException;
+    public SyncChunk getSyncChunk(int afterUSN, int maxEntries, boolean fullSyncOnly)
+    throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException;
+  }
+
+  /**
+   * Listener of sync progress. Called in the thread running sync().
+   */
+  public interface Listener {
+    /**
+     * Called after a chunk is applied to the store.
+     *
+     * @param chunk the applied chunk.
+     * @param target the update count the sync is heading for.
+     */
+    public void onChunk(SyncChunk chunk, int target);
+    /**
+     * Called when the store has caught up with the sync state.
+     */
+    public void onSynced(SyncState state);
+  }
+
+
+  /**
+   * A source of the account of an auth token.
+   */
+  public static ChunkSource accountSource(final NoteStoreIface note_store, final String auth_token) {
+    return new ChunkSource() {
+      public SyncState getSyncState()
+      throws EDAMUserException, EDAMSystemException, TException {
+        return note_store.getSyncState(auth_token);
+      }
+      public SyncChunk getSyncChunk(int afterUSN, int maxEntries, boolean fullSyncOnly)
+      throws EDAMUserException, EDAMSystemException, TException {
+        return note_store.getSyncChunk(auth_token, afterUSN, maxEntries, fullSyncOnly);
+      }
+    };
+  }
+
+  public SyncEngine(ChunkSource source, SyncStore store) {
+    this.source = source;
+    this.store = store;
+  }
+
+  public SyncEngine(NoteStoreIface note_store, String auth_token, SyncStore store) {
+    this(accountSource(note_store, auth_token), store);
+  }
+
+
+  /**
+   * Set the max number of entries in a chunk.
+   * Larger chunks make less round trips, smaller ones lose less on interruption.
+   */
+  public void setMaxEntries(int max_entries) {
+    if (max_entries <= 0) {
+      throw new IllegalArgumentException("max_entries must be positive: " + max_entries);
+    }
+    this.max_entries = max_entries;
+  }
+
+  public int getMaxEntries() {
+    return max_entries;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public SyncStore getStore() {
+    return store;
+  }
+
+  /**
+   * Bring the store up to date.
+   * The sync stops between chunks when the thread is interrupted. Call again to resume.
+   *
+   * @return the number of chunks applied.
+   */
+  public synchronized int sync()
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException, IOException {
+    SyncState state = source.getSyncState();
+    if (store.getUpdateCount() > 0
+        && (state.getFullSyncBefore() > store.getSyncTime() || state.getUpdateCount() < store.getUpdateCount())) {
+      //The local copy is too old to be updated incrementally, or belongs to another account state.
+      store.clear();
+    }
+    boolean full_sync = store.getUpdateCount() == 0;
+    int target = state.getUpdateCount();
+    int chunks = 0;
+    while (store.getUpdateCount() < target) {
+      if (Thread.currentThread().isInterrupted()) {
+        return chunks;
+      }
+      SyncChunk chunk = source.getSyncChunk(store.getUpdateCount(), max_entries, full_sync);
+      //A chunk without chunkHighUSN has nothing after afterUSN.
+      int high = chunk.isSetChunkHighUSN() ? chunk.getChunkHighUSN() : chunk.getUpdateCount();
+      if (high <= store.getUpdateCount()) {
+        break;
+      }
+      store.apply(chunk, high);
+      chunks++;
+      target = Math.max(target, chunk.getUpdateCount());
+      for (Listener listener : listeners) {
+        listener.onChunk(chunk, target);
+      }
+    }
+    for (Listener listener : listeners) {
+      listener.onSynced(state);
+    }
+    return chunks;
+  }
+}
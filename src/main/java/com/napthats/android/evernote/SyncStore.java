@@ -0,0 +1,370 @@
+package com.napthats.android.evernote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.type.*;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Local copy of an account, kept up to date by applying sync chunks.
+ * Notes and resources are kept as metadata given in sync chunks, without content and data.
+ *
+ * The store is a directory with two files. "snapshot" is the whole state written as one SyncChunk,
+ * and "journal" holds the chunks applied after the snapshot. Each chunk is appended to the journal
+ * and synced to the disk before apply() returns, so the store resumes from the last applied chunk
+ * after interruption. A torn record at the end of the journal is dropped on open.
+ * The journal is folded into a new snapshot when it grows larger than the snapshot. The snapshot is
+ * replaced atomically by renaming.
+ *
+ * This class is thread-safe.
+ */
+public final class SyncStore {
+  private static final String SNAPSHOT = "snapshot";
+  private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+  private static final String JOURNAL = "journal";
+  private static final int MAX_RECORD_LENGTH = Integer.MAX_VALUE - 8;
+  private static final long MIN_COMPACTION_BYTES = 256 * 1024;
+
+  private final File dir;
+
+  private int update_count = 0;
+  private long sync_time = 0;
+  private final Map<String, Note> notes = new LinkedHashMap<String, Note>();
+  private final Map<String, Notebook> notebooks = new LinkedHashMap<String, Notebook>();
+  private final Map<String, Tag> tags = new LinkedHashMap<String, Tag>();
+  private final Map<String, SavedSearch> searches = new LinkedHashMap<String, SavedSearch>();
+  private final Map<String, Resource> resources = new LinkedHashMap<String, Resource>();
+  private final Map<String, LinkedNotebook> linked_notebooks = new LinkedHashMap<String, LinkedNotebook>();
+
+  private DataOutputStream journal = null;
+  private FileOutputStream journal_file = null;
+  private long snapshot_bytes = 0;
+  private long journal_bytes = 0;
+
+
+  /**
+   * Open a store in a directory. The directory is created if it does not exist.
+   */
+  public SyncStore(File dir) throws IOException {
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    load();
+  }
+
+
+  /**
+   * Get the USN of the last applied chunk. 0 if nothing has been synced.
+   */
+  public synchronized int getUpdateCount() {
+    return update_count;
+  }
+
+  /**
+   * Get the server time of the last applied chunk. 0 if nothing has been synced.
+   */
+  public synchronized long getSyncTime() {
+    return sync_time;
+  }
+
+  public synchronized Note getNote(String guid) {
+    return notes.get(guid);
+  }
+
+  public synchronized List<Note> getNotes() {
+    return new ArrayList<Note>(notes.values());
+  }
+
+  public synchronized Notebook getNotebook(String guid) {
+    return notebooks.get(guid);
+  }
+
+  public synchronized List<Notebook> getNotebooks() {
+    return new ArrayList<Notebook>(notebooks.values());
+  }
+
+  public synchronized List<Tag> getTags() {
+    return new ArrayList<Tag>(tags.values());
+  }
+
+  public synchronized List<SavedSearch> getSearches() {
+    return new ArrayList<SavedSearch>(searches.values());
+  }
+
+  public synchronized List<Resource> getResources() {
+    return new ArrayList<Resource>(resources.values());
+  }
+
+  public synchronized List<LinkedNotebook> getLinkedNotebooks() {
+    return new ArrayList<LinkedNotebook>(linked_notebooks.values());
+  }
+
+
+  /**
+   * Apply a chunk and persist it.
+   * A chunk which is not newer than the store is ignored.
+   *
+   * @param chunk a chunk from getSyncChunk etc.
+   * @param update_count the USN the store is up to date with after the chunk.
+   * Usually chunkHighUSN of the chunk, or updateCount of the chunk if it has no chunkHighUSN.
+   */
+  public synchronized void apply(SyncChunk chunk, int update_count) throws IOException {
+    if (update_count <= this.update_count) {
+      return;
+    }
+    SyncChunk record = chunk.deepCopy();
+    record.setChunkHighUSN(update_count);
+    try {
+      journal_bytes += ThriftRecords.writeRecord(openJournal(), record);
+    }
+    catch (TException e) {
+      throw new IOException(e);
+    }
+    journal.flush();
+    journal_file.getFD().sync();
+    applyInMemory(record);
+    if (journal_bytes > Math.max(MIN_COMPACTION_BYTES, snapshot_bytes)) {
+      compact();
+    }
+  }
+
+  /**
+   * Remove everything. Used before a full sync.
+   */
+  public synchronized void clear() throws IOException {
+    closeJournal();
+    update_count = 0;
+    sync_time = 0;
+    notes.clear();
+    notebooks.clear();
+    tags.clear();
+    searches.clear();
+    resources.clear();
+    linked_notebooks.clear();
+    delete(new File(dir, SNAPSHOT));
+    delete(new File(dir, JOURNAL));
+    snapshot_bytes = 0;
+    journal_bytes = 0;
+  }
+
+  /**
+   * Write the whole state as a new snapshot and empty the journal.
+   */
+  public synchronized void compact() throws IOException {
+    closeJournal();
+    SyncChunk snapshot = new SyncChunk();
+    snapshot.setCurrentTime(sync_time);
+    snapshot.setUpdateCount(update_count);
+    snapshot.setChunkHighUSN(update_count);
+    snapshot.setNotes(new ArrayList<Note>(notes.values()));
+    snapshot.setNotebooks(new ArrayList<Notebook>(notebooks.values()));
+    snapshot.setTags(new ArrayList<Tag>(tags.values()));
+    snapshot.setSearches(new ArrayList<SavedSearch>(searches.values()));
+    snapshot.setResources(new ArrayList<Resource>(resources.values()));
+    snapshot.setLinkedNotebooks(new ArrayList<LinkedNotebook>(linked_notebooks.values()));
+
+    File temp = new File(dir, SNAPSHOT_TEMP);
+    FileOutputStream file = new FileOutputStream(temp);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      snapshot_bytes = ThriftRecords.writeRecord(out, snapshot);
+      out.flush();
+      file.getFD().sync();
+    }
+    catch (TException e) {
+      throw new IOException(e);
+    }
+    finally {
+      file.close();
+    }
+    if (!temp.renameTo(new File(dir, SNAPSHOT))) {
+      throw new IOException("Cannot replace the snapshot in " + dir);
+    }
+    //Chunks left in the journal by a crash here are older than the snapshot and ignored on open.
+    delete(new File(dir, JOURNAL));
+    journal_bytes = 0;
+  }
+
+  /**
+   * Close the journal. The store can still be used and opens the journal again when needed.
+   */
+  public synchronized void close() throws IOException {
+    closeJournal();
+  }
+
+
+  private void load() throws IOException {
+    File snapshot = new File(dir, SNAPSHOT);
+    if (snapshot.exists()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+      try {
+        SyncChunk chunk = new SyncChunk();
+        int length = ThriftRecords.readRecord(in, chunk, maxRecordLength(snapshot.length()));
+        if (length < 0) {
+          throw new IOException("Broken snapshot in " + dir);
+        }
+        applyInMemory(chunk);
+        snapshot_bytes = length;
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    File journal = new File(dir, JOURNAL);
+    if (journal.exists()) {
+      long valid = 0;
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+      try {
+        while (true) {
+          SyncChunk chunk = new SyncChunk();
+          int length = ThriftRecords.readRecord(in, chunk, maxRecordLength(journal.length() - valid));
+          if (length < 0) {
+            break;
+          }
+          valid += length;
+          if (chunk.getChunkHighUSN() > update_count) {
+            applyInMemory(chunk);
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+      if (valid < journal.length()) {
+        //Drop a record torn by a crash.
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+          file.setLength(valid);
+        }
+        finally {
+          file.close();
+        }
+      }
+      journal_bytes = valid;
+    }
+  }
+
+  /**
+   * Get the limit of the length of a record read from the bytes left in a file,
+   * so that a broken length is not allocated.
+   */
+  private static int maxRecordLength(long left) {
+    return (int) Math.max(0, Math.min(MAX_RECORD_LENGTH, left - ThriftRecords.HEADER_SIZE));
+  }
+
+  private void applyInMemory(SyncChunk chunk) {
+    if (chunk.isSetNotebooks()) {
+      for (Notebook notebook : chunk.getNotebooks()) {
+        notebooks.put(notebook.getGuid(), notebook);
+      }
+    }
+    if (chunk.isSetTags()) {
+      for (Tag tag : chunk.getTags()) {
+        tags.put(tag.getGuid(), tag);
+      }
+    }
+    if (chunk.isSetSearches()) {
+      for (SavedSearch search : chunk.getSearches()) {
+        searches.put(search.getGuid(), search);
+      }
+    }
+    if (chunk.isSetNotes()) {
+      for (Note note : chunk.getNotes()) {
+        notes.put(note.getGuid(), note);
+      }
+    }
+    if (chunk.isSetResources()) {
+      for (Resource resource : chunk.getResources()) {
+        resources.put(resource.getGuid(), resource);
+      }
+    }
+    if (chunk.isSetLinkedNotebooks()) {
+      for (LinkedNotebook linked_notebook : chunk.getLinkedNotebooks()) {
+        linked_notebooks.put(linked_notebook.getGuid(), linked_notebook);
+      }
+    }
+
+    if (chunk.isSetExpungedNotes()) {
+      removeNotes(chunk.getExpungedNotes());
+    }
+    if (chunk.isSetExpungedNotebooks()) {
+      //Notes in an expunged notebook are expunged with it, and may not be listed in the chunk.
+      List<String> note_guids = new ArrayList<String>();
+      for (String guid : chunk.getExpungedNotebooks()) {
+        notebooks.remove(guid);
+        for (Note note : notes.values()) {
+          if (guid.equals(note.getNotebookGuid())) {
+            note_guids.add(note.getGuid());
+          }
+        }
+      }
+      removeNotes(note_guids);
+    }
+    if (chunk.isSetExpungedTags()) {
+      tags.keySet().removeAll(chunk.getExpungedTags());
+    }
+    if (chunk.isSetExpungedSearches()) {
+      searches.keySet().removeAll(chunk.getExpungedSearches());
+    }
+    if (chunk.isSetExpungedLinkedNotebooks()) {
+      linked_notebooks.keySet().removeAll(chunk.getExpungedLinkedNotebooks());
+    }
+
+    update_count = chunk.getChunkHighUSN();
+    sync_time = chunk.getCurrentTime();
+  }
+
+  private void removeNotes(Collection<String> guids) {
+    if (guids.isEmpty()) {
+      return;
+    }
+    notes.keySet().removeAll(guids);
+    Collection<String> removed = guids.size() > 8 ? new HashSet<String>(guids) : guids;
+    for (Iterator<Resource> i = resources.values().iterator(); i.hasNext();) {
+      if (removed.contains(i.next().getNoteGuid())) {
+        i.remove();
+      }
+    }
+  }
+
+  private DataOutputStream openJournal() throws IOException {
+    if (journal == null) {
+      journal_file = new FileOutputStream(new File(dir, JOURNAL), true);
+      journal = new DataOutputStream(new BufferedOutputStream(journal_file));
+    }
+    return journal;
+  }
+
+  private void closeJournal() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+      journal_file = null;
+    }
+  }
+
+  private static void delete(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Cannot delete " + file);
+    }
+  }
+}
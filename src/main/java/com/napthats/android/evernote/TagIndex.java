@@ -0,0 +1,241 @@
+package com.napthats.android.evernote;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.TException;
+
+
+/**
+ * Index of the tags of an account by name.
+ * Names are compared case-insensitively, as Evernote does.
+ *
+ * Tags are loaded by listTags at the first lookup and kept until the update count of the account
+ * changes. The sync state is checked at most once in the check interval, and can also be given
+ * by onSyncState(). Tags created through this index do not invalidate it.
+ *
+ * Concurrent creates of the same name are coalesced into one createTag.
+ * This class is thread-safe. Methods make blocking NoteStore calls.
+ */
+public final class TagIndex {
+  public static final long DEFAULT_SYNC_CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+  private final NoteStoreIface note_store;
+  private final String auth_token;
+  private final long sync_check_interval_millis;
+
+  //Guarded by this.
+  private Map<String, Tag> tags = null;
+  private int update_count = -1;
+  private long checked_at = 0;
+
+  private final ConcurrentHashMap<String, CompletableFuture<Tag>> creating =
+    new ConcurrentHashMap<String, CompletableFuture<Tag>>();
+
+
+  public TagIndex(NoteStoreIface note_store, String auth_token) {
+    this(note_store, auth_token, DEFAULT_SYNC_CHECK_INTERVAL_MILLIS);
+  }
+
+  /**
+   * @param note_store a NoteStore.
+   * @param auth_token the auth token of the account.
+   * @param sync_check_interval_millis minimum interval of sync state checks. 0 checks at every lookup.
+   */
+  public TagIndex(NoteStoreIface note_store, String auth_token, long sync_check_interval_millis) {
+    this.note_store = note_store;
+    this.auth_token = auth_token;
+    this.sync_check_interval_millis = sync_check_interval_millis;
+  }
+
+
+  /**
+   * Get a tag by name without creating it.
+   *
+   * @return the tag, or null if there is no tag with the name.
+   */
+  public Tag find(String name)
+  throws EDAMUserException, EDAMSystemException, TException {
+    load();
+    return lookup(key(name));
+  }
+
+  /**
+   * Get a tag by name, creating it when there is no tag with the name.
+   */
+  public Tag getOrCreateTag(String name)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    Tag tag = find(name);
+    return tag != null ? tag : create(name);
+  }
+
+  /**
+   * Get tags by names, creating missing ones.
+   * Tags are looked up with one load of the index.
+   *
+   * @param names tag names. Names differing only in case get the same tag.
+   * @return a map from the given names to tags, in the order of names.
+   */
+  public Map<String, Tag> getOrCreateTags(Collection<String> names)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    load();
+    Map<String, Tag> result = new LinkedHashMap<String, Tag>();
+    for (String name : names) {
+      Tag tag = lookup(key(name));
+      result.put(name, tag != null ? tag : create(name));
+    }
+    return result;
+  }
+
+  /**
+   * Give a sync state obtained elsewhere.
+   * The index is dropped if the update count differs from the one it was loaded at.
+   */
+  public synchronized void onSyncState(SyncState state) {
+    checked_at = System.currentTimeMillis();
+    if (state.getUpdateCount() != update_count) {
+      tags = null;
+    }
+  }
+
+  /**
+   * Drop the index. It is loaded again at the next lookup.
+   */
+  public synchronized void invalidate() {
+    tags = null;
+  }
+
+
+  private synchronized void load()
+  throws EDAMUserException, EDAMSystemException, TException {
+    long now = System.currentTimeMillis();
+    if (tags != null && now - checked_at >= sync_check_interval_millis) {
+      onSyncState(note_store.getSyncState(auth_token));
+    }
+    if (tags == null) {
+      //Take the sync state first, so that changes during listTags are seen at the next check.
+      int count = note_store.getSyncState(auth_token).getUpdateCount();
+      List<Tag> list = note_store.listTags(auth_token);
+      Map<String, Tag> loaded = new HashMap<String, Tag>(list.size() * 2);
+      for (Tag tag : list) {
+        loaded.put(key(tag.getName()), tag);
+      }
+      tags = loaded;
+      update_count = count;
+      checked_at = now;
+    }
+  }
+
+  private synchronized Tag lookup(String key) {
+    return tags == null ? null : tags.get(key);
+  }
+
+  private synchronized void add(Tag tag) {
+    if (tags == null) {
+      return;
+    }
+    tags.put(key(tag.getName()), tag);
+    //The USN of a new tag is the update count of the account just after the creation.
+    if (tag.isSetUpdateSequenceNum() && tag.getUpdateSequenceNum() == update_count + 1) {
+      update_count = tag.getUpdateSequenceNum();
+    }
+  }
+
+  private Tag create(String name)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    String key = key(name);
+    CompletableFuture<Tag> future = new CompletableFuture<Tag>();
+    CompletableFuture<Tag> running = creating.putIfAbsent(key, future);
+    if (running != null) {
+      return await(running);
+    }
+    try {
+      Tag tag = createOrReload(name);
+      future.complete(tag);
+      return tag;
+    }
+    catch (Throwable e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      creating.remove(key, future);
+    }
+  }
+
+  private Tag createOrReload(String name)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    //Another creator may have finished between the lookup and the registration.
+    Tag tag = find(name);
+    if (tag != null) {
+      return tag;
+    }
+    Tag new_tag = new Tag();
+    new_tag.setName(name);
+    try {
+      tag = note_store.createTag(auth_token, new_tag);
+    }
+    catch (EDAMUserException e) {
+      if (e.getErrorCode() != EDAMErrorCode.DATA_CONFLICT) {
+        throw e;
+      }
+      //Created by another client after the index was loaded.
+      invalidate();
+      tag = find(name);
+      if (tag == null) {
+        throw e;
+      }
+      return tag;
+    }
+    add(tag);
+    return tag;
+  }
+
+  private static Tag await(CompletableFuture<Tag> future)
+  throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TException(e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof EDAMUserException) {
+        throw (EDAMUserException) cause;
+      }
+      if (cause instanceof EDAMSystemException) {
+        throw (EDAMSystemException) cause;
+      }
+      if (cause instanceof EDAMNotFoundException) {
+        throw (EDAMNotFoundException) cause;
+      }
+      if (cause instanceof TException) {
+        throw (TException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new TException(cause);
+    }
+  }
+
+  private static String key(String name) {
+    return name.toLowerCase(Locale.ENGLISH);
+  }
+}
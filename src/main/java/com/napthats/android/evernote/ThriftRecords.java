@@ -0,0 +1,111 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import com.evernote.thrift.TBase;
+import com.evernote.thrift.TException;
+import com.evernote.thrift.protocol.TBinaryProtocol;
+
+
+/**
+ * Thrift structs in files.
+ * A record is the length, the CRC32 of the bytes and the bytes of a struct in the binary protocol,
+ * so that a record torn by a crash can be told from a complete one.
+ */
+final class ThriftRecords {
+  static final int HEADER_SIZE = 8;
+
+  private ThriftRecords() {}
+
+  /**
+   * Serialize a struct in the binary protocol.
+   */
+  static byte[] toBytes(TBase<?> struct) throws TException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    struct.write(new TBinaryProtocol(new StreamTransport(null, out)));
+    return out.toByteArray();
+  }
+
+  /**
+   * Get the size of a struct in the binary protocol, without keeping the bytes.
+   */
+  static long sizeOf(TBase<?> struct) throws TException {
+    final long[] size = {0};
+    struct.write(new TBinaryProtocol(new StreamTransport(null, new OutputStream() {
+      public void write(int b) {
+        size[0]++;
+      }
+      public void write(byte[] b, int off, int len) {
+        size[0] += len;
+      }
+    })));
+    return size[0];
+  }
+
+  /**
+   * Deserialize a struct in the binary protocol.
+   *
+   * @param bytes serialized struct.
+   * @param struct an empty struct to read into.
+   * @return struct.
+   */
+  static <T extends TBase<?>> T fromBytes(byte[] bytes, T struct) throws TException {
+    struct.read(new TBinaryProtocol(new StreamTransport(new ByteArrayInputStream(bytes), null)));
+    return struct;
+  }
+
+  /**
+   * Write a record.
+   *
+   * @return the size of the record in bytes.
+   */
+  static int writeRecord(DataOutputStream out, TBase<?> struct) throws IOException, TException {
+    byte[] bytes = toBytes(struct);
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    out.writeInt(bytes.length);
+    out.writeInt((int) crc.getValue());
+    out.write(bytes);
+    return HEADER_SIZE + bytes.length;
+  }
+
+  /**
+   * Read a record.
+   *
+   * @param in input.
+   * @param struct an empty struct to read into.
+   * @param max_length the limit of the record length. Longer ones are regarded as broken.
+   * @return the size of the record in bytes, or -1 at the end of input or at a broken or torn record.
+   */
+  static int readRecord(DataInputStream in, TBase<?> struct, int max_length) throws IOException {
+    try {
+      int length = in.readInt();
+      int expected_crc = in.readInt();
+      if (length < 0 || length > max_length) {
+        return -1;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, length);
+      if ((int) crc.getValue() != expected_crc) {
+        return -1;
+      }
+      fromBytes(bytes, struct);
+      return HEADER_SIZE + length;
+    }
+    catch (EOFException e) {
+      return -1;
+    }
+    catch (TException e) {
+      return -1;
+    }
+  }
+}
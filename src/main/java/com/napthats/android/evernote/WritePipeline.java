@@ -0,0 +1,359 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.TException;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+
+
+/**
+ * Pipeline of bursts of write calls such as createNote, updateNote and createTag.
+ * Writes run in the APIExecutor keeping up to a window of calls in flight, instead of one round trip after another.
+ * The result of each write is given to its own callback through the result delivery.
+ *
+ * The window adapts to rate limits: it is halved and the pipeline pauses for the duration the server asks
+ * when a write hits a rate limit, and the write is retried after the pause. It grows back by one per window
+ * of successful writes. Other errors are given to the callback without retry.
+ * Writes start in order of submission, but may complete out of order.
+ */
+public final class WritePipeline {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+  public static final int DEFAULT_CAPACITY = 256;
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  //Wait before trying the executor again when its queue is full.
+  private static final long EXECUTOR_RETRY_MILLIS = 10;
+
+  private final NoteStoreIface note_store;
+  private final String auth_token;
+  private final APIExecutor executor;
+  private final APIExecutor.ResultDelivery delivery;
+  private final int max_in_flight;
+  private final int capacity;
+  private final int priority;
+  private final ScheduledExecutorService timer;
+  private volatile int max_retries = DEFAULT_MAX_RETRIES;
+
+  //Guarded by this.
+  private final ArrayDeque<Item<?>> queue = new ArrayDeque<Item<?>>();
+  private double window;
+  private int in_flight = 0;
+  //Writes submitted and not yet given to the delivery.
+  private int pending = 0;
+  private long paused_until = 0;
+  private boolean pump_scheduled = false;
+  private boolean closed = false;
+  private long completed = 0;
+  private long rate_limited = 0;
+
+
+  /**
+   * A write call.
+   */
+  public interface Write<T> {
+    public T apply(NoteStoreIface note_store, String auth_token)
+    throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException;
+  }
+
+
+  public WritePipeline(NoteStoreIface note_store, String auth_token, APIExecutor executor, APIExecutor.ResultDelivery delivery) {
+    this(note_store, auth_token, executor, delivery,
+         Math.min(DEFAULT_MAX_IN_FLIGHT, executor.getParallelism()), DEFAULT_CAPACITY, APIExecutor.NORM_PRIORITY);
+  }
+
+  /**
+   * @param note_store a thread-safe blocking NoteStore, such as EvernoteActivity.createBlockingNoteStore().
+   * @param auth_token the auth token given to writes.
+   * @param executor the executor running writes. Its parallelism also bounds the calls in flight.
+   * @param delivery the delivery of results to callbacks.
+   * @param max_in_flight the max number of writes in flight.
+   * @param capacity the max number of writes waiting to start. submit() blocks while they are full.
+   * @param priority priority of writes in the executor.
+   */
+  public WritePipeline(NoteStoreIface note_store, String auth_token, APIExecutor executor, APIExecutor.ResultDelivery delivery,
+                       int max_in_flight, int capacity, int priority) {
+    if (max_in_flight <= 0) {throw new IllegalArgumentException("max_in_flight must be positive");}
+    if (capacity <= 0) {throw new IllegalArgumentException("capacity must be positive");}
+    this.note_store = note_store;
+    this.auth_token = auth_token;
+    this.executor = executor;
+    this.delivery = delivery;
+    this.max_in_flight = max_in_flight;
+    this.capacity = capacity;
+    this.priority = priority;
+    this.window = max_in_flight;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "evernote-write-pipeline");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+
+  /**
+   * Set how many times a write is retried after rate limits.
+   */
+  public void setMaxRetries(int max_retries) {
+    if (max_retries < 0) {
+      throw new IllegalArgumentException("max_retries must not be negative: " + max_retries);
+    }
+    this.max_retries = max_retries;
+  }
+
+  /**
+   * Submit a write. Block while the queue of waiting writes is full.
+   *
+   * @param write a write.
+   * @param callback callback dealing with the result of the write.
+   * @throws IllegalStateException when the pipeline is closed.
+   */
+  public <T> void submit(Write<T> write, APICallBack<T> callback) throws InterruptedException {
+    synchronized (this) {
+      while (!closed && queue.size() >= capacity) {
+        wait();
+      }
+      if (closed) {
+        throw new IllegalStateException("The pipeline is closed.");
+      }
+      queue.add(new Item<T>(write, callback));
+      pending++;
+    }
+    pump();
+  }
+
+  public void createNote(final Note note, APICallBack<Note> callback) throws InterruptedException {
+    submit(new Write<Note>() {
+      public Note apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        return note_store.createNote(auth_token, note);
+      }
+    }, callback);
+  }
+
+  public void updateNote(final Note note, APICallBack<Note> callback) throws InterruptedException {
+    submit(new Write<Note>() {
+      public Note apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        return note_store.updateNote(auth_token, note);
+      }
+    }, callback);
+  }
+
+  /**
+   * Update a note with the fields which changed from its version in a tracker.
+   * The write is skipped when nothing changed. See NoteChangeTracker.
+   */
+  public void updateNote(final Note note, final NoteChangeTracker tracker, APICallBack<Note> callback) throws InterruptedException {
+    submit(new Write<Note>() {
+      public Note apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        return tracker.updateNote(note_store, auth_token, note);
+      }
+    }, callback);
+  }
+
+  public void createTag(final Tag tag, APICallBack<Tag> callback) throws InterruptedException {
+    submit(new Write<Tag>() {
+      public Tag apply(NoteStoreIface note_store, String auth_token)
+      throws EDAMUserException, EDAMSystemException, EDAMNotFoundException, TException {
+        return note_store.createTag(auth_token, tag);
+      }
+    }, callback);
+  }
+
+  /**
+   * Wait until the results of all submitted writes have been given to the delivery.
+   *
+   * @return false if the timeout elapsed before that.
+   */
+  public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (pending > 0) {
+      long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (left <= 0) {
+        return false;
+      }
+      wait(left);
+    }
+    return true;
+  }
+
+  /**
+   * Refuse further writes. Writes already submitted still run.
+   * The timer of the pipeline stops when they have completed.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+      if (pending > 0) {
+        return;
+      }
+    }
+    timer.shutdown();
+  }
+
+  /**
+   * Get the current number of writes allowed in flight.
+   */
+  public synchronized int getWindow() {
+    return (int) window;
+  }
+
+  public synchronized int getInFlightCount() {
+    return in_flight;
+  }
+
+  public synchronized int getQueuedCount() {
+    return queue.size();
+  }
+
+  public synchronized long getCompletedCount() {
+    return completed;
+  }
+
+  /**
+   * Get the number of writes which hit a rate limit.
+   */
+  public synchronized long getRateLimitedCount() {
+    return rate_limited;
+  }
+
+
+  /**
+   * Start waiting writes while the window has room.
+   */
+  private void pump() {
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (paused_until - now > 0) {
+        schedulePump(paused_until - now);
+        return;
+      }
+      while (!queue.isEmpty() && in_flight < (int) window) {
+        Item<?> item = queue.peek();
+        //Do not block here: pump() also runs in executor threads, which would wait for themselves.
+        if (!executor.tryExecute(item, priority)) {
+          schedulePump(EXECUTOR_RETRY_MILLIS);
+          return;
+        }
+        queue.poll();
+        in_flight++;
+        notifyAll();
+      }
+    }
+  }
+
+  private void schedulePump(long delay_millis) {
+    if (pump_scheduled || timer.isShutdown()) {
+      return;
+    }
+    pump_scheduled = true;
+    timer.schedule(new Runnable() {
+      public void run() {
+        synchronized (WritePipeline.this) {
+          pump_scheduled = false;
+        }
+        pump();
+      }
+    }, delay_millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record the end of a call of a write, and adapt the window to it.
+   *
+   * @return true if the write is to be retried.
+   */
+  private synchronized boolean finish(Item<?> item, Throwable error) {
+    in_flight--;
+    int duration = RateLimits.durationSeconds(error);
+    if (duration >= 0) {
+      rate_limited++;
+      long now = System.currentTimeMillis();
+      //Writes in flight together hit the same limit. Halve the window once for them.
+      if (paused_until - now <= 0) {
+        window = Math.max(1, window / 2);
+      }
+      paused_until = Math.max(paused_until, now + duration * 1000L);
+      if (item.retries < max_retries) {
+        item.retries++;
+        queue.addFirst(item);
+        return true;
+      }
+    }
+    else if (error == null) {
+      window = Math.min(max_in_flight, window + 1 / window);
+    }
+    return false;
+  }
+
+  /**
+   * Record that the result of a write has been given to the delivery.
+   */
+  private void complete() {
+    boolean shutdown;
+    synchronized (this) {
+      pending--;
+      completed++;
+      notifyAll();
+      shutdown = closed && pending == 0;
+    }
+    if (shutdown) {
+      timer.shutdown();
+    }
+  }
+
+
+  /**
+   * A write in the pipeline.
+   * It runs first in the executor to make the call, and then through the delivery to call the callback.
+   */
+  private final class Item<T> implements Runnable {
+    private final Write<T> write;
+    private final APICallBack<T> callback;
+    private int retries = 0;
+    private APIOutcome<T> result = null;
+
+    Item(Write<T> write, APICallBack<T> callback) {
+      this.write = write;
+      this.callback = callback;
+    }
+
+    public void run() {
+      if (result != null) {
+        callback.call(result);
+        return;
+      }
+      APIOutcome<T> outcome;
+      try {
+        outcome = APIOutcome.success(write.apply(note_store, auth_token));
+      }
+      catch (Throwable e) {
+        outcome = APIOutcome.failure(e);
+      }
+      if (finish(this, outcome.getError())) {
+        pump();
+        return;
+      }
+      result = outcome;
+      executor.releaseSlot();
+      try {
+        delivery.deliver(this);
+      }
+      finally {
+        complete();
+        pump();
+      }
+    }
+  }
+}
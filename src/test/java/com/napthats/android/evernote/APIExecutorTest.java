@@ -0,0 +1,215 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMErrorCode;
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.type.Notebook;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+import com.napthats.android.evernote.EvernoteActivity.NoteStoreProxy;
+
+
+public class APIExecutorTest extends TestCase {
+  private APIExecutor executor;
+
+  @Override
+  protected void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  public void testRunsUpToParallelismAtOnce() throws Exception {
+    executor = new APIExecutor(3, 16);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger max_running = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(12);
+    for (int i = 0; i < 12; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          int now = running.incrementAndGet();
+          synchronized (max_running) {
+            max_running.set(Math.max(max_running.get(), now));
+          }
+          sleep(20);
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(3, max_running.get());
+  }
+
+  public void testRefusesTasksWhenQueueIsFull() throws Exception {
+    executor = new APIExecutor(1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocked = new Runnable() {
+      public void run() {
+        await(release);
+      }
+    };
+    assertTrue(executor.tryExecute(blocked, APIExecutor.NORM_PRIORITY));
+    assertTrue(executor.tryExecute(blocked, APIExecutor.NORM_PRIORITY));
+    assertFalse(executor.tryExecute(blocked, APIExecutor.NORM_PRIORITY));
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  public void testRunsHigherPriorityFirst() throws Exception {
+    executor = new APIExecutor(1, 8);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    executor.execute(new Runnable() {
+      public void run() {
+        await(release);
+      }
+    });
+    int[] priorities = {APIExecutor.LOW_PRIORITY, APIExecutor.NORM_PRIORITY, APIExecutor.HIGH_PRIORITY, APIExecutor.NORM_PRIORITY};
+    for (int i = 0; i < priorities.length; i++) {
+      final int id = i;
+      executor.execute(new Runnable() {
+        public void run() {
+          order.add(id);
+        }
+      }, priorities[i]);
+    }
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(2, 1, 3, 0), order);
+  }
+
+  public void testDeliversResultsAndErrorsToCallbacks() throws Exception {
+    executor = new APIExecutor(2, 8);
+    final Notebook notebook = new Notebook();
+    notebook.setGuid("nb");
+    NoteStoreProxy note_store = NoteStoreStubs.proxy(NoteStoreStubs.stub(new Object() {
+      public Notebook getNotebook(String authToken, String guid) throws EDAMNotFoundException {
+        if (guid.equals("nb")) {
+          return notebook;
+        }
+        throw new EDAMNotFoundException();
+      }
+      public Notebook getDefaultNotebook(String authToken) throws EDAMUserException {
+        throw new EDAMUserException(EDAMErrorCode.INVALID_AUTH);
+      }
+    }), executor);
+
+    assertSame(notebook, resultOf(note_store, "nb").get());
+    try {
+      resultOf(note_store, "none").get();
+      fail();
+    }
+    catch (EDAMNotFoundException e) {
+    }
+
+    final AtomicReference<APIResult<Notebook>> result = new AtomicReference<APIResult<Notebook>>();
+    final CountDownLatch called = new CountDownLatch(1);
+    note_store.getDefaultNotebook("token", new APICallBack<Notebook>() {
+      public void call(APIResult<Notebook> r) {
+        result.set(r);
+        called.countDown();
+      }
+    });
+    assertTrue(called.await(5, TimeUnit.SECONDS));
+    try {
+      result.get().get();
+      fail();
+    }
+    catch (EDAMUserException e) {
+      assertEquals(EDAMErrorCode.INVALID_AUTH, e.getErrorCode());
+    }
+  }
+
+  public void testTasksSubmittingTasksDoNotDeadlock() throws Exception {
+    executor = new APIExecutor(2, 4);
+    final CountDownLatch done = new CountDownLatch(2 * 10);
+    for (int i = 0; i < 2; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 10; j++) {
+            executor.execute(new Runnable() {
+              public void run() {
+                sleep(5);
+                done.countDown();
+              }
+            });
+          }
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testCallbacksMakingCallsDoNotDeadlock() throws Exception {
+    executor = new APIExecutor(2, 4);
+    final NoteStoreProxy note_store = NoteStoreStubs.proxy(NoteStoreStubs.stub(new Object() {
+      public Notebook getNotebook(String authToken, String guid) {
+        Notebook notebook = new Notebook();
+        notebook.setGuid(guid);
+        return notebook;
+      }
+    }), executor);
+    final CountDownLatch done = new CountDownLatch(4 * 10);
+    for (int i = 0; i < 4; i++) {
+      note_store.getNotebook("token", "list", new APICallBack<Notebook>() {
+        public void call(APIResult<Notebook> result) {
+          //As one getNote per findNotesMetadata result.
+          for (int j = 0; j < 10; j++) {
+            note_store.getNotebook("token", "item", new APICallBack<Notebook>() {
+              public void call(APIResult<Notebook> result) {
+                done.countDown();
+              }
+            });
+          }
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  private static APIResult<Notebook> resultOf(NoteStoreProxy note_store, String guid) throws InterruptedException {
+    final AtomicReference<APIResult<Notebook>> result = new AtomicReference<APIResult<Notebook>>();
+    final CountDownLatch called = new CountDownLatch(1);
+    note_store.getNotebook("token", guid, new APICallBack<Notebook>() {
+      public void call(APIResult<Notebook> r) {
+        result.set(r);
+        called.countDown();
+      }
+    });
+    assertTrue(called.await(5, TimeUnit.SECONDS));
+    return result.get();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.transport.TTransportException;
+
+
+public class AccountArchiveTest extends TestCase {
+  private static final int NOTE_COUNT = 300;
+
+  private FakeNoteStore source;
+  private File archive;
+  private APIExecutor executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    source = FakeNoteStore.seeded(17, NOTE_COUNT, 20);
+    NoteStoreIface note_store = source.getNoteStore();
+    //A nested tag and a deleted note.
+    Map<String, Tag> tags = new HashMap<String, Tag>();
+    for (Tag tag : note_store.listTags("token")) {
+      tags.put(tag.getName(), tag);
+    }
+    Tag child = new Tag();
+    child.setGuid(tags.get("Tag 1").getGuid());
+    child.setParentGuid(tags.get("Tag 0").getGuid());
+    note_store.updateTag("token", child);
+    note_store.deleteNote("token", note_store.getSyncChunk("token", 0, 1000, true).getNotes().get(0).getGuid());
+
+    archive = File.createTempFile("account", ".enar");
+    assertTrue(archive.delete());
+    executor = new APIExecutor();
+  }
+
+  @Override
+  protected void tearDown() {
+    archive.delete();
+    new File(archive.getPath() + ".import").delete();
+    new File(archive.getPath() + ".import.notes").delete();
+  }
+
+  private AccountExporter exporter(NoteStoreIface note_store) {
+    AccountExporter exporter = new AccountExporter(note_store, "token", archive);
+    exporter.setMaxEntries(50);
+    exporter.setFrameSize(8 * 1024);
+    return exporter;
+  }
+
+  /**
+   * Get a NoteStore interrupting the calling thread at a number of calls of a method.
+   */
+  private static NoteStoreIface interrupting(final NoteStoreIface delegate, final String method_name, final int calls) {
+    final Thread thread = Thread.currentThread();
+    final AtomicInteger count = new AtomicInteger();
+    return (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getName().equals(method_name) && count.incrementAndGet() == calls) {
+            thread.interrupt();
+          }
+          try {
+            return method.invoke(delegate, args);
+          }
+          catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+  }
+
+  /**
+   * Get the notes of an account by title, as notebook name, tag names and content.
+   */
+  private static Map<String, String> contents(NoteStoreIface note_store) throws Exception {
+    Map<String, String> notebooks = new HashMap<String, String>();
+    for (Notebook notebook : note_store.listNotebooks("token")) {
+      notebooks.put(notebook.getGuid(), notebook.getName());
+    }
+    Map<String, String> tags = new HashMap<String, String>();
+    for (Tag tag : note_store.listTags("token")) {
+      tags.put(tag.getGuid(), tag.getName());
+    }
+    Map<String, String> contents = new TreeMap<String, String>();
+    for (Note note : note_store.getSyncChunk("token", 0, 100000, true).getNotes()) {
+      if (!note.isActive()) {
+        continue;
+      }
+      StringBuilder value = new StringBuilder(notebooks.get(note.getNotebookGuid()));
+      if (note.isSetTagGuids()) {
+        for (String tag_guid : note.getTagGuids()) {
+          value.append(' ').append(tags.get(tag_guid));
+        }
+      }
+      value.append(' ').append(note_store.getNoteContent("token", note.getGuid()));
+      assertNull(contents.put(note.getTitle(), value.toString()));
+    }
+    return contents;
+  }
+
+  private static int countNotes(File archive) throws IOException {
+    FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+    try {
+      AccountArchive.readHeader(channel);
+      int count = 0;
+      long offset = AccountArchive.FILE_HEADER_SIZE;
+      for (AccountArchive.Frame frame = AccountArchive.readFrame(channel, offset); frame != null;
+           frame = AccountArchive.readFrame(channel, offset)) {
+        AccountArchive.Records records = new AccountArchive.Records(frame.payload);
+        while (records.next()) {
+          if (records.getType() == AccountArchive.NOTE) {
+            count++;
+          }
+        }
+        offset = frame.next_offset;
+      }
+      return count;
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  public void testRoundTrip() throws Exception {
+    assertEquals(NOTE_COUNT - 1, exporter(source.getNoteStore()).export());
+    assertEquals(0, exporter(source.getNoteStore()).export());
+
+    //Notebooks of the same name are shared.
+    FakeNoteStore target = new FakeNoteStore();
+    Notebook notebook = new Notebook();
+    notebook.setName("Notebook 1");
+    target.getNoteStore().createNotebook("token", notebook);
+
+    AccountImporter importer = new AccountImporter(target.getNoteStore(), "token", executor, archive);
+    assertEquals(NOTE_COUNT - 1, importer.importArchive());
+    assertEquals(0, importer.getFailedCount());
+    assertEquals(contents(source.getNoteStore()), contents(target.getNoteStore()));
+    assertEquals(10, target.getNoteStore().listNotebooks("token").size());
+
+    Map<String, Tag> tags = new HashMap<String, Tag>();
+    for (Tag tag : target.getNoteStore().listTags("token")) {
+      tags.put(tag.getName(), tag);
+    }
+    assertEquals(20, tags.size());
+    assertEquals(tags.get("Tag 0").getGuid(), tags.get("Tag 1").getParentGuid());
+
+    //A finished import creates nothing again.
+    assertEquals(0, new AccountImporter(target.getNoteStore(), "token", executor, archive).importArchive());
+  }
+
+  public void testExportResumes() throws Exception {
+    int written = exporter(interrupting(source.getNoteStore(), "getNote", 100)).export();
+    assertTrue(Thread.interrupted());
+    assertTrue(written >= 100 && written < NOTE_COUNT - 1);
+
+    //A frame torn by a crash is written again.
+    RandomAccessFile file = new RandomAccessFile(archive, "rw");
+    try {
+      file.setLength(file.length() - 10);
+    }
+    finally {
+      file.close();
+    }
+    exporter(source.getNoteStore()).export();
+    assertEquals(NOTE_COUNT - 1, countNotes(archive));
+
+    FakeNoteStore target = new FakeNoteStore();
+    new AccountImporter(target.getNoteStore(), "token", executor, archive).importArchive();
+    assertEquals(contents(source.getNoteStore()), contents(target.getNoteStore()));
+  }
+
+  public void testImportResumes() throws Exception {
+    exporter(source.getNoteStore()).export();
+    FakeNoteStore target = new FakeNoteStore();
+    AccountImporter importer =
+      new AccountImporter(interrupting(target.getNoteStore(), "createNote", 50), "token", executor, archive);
+    int created = importer.importArchive();
+    assertTrue(Thread.interrupted());
+    assertTrue(created >= 50 && created < NOTE_COUNT - 1);
+    assertTrue(importer.getCheckpointFile().exists());
+
+    importer = new AccountImporter(target.getNoteStore(), "token", executor, archive);
+    assertEquals(NOTE_COUNT - 1 - created, importer.importArchive());
+    assertEquals(contents(source.getNoteStore()), contents(target.getNoteStore()));
+  }
+
+  public void testFailedCreateBeforeAnInterruptIsRetried() throws Exception {
+    AccountExporter exporter = exporter(source.getNoteStore());
+    //One frame of notes.
+    exporter.setFrameSize(64 * 1024 * 1024);
+    exporter.export();
+    FakeNoteStore target = new FakeNoteStore();
+    final NoteStoreIface delegate = target.getNoteStore();
+    final Thread thread = Thread.currentThread();
+    final AtomicInteger count = new AtomicInteger();
+    NoteStoreIface failing = (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getName().equals("createNote")) {
+            int calls = count.incrementAndGet();
+            if (calls == 10) {
+              throw new TTransportException(TTransportException.UNKNOWN, "injected");
+            }
+            if (calls == 20) {
+              thread.interrupt();
+            }
+          }
+          try {
+            return method.invoke(delegate, args);
+          }
+          catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+    AccountImporter importer = new AccountImporter(failing, "token", executor, archive);
+    int created = importer.importArchive();
+    assertTrue(Thread.interrupted());
+    assertEquals(1, importer.getFailedCount());
+    assertTrue(created < NOTE_COUNT - 1);
+
+    created += new AccountImporter(delegate, "token", executor, archive).importArchive();
+    assertEquals(NOTE_COUNT - 1, created);
+    assertEquals(contents(source.getNoteStore()), contents(delegate));
+  }
+
+  public void testFailedCreatesAreRetried() throws Exception {
+    exporter(source.getNoteStore()).export();
+    FakeNoteStore target = new FakeNoteStore();
+    target.setErrorRate(0.05);
+    AccountImporter importer = new AccountImporter(target.getNoteStore(), "token", executor, archive);
+    int created = 0;
+    for (int i = 0; i < 3; i++) {
+      try {
+        created += importer.importArchive();
+      }
+      catch (TTransportException e) {
+        //Listing the account failed.
+      }
+    }
+    assertTrue(importer.getFailedCount() > 0);
+    assertTrue(created < NOTE_COUNT - 1);
+
+    target.setErrorRate(0);
+    created += new AccountImporter(target.getNoteStore(), "token", executor, archive).importArchive();
+    assertEquals(NOTE_COUNT - 1, created);
+    assertEquals(contents(source.getNoteStore()), contents(target.getNoteStore()));
+  }
+
+  public void testNotesChangedDuringExportAreKeptInTheirLastVersion() throws Exception {
+    final NoteStoreIface note_store = source.getNoteStore();
+    final Map<String, String> changed = new HashMap<String, String>();
+    //Change notes already written, a tag and a notebook while notes are exported.
+    NoteStoreIface changing = (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new InvocationHandler() {
+        private int calls = 0;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getName().equals("getNote") && ++calls == 200) {
+            for (Note note : note_store.getSyncChunk("token", 0, 50, true).getNotes()) {
+              if (note.isActive() && changed.size() < 10) {
+                Note update = new Note();
+                update.setGuid(note.getGuid());
+                update.setTitle(note.getTitle() + " changed");
+                note_store.updateNote("token", update);
+                changed.put(note.getGuid(), update.getTitle());
+              }
+            }
+            Tag tag = new Tag();
+            tag.setName("New tag");
+            tag = note_store.createTag("token", tag);
+            Notebook notebook = new Notebook();
+            notebook.setName("New notebook");
+            notebook = note_store.createNotebook("token", notebook);
+            Note note = new Note();
+            note.setTitle("new note");
+            note.setNotebookGuid(notebook.getGuid());
+            note.addToTagGuids(tag.getGuid());
+            EvernoteClient.Util.setPlainContent(note, "new");
+            note_store.createNote("token", note);
+          }
+          try {
+            return method.invoke(note_store, args);
+          }
+          catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+    exporter(changing).export();
+    assertFalse(changed.isEmpty());
+
+    FakeNoteStore target = new FakeNoteStore();
+    new AccountImporter(target.getNoteStore(), "token", executor, archive).importArchive();
+    Map<String, String> contents = contents(target.getNoteStore());
+    assertEquals(contents(note_store), contents);
+    assertTrue(contents.get("new note").startsWith("New notebook New tag "));
+  }
+}
@@ -0,0 +1,81 @@
+package com.napthats.android.evernote;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.evernote.edam.type.Note;
+
+
+public class EnmlTextExtractorTest extends TestCase {
+  private static final String HEAD =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+    + "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">";
+
+  private static String plain(String enml) {
+    return EnmlTextExtractor.toPlainText(enml, new StringBuilder()).toString();
+  }
+
+  /**
+   * The regex based conversion getPlainContent used before.
+   */
+  private static String legacy(String enml) {
+    return StringEscapeUtils.unescapeHtml4(enml.replaceAll("</div>", "\n").replaceAll("<.*?>", ""));
+  }
+
+  public void testMatchesLegacyConversionOfDivs() {
+    Random random = new Random(1);
+    String[] pieces = {"abc", " ", "&amp;", "&lt;b&gt;", "&eacute;", "&#12354;", "&#x3042;", "<b>", "</b>", "日本"};
+    for (int n = 0; n < 200; n++) {
+      StringBuilder enml = new StringBuilder(HEAD).append("<en-note>");
+      int lines = random.nextInt(5);
+      for (int l = 0; l < lines; l++) {
+        enml.append("<div>");
+        int words = random.nextInt(6);
+        for (int w = 0; w < words; w++) {
+          enml.append(pieces[random.nextInt(pieces.length)]);
+        }
+        enml.append("</div>");
+      }
+      enml.append("</en-note>");
+      assertEquals(legacy(enml.toString()), plain(enml.toString()));
+    }
+  }
+
+  public void testBlockSemantics() {
+    assertEquals("a\nb\n", plain("<en-note><div>a<br/>b</div></en-note>"));
+    assertEquals("a\n\nb\n", plain("<en-note><div>a</div><div><br/></div><div>b</div></en-note>"));
+    assertEquals("p\none\ntwo\n", plain("<en-note><p>p</p><ul><li>one</li><li>two</li></ul></en-note>"));
+    assertEquals("x\ny", plain("<en-note>x<BR clear=\"all\">y</en-note>"));
+  }
+
+  public void testMarkup() {
+    assertEquals("a>b", plain("<en-note><span title=\"1 > 0\">a&gt;b</span></en-note>"));
+    assertEquals("<raw> & ]]", plain("<en-note><![CDATA[<raw> & ]]]]><!-- <div>x</div> --></en-note>"));
+    assertEquals("&unknown; & x", plain("<en-note>&unknown; & x</en-note>"));
+    assertEquals("it's", plain("<en-note>it&apos;s</en-note>"));
+  }
+
+  public void testChunkedInputMatchesWholeInput() throws Exception {
+    String enml = HEAD + "<en-note><div>caf&eacute; <a href=\"x\">l</a></div><!-- c --><div><br/></div><![CDATA[]]]></en-note>";
+    String whole = plain(enml);
+    for (int size = 1; size < 8; size++) {
+      StringBuilder out = new StringBuilder();
+      EnmlTextExtractor extractor = new EnmlTextExtractor(out);
+      for (int i = 0; i < enml.length(); i += size) {
+        extractor.write(enml, i, Math.min(enml.length(), i + size));
+      }
+      extractor.finish();
+      assertEquals(whole, out.toString());
+    }
+  }
+
+  public void testGetPlainContent() {
+    Note note = new Note();
+    assertEquals("", EvernoteActivity.Util.getPlainContent(note));
+    note.setContent(HEAD + "<en-note><div>1 &lt; 2</div><div>x</div></en-note>");
+    assertEquals("1 < 2\nx\n", EvernoteActivity.Util.getPlainContent(note));
+  }
+}
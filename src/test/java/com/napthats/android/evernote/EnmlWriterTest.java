@@ -0,0 +1,89 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.evernote.edam.type.Note;
+
+
+public class EnmlWriterTest extends TestCase {
+  //Characters escaped by escapeHtml4 in each table, newlines, surrogates and others.
+  private static final char[] ALPHABET = {
+    'a', 'Z', '0', ' ', '\t', '\r', '\n', '\n', '<', '>', '&', '"', '\'', '/',
+    ' ', 'é', 'ÿ', 'Ā', 'Œ', 'α', '—', '€', '♦', '♧',
+    'あ', '日', '\ud83d', '\ude00', '￿'};
+
+  /**
+   * The conversion setPlainContent used before.
+   */
+  private static String legacy(String plain) {
+    return EnmlWriter.NOTE_PREFIX
+      + EnmlWriter.LINE_PREFIX
+      + StringEscapeUtils.escapeHtml4(plain).replaceAll("\n", EnmlWriter.LINE_SUFFIX + EnmlWriter.LINE_PREFIX)
+      + EnmlWriter.LINE_SUFFIX
+      + EnmlWriter.NOTE_SUFFIX;
+  }
+
+  private static String randomPlain(Random random) {
+    char[] chars = new char[random.nextInt(64)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = random.nextInt(4) == 0
+        ? (char) random.nextInt(0x10000)
+        : ALPHABET[random.nextInt(ALPHABET.length)];
+    }
+    return new String(chars);
+  }
+
+  public void testMatchesLegacyConversion() throws Exception {
+    Random random = new Random(6);
+    for (int n = 0; n < 2000; n++) {
+      String plain = randomPlain(random);
+      String expected = legacy(plain);
+      assertEquals(expected, EnmlWriter.toEnml(plain));
+      assertEquals(expected.length(), EnmlWriter.length(plain));
+
+      StringBuilder from_reader = new StringBuilder();
+      EnmlWriter.write(new StringReader(plain), from_reader);
+      assertEquals(expected, from_reader.toString());
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      EnmlWriter.write(plain, bytes);
+      //Lone surrogates do not survive decoding, so compare bytes.
+      assertTrue(Arrays.equals(expected.getBytes("UTF-8"), bytes.toByteArray()));
+    }
+  }
+
+  public void testLongInputAcrossBuffers() throws Exception {
+    Random random = new Random(7);
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 50000) {
+      sb.append(randomPlain(random));
+    }
+    String plain = sb.toString();
+    String expected = legacy(plain);
+
+    StringBuilder from_reader = new StringBuilder();
+    EnmlWriter.write(new StringReader(plain), from_reader);
+    assertEquals(expected, from_reader.toString());
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    EnmlWriter.write(plain, bytes);
+    assertTrue(Arrays.equals(expected.getBytes("UTF-8"), bytes.toByteArray()));
+  }
+
+  public void testSetPlainContent() throws Exception {
+    Note note = new Note();
+    EvernoteActivity.Util.setPlainContent(note, "1 < 2\ncafé");
+    assertEquals(legacy("1 < 2\ncafé"), note.getContent());
+    assertEquals("1 < 2\ncafé\n", EvernoteActivity.Util.getPlainContent(note));
+
+    EvernoteActivity.Util.setPlainContent(note, new StringReader("x\n"));
+    assertEquals(legacy("x\n"), note.getContent());
+  }
+}
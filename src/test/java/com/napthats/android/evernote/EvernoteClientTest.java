@@ -0,0 +1,181 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.transport.TTransportException;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+public class EvernoteClientTest extends TestCase {
+  private FakeNoteStoreServer server;
+  private File dir;
+  private EvernoteClient client;
+  private volatile String auth_token = "S=s1:U=1a2b:E=0:C=0:P=0:A=test:V=2:H=0";
+  //When set, getNoteStoreUrl() counts down url_asked and waits for it.
+  private volatile CountDownLatch url_gate = null;
+  private final CountDownLatch url_asked = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws IOException {
+    server = new FakeNoteStoreServer(new FakeNoteStore().getNoteStore());
+    dir = File.createTempFile("evernote-client", "");
+    assertTrue(dir.delete());
+    client = new EvernoteClient(new EvernoteClient.Credentials() {
+      public String getAuthToken() {
+        return auth_token;
+      }
+      public boolean isLoggedIn() {
+        return true;
+      }
+      public NoteStoreIface createNoteStore() throws TTransportException {
+        return NoteStoreClientPool.httpFactory(server.getUrl()).create();
+      }
+      public String getNoteStoreUrl() {
+        CountDownLatch gate = url_gate;
+        if (gate != null) {
+          url_asked.countDown();
+          try {
+            gate.await();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return server.getUrl();
+      }
+    }, dir, APIExecutor.DIRECT_DELIVERY);
+  }
+
+  @Override
+  protected void tearDown() {
+    client.close();
+    server.stop();
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  public void testRunsWithoutActivity() throws Exception {
+    Note note = new Note();
+    note.setTitle("title");
+    EvernoteClient.Util.setPlainContent(note, "hello world");
+    Note created = client.createBlockingNoteStore().createNote(client.getAuthToken(), note);
+
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Tag> tag = new AtomicReference<Tag>();
+    EvernoteClient.Util.getOrCreateTagByName(client, "Work", new APICallBack<Tag>() {
+      public void call(APIResult<Tag> result) {
+        try {
+          tag.set(result.get());
+        }
+        catch (Exception e) {
+          //Left null.
+        }
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals("Work", tag.get().getName());
+
+    assertEquals(1, client.createFutureNoteStore().listTags(client.getAuthToken()).get().size());
+    assertEquals(1, client.getNoteStoreMetrics().snapshot("createNote").getCallCount());
+
+    //Local stores are under the data directory, and notes synced are tracked.
+    NoteChangeTracker tracker = client.getNoteChangeTracker();
+    client.getSyncEngine().sync();
+    assertEquals("title", client.getSyncEngine().getStore().getNote(created.getGuid()).getTitle());
+    assertEquals(new File(dir, "user-1a2b"), client.getAccountDir());
+    assertTrue(new File(client.getAccountDir(), "sync").isDirectory());
+    assertTrue(tracker.isTracked(created.getGuid()));
+  }
+
+  public void testNotesChangedOnServerLeaveTheIndex() throws Exception {
+    NoteStoreIface note_store = client.createBlockingNoteStore();
+    FullTextIndex index = client.getFullTextIndex();
+    String[] guids = new String[2];
+    for (int i = 0; i < 2; i++) {
+      Note note = new Note();
+      note.setTitle("note " + i);
+      EvernoteClient.Util.setPlainContent(note, "hello " + i);
+      guids[i] = note_store.createNote(client.getAuthToken(), note).getGuid();
+      index.put(note_store.getNote(client.getAuthToken(), guids[i], true, false, false, false));
+    }
+    client.getSyncEngine().sync();
+    assertTrue(index.contains(guids[0]));
+    assertTrue(index.contains(guids[1]));
+
+    Note changed = note_store.getNote(client.getAuthToken(), guids[0], true, false, false, false);
+    changed.setTitle("changed");
+    note_store.updateNote(client.getAuthToken(), changed);
+    client.getSyncEngine().sync();
+    assertFalse(index.contains(guids[0]));
+    assertTrue(index.contains(guids[1]));
+  }
+
+  public void testInitStartsOver() throws Exception {
+    TagIndex tag_index = client.getTagIndex();
+    SyncEngine sync_engine = client.getSyncEngine();
+    NoteStoreClientPool pool = client.getNoteStorePool();
+    client.init(dir);
+    assertNotSame(tag_index, client.getTagIndex());
+    assertNotSame(sync_engine, client.getSyncEngine());
+    assertNotSame(pool, client.getNoteStorePool());
+  }
+
+  public void testStateIsDroppedWhenAccountChanges() throws Exception {
+    SyncEngine sync_engine = client.getSyncEngine();
+    NoteChangeTracker tracker = client.getNoteChangeTracker();
+    FullTextIndex index = client.getFullTextIndex();
+    NoteContentStore content_store = client.getContentStore();
+    File account_dir = client.getAccountDir();
+
+    //A new token of the same user keeps the directory.
+    auth_token = "S=s1:U=1a2b:E=1:C=1:P=0:A=test:V=2:H=1";
+    assertNotSame(sync_engine, client.getSyncEngine());
+    assertEquals(account_dir, client.getAccountDir());
+
+    auth_token = "S=s1:U=3c4d:E=0:C=0:P=0:A=test:V=2:H=0";
+    assertNotSame(tracker, client.getNoteChangeTracker());
+    assertNotSame(index, client.getFullTextIndex());
+    assertNotSame(content_store, client.getContentStore());
+    assertEquals(new File(dir, "user-3c4d"), client.getAccountDir());
+    assertTrue(EvernoteClient.accountDirName("other").startsWith("token-"));
+  }
+
+  public void testNoteStoreUrlIsResolvedOutOfTheLock() throws Exception {
+    url_gate = new CountDownLatch(1);
+    final AtomicReference<NoteLoader> loader = new AtomicReference<NoteLoader>();
+    Thread thread = new Thread() {
+      public void run() {
+        loader.set(client.getNoteLoader());
+      }
+    };
+    thread.start();
+    assertTrue(url_asked.await(10, TimeUnit.SECONDS));
+    //Other methods are not blocked while the URL is resolved.
+    assertNotNull(client.getSyncEngine());
+    url_gate.countDown();
+    thread.join(10000);
+    assertNotNull(loader.get());
+    assertSame(loader.get(), client.getNoteLoader());
+  }
+}
@@ -0,0 +1,642 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.evernote.edam.error.*;
+import com.evernote.edam.notestore.*;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * An in-memory NoteStore for tests and load tests without the service.
+ * getNoteStore() gives it in process, and FakeNoteStoreServer serves it over Thrift on localhost.
+ * Calls through getNoteStore() can be slowed down by a latency, and fail by injected transport errors
+ * and rate limits. seeded() builds a reproducible account of any size; contents of seeded notes are
+ * generated when they are read, so large accounts stay small in memory.
+ *
+ * Notebooks, tags and notes are supported with the calls used by this library:
+ * sync, find/get/create/update/delete/expunge of notes, and list/get/create/update/expunge of tags and notebooks.
+ */
+class FakeNoteStore {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String[] WORDS = {
+    "alpha", "beta", "gamma", "delta", "meeting", "todo", "recipe", "travel", "idea", "draft",
+    "invoice", "book", "evernote", "android", "java", "memo", "list", "plan", "note", "photo"};
+
+  private final NoteStoreIface note_store;
+  private final AtomicLong call_count = new AtomicLong();
+
+  //Faults, guarded by faults.
+  private final Random faults = new Random(0);
+  private long latency_millis = 0;
+  private double error_rate = 0;
+  private int rate_limit_calls = 0;
+  private long rate_limit_window_millis = 0;
+  private int rate_limit_duration = 0;
+  private long window_start = 0;
+  private int window_calls = 0;
+
+  //Account, guarded by this.
+  private int update_count = 0;
+  private int next_id = 0;
+  private long seed = 0;
+  private String default_notebook;
+  private final Map<String, Notebook> notebooks = new LinkedHashMap<String, Notebook>();
+  private final Map<String, Tag> tags = new LinkedHashMap<String, Tag>();
+  private final Map<String, Note> notes = new LinkedHashMap<String, Note>();
+  //Contents given by clients. Contents of other notes are generated from the seed.
+  private final Map<String, String> contents = new HashMap<String, String>();
+  //Objects and expunged guids by their USN.
+  private final TreeMap<Integer, Object> by_usn = new TreeMap<Integer, Object>();
+
+
+  private static final class Expunged {
+    final Class<?> type;
+    final String guid;
+
+    Expunged(Class<?> type, String guid) {
+      this.type = type;
+      this.guid = guid;
+    }
+  }
+
+
+  FakeNoteStore() {
+    Notebook notebook = new Notebook();
+    notebook.setName("Default");
+    default_notebook = addNotebook(notebook).getGuid();
+    note_store = faulty(NoteStoreStubs.stub(this));
+  }
+
+  /**
+   * Build an account with generated notes and tags. The same arguments give the same account.
+   *
+   * @param seed the seed of the generation.
+   * @param note_count the number of notes.
+   * @param tag_count the number of tags.
+   */
+  static FakeNoteStore seeded(long seed, int note_count, int tag_count) {
+    FakeNoteStore fake = new FakeNoteStore();
+    synchronized (fake) {
+      fake.seed = seed;
+      Random random = new Random(seed);
+      List<String> notebook_guids = new ArrayList<String>();
+      notebook_guids.add(fake.default_notebook);
+      for (int i = 1; i < 10; i++) {
+        Notebook notebook = new Notebook();
+        notebook.setName("Notebook " + i);
+        notebook_guids.add(fake.addNotebook(notebook).getGuid());
+      }
+      List<String> tag_guids = new ArrayList<String>();
+      for (int i = 0; i < tag_count; i++) {
+        Tag tag = new Tag();
+        tag.setName("Tag " + i);
+        tag_guids.add(fake.addTag(tag).getGuid());
+      }
+      long time = 1300000000000L;
+      for (int i = 0; i < note_count; i++) {
+        Note note = new Note();
+        note.setTitle(WORDS[random.nextInt(WORDS.length)] + " " + i);
+        note.setNotebookGuid(notebook_guids.get(random.nextInt(notebook_guids.size())));
+        for (int j = random.nextInt(4); j > 0 && !tag_guids.isEmpty(); j--) {
+          String tag_guid = tag_guids.get(random.nextInt(tag_guids.size()));
+          if (!note.isSetTagGuids() || !note.getTagGuids().contains(tag_guid)) {
+            note.addToTagGuids(tag_guid);
+          }
+        }
+        time += random.nextInt(1000 * 1000);
+        note.setCreated(time);
+        note.setUpdated(time);
+        note.setActive(true);
+        fake.addNote(note);
+      }
+    }
+    return fake;
+  }
+
+
+  /**
+   * Get the NoteStore with the injected faults.
+   */
+  NoteStoreIface getNoteStore() {
+    return note_store;
+  }
+
+  /**
+   * Delay every call by a latency.
+   */
+  void setLatency(long latency_millis) {
+    synchronized (faults) {
+      this.latency_millis = latency_millis;
+    }
+  }
+
+  /**
+   * Fail calls at random by TTransportException at a rate between 0 and 1.
+   */
+  void setErrorRate(double error_rate) {
+    synchronized (faults) {
+      this.error_rate = error_rate;
+    }
+  }
+
+  /**
+   * Refuse calls over a number in a time window with a rate limit error. 0 calls disables the limit.
+   *
+   * @param calls the number of calls allowed in a window.
+   * @param window_millis the length of a window.
+   * @param duration_seconds the duration told in rate limit errors.
+   */
+  void setRateLimit(int calls, long window_millis, int duration_seconds) {
+    synchronized (faults) {
+      rate_limit_calls = calls;
+      rate_limit_window_millis = window_millis;
+      rate_limit_duration = duration_seconds;
+      window_start = 0;
+      window_calls = 0;
+    }
+  }
+
+  /**
+   * Get the number of calls made through getNoteStore(), including failed ones.
+   */
+  long getCallCount() {
+    return call_count.get();
+  }
+
+  synchronized int getNoteCount() {
+    return notes.size();
+  }
+
+
+  private NoteStoreIface faulty(final NoteStoreIface delegate) {
+    return (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          call_count.incrementAndGet();
+          long latency;
+          boolean error;
+          int rate_limited = -1;
+          synchronized (faults) {
+            latency = latency_millis;
+            error = error_rate > 0 && faults.nextDouble() < error_rate;
+            if (rate_limit_calls > 0) {
+              long now = System.currentTimeMillis();
+              if (now - window_start >= rate_limit_window_millis) {
+                window_start = now;
+                window_calls = 0;
+              }
+              if (++window_calls > rate_limit_calls) {
+                rate_limited = rate_limit_duration;
+              }
+            }
+          }
+          if (latency > 0) {
+            Thread.sleep(latency);
+          }
+          if (rate_limited >= 0) {
+            throw new RateLimitException(rate_limited);
+          }
+          if (error) {
+            throw new TTransportException(TTransportException.UNKNOWN, "Injected error.");
+          }
+          try {
+            return method.invoke(delegate, args);
+          }
+          catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+  }
+
+
+  //NoteStore methods.
+
+  public synchronized SyncState getSyncState(String authToken) {
+    SyncState state = new SyncState();
+    state.setCurrentTime(System.currentTimeMillis());
+    state.setFullSyncBefore(0);
+    state.setUpdateCount(update_count);
+    state.setUploaded(0);
+    return state;
+  }
+
+  public synchronized SyncChunk getSyncChunk(String authToken, int afterUSN, int maxEntries, boolean fullSyncOnly) {
+    SyncChunk chunk = new SyncChunk();
+    chunk.setCurrentTime(System.currentTimeMillis());
+    chunk.setUpdateCount(update_count);
+    int entries = 0;
+    for (Map.Entry<Integer, Object> entry : by_usn.tailMap(afterUSN, false).entrySet()) {
+      if (entries >= maxEntries) {
+        break;
+      }
+      Object value = entry.getValue();
+      if (value instanceof Note) {
+        chunk.addToNotes(copyOf((Note) value, false));
+      }
+      else if (value instanceof Notebook) {
+        chunk.addToNotebooks(((Notebook) value).deepCopy());
+      }
+      else if (value instanceof Tag) {
+        chunk.addToTags(((Tag) value).deepCopy());
+      }
+      else if (fullSyncOnly) {
+        continue;
+      }
+      else if (((Expunged) value).type == Note.class) {
+        chunk.addToExpungedNotes(((Expunged) value).guid);
+      }
+      else if (((Expunged) value).type == Notebook.class) {
+        chunk.addToExpungedNotebooks(((Expunged) value).guid);
+      }
+      else {
+        chunk.addToExpungedTags(((Expunged) value).guid);
+      }
+      chunk.setChunkHighUSN(entry.getKey());
+      entries++;
+    }
+    return chunk;
+  }
+
+  public synchronized List<Notebook> listNotebooks(String authToken) {
+    List<Notebook> list = new ArrayList<Notebook>();
+    for (Notebook notebook : notebooks.values()) {
+      list.add(notebook.deepCopy());
+    }
+    return list;
+  }
+
+  public synchronized Notebook getNotebook(String authToken, String guid) throws EDAMNotFoundException {
+    return find(notebooks, guid, "Notebook.guid").deepCopy();
+  }
+
+  public synchronized Notebook getDefaultNotebook(String authToken) {
+    return notebooks.get(default_notebook).deepCopy();
+  }
+
+  public synchronized Notebook createNotebook(String authToken, Notebook notebook) throws EDAMUserException {
+    checkName(notebook.getName(), "Notebook.name");
+    for (Notebook other : notebooks.values()) {
+      if (other.getName().equalsIgnoreCase(notebook.getName())) {
+        throw userException(EDAMErrorCode.DATA_CONFLICT, "Notebook.name");
+      }
+    }
+    return addNotebook(notebook.deepCopy()).deepCopy();
+  }
+
+  public synchronized int updateNotebook(String authToken, Notebook notebook) throws EDAMUserException, EDAMNotFoundException {
+    Notebook current = find(notebooks, notebook.getGuid(), "Notebook.guid");
+    if (notebook.isSetName()) {
+      checkName(notebook.getName(), "Notebook.name");
+      current.setName(notebook.getName());
+    }
+    return touch(current.getUpdateSequenceNum(), current);
+  }
+
+  public synchronized List<Tag> listTags(String authToken) {
+    List<Tag> list = new ArrayList<Tag>();
+    for (Tag tag : tags.values()) {
+      list.add(tag.deepCopy());
+    }
+    return list;
+  }
+
+  public synchronized Tag getTag(String authToken, String guid) throws EDAMNotFoundException {
+    return find(tags, guid, "Tag.guid").deepCopy();
+  }
+
+  public synchronized Tag createTag(String authToken, Tag tag) throws EDAMUserException {
+    checkName(tag.getName(), "Tag.name");
+    if (findTagByName(tag.getName()) != null) {
+      throw userException(EDAMErrorCode.DATA_CONFLICT, "Tag.name");
+    }
+    return addTag(tag.deepCopy()).deepCopy();
+  }
+
+  public synchronized int updateTag(String authToken, Tag tag) throws EDAMUserException, EDAMNotFoundException {
+    Tag current = find(tags, tag.getGuid(), "Tag.guid");
+    if (tag.isSetName()) {
+      checkName(tag.getName(), "Tag.name");
+      Tag other = findTagByName(tag.getName());
+      if (other != null && other != current) {
+        throw userException(EDAMErrorCode.DATA_CONFLICT, "Tag.name");
+      }
+      current.setName(tag.getName());
+    }
+    if (tag.isSetParentGuid()) {
+      current.setParentGuid(tag.getParentGuid());
+    }
+    return touch(current.getUpdateSequenceNum(), current);
+  }
+
+  public synchronized int expungeTag(String authToken, String guid) throws EDAMNotFoundException {
+    Tag tag = find(tags, guid, "Tag.guid");
+    tags.remove(guid);
+    by_usn.remove(tag.getUpdateSequenceNum());
+    by_usn.put(++update_count, new Expunged(Tag.class, guid));
+    for (Note note : notes.values()) {
+      if (note.isSetTagGuids()) {
+        note.getTagGuids().remove(guid);
+      }
+    }
+    return update_count;
+  }
+
+  public synchronized Note getNote(String authToken, String guid, boolean withContent, boolean withResourcesData,
+                                   boolean withResourcesRecognition, boolean withResourcesAlternateData)
+  throws EDAMNotFoundException {
+    return copyOf(find(notes, guid, "Note.guid"), withContent);
+  }
+
+  public synchronized String getNoteContent(String authToken, String guid) throws EDAMNotFoundException {
+    find(notes, guid, "Note.guid");
+    return contentOf(guid);
+  }
+
+  public synchronized List<String> getNoteTagNames(String authToken, String guid) throws EDAMNotFoundException {
+    Note note = find(notes, guid, "Note.guid");
+    List<String> names = new ArrayList<String>();
+    if (note.isSetTagGuids()) {
+      for (String tag_guid : note.getTagGuids()) {
+        names.add(tags.get(tag_guid).getName());
+      }
+    }
+    return names;
+  }
+
+  public synchronized Note createNote(String authToken, Note note) throws EDAMUserException, EDAMNotFoundException {
+    checkName(note.getTitle(), "Note.title");
+    Note created = new Note();
+    created.setTitle(note.getTitle());
+    created.setNotebookGuid(note.isSetNotebookGuid() ? note.getNotebookGuid() : default_notebook);
+    find(notebooks, created.getNotebookGuid(), "Note.notebookGuid");
+    setTags(created, note);
+    long now = System.currentTimeMillis();
+    created.setCreated(note.isSetCreated() ? note.getCreated() : now);
+    created.setUpdated(note.isSetUpdated() ? note.getUpdated() : now);
+    created.setActive(true);
+    if (note.isSetAttributes()) {
+      created.setAttributes(note.getAttributes().deepCopy());
+    }
+    addNote(created);
+    contents.put(created.getGuid(), note.isSetContent() ? note.getContent() : "");
+    return copyOf(created, false);
+  }
+
+  public synchronized Note updateNote(String authToken, Note note) throws EDAMUserException, EDAMNotFoundException {
+    Note current = find(notes, note.getGuid(), "Note.guid");
+    if (note.isSetTitle()) {
+      checkName(note.getTitle(), "Note.title");
+      current.setTitle(note.getTitle());
+    }
+    if (note.isSetNotebookGuid()) {
+      find(notebooks, note.getNotebookGuid(), "Note.notebookGuid");
+      current.setNotebookGuid(note.getNotebookGuid());
+    }
+    if (note.isSetTagGuids() || note.isSetTagNames()) {
+      current.unsetTagGuids();
+      setTags(current, note);
+    }
+    if (note.isSetContent()) {
+      contents.put(current.getGuid(), note.getContent());
+      current.unsetContentHash();
+      current.unsetContentLength();
+    }
+    if (note.isSetActive()) {
+      current.setActive(note.isActive());
+    }
+    if (note.isSetAttributes()) {
+      current.setAttributes(note.getAttributes().deepCopy());
+    }
+    current.setUpdated(note.isSetUpdated() ? note.getUpdated() : System.currentTimeMillis());
+    touch(current.getUpdateSequenceNum(), current);
+    return copyOf(current, false);
+  }
+
+  public synchronized int deleteNote(String authToken, String guid) throws EDAMNotFoundException {
+    Note note = find(notes, guid, "Note.guid");
+    note.setActive(false);
+    note.setDeleted(System.currentTimeMillis());
+    return touch(note.getUpdateSequenceNum(), note);
+  }
+
+  public synchronized int expungeNote(String authToken, String guid) throws EDAMNotFoundException {
+    Note note = find(notes, guid, "Note.guid");
+    notes.remove(guid);
+    contents.remove(guid);
+    by_usn.remove(note.getUpdateSequenceNum());
+    by_usn.put(++update_count, new Expunged(Note.class, guid));
+    return update_count;
+  }
+
+  public synchronized NotesMetadataList findNotesMetadata(String authToken, NoteFilter filter, int offset, int maxNotes,
+                                                          NotesMetadataResultSpec resultSpec) {
+    List<Note> matches = new ArrayList<Note>();
+    String words = filter.isSetWords() ? filter.getWords().toLowerCase(Locale.ENGLISH) : null;
+    for (Note note : notes.values()) {
+      if (note.isActive() == (filter.isSetInactive() && filter.isInactive())) {
+        continue;
+      }
+      if (filter.isSetNotebookGuid() && !filter.getNotebookGuid().equals(note.getNotebookGuid())) {
+        continue;
+      }
+      if (filter.isSetTagGuids()
+          && (!note.isSetTagGuids() || !note.getTagGuids().containsAll(filter.getTagGuids()))) {
+        continue;
+      }
+      if (words != null && !note.getTitle().toLowerCase(Locale.ENGLISH).contains(words)) {
+        continue;
+      }
+      matches.add(note);
+    }
+    NotesMetadataList list = new NotesMetadataList();
+    list.setStartIndex(offset);
+    list.setTotalNotes(matches.size());
+    list.setUpdateCount(update_count);
+    list.setNotes(new ArrayList<NoteMetadata>());
+    for (int i = offset; i < matches.size() && i < offset + maxNotes; i++) {
+      Note note = matches.get(i);
+      NoteMetadata metadata = new NoteMetadata();
+      metadata.setGuid(note.getGuid());
+      if (resultSpec.isIncludeTitle()) {
+        metadata.setTitle(note.getTitle());
+      }
+      if (resultSpec.isIncludeContentLength()) {
+        metadata.setContentLength(copyOf(note, false).getContentLength());
+      }
+      if (resultSpec.isIncludeCreated()) {
+        metadata.setCreated(note.getCreated());
+      }
+      if (resultSpec.isIncludeUpdated()) {
+        metadata.setUpdated(note.getUpdated());
+      }
+      if (resultSpec.isIncludeUpdateSequenceNum()) {
+        metadata.setUpdateSequenceNum(note.getUpdateSequenceNum());
+      }
+      if (resultSpec.isIncludeNotebookGuid()) {
+        metadata.setNotebookGuid(note.getNotebookGuid());
+      }
+      if (resultSpec.isIncludeTagGuids() && note.isSetTagGuids()) {
+        metadata.setTagGuids(new ArrayList<String>(note.getTagGuids()));
+      }
+      list.addToNotes(metadata);
+    }
+    return list;
+  }
+
+
+  private Notebook addNotebook(Notebook notebook) {
+    notebook.setGuid(newGuid("notebook"));
+    notebooks.put(notebook.getGuid(), notebook);
+    touch(-1, notebook);
+    return notebook;
+  }
+
+  private Tag addTag(Tag tag) {
+    tag.setGuid(newGuid("tag"));
+    tags.put(tag.getGuid(), tag);
+    touch(-1, tag);
+    return tag;
+  }
+
+  private Note addNote(Note note) {
+    note.setGuid(newGuid("note"));
+    notes.put(note.getGuid(), note);
+    touch(-1, note);
+    return note;
+  }
+
+  /**
+   * Give the next USN to an object.
+   */
+  private int touch(int old_usn, Object value) {
+    by_usn.remove(old_usn);
+    update_count++;
+    if (value instanceof Note) {
+      ((Note) value).setUpdateSequenceNum(update_count);
+    }
+    else if (value instanceof Notebook) {
+      ((Notebook) value).setUpdateSequenceNum(update_count);
+    }
+    else {
+      ((Tag) value).setUpdateSequenceNum(update_count);
+    }
+    by_usn.put(update_count, value);
+    return update_count;
+  }
+
+  private String newGuid(String kind) {
+    return String.format("%08x-0000-4000-8000-%012x", kind.hashCode(), next_id++);
+  }
+
+  private void setTags(Note target, Note source) throws EDAMUserException, EDAMNotFoundException {
+    if (source.isSetTagGuids()) {
+      for (String tag_guid : source.getTagGuids()) {
+        find(tags, tag_guid, "Note.tagGuids");
+        target.addToTagGuids(tag_guid);
+      }
+    }
+    if (source.isSetTagNames()) {
+      for (String name : source.getTagNames()) {
+        Tag tag = findTagByName(name);
+        if (tag == null) {
+          checkName(name, "Tag.name");
+          tag = new Tag();
+          tag.setName(name);
+          addTag(tag);
+        }
+        if (!target.isSetTagGuids() || !target.getTagGuids().contains(tag.getGuid())) {
+          target.addToTagGuids(tag.getGuid());
+        }
+      }
+    }
+  }
+
+  private Tag findTagByName(String name) {
+    for (Tag tag : tags.values()) {
+      if (tag.getName().equalsIgnoreCase(name)) {
+        return tag;
+      }
+    }
+    return null;
+  }
+
+  private Note copyOf(Note note, boolean with_content) {
+    if (!note.isSetContentHash()) {
+      byte[] content = contentOf(note.getGuid()).getBytes(UTF_8);
+      note.setContentHash(md5(content));
+      note.setContentLength(content.length);
+    }
+    Note copy = note.deepCopy();
+    if (with_content) {
+      copy.setContent(contentOf(note.getGuid()));
+    }
+    return copy;
+  }
+
+  private String contentOf(String guid) {
+    String content = contents.get(guid);
+    if (content != null) {
+      return content;
+    }
+    Random random = new Random(seed ^ guid.hashCode());
+    StringBuilder plain = new StringBuilder();
+    for (int i = 20 + random.nextInt(200); i > 0; i--) {
+      plain.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+    }
+    return EnmlWriter.toEnml(plain);
+  }
+
+  private static <T> T find(Map<String, T> map, String guid, String identifier) throws EDAMNotFoundException {
+    T value = guid == null ? null : map.get(guid);
+    if (value == null) {
+      EDAMNotFoundException e = new EDAMNotFoundException();
+      e.setIdentifier(identifier);
+      e.setKey(guid);
+      throw e;
+    }
+    return value;
+  }
+
+  private static void checkName(String name, String parameter) throws EDAMUserException {
+    if (name == null || name.trim().length() == 0) {
+      throw userException(EDAMErrorCode.BAD_DATA_FORMAT, parameter);
+    }
+  }
+
+  private static EDAMUserException userException(EDAMErrorCode code, String parameter) {
+    EDAMUserException e = new EDAMUserException(code);
+    e.setParameter(parameter);
+    return e;
+  }
+
+  private static byte[] md5(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,345 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.thrift.TApplicationException;
+import com.evernote.thrift.TBase;
+import com.evernote.thrift.TException;
+import com.evernote.thrift.protocol.*;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * Thrift-over-HTTP server on localhost answering every NoteStore call with a NoteStoreIface, such as
+ * FakeNoteStore.getNoteStore(). Clients of NoteStoreClientPool.httpFactory(getUrl()) talk to it as to the service.
+ *
+ * Calls are decoded and encoded with the generated *_args and *_result structs of NoteStore, found by reflection.
+ * TTransportException of the NoteStore is answered by HTTP 500, and RateLimitException is encoded as the service
+ * does, with RATE_LIMIT_REACHED and rateLimitDuration which the SDK in use does not know.
+ */
+class FakeNoteStoreServer {
+  //Values of fields the SDK in use does not have.
+  private static final int RATE_LIMIT_REACHED = 19;
+  private static final short RATE_LIMIT_DURATION_ID = 3;
+
+  private static final Map<String, Call> CALLS = new ConcurrentHashMap<String, Call>();
+  static {
+    //Without TCP_NODELAY, small replies wait for delayed ACKs, about 40ms per call.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  private final NoteStoreIface note_store;
+  private final HttpServer server;
+  private final ExecutorService threads;
+
+
+  /**
+   * A NoteStore method with its argument and result structs.
+   */
+  private static final class Call {
+    final Method method;
+    final Constructor<?> args_constructor;
+    final List<Field> args_fields;
+    final List<TField> result_fields;
+
+    Call(Method method, Constructor<?> args_constructor, List<Field> args_fields, List<TField> result_fields) {
+      this.method = method;
+      this.args_constructor = args_constructor;
+      this.args_fields = args_fields;
+      this.result_fields = result_fields;
+    }
+  }
+
+
+  /**
+   * Start a server.
+   *
+   * @param note_store the NoteStore answering calls. Calls run in parallel, so it has to be thread-safe.
+   */
+  FakeNoteStoreServer(NoteStoreIface note_store) throws IOException {
+    this.note_store = note_store;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] response;
+        try {
+          response = reply(readAll(exchange.getRequestBody()));
+        }
+        catch (TException e) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/x-thrift");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+      }
+    });
+    threads = Executors.newCachedThreadPool();
+    server.setExecutor(threads);
+    server.start();
+  }
+
+  String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  void stop() {
+    server.stop(0);
+    threads.shutdown();
+  }
+
+
+  /**
+   * Answer a request.
+   *
+   * @throws TException when the request cannot be read or the NoteStore fails in the transport layer.
+   */
+  private byte[] reply(byte[] request) throws TException {
+    TProtocol in = new TBinaryProtocol(new StreamTransport(new ByteArrayInputStream(request), null));
+    TMessage message = in.readMessageBegin();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    TProtocol out = new TBinaryProtocol(new StreamTransport(null, bytes));
+
+    Call call = callFor(message.name);
+    if (call == null) {
+      TProtocolUtil.skip(in, TType.STRUCT);
+      in.readMessageEnd();
+      writeException(out, message, new TApplicationException(TApplicationException.UNKNOWN_METHOD, message.name));
+      return bytes.toByteArray();
+    }
+
+    Object value;
+    Throwable error;
+    try {
+      TBase<?> args = (TBase<?>) call.args_constructor.newInstance();
+      args.read(in);
+      in.readMessageEnd();
+      Object[] arg_values = new Object[call.args_fields.size()];
+      for (int i = 0; i < arg_values.length; i++) {
+        arg_values[i] = call.args_fields.get(i).get(args);
+      }
+      value = call.method.invoke(note_store, arg_values);
+      error = null;
+    }
+    catch (InvocationTargetException e) {
+      value = null;
+      error = e.getCause();
+    }
+    catch (ReflectiveOperationException e) {
+      throw new TException(e);
+    }
+    if (error instanceof TTransportException) {
+      throw (TTransportException) error;
+    }
+
+    TField field = null;
+    if (error != null) {
+      field = resultField(call, error);
+      if (field == null) {
+        writeException(out, message, new TApplicationException(TApplicationException.INTERNAL_ERROR, String.valueOf(error)));
+        return bytes.toByteArray();
+      }
+    }
+    else if (value != null) {
+      field = resultField(call, null);
+    }
+    out.writeMessageBegin(new TMessage(message.name, TMessageType.REPLY, message.seqid));
+    out.writeStructBegin(new TStruct(message.name + "_result"));
+    if (field != null) {
+      out.writeFieldBegin(field);
+      if (error instanceof RateLimitException) {
+        writeRateLimit(out, (RateLimitException) error);
+      }
+      else if (error != null) {
+        ((TBase<?>) error).write(out);
+      }
+      else {
+        writeValue(out, field.type, value);
+      }
+      out.writeFieldEnd();
+    }
+    out.writeFieldStop();
+    out.writeStructEnd();
+    out.writeMessageEnd();
+    return bytes.toByteArray();
+  }
+
+  private static Call callFor(String name) throws TException {
+    Call call = CALLS.get(name);
+    if (call != null) {
+      return call;
+    }
+    Method method = null;
+    for (Method m : NoteStoreIface.class.getMethods()) {
+      if (m.getName().equals(name)) {
+        method = m;
+      }
+    }
+    if (method == null) {
+      return null;
+    }
+    try {
+      Class<?> args_class = Class.forName(NoteStore.class.getName() + "$" + name + "_args");
+      Class<?> result_class = Class.forName(NoteStore.class.getName() + "$" + name + "_result");
+      Constructor<?> args_constructor = args_class.getDeclaredConstructor();
+      args_constructor.setAccessible(true);
+      List<Field> args_fields = new ArrayList<Field>();
+      for (TField desc : fieldDescs(args_class)) {
+        Field field = args_class.getDeclaredField(desc.name);
+        field.setAccessible(true);
+        args_fields.add(field);
+      }
+      call = new Call(method, args_constructor, args_fields, fieldDescs(result_class));
+    }
+    catch (ReflectiveOperationException e) {
+      throw new TException(e);
+    }
+    CALLS.put(name, call);
+    return call;
+  }
+
+  /**
+   * Get the field descriptions of a generated struct in order of their ids.
+   */
+  private static List<TField> fieldDescs(Class<?> struct_class) throws IllegalAccessException {
+    List<TField> descs = new ArrayList<TField>();
+    for (Field field : struct_class.getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers()) && field.getType() == TField.class) {
+        field.setAccessible(true);
+        descs.add((TField) field.get(null));
+      }
+    }
+    Collections.sort(descs, new Comparator<TField>() {
+      public int compare(TField a, TField b) {
+        return a.id - b.id;
+      }
+    });
+    return descs;
+  }
+
+  /**
+   * Get the result field for an error, or for the success value when error is null.
+   */
+  private static TField resultField(Call call, Throwable error) {
+    String name = "success";
+    if (error instanceof EDAMUserException) {
+      name = "userException";
+    }
+    else if (error instanceof EDAMSystemException) {
+      name = "systemException";
+    }
+    else if (error instanceof EDAMNotFoundException) {
+      name = "notFoundException";
+    }
+    else if (error != null) {
+      return null;
+    }
+    for (TField field : call.result_fields) {
+      if (field.name.equals(name)) {
+        return field;
+      }
+    }
+    return null;
+  }
+
+  private static void writeValue(TProtocol out, byte type, Object value) throws TException {
+    switch (type) {
+    case TType.STRUCT:
+      ((TBase<?>) value).write(out);
+      break;
+    case TType.STRING:
+      if (value instanceof byte[]) {
+        out.writeBinary(ByteBuffer.wrap((byte[]) value));
+      }
+      else {
+        out.writeString((String) value);
+      }
+      break;
+    case TType.I32:
+      out.writeI32((Integer) value);
+      break;
+    case TType.I64:
+      out.writeI64((Long) value);
+      break;
+    case TType.BOOL:
+      out.writeBool((Boolean) value);
+      break;
+    case TType.LIST:
+      List<?> list = (List<?>) value;
+      byte element_type = list.isEmpty() || list.get(0) instanceof TBase ? TType.STRUCT
+        : list.get(0) instanceof String ? TType.STRING : TType.I32;
+      out.writeListBegin(new TList(element_type, list.size()));
+      for (Object element : list) {
+        writeValue(out, element_type, element);
+      }
+      out.writeListEnd();
+      break;
+    default:
+      throw new TException("Unsupported result type: " + type);
+    }
+  }
+
+  private static void writeRateLimit(TProtocol out, RateLimitException e) throws TException {
+    out.writeStructBegin(new TStruct("EDAMSystemException"));
+    out.writeFieldBegin(new TField("errorCode", TType.I32, (short) 1));
+    out.writeI32(RATE_LIMIT_REACHED);
+    out.writeFieldEnd();
+    out.writeFieldBegin(new TField("message", TType.STRING, (short) 2));
+    out.writeString(e.getMessage());
+    out.writeFieldEnd();
+    out.writeFieldBegin(new TField("rateLimitDuration", TType.I32, RATE_LIMIT_DURATION_ID));
+    out.writeI32(e.getRateLimitDuration());
+    out.writeFieldEnd();
+    out.writeFieldStop();
+    out.writeStructEnd();
+  }
+
+  private static void writeException(TProtocol out, TMessage message, TApplicationException e) throws TException {
+    out.writeMessageBegin(new TMessage(message.name, TMessageType.EXCEPTION, message.seqid));
+    e.write(out);
+    out.writeMessageEnd();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) >= 0) {
+      bytes.write(buf, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+}
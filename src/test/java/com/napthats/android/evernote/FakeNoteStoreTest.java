@@ -0,0 +1,190 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMErrorCode;
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.notestore.NoteFilter;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.NotesMetadataList;
+import com.evernote.edam.notestore.NotesMetadataResultSpec;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.protocol.TProtocolException;
+import com.evernote.thrift.transport.TTransportException;
+
+
+public class FakeNoteStoreTest extends TestCase {
+  private FakeNoteStoreServer server;
+
+  @Override
+  protected void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  private NoteStoreIface serve(FakeNoteStore fake) throws Exception {
+    server = new FakeNoteStoreServer(fake.getNoteStore());
+    return NoteStoreClientPool.httpFactory(server.getUrl()).create();
+  }
+
+  private static Note note(String title, String... tag_names) {
+    Note note = new Note();
+    note.setTitle(title);
+    note.setTagNames(new ArrayList<String>(Arrays.asList(tag_names)));
+    EvernoteActivity.Util.setPlainContent(note, "content of " + title);
+    return note;
+  }
+
+  public void testNotesAndTagsInProcess() throws Exception {
+    NoteStoreIface note_store = new FakeNoteStore().getNoteStore();
+    Note created = note_store.createNote("token", note("a", "Work", "home"));
+    assertNull(created.getContent());
+    assertEquals(2, created.getTagGuids().size());
+    assertEquals(2, note_store.listTags("token").size());
+    assertEquals("content of a\n",
+                 EvernoteActivity.Util.getPlainContent(note_store.getNote("token", created.getGuid(), true, false, false, false)));
+
+    Tag tag = new Tag();
+    tag.setName("WORK");
+    try {
+      note_store.createTag("token", tag);
+      fail();
+    }
+    catch (EDAMUserException e) {
+      assertEquals(EDAMErrorCode.DATA_CONFLICT, e.getErrorCode());
+    }
+
+    note_store.createNote("token", note("b", "home"));
+    NoteFilter filter = new NoteFilter();
+    filter.setTagGuids(Arrays.asList(created.getTagGuids().get(0)));
+    NotesMetadataResultSpec spec = new NotesMetadataResultSpec();
+    spec.setIncludeTitle(true);
+    NotesMetadataList list = note_store.findNotesMetadata("token", filter, 0, 10, spec);
+    assertEquals(1, list.getTotalNotes());
+    assertEquals("a", list.getNotes().get(0).getTitle());
+
+    note_store.expungeNote("token", created.getGuid());
+    SyncChunk chunk = note_store.getSyncChunk("token", created.getUpdateSequenceNum(), 100, false);
+    assertEquals(Arrays.asList(created.getGuid()), chunk.getExpungedNotes());
+    assertEquals(note_store.getSyncState("token").getUpdateCount(), chunk.getChunkHighUSN());
+  }
+
+  public void testSeededAccountsAreReproducible() throws Exception {
+    FakeNoteStore a = FakeNoteStore.seeded(42, 500, 50);
+    FakeNoteStore b = FakeNoteStore.seeded(42, 500, 50);
+    assertEquals(500, a.getNoteCount());
+    assertEquals(50, a.getNoteStore().listTags("token").size());
+    SyncChunk chunk_a = a.getNoteStore().getSyncChunk("token", 0, 1000, true);
+    SyncChunk chunk_b = b.getNoteStore().getSyncChunk("token", 0, 1000, true);
+    assertEquals(chunk_a.getNotes(), chunk_b.getNotes());
+    String guid = chunk_a.getNotes().get(7).getGuid();
+    assertEquals(a.getNoteStore().getNoteContent("token", guid), b.getNoteStore().getNoteContent("token", guid));
+    assertFalse(chunk_a.getNotes().equals(FakeNoteStore.seeded(43, 500, 50).getNoteStore().getSyncChunk("token", 0, 1000, true).getNotes()));
+  }
+
+  public void testServesOverHttp() throws Exception {
+    NoteStoreIface note_store = serve(new FakeNoteStore());
+    Note created = note_store.createNote("token", note("over http", "t"));
+    assertEquals("over http", note_store.getNote("token", created.getGuid(), false, false, false, false).getTitle());
+    assertEquals(Arrays.asList("t"), note_store.getNoteTagNames("token", created.getGuid()));
+    assertEquals(created.getUpdateSequenceNum() + 1, note_store.deleteNote("token", created.getGuid()));
+    try {
+      note_store.getNote("token", "missing", false, false, false, false);
+      fail();
+    }
+    catch (EDAMNotFoundException e) {
+      assertEquals("Note.guid", e.getIdentifier());
+    }
+  }
+
+  public void testInjectsFaultsOverHttp() throws Exception {
+    FakeNoteStore fake = new FakeNoteStore();
+    NoteStoreIface note_store = serve(fake);
+    fake.setRateLimit(1, 60 * 1000, 30);
+    note_store.getSyncState("token");
+    try {
+      note_store.getSyncState("token");
+      fail();
+    }
+    catch (TProtocolException e) {
+      //The SDK in use fails to read RATE_LIMIT_REACHED, and drops the duration.
+      assertEquals(RateLimits.DEFAULT_DURATION_SECONDS, RateLimits.durationSeconds(e));
+    }
+
+    fake.setRateLimit(0, 0, 0);
+    fake.setErrorRate(1);
+    try {
+      note_store.getSyncState("token");
+      fail();
+    }
+    catch (TTransportException e) {
+      //Expected.
+    }
+    assertEquals(3, fake.getCallCount());
+  }
+
+  public void testLatencyAndParallelCallsThroughProxies() throws Exception {
+    FakeNoteStore fake = FakeNoteStore.seeded(1, 100, 10);
+    fake.setLatency(50);
+    server = new FakeNoteStoreServer(fake.getNoteStore());
+    APIExecutor executor = new APIExecutor(8, 64);
+    NoteStoreClientPool pool = new NoteStoreClientPool(NoteStoreClientPool.httpFactory(server.getUrl()),
+      NoteStoreClientPool.TRANSPORT_VALIDATOR, 8, 60 * 1000, 10 * 1000);
+    NoteStoreFutureProxy proxy = (NoteStoreFutureProxy) Proxy.newProxyInstance(
+      NoteStoreFutureProxy.class.getClassLoader(),
+      new Class[] {NoteStoreFutureProxy.class},
+      new NoteStoreInvocationHandler(NoteStoreFutureProxy.class, pool, executor, APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY));
+    try {
+      long started = System.currentTimeMillis();
+      List<CompletableFuture<Tag>> futures = new ArrayList<CompletableFuture<Tag>>();
+      for (Tag tag : fake.getNoteStore().listTags("token")) {
+        futures.add(proxy.getTag("token", tag.getGuid()));
+      }
+      for (CompletableFuture<Tag> future : futures) {
+        assertNotNull(future.get().getName());
+      }
+      //10 calls of 50ms, 8 at a time.
+      assertTrue(System.currentTimeMillis() - started < 400);
+    }
+    finally {
+      executor.shutdown();
+      pool.close();
+    }
+  }
+
+  public void testSyncEngineOverHttp() throws Exception {
+    FakeNoteStore fake = FakeNoteStore.seeded(7, 300, 20);
+    NoteStoreIface note_store = serve(fake);
+    File dir = File.createTempFile("fake-sync", "");
+    dir.delete();
+    SyncStore store = new SyncStore(dir);
+    try {
+      SyncEngine engine = new SyncEngine(note_store, "token", store);
+      assertEquals(4, engine.sync());
+      assertEquals(300, store.getNotes().size());
+      assertEquals(20, store.getTags().size());
+
+      fake.getNoteStore().createNote("token", note("new"));
+      assertEquals(1, engine.sync());
+      assertEquals(301, store.getNotes().size());
+    }
+    finally {
+      store.close();
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.type.Note;
+
+
+public class FullTextIndexTest extends TestCase {
+  private File dir;
+  private FullTextIndex index;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("full-text-index", "");
+    dir.delete();
+    index = new FullTextIndex(dir);
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testTokenize() {
+    List<String> terms = new ArrayList<String>();
+    FullTextIndex.tokenize("Hello, World! CAFÉ x2 東京都に行く 本 a", terms);
+    assertEquals(Arrays.asList("hello", "world", "café", "x2", "東京", "京都", "都に", "に行", "行く", "本", "a"), terms);
+  }
+
+  public void testTermPrefixAndSearch() {
+    index.put("n1", "Meeting notes for the evernote sync", 1);
+    index.put("n2", "Shopping list: notebook, pen", 2);
+    index.put("n3", "東京の会議 notes", 3);
+
+    assertEquals(Arrays.asList("n3", "n1"), index.findTerm("Notes"));
+    assertEquals(Arrays.asList("n3", "n2", "n1"), index.findPrefix("note"));
+    assertEquals(Arrays.asList(), index.findTerm("note"));
+    assertEquals(Arrays.asList("n3"), index.findTerm("会議"));
+
+    assertEquals(Arrays.asList("n1"), index.search("notes ever", 10));
+    assertEquals(Arrays.asList(), index.search("notes ever ", 10));
+    assertEquals(Arrays.asList("n3", "n2"), index.search("no", 2));
+    assertEquals(Arrays.asList("n3"), index.search("東京", 10));
+    assertEquals(Arrays.asList("n3"), index.search("東", 10));
+    assertEquals(Arrays.asList(), index.search(" , ", 10));
+  }
+
+  public void testPutReplacesAndRemoveDrops() {
+    index.put("n1", "alpha beta", 1);
+    index.put("n2", "alpha", 2);
+    index.put("n1", "gamma", 5);
+    assertEquals(Arrays.asList("n2"), index.findTerm("alpha"));
+    assertEquals(Arrays.asList(), index.findTerm("beta"));
+    assertEquals(Arrays.asList("n1"), index.findTerm("gamma"));
+    assertEquals(5, index.getUpdateSequenceNum("n1"));
+
+    index.remove("n1");
+    index.remove("missing");
+    assertFalse(index.contains("n1"));
+    assertEquals(-1, index.getUpdateSequenceNum("n1"));
+    assertEquals(Arrays.asList(), index.findTerm("gamma"));
+    assertEquals(1, index.size());
+  }
+
+  public void testPutNote() {
+    Note note = new Note();
+    note.setGuid("n1");
+    note.setTitle("Title word");
+    note.setUpdateSequenceNum(7);
+    index.put(note);
+    assertFalse(index.contains("n1"));
+
+    EvernoteActivity.Util.setPlainContent(note, "content <word> & more");
+    index.put(note);
+    assertEquals(Arrays.asList("n1"), index.search("title word more", 10));
+    assertEquals(7, index.getUpdateSequenceNum("n1"));
+  }
+
+  public void testLargeGapsCompactionAndPersistence() throws IOException {
+    //Rare terms have deltas of one, two and three varint bytes.
+    for (int i = 0; i < 40000; i++) {
+      String text = "common n" + i;
+      if (i % 100 == 0) {
+        text += " hundred";
+      }
+      if (i % 1000 == 0) {
+        text += " thousand";
+      }
+      if (i % 20000 == 17000) {
+        text += " rare";
+      }
+      index.put("n" + i, text, i);
+    }
+    assertEquals(Arrays.asList("n37000", "n17000"), index.findTerm("rare"));
+    assertEquals(400, index.findTerm("hundred").size());
+    assertEquals(40, index.findTerm("thousand").size());
+
+    //Updating notes leaves dead documents, which are dropped when they outnumber live ones.
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 30000; i++) {
+        index.put("n" + i, "common updated", i + 100000);
+      }
+    }
+    assertEquals(Arrays.asList("n37000"), index.findTerm("rare"));
+    assertEquals(30000, index.findTerm("updated").size());
+    assertEquals(40000, index.findTerm("common").size());
+    assertEquals(40000, index.size());
+
+    index.remove("n39900");
+    index.save();
+    FullTextIndex reopened = new FullTextIndex(dir);
+    assertEquals(39999, reopened.size());
+    assertEquals(Arrays.asList("n37000"), reopened.findTerm("rare"));
+    assertEquals(99, reopened.findTerm("hundred").size());
+    assertEquals(index.findPrefix("n399"), reopened.findPrefix("n399"));
+    assertEquals(129999, reopened.getUpdateSequenceNum("n29999"));
+    assertEquals(index.getPostingsBytes(), reopened.getPostingsBytes());
+
+    reopened.put("n0", "new", 1);
+    assertEquals(Arrays.asList("n0"), reopened.findTerm("new"));
+  }
+}
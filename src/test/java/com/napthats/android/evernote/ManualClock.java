@@ -0,0 +1,19 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A clock which moves only by advance().
+ */
+final class ManualClock implements Clock {
+  private final AtomicLong now = new AtomicLong(1000 * 1000);
+
+  public long currentTimeMillis() {
+    return now.get();
+  }
+
+  void advance(long millis) {
+    now.addAndGet(millis);
+  }
+}
@@ -0,0 +1,145 @@
+package com.napthats.android.evernote;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.type.Data;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Resource;
+
+
+public class NoteChangeTrackerTest extends TestCase {
+  /**
+   * A NoteStore recording updateNote calls, which returns the note without content and with its hash.
+   */
+  public static class Server {
+    final List<Note> updates = new ArrayList<Note>();
+
+    public Note updateNote(String authToken, Note note) throws Exception {
+      updates.add(note);
+      Note result = note.deepCopy();
+      if (note.isSetContent()) {
+        result.setContentHash(MessageDigest.getInstance("MD5").digest(note.getContent().getBytes("UTF-8")));
+        result.unsetContent();
+      }
+      return result;
+    }
+  }
+
+  private Server server;
+  private NoteChangeTracker tracker;
+
+  @Override
+  protected void setUp() {
+    server = new Server();
+    tracker = new NoteChangeTracker();
+  }
+
+  private static Note note(String text) {
+    Note note = new Note();
+    note.setGuid("n1");
+    note.setTitle("title");
+    note.setNotebookGuid("nb1");
+    note.setTagGuids(new ArrayList<String>(Arrays.asList("t1", "t2")));
+    EvernoteActivity.Util.setPlainContent(note, text);
+    Resource resource = new Resource();
+    resource.setGuid("r1");
+    resource.setMime("image/png");
+    Data data = new Data();
+    data.setBody(new byte[100 * 1000]);
+    data.setSize(100 * 1000);
+    resource.setData(data);
+    note.addToResources(resource);
+    return note;
+  }
+
+  private Note update(Note note) throws Exception {
+    return tracker.updateNote(NoteStoreStubs.stub(server), "token", note);
+  }
+
+  public void testSkipsUnchangedNote() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    tracker.track(note(text.toString()));
+    Note edited = note(text.toString());
+    assertEquals(EnumSet.noneOf(NoteChangeTracker.Field.class), tracker.getDirtyFields(edited));
+    assertNull(tracker.getDelta(edited));
+
+    Note result = update(edited);
+    assertEquals(0, server.updates.size());
+    assertEquals(1, tracker.getSkippedCount());
+    assertEquals("title", result.getTitle());
+    assertFalse(result.isSetContent());
+    assertEquals(ThriftRecords.sizeOf(edited), tracker.getBytesSaved());
+
+    //Tags in another order are the same tags.
+    edited.setTagGuids(Arrays.asList("t2", "t1"));
+    update(edited);
+    assertEquals(0, server.updates.size());
+  }
+
+  public void testSendsOnlyChangedFields() throws Exception {
+    tracker.track(note("hello"));
+    Note edited = note("hello");
+    edited.setTitle("new title");
+    assertEquals(EnumSet.of(NoteChangeTracker.Field.TITLE), tracker.getDirtyFields(edited));
+    update(edited);
+    Note sent = server.updates.get(0);
+    assertEquals("n1", sent.getGuid());
+    assertEquals("new title", sent.getTitle());
+    assertFalse(sent.isSetContent());
+    assertFalse(sent.isSetResources());
+    assertFalse(sent.isSetTagGuids());
+    assertTrue(tracker.getBytesSaved() > 100 * 1000);
+
+    //The result is tracked, with the content hash of before.
+    edited = note("hello world");
+    edited.setTitle("new title");
+    assertEquals(EnumSet.of(NoteChangeTracker.Field.CONTENT), tracker.getDirtyFields(edited));
+    update(edited);
+    sent = server.updates.get(1);
+    assertEquals(edited.getContent(), sent.getContent());
+    assertFalse(sent.isSetResources());
+    assertNull(tracker.getDelta(edited));
+    assertEquals(2, tracker.getUpdateCount());
+  }
+
+  public void testResourcesAreComparedByHash() throws Exception {
+    tracker.track(note("hello"));
+    Note edited = note("hello");
+    edited.getResources().get(0).getData().getBody()[0] = 1;
+    assertEquals(EnumSet.of(NoteChangeTracker.Field.RESOURCES), tracker.getDirtyFields(edited));
+    update(edited);
+    assertEquals(1, server.updates.get(0).getResources().size());
+
+    edited = note("hello");
+    edited.getResources().get(0).getData().getBody()[0] = 1;
+    assertNull(tracker.getDelta(edited));
+  }
+
+  public void testUntrackedNoteIsSentWhole() throws Exception {
+    Note edited = note("hello");
+    assertTrue(tracker.getDirtyFields(edited).containsAll(EnumSet.of(
+      NoteChangeTracker.Field.TITLE, NoteChangeTracker.Field.CONTENT, NoteChangeTracker.Field.RESOURCES)));
+    update(edited);
+    assertEquals(edited, server.updates.get(0));
+    assertEquals(0, tracker.getBytesSaved());
+    assertTrue(tracker.isTracked("n1"));
+
+    //A note tracked from metadata, as in sync chunks, is compared by its contentHash.
+    Note metadata = note("hello");
+    metadata.setContentHash(MessageDigest.getInstance("MD5").digest(metadata.getContent().getBytes("UTF-8")));
+    metadata.unsetContent();
+    tracker.track(metadata);
+    assertNull(tracker.getDelta(note("hello")));
+    tracker.forget("n1");
+    assertFalse(tracker.isTracked("n1"));
+  }
+}
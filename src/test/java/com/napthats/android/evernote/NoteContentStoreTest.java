@@ -0,0 +1,151 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.type.Note;
+
+
+public class NoteContentStoreTest extends TestCase {
+  private static final String HEAD =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+    + "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">";
+
+  private File dir;
+  private NoteContentStore store;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("content", "");
+    assertTrue(dir.delete());
+    store = new NoteContentStore(dir);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    store.close();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static String enml(String body) {
+    return HEAD + "<en-note>" + body + "</en-note>";
+  }
+
+  public void testPutAndRead() throws Exception {
+    Note note = new Note();
+    note.setGuid("a");
+    note.setUpdateSequenceNum(7);
+    note.setContent(enml("<div>caf&eacute; 日本</div><div>x &lt; y</div>"));
+    store.put(note);
+
+    assertEquals(note.getContent(), store.getContent("a"));
+    assertEquals(7, store.getUpdateSequenceNum("a"));
+    StringBuilder plain = new StringBuilder();
+    assertTrue(store.getPlainContent("a", plain));
+    assertEquals(EvernoteActivity.Util.getPlainContent(note), plain.toString());
+    assertFalse(store.getPlainContent("none", plain));
+    assertNull(store.getContent("none"));
+  }
+
+  public void testPlainContentOfLargeNote() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      body.append("<div>line ").append(i).append(" &amp; 日本語</div>");
+    }
+    Note note = new Note();
+    note.setContent(enml(body.toString()));
+    store.put("big", note.getContent(), 1);
+    StringBuilder plain = new StringBuilder();
+    store.getPlainContent("big", plain);
+    assertEquals(EvernoteActivity.Util.getPlainContent(note), plain.toString());
+  }
+
+  public void testDeduplicatesContents() throws Exception {
+    String content = enml("<div>same</div>");
+    store.put("a", content, 1);
+    long after_first = store.getFileBytes();
+    store.put("b", content, 2);
+    assertTrue(store.getFileBytes() - after_first < content.length());
+    assertEquals(content, store.getContent("b"));
+  }
+
+  public void testCompactionDropsDeadContents() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      store.put("n" + i, enml("<div>version " + i + "</div>"), i);
+    }
+    store.put("n0", enml("<div>updated</div>"), 20);
+    for (int i = 1; i < 10; i += 2) {
+      store.remove("n" + i);
+    }
+    long before = store.getFileBytes();
+    store.compact();
+    assertTrue(store.getFileBytes() < before);
+    assertEquals(store.getLiveBytes(), store.getFileBytes());
+    assertEquals(5, store.size());
+    assertEquals(enml("<div>updated</div>"), store.getContent("n0"));
+    assertEquals(enml("<div>version 8</div>"), store.getContent("n8"));
+    assertFalse(store.contains("n9"));
+
+    store.close();
+    store = new NoteContentStore(dir);
+    assertEquals(5, store.size());
+    assertEquals(20, store.getUpdateSequenceNum("n0"));
+  }
+
+  public void testRecoversFromTornAppend() throws Exception {
+    store.put("a", enml("<div>a</div>"), 1);
+    store.put("b", enml("<div>b</div>"), 2);
+    long good = store.getFileBytes();
+    store.put("c", enml("<div>c, which is torn</div>"), 3);
+    long torn = store.getFileBytes();
+    store.close();
+
+    //A crash in the middle of the last append.
+    RandomAccessFile file = new RandomAccessFile(new File(dir, "content"), "rw");
+    file.setLength(good + (torn - good) / 2);
+    file.close();
+
+    store = new NoteContentStore(dir);
+    assertEquals(good, store.getFileBytes());
+    assertEquals(enml("<div>b</div>"), store.getContent("b"));
+    assertFalse(store.contains("c"));
+    store.put("c", enml("<div>c</div>"), 4);
+    store.close();
+
+    store = new NoteContentStore(dir);
+    assertEquals(enml("<div>c</div>"), store.getContent("c"));
+    assertEquals(3, store.size());
+  }
+
+  public void testRecoversFromCorruptRecord() throws Exception {
+    store.put("a", enml("<div>a</div>"), 1);
+    long good = store.getFileBytes();
+    store.put("b", enml("<div>b</div>"), 2);
+    store.close();
+
+    RandomAccessFile file = new RandomAccessFile(new File(dir, "content"), "rw");
+    file.seek(good + 20);
+    file.write(~file.read());
+    file.close();
+
+    store = new NoteContentStore(dir);
+    assertTrue(store.contains("a"));
+    assertFalse(store.contains("b"));
+    assertEquals(good, store.getFileBytes());
+  }
+
+  public void testAppendsAndReadsInTurnMapLogarithmically() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      store.put("n" + i, enml("<div>" + i + "</div>"), i);
+      assertEquals(enml("<div>" + i + "</div>"), store.getContent("n" + i));
+    }
+    assertEquals(enml("<div>0</div>"), store.getContent("n0"));
+    assertTrue(store.getMapCount() < 20);
+  }
+}
@@ -0,0 +1,275 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.type.Data;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Resource;
+
+
+public class NoteLoaderTest extends TestCase {
+  /**
+   * A NoteStore with one note of the given resource bodies, whose getResourceData takes 20ms.
+   */
+  public static class Server {
+    final Map<String, byte[]> bodies = new ConcurrentHashMap<String, byte[]>();
+    final AtomicInteger note_calls = new AtomicInteger();
+    final AtomicInteger content_calls = new AtomicInteger();
+    final AtomicInteger data_calls = new AtomicInteger();
+    final AtomicInteger in_transit = new AtomicInteger();
+    final AtomicInteger max_in_transit = new AtomicInteger();
+    volatile boolean corrupt = false;
+    String content = "<en-note>hello</en-note>";
+
+    void addResource(String guid, byte[] body) {
+      bodies.put(guid, body);
+    }
+
+    public Note getNote(String authToken, String guid, boolean withContent, boolean withResourcesData,
+                        boolean withResourcesRecognition, boolean withResourcesAlternateData) throws Exception {
+      assertFalse(withContent || withResourcesData || withResourcesRecognition || withResourcesAlternateData);
+      note_calls.incrementAndGet();
+      Note note = new Note();
+      note.setGuid(guid);
+      note.setTitle("title");
+      List<Resource> resources = new ArrayList<Resource>();
+      for (Map.Entry<String, byte[]> entry : bodies.entrySet()) {
+        Resource resource = new Resource();
+        resource.setGuid(entry.getKey());
+        Data data = new Data();
+        data.setSize(entry.getValue().length);
+        data.setBodyHash(MessageDigest.getInstance("MD5").digest(entry.getValue()));
+        resource.setData(data);
+        resources.add(resource);
+      }
+      note.setResources(resources);
+      return note;
+    }
+
+    public String getNoteContent(String authToken, String guid) {
+      content_calls.incrementAndGet();
+      return content;
+    }
+
+    public byte[] getResourceData(String authToken, String guid) throws Exception {
+      data_calls.incrementAndGet();
+      int n = in_transit.incrementAndGet();
+      max_in_transit.set(Math.max(max_in_transit.get(), n));
+      Thread.sleep(20);
+      in_transit.decrementAndGet();
+      byte[] body = bodies.get(guid).clone();
+      if (corrupt) {
+        body[0]++;
+      }
+      return body;
+    }
+  }
+
+  private Server server;
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    server = new Server();
+    dir = File.createTempFile("note-loader", "");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private NoteLoader loader(long memory_budget) {
+    return new NoteLoader(NoteStoreStubs.stub(server), "token", dir, memory_budget, null);
+  }
+
+  private static byte[] body(int size, int seed) {
+    byte[] body = new byte[size];
+    for (int i = 0; i < size; i++) {
+      body[i] = (byte) (i * 31 + seed);
+    }
+    return body;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[1024];
+      int n;
+      while ((n = in.read(buf)) >= 0) {
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  public void testFetchesOnAccessOnly() throws Exception {
+    server.addResource("r1", body(1000, 1));
+    server.addResource("r2", body(2000, 2));
+    NoteLoader loader = loader(NoteLoader.DEFAULT_MEMORY_BUDGET);
+    LazyNote note = loader.open("n1");
+    assertEquals(2, note.getResources().size());
+    assertEquals(0, server.content_calls.get() + server.data_calls.get());
+
+    assertEquals(server.content, note.getContent());
+    assertEquals("hello", note.getPlainContent());
+    assertEquals(1, server.content_calls.get());
+    assertEquals(2 * server.content.length(), loader.getMemoryUsed());
+
+    assertTrue(Arrays.equals(body(2000, 2), readAll(note.openResource("r2"))));
+    assertTrue(Arrays.equals(body(2000, 2), readAll(note.openResource("r2"))));
+    assertEquals(1, server.data_calls.get());
+    File file = note.getResourceFile("r2");
+    assertEquals(2000, file.length());
+    try {
+      note.openResource("missing");
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      //Expected.
+    }
+
+    note.close();
+    assertFalse(file.exists());
+    assertEquals(0, loader.getMemoryUsed());
+    try {
+      note.getContent();
+      fail();
+    }
+    catch (IllegalStateException e) {
+      //Expected.
+    }
+  }
+
+  public void testContentOverBudgetIsFetchedAgain() throws Exception {
+    NoteLoader loader = loader(10);
+    LazyNote note = loader.open("n1");
+    note.getContent();
+    note.getContent();
+    assertEquals(2, server.content_calls.get());
+    assertEquals(0, loader.getMemoryUsed());
+  }
+
+  public void testBrokenBodyIsNotKept() throws Exception {
+    server.addResource("r1", body(100, 1));
+    LazyNote note = loader(NoteLoader.DEFAULT_MEMORY_BUDGET).open("n1");
+    server.corrupt = true;
+    try {
+      note.openResource("r1");
+      fail();
+    }
+    catch (IOException e) {
+      //Expected.
+    }
+    server.corrupt = false;
+    assertTrue(Arrays.equals(body(100, 1), readAll(note.openResource("r1"))));
+    assertEquals(2, server.data_calls.get());
+    note.close();
+  }
+
+  public void testBudgetBoundsBodiesInTransit() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      server.addResource("r" + i, body(600, i));
+    }
+    server.addResource("large", body(5000, 9));
+    final NoteLoader loader = loader(1000);
+    final LazyNote kept = loader.open("n0");
+    kept.getContent();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final String guid = "r" + i;
+      threads.add(new Thread() {
+        public void run() {
+          try {
+            LazyNote note = loader.open("n1");
+            readAll(note.openResource(guid));
+            note.close();
+          }
+          catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Arrays.asList(), errors);
+    //600 + 600 do not fit in 1000.
+    assertEquals(1, server.max_in_transit.get());
+
+    //A body over the whole budget goes alone, even with a content kept in the budget.
+    assertEquals(5000, kept.getResourceFile("large").length());
+    kept.close();
+    assertEquals(0, loader.getMemoryUsed());
+  }
+
+  public void testHttpFetcherStreamsBodies() throws Exception {
+    final byte[] body = body(300 * 1000, 7);
+    server.addResource("r1", body);
+    HttpServer http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    http.createContext("/shard/s1/res/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String request = new String(readAll(exchange.getRequestBody()), "UTF-8");
+        boolean found = exchange.getRequestURI().getPath().equals("/shard/s1/res/r1") && request.equals("auth=token");
+        exchange.sendResponseHeaders(found ? 200 : 404, found ? body.length : -1);
+        if (found) {
+          OutputStream out = exchange.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    http.start();
+    try {
+      String url = "http://127.0.0.1:" + http.getAddress().getPort() + "/shard/s1/notestore";
+      NoteLoader loader = new NoteLoader(NoteStoreStubs.stub(server), "token", dir, 1000, NoteLoader.httpFetcher(url));
+      LazyNote note = loader.open("n1");
+      assertTrue(Arrays.equals(body, readAll(note.openResource("r1"))));
+      assertEquals(0, server.data_calls.get());
+      note.close();
+    }
+    finally {
+      http.stop(0);
+    }
+  }
+}
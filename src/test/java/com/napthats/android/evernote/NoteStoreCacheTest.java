@@ -0,0 +1,203 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.Tag;
+
+
+public class NoteStoreCacheTest extends TestCase {
+  public static class Server {
+    final AtomicInteger calls = new AtomicInteger();
+    volatile CountDownLatch gate = null;
+    volatile int update_count = 1;
+
+    public Notebook getNotebook(String authToken, String guid) throws EDAMNotFoundException {
+      calls.incrementAndGet();
+      if (guid.equals("missing")) {
+        throw new EDAMNotFoundException();
+      }
+      Notebook notebook = new Notebook();
+      notebook.setGuid(guid);
+      notebook.setName("name of " + guid);
+      return notebook;
+    }
+
+    public int updateNotebook(String authToken, Notebook notebook) {
+      return ++update_count;
+    }
+
+    public List<Tag> listTags(String authToken) {
+      calls.incrementAndGet();
+      Tag tag = new Tag();
+      tag.setName("t");
+      return new ArrayList<Tag>(Collections.singletonList(tag));
+    }
+
+    public Note getNote(String authToken, String guid, boolean b1, boolean b2, boolean b3, boolean b4)
+    throws InterruptedException {
+      calls.incrementAndGet();
+      if (gate != null) {
+        assertTrue(gate.await(5, TimeUnit.SECONDS));
+      }
+      Note note = new Note();
+      note.setGuid(guid);
+      return note;
+    }
+
+    public Note createNote(String authToken, Note note) {
+      return note;
+    }
+
+    public SyncState getSyncState(String authToken) {
+      SyncState state = new SyncState();
+      state.setUpdateCount(update_count);
+      return state;
+    }
+  }
+
+  private Server server;
+  private NoteStoreCache cache;
+  private NoteStoreIface note_store;
+
+  @Override
+  protected void setUp() {
+    server = new Server();
+    cache = new NoteStoreCache(NoteStoreStubs.stub(server), 3, 60 * 1000);
+    note_store = cache.getNoteStore();
+  }
+
+  public void testHitReturnsCopy() throws Exception {
+    Notebook first = note_store.getNotebook("token", "a");
+    first.setName("changed by caller");
+    Notebook second = note_store.getNotebook("token", "a");
+    assertEquals("name of a", second.getName());
+    assertEquals(1, server.calls.get());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    note_store.getNotebook("other token", "a");
+    assertEquals(2, server.calls.get());
+  }
+
+  public void testCoalescesCallsInFlight() throws Exception {
+    server.gate = new CountDownLatch(1);
+    final List<Note> notes = Collections.synchronizedList(new ArrayList<Note>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            notes.add(note_store.getNote("token", "n", true, false, false, false));
+          }
+          catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    //The first call waits at the gate and the others wait for it.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.getCoalescedCount() < 3) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.yield();
+    }
+    server.gate.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    assertEquals(4, notes.size());
+    assertEquals(1, server.calls.get());
+    assertEquals(3, cache.getCoalescedCount());
+    assertNotSame(notes.get(0), notes.get(1));
+  }
+
+  public void testWritesDropMatchingKinds() throws Exception {
+    note_store.getNotebook("token", "a");
+    note_store.listTags("token");
+    note_store.getNote("token", "n", true, false, false, false);
+    assertEquals(3, server.calls.get());
+
+    note_store.updateNotebook("token", new Notebook());
+    note_store.getNotebook("token", "a");
+    note_store.listTags("token");
+    //Notebook and notes are dropped, tags are kept.
+    assertEquals(4, server.calls.get());
+
+    note_store.createNote("token", new Note());
+    note_store.listTags("token");
+    assertEquals(5, server.calls.get());
+  }
+
+  public void testObjectMethodsDropNothing() throws Exception {
+    note_store.getNotebook("token", "a");
+    assertEquals(System.identityHashCode(note_store), note_store.hashCode());
+    assertTrue(note_store.equals(note_store));
+    assertFalse(note_store.equals(new NoteStoreCache(NoteStoreStubs.stub(server)).getNoteStore()));
+    assertTrue(note_store.toString().startsWith("NoteStoreCache@"));
+    note_store.getSyncState("token");
+
+    note_store.getNotebook("token", "a");
+    assertEquals(1, server.calls.get());
+    assertEquals(1, cache.size());
+  }
+
+  public void testSyncStateDropsEverything() throws Exception {
+    note_store.getSyncState("token");
+    note_store.getNotebook("token", "a");
+    note_store.getSyncState("token");
+    note_store.getNotebook("token", "a");
+    assertEquals(1, server.calls.get());
+
+    server.update_count++;
+    note_store.getSyncState("token");
+    note_store.getNotebook("token", "a");
+    assertEquals(2, server.calls.get());
+  }
+
+  public void testBoundedSizeAndTtl() throws Exception {
+    for (String guid : new String[] {"a", "b", "c", "d"}) {
+      note_store.getNotebook("token", guid);
+    }
+    assertEquals(3, cache.size());
+    note_store.getNotebook("token", "a");
+    assertEquals(5, server.calls.get());
+
+    ManualClock clock = new ManualClock();
+    NoteStoreCache short_cache = new NoteStoreCache(NoteStoreStubs.stub(server), 3, 20);
+    short_cache.setClock(clock);
+    short_cache.getNoteStore().getNotebook("token", "x");
+    clock.advance(19);
+    short_cache.getNoteStore().getNotebook("token", "x");
+    assertEquals(6, server.calls.get());
+    clock.advance(1);
+    short_cache.getNoteStore().getNotebook("token", "x");
+    assertEquals(7, server.calls.get());
+  }
+
+  public void testErrorsAreNotCached() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      try {
+        note_store.getNotebook("token", "missing");
+        fail();
+      }
+      catch (EDAMNotFoundException e) {
+        //Expected.
+      }
+    }
+    assertEquals(2, server.calls.get());
+  }
+}
@@ -0,0 +1,124 @@
+package com.napthats.android.evernote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.thrift.protocol.TBinaryProtocol;
+import com.evernote.thrift.transport.TTransport;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * NoteStoreClientPool against a local stub Thrift server.
+ */
+public class NoteStoreClientPoolTest extends TestCase {
+  private StubThriftServer server;
+  private AtomicInteger created;
+  private boolean healthy;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new StubThriftServer();
+    server.setReply("getSyncState", new SyncState(1L, 0L, 42));
+    created = new AtomicInteger();
+    healthy = true;
+  }
+
+  @Override
+  protected void tearDown() {
+    server.stop();
+  }
+
+  private NoteStoreClientPool newPool(int max_size, long idle_timeout_millis, long borrow_timeout_millis) {
+    return new NoteStoreClientPool(
+      new NoteStoreClientPool.Factory() {
+        public NoteStoreIface create() throws TTransportException {
+          created.incrementAndGet();
+          return server.createClient();
+        }
+      },
+      new NoteStoreClientPool.Validator() {
+        public boolean isHealthy(NoteStoreIface client) {
+          return healthy;
+        }
+      },
+      max_size, idle_timeout_millis, borrow_timeout_millis);
+  }
+
+  public void testReusesReleasedClient() throws Exception {
+    NoteStoreClientPool pool = newPool(2, 60000, 1000);
+    for (int i = 0; i < 3; i++) {
+      NoteStoreIface client = pool.borrow();
+      assertEquals(42, client.getSyncState("token").getUpdateCount());
+      pool.release(client);
+    }
+    assertEquals(1, created.get());
+    assertEquals(3, server.getRequestCount());
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(0, pool.getActiveCount());
+  }
+
+  public void testBorrowTimesOutWhenExhausted() throws Exception {
+    NoteStoreClientPool pool = newPool(2, 60000, 50);
+    NoteStoreIface first = pool.borrow();
+    pool.borrow();
+    try {
+      pool.borrow();
+      fail();
+    }
+    catch (TTransportException e) {
+      assertEquals(TTransportException.TIMED_OUT, e.getType());
+    }
+    pool.release(first);
+    assertSame(first, pool.borrow());
+  }
+
+  public void testEvictsIdleClients() throws Exception {
+    NoteStoreClientPool pool = newPool(2, 20, 1000);
+    pool.release(pool.borrow());
+    assertEquals(1, pool.getIdleCount());
+    Thread.sleep(50);
+    pool.evictIdle();
+    assertEquals(0, pool.getIdleCount());
+    pool.release(pool.borrow());
+    assertEquals(2, created.get());
+  }
+
+  public void testDiscardsUnhealthyAndInvalidatedClients() throws Exception {
+    NoteStoreClientPool pool = newPool(1, 60000, 1000);
+    NoteStoreIface client = pool.borrow();
+    pool.release(client);
+    healthy = false;
+    NoteStoreIface replaced = pool.borrow();
+    assertNotSame(client, replaced);
+    assertEquals(42, replaced.getSyncState("token").getUpdateCount());
+    pool.invalidate(replaced);
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(2, created.get());
+  }
+
+  public void testTransportValidator() throws Exception {
+    //HTTP clients always pass, as THttpClient is always open.
+    NoteStoreIface http_client = NoteStoreClientPool.httpFactory("http://localhost:1/").create();
+    assertTrue(NoteStoreClientPool.TRANSPORT_VALIDATOR.isHealthy(http_client));
+
+    TTransport closed = new TTransport() {
+      public boolean isOpen() {
+        return false;
+      }
+      public void open() {}
+      public void close() {}
+      public int read(byte[] buf, int off, int len) {
+        return 0;
+      }
+      public void write(byte[] buf, int off, int len) {}
+    };
+    NoteStoreIface closed_client = new NoteStore.Client(new TBinaryProtocol(closed), new TBinaryProtocol(closed));
+    assertFalse(NoteStoreClientPool.TRANSPORT_VALIDATOR.isHealthy(closed_client));
+  }
+}
@@ -0,0 +1,91 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+
+
+public class NoteStoreFutureProxyTest extends TestCase {
+  private APIExecutor executor;
+  private NoteStoreFutureProxy note_store;
+  private CountDownLatch concurrent;
+
+  @Override
+  protected void setUp() {
+    executor = new APIExecutor(4, 16);
+    concurrent = new CountDownLatch(3);
+    note_store = NoteStoreStubs.futureProxy(NoteStoreStubs.stub(new Object() {
+      public Notebook getDefaultNotebook(String authToken) {
+        Notebook notebook = new Notebook();
+        notebook.setGuid("default");
+        return notebook;
+      }
+      public Note getNote(String authToken, String guid, boolean b1, boolean b2, boolean b3, boolean b4)
+      throws EDAMNotFoundException, InterruptedException {
+        if (guid.equals("missing")) {
+          throw new EDAMNotFoundException();
+        }
+        //Every call waits for the others, so this passes only if they run at the same time.
+        concurrent.countDown();
+        assertTrue(concurrent.await(5, TimeUnit.SECONDS));
+        Note note = new Note();
+        note.setGuid(guid);
+        return note;
+      }
+      public Note createNote(String authToken, Note note) {
+        Note created = note.deepCopy();
+        created.setGuid("created");
+        return created;
+      }
+    }), executor);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  public void testFansOutIndependentCalls() throws Exception {
+    final List<CompletableFuture<Note>> futures = new ArrayList<CompletableFuture<Note>>();
+    for (String guid : new String[] {"a", "b", "c"}) {
+      futures.add(note_store.getNote("token", guid, true, false, false, false));
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+    assertEquals("a", futures.get(0).get().getGuid());
+    assertEquals("c", futures.get(2).get().getGuid());
+  }
+
+  public void testPipelinesDependentCalls() throws Exception {
+    Note note = note_store.getDefaultNotebook("token")
+      .thenCompose(new Function<Notebook, CompletableFuture<Note>>() {
+        public CompletableFuture<Note> apply(Notebook notebook) {
+          Note note = new Note();
+          note.setNotebookGuid(notebook.getGuid());
+          return note_store.createNote("token", note);
+        }
+      })
+      .get(5, TimeUnit.SECONDS);
+    assertEquals("created", note.getGuid());
+    assertEquals("default", note.getNotebookGuid());
+  }
+
+  public void testEDAMExceptionFailsFuture() throws Exception {
+    try {
+      note_store.getNote("token", "missing", true, false, false, false).get(5, TimeUnit.SECONDS);
+      fail();
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof EDAMNotFoundException);
+    }
+  }
+}
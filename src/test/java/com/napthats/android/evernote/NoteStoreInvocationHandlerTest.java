@@ -0,0 +1,198 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Notebook;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+import com.napthats.android.evernote.EvernoteActivity.NoteStoreProxy;
+import com.napthats.android.evernote.NoteStoreInvocationHandler.Dispatch;
+import com.napthats.android.evernote.NoteStoreInvocationHandler.Kind;
+
+
+public class NoteStoreInvocationHandlerTest extends TestCase {
+  /**
+   * A NoteStore counting calls.
+   */
+  public static class Server {
+    final AtomicInteger calls = new AtomicInteger();
+
+    public Notebook getNotebook(String authToken, String guid) {
+      calls.incrementAndGet();
+      Notebook notebook = new Notebook();
+      notebook.setGuid(guid);
+      return notebook;
+    }
+  }
+
+  /**
+   * A proxy interface with a method which NoteStoreIface does not have.
+   */
+  public interface UnknownProxy {
+    public Notebook getNotebookByName(String authToken, String name);
+  }
+
+  private Server server;
+  private APIExecutor executor;
+
+  @Override
+  protected void setUp() {
+    server = new Server();
+    executor = new APIExecutor(2, 16);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  public void testObjectMethodsAnswerLocally() throws Exception {
+    NoteStoreIface note_store = NoteStoreStubs.stub(server);
+    NoteStoreProxy proxy = NoteStoreStubs.proxy(note_store, executor);
+    NoteStoreProxy other = NoteStoreStubs.proxy(note_store, executor);
+
+    assertEquals(System.identityHashCode(proxy), proxy.hashCode());
+    assertTrue(proxy.equals(proxy));
+    assertFalse(proxy.equals(other));
+    assertTrue(proxy.toString().startsWith("NoteStoreProxy@"));
+
+    Set<NoteStoreProxy> set = new HashSet<NoteStoreProxy>();
+    set.add(proxy);
+    set.add(other);
+    assertTrue(set.contains(proxy));
+    assertEquals(2, set.size());
+    assertEquals(0, server.calls.get());
+
+    assertEquals("a", proxy.getNotebook("token", "a").getGuid());
+    assertEquals(1, server.calls.get());
+  }
+
+  public void testBlockingCallbackAndFutureCallsResolve() throws Exception {
+    NoteStoreIface note_store = NoteStoreStubs.stub(server);
+    NoteStoreProxy proxy = NoteStoreStubs.proxy(note_store, executor);
+    assertEquals("a", proxy.getNotebook("token", "a").getGuid());
+
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<APIResult<Notebook>> result = new AtomicReference<APIResult<Notebook>>();
+    proxy.getNotebook("token", "b", new APICallBack<Notebook>() {
+      public void call(APIResult<Notebook> r) {
+        result.set(r);
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals("b", result.get().get().getGuid());
+
+    NoteStoreFutureProxy future_proxy = NoteStoreStubs.futureProxy(note_store, executor);
+    assertEquals("c", future_proxy.getNotebook("token", "c").get(10, TimeUnit.SECONDS).getGuid());
+    assertEquals(3, server.calls.get());
+
+    Method getNotebook = NoteStoreIface.class.getMethod("getNotebook", String.class, String.class);
+    Dispatch blocking = NoteStoreInvocationHandler.tableFor(NoteStoreProxy.class).get(
+      NoteStoreProxy.class.getMethod("getNotebook", String.class, String.class));
+    assertEquals(getNotebook, blocking.target);
+    assertEquals(Kind.BLOCKING, blocking.kind);
+    Dispatch callback = NoteStoreInvocationHandler.tableFor(NoteStoreProxy.class).get(
+      NoteStoreProxy.class.getMethod("getNotebook", String.class, String.class, APICallBack.class));
+    assertEquals(getNotebook, callback.target);
+    assertEquals(Kind.CALLBACK, callback.kind);
+    assertEquals(2, callback.argc);
+    Dispatch future = NoteStoreInvocationHandler.tableFor(NoteStoreFutureProxy.class).get(
+      NoteStoreFutureProxy.class.getMethod("getNotebook", String.class, String.class));
+    assertEquals(getNotebook, future.target);
+    assertEquals(Kind.FUTURE, future.kind);
+  }
+
+  public void testMethodWithoutTargetThrows() throws Exception {
+    UnknownProxy proxy = NoteStoreStubs.proxy(UnknownProxy.class, NoteStoreStubs.stub(server), executor, null);
+    assertNull(NoteStoreInvocationHandler.tableFor(UnknownProxy.class).get(
+      UnknownProxy.class.getMethod("getNotebookByName", String.class, String.class)).target);
+    try {
+      proxy.getNotebookByName("token", "a");
+      fail();
+    }
+    catch (UndeclaredThrowableException e) {
+      assertTrue(e.getCause() instanceof NoSuchMethodException);
+    }
+    assertEquals(0, server.calls.get());
+  }
+
+  public void testEveryFutureMethodResolves() {
+    for (Map.Entry<Method, Dispatch> entry : NoteStoreInvocationHandler.tableFor(NoteStoreFutureProxy.class).entrySet()) {
+      assertNotNull(entry.getKey().toString(), entry.getValue().target);
+      assertEquals(entry.getKey().toString(), Kind.FUTURE, entry.getValue().kind);
+    }
+  }
+
+  public void testResolvedTargetsReturnWhatProxiesDeclare() {
+    List<String> mismatches = new ArrayList<String>();
+    for (Class<?> proxy_class : new Class<?>[] {NoteStoreProxy.class, NoteStoreFutureProxy.class}) {
+      for (Map.Entry<Method, Dispatch> entry : NoteStoreInvocationHandler.tableFor(proxy_class).entrySet()) {
+        Method proxy_method = entry.getKey();
+        Dispatch dispatch = entry.getValue();
+        if (dispatch.target == null) {
+          continue;
+        }
+        Type expected;
+        switch (dispatch.kind) {
+        case BLOCKING:
+          expected = proxy_method.getGenericReturnType();
+          break;
+        case CALLBACK:
+          Type[] types = proxy_method.getGenericParameterTypes();
+          expected = typeArgument(types[types.length - 1], APICallBack.class);
+          break;
+        default:
+          expected = typeArgument(proxy_method.getGenericReturnType(), CompletableFuture.class);
+        }
+        Type actual = dispatch.target.getGenericReturnType();
+        if (dispatch.kind != Kind.BLOCKING) {
+          actual = box(actual);
+        }
+        if (!expected.equals(actual)) {
+          mismatches.add(proxy_method + " gets " + actual);
+        }
+      }
+    }
+    assertEquals(new ArrayList<String>(), mismatches);
+  }
+
+  private static Type typeArgument(Type type, Class<?> raw) {
+    assertTrue(type.toString(), type instanceof ParameterizedType);
+    assertEquals(raw, ((ParameterizedType) type).getRawType());
+    return ((ParameterizedType) type).getActualTypeArguments()[0];
+  }
+
+  private static Type box(Type type) {
+    if (type == void.class) {
+      return Void.class;
+    }
+    if (type == boolean.class) {
+      return Boolean.class;
+    }
+    if (type == int.class) {
+      return Integer.class;
+    }
+    if (type == long.class) {
+      return Long.class;
+    }
+    return type;
+  }
+}
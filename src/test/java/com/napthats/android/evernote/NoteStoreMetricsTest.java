@@ -0,0 +1,144 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Notebook;
+import com.evernote.thrift.transport.TTransportException;
+
+
+public class NoteStoreMetricsTest extends TestCase {
+  /**
+   * A NoteStore answering after a delay, which fails on a missing notebook and once on "flaky".
+   */
+  public static class Server {
+    final AtomicInteger flaky_calls = new AtomicInteger();
+
+    public Notebook getNotebook(String authToken, String guid) throws Exception {
+      Thread.sleep(20);
+      if (guid.equals("missing")) {
+        EDAMNotFoundException e = new EDAMNotFoundException();
+        e.setIdentifier("Notebook.guid");
+        throw e;
+      }
+      if (guid.equals("flaky") && flaky_calls.getAndIncrement() == 0) {
+        throw new TTransportException(TTransportException.END_OF_FILE, "injected");
+      }
+      Notebook notebook = new Notebook();
+      notebook.setGuid(guid);
+      return notebook;
+    }
+  }
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private APIExecutor executor;
+  private NoteStoreMetrics metrics;
+
+  @Override
+  protected void setUp() {
+    executor = new APIExecutor(1, 16);
+    metrics = new NoteStoreMetrics();
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  public void testHistogramBucketsBoundValues() {
+    Random random = new Random(1);
+    for (int i = 0; i < 10000; i++) {
+      long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+      int index = LatencyHistogram.indexOf(value);
+      long highest = LatencyHistogram.highestValueAt(index);
+      assertTrue(highest >= value);
+      assertTrue(highest - value <= value / 32);
+      assertEquals(index, LatencyHistogram.indexOf(highest));
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+  }
+
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+    for (long i = 1; i <= 10000; i++) {
+      histogram.record(i * 1000);
+    }
+    histogram.record(-1);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(10001, snapshot.getCount());
+    assertEquals(10000 * 1000, snapshot.getMax());
+    assertEquals(5000 * 1000, snapshot.getMean(), 1);
+    assertEquals(0, snapshot.getValueAtPercentile(0));
+    long p50 = snapshot.getValueAtPercentile(50);
+    assertTrue(p50 >= 5000 * 1000 && p50 <= 5000 * 1000 * 33 / 32);
+    long p99 = snapshot.getValueAtPercentile(99);
+    assertTrue(p99 >= 9900 * 1000 && p99 <= 9900 * 1000 * 33 / 32);
+    assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+    try {
+      snapshot.getValueAtPercentile(101);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      //Expected.
+    }
+  }
+
+  public void testRecordsCallsErrorsAndQueueWait() throws Exception {
+    final List<String> heard = Collections.synchronizedList(new ArrayList<String>());
+    metrics.addListener(new NoteStoreMetrics.Listener() {
+      public void onCall(String method, long queue_nanos, long latency_nanos, Throwable error) {
+        heard.add(method + (error == null ? "" : " " + error.getClass().getSimpleName()));
+      }
+    });
+    NoteStoreFutureProxy proxy = NoteStoreStubs.proxy(NoteStoreFutureProxy.class, NoteStoreStubs.stub(new Server()), executor, null, metrics);
+    //One executor thread, so the last calls wait in the queue for the first ones.
+    List<CompletableFuture<Notebook>> futures = new ArrayList<CompletableFuture<Notebook>>();
+    futures.add(proxy.getNotebook("token", "a"));
+    futures.add(proxy.getNotebook("token", "b"));
+    futures.add(proxy.getNotebook("token", "missing"));
+    for (CompletableFuture<Notebook> future : futures) {
+      try {
+        future.get();
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof EDAMNotFoundException);
+      }
+    }
+
+    NoteStoreMetrics.MethodSnapshot snapshot = metrics.snapshot("getNotebook");
+    assertEquals(3, snapshot.getCallCount());
+    assertEquals(1, snapshot.getErrorCount());
+    assertEquals(0, snapshot.getInFlightCount());
+    assertTrue(snapshot.getLatency().getValueAtPercentile(0) >= 20 * MILLIS);
+    assertTrue(snapshot.getQueueWait().getMax() >= 40 * MILLIS);
+    assertEquals(3, snapshot.getQueueWait().getCount());
+    assertEquals(1, metrics.snapshot().size());
+    assertNull(metrics.snapshot("getNote"));
+    assertEquals(3, heard.size());
+    assertTrue(heard.contains("getNotebook EDAMNotFoundException"));
+  }
+
+  public void testRecordsEachAttemptOfRetriedCalls() throws Exception {
+    ResiliencePolicy policy = new ResiliencePolicy();
+    policy.setBackoff(10, 10);
+    NoteStoreIface note_store = NoteStoreStubs.proxy(NoteStoreIface.class, NoteStoreStubs.stub(new Server()), executor, policy, metrics);
+    assertEquals("flaky", note_store.getNotebook("token", "flaky").getGuid());
+    NoteStoreMetrics.MethodSnapshot snapshot = metrics.snapshot("getNotebook");
+    assertEquals(2, snapshot.getCallCount());
+    assertEquals(1, snapshot.getErrorCount());
+    //The retry is queued after the backoff, not from the first call.
+    assertTrue(snapshot.getQueueWait().getMax() < 10 * MILLIS);
+  }
+}
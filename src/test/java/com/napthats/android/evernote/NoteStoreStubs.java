@@ -0,0 +1,97 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.evernote.edam.notestore.NoteStoreIface;
+
+import com.napthats.android.evernote.EvernoteActivity.NoteStoreProxy;
+
+
+/**
+ * Helpers building NoteStores for tests without a server.
+ */
+final class NoteStoreStubs {
+  private NoteStoreStubs() {}
+
+  /**
+   * A NoteStoreIface forwarding each call to the public method of the same signature in delegate.
+   * Methods which the delegate does not have throw UnsupportedOperationException.
+   */
+  static NoteStoreIface stub(final Object delegate) {
+    return (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          Method target;
+          try {
+            target = delegate.getClass().getMethod(method.getName(), method.getParameterTypes());
+          }
+          catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          target.setAccessible(true);
+          try {
+            return target.invoke(delegate, args);
+          }
+          catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+  }
+
+  /**
+   * A pool always lending the same NoteStore.
+   */
+  static NoteStoreClientPool pool(final NoteStoreIface note_store, int max_size) {
+    return new NoteStoreClientPool(
+      new NoteStoreClientPool.Factory() {
+        public NoteStoreIface create() {
+          return note_store;
+        }
+      },
+      NoteStoreClientPool.TRANSPORT_VALIDATOR,
+      max_size, Long.MAX_VALUE, 10 * 1000);
+  }
+
+  /**
+   * A NoteStoreProxy over a NoteStore, delivering callbacks in executor threads.
+   */
+  static NoteStoreProxy proxy(NoteStoreIface note_store, APIExecutor executor) {
+    return proxy(NoteStoreProxy.class, note_store, executor);
+  }
+
+  /**
+   * A NoteStoreFutureProxy over a NoteStore.
+   */
+  static NoteStoreFutureProxy futureProxy(NoteStoreIface note_store, APIExecutor executor) {
+    return proxy(NoteStoreFutureProxy.class, note_store, executor);
+  }
+
+  /**
+   * A proxy over a NoteStore whose calls follow a policy.
+   */
+  static <T> T proxy(Class<T> proxy_class, NoteStoreIface note_store, APIExecutor executor, ResiliencePolicy policy) {
+    return proxy(proxy_class, note_store, executor, policy, null);
+  }
+
+  /**
+   * A proxy over a NoteStore whose calls follow a policy and are recorded in metrics.
+   */
+  static <T> T proxy(Class<T> proxy_class, NoteStoreIface note_store, APIExecutor executor, ResiliencePolicy policy,
+                     NoteStoreMetrics metrics) {
+    return proxy_class.cast(Proxy.newProxyInstance(
+      proxy_class.getClassLoader(),
+      new Class[] {proxy_class},
+      new NoteStoreInvocationHandler(proxy_class, pool(note_store, executor.getParallelism()),
+        executor, APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY, policy, metrics)));
+  }
+
+  private static <T> T proxy(Class<T> proxy_class, NoteStoreIface note_store, APIExecutor executor) {
+    return proxy(proxy_class, note_store, executor, null);
+  }
+}
@@ -0,0 +1,169 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.notestore.NoteFilter;
+import com.evernote.edam.notestore.NoteMetadata;
+import com.evernote.edam.notestore.NotesMetadataList;
+import com.evernote.edam.notestore.NotesMetadataResultSpec;
+
+
+public class NotesMetadataScannerTest extends TestCase {
+  /**
+   * A notebook of numbered notes. Later pages are answered sooner, to shuffle completion order.
+   */
+  public static class Notebook {
+    final int total;
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger max_running = new AtomicInteger();
+    final AtomicInteger requests = new AtomicInteger();
+    volatile int fail_at_offset = -1;
+    volatile NotesMetadataResultSpec last_spec = null;
+
+    Notebook(int total) {
+      this.total = total;
+    }
+
+    public NotesMetadataList findNotesMetadata(String authToken, NoteFilter filter, int offset, int maxNotes, NotesMetadataResultSpec resultSpec)
+    throws EDAMSystemException, InterruptedException {
+      requests.incrementAndGet();
+      last_spec = resultSpec;
+      int now = running.incrementAndGet();
+      while (true) {
+        int max = max_running.get();
+        if (now <= max || max_running.compareAndSet(max, now)) {
+          break;
+        }
+      }
+      try {
+        Thread.sleep(Math.max(1, 20 - offset / maxNotes * 3));
+        if (offset == fail_at_offset) {
+          throw new EDAMSystemException();
+        }
+        NotesMetadataList list = new NotesMetadataList();
+        list.setStartIndex(offset);
+        list.setTotalNotes(total);
+        list.setNotes(new ArrayList<NoteMetadata>());
+        for (int i = offset; i < Math.min(total, offset + maxNotes); i++) {
+          NoteMetadata note = new NoteMetadata();
+          note.setGuid("n" + i);
+          list.addToNotes(note);
+        }
+        return list;
+      }
+      finally {
+        running.decrementAndGet();
+      }
+    }
+  }
+
+  private APIExecutor executor;
+
+  @Override
+  protected void setUp() {
+    executor = new APIExecutor(8, 64);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  private NotesMetadataScanner scanner(Notebook notebook) {
+    NotesMetadataResultSpec spec = new NotesMetadataResultSpec();
+    spec.setIncludeTitle(true);
+    return new NotesMetadataScanner(
+      NoteStoreStubs.futureProxy(NoteStoreStubs.stub(notebook), executor), "token", new NoteFilter(), spec);
+  }
+
+  public void testScansAllNotesInOrder() {
+    Notebook notebook = new Notebook(1234);
+    List<String> guids = new ArrayList<String>();
+    for (NoteMetadata note : scanner(notebook).setPageSize(50).setParallelism(4)) {
+      guids.add(note.getGuid());
+    }
+    assertEquals(1234, guids.size());
+    for (int i = 0; i < guids.size(); i++) {
+      assertEquals("n" + i, guids.get(i));
+    }
+    assertEquals(25, notebook.requests.get());
+    assertTrue(notebook.max_running.get() > 1);
+    assertTrue(notebook.max_running.get() <= 4);
+    assertTrue(notebook.last_spec.isIncludeTitle());
+  }
+
+  public void testStream() {
+    Notebook notebook = new Notebook(30);
+    List<String> guids = scanner(notebook).setPageSize(7).stream()
+      .map(new java.util.function.Function<NoteMetadata, String>() {
+        public String apply(NoteMetadata note) {
+          return note.getGuid();
+        }
+      })
+      .collect(Collectors.<String>toList());
+    assertEquals(30, guids.size());
+    assertEquals("n29", guids.get(29));
+  }
+
+  public void testEmptyAndSinglePage() {
+    assertFalse(scanner(new Notebook(0)).iterator().hasNext());
+    Notebook notebook = new Notebook(10);
+    int count = 0;
+    for (Iterator<NoteMetadata> i = scanner(notebook).iterator(); i.hasNext(); i.next()) {
+      count++;
+    }
+    assertEquals(10, count);
+    assertEquals(1, notebook.requests.get());
+  }
+
+  public void testPrefetchIsBoundedByParallelism() throws Exception {
+    Notebook notebook = new Notebook(1000);
+    NotesMetadataScanner.Scan scan = scanner(notebook).setPageSize(10).setParallelism(3).iterator();
+    scan.next();
+    //Pages are requested only in next(), so the executor ends after the pages requested so far.
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    //The first page and three pages ahead.
+    assertEquals(4, notebook.requests.get());
+    scan.close();
+    assertFalse(scan.hasNext());
+  }
+
+  public void testErrorIsThrownFromIterator() {
+    Notebook notebook = new Notebook(100);
+    notebook.fail_at_offset = 40;
+    int count = 0;
+    try {
+      for (NoteMetadata note : scanner(notebook).setPageSize(20)) {
+        count++;
+      }
+      fail();
+    }
+    catch (UndeclaredThrowableException e) {
+      assertTrue(e.getCause() instanceof EDAMSystemException);
+    }
+    assertEquals(40, count);
+  }
+
+  public void testCloseDropsQueuedPages() throws Exception {
+    executor.shutdown();
+    executor = new APIExecutor(1, 64);
+    Notebook notebook = new Notebook(1000);
+    NotesMetadataScanner.Scan scan = scanner(notebook).setPageSize(10).setParallelism(3).iterator();
+    scan.next();
+    scan.close();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    //The first page and at most the one running at the close.
+    assertTrue(notebook.requests.get() <= 2);
+  }
+}
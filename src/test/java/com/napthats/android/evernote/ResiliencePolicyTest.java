@@ -0,0 +1,288 @@
+package com.napthats.android.evernote;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMErrorCode;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.thrift.transport.TTransportException;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+import com.napthats.android.evernote.EvernoteActivity.NoteStoreProxy;
+
+
+public class ResiliencePolicyTest extends TestCase {
+  /**
+   * A NoteStore failing with the queued faults before answering.
+   */
+  public static class Server {
+    final AtomicInteger calls = new AtomicInteger();
+    final ConcurrentLinkedQueue<Exception> faults = new ConcurrentLinkedQueue<Exception>();
+
+    private void call() throws Exception {
+      calls.incrementAndGet();
+      Exception fault = faults.poll();
+      if (fault != null) {
+        throw fault;
+      }
+    }
+
+    public Notebook getNotebook(String authToken, String guid) throws Exception {
+      call();
+      Notebook notebook = new Notebook();
+      notebook.setGuid(guid);
+      return notebook;
+    }
+
+    public Note createNote(String authToken, Note note) throws Exception {
+      call();
+      return note;
+    }
+  }
+
+  private Server server;
+  private APIExecutor executor;
+  private ResiliencePolicy policy;
+  private NoteStoreIface note_store;
+
+  @Override
+  protected void setUp() {
+    server = new Server();
+    executor = new APIExecutor(2, 16);
+    policy = new ResiliencePolicy();
+    policy.setBackoff(10, 40);
+    note_store = NoteStoreStubs.proxy(NoteStoreIface.class, NoteStoreStubs.stub(server), executor, policy);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  private static TTransportException transportError() {
+    return new TTransportException(TTransportException.END_OF_FILE, "injected");
+  }
+
+  public void testRetriesReadsAfterTransportErrors() throws Exception {
+    server.faults.add(transportError());
+    server.faults.add(transportError());
+    assertEquals("a", note_store.getNotebook("token", "a").getGuid());
+    assertEquals(3, server.calls.get());
+    assertFalse(policy.isOpen());
+  }
+
+  public void testGivesUpAfterMaxRetries() throws Exception {
+    policy.setMaxRetries(1);
+    server.faults.add(transportError());
+    server.faults.add(transportError());
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (TTransportException e) {
+      assertEquals("injected", e.getMessage());
+    }
+    assertEquals(2, server.calls.get());
+  }
+
+  public void testDoesNotRetryWritesByDefault() throws Exception {
+    server.faults.add(transportError());
+    try {
+      note_store.createNote("token", new Note());
+      fail();
+    }
+    catch (TTransportException e) {
+      //Expected.
+    }
+    assertEquals(1, server.calls.get());
+
+    policy.setRetryWrites(true);
+    server.faults.add(transportError());
+    note_store.createNote("token", new Note());
+    assertEquals(3, server.calls.get());
+  }
+
+  public void testServiceErrorsAreNotRetried() throws Exception {
+    server.faults.add(new EDAMUserException(EDAMErrorCode.BAD_DATA_FORMAT));
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (EDAMUserException e) {
+      //Expected.
+    }
+    assertEquals(1, server.calls.get());
+    assertFalse(policy.isOpen());
+  }
+
+  public void testWaitsForShortRateLimits() throws Exception {
+    server.faults.add(new RateLimitException(1));
+    long started = System.currentTimeMillis();
+    assertEquals("a", note_store.getNotebook("token", "a").getGuid());
+    assertTrue(System.currentTimeMillis() - started >= 1000);
+    assertEquals(2, server.calls.get());
+    assertFalse(policy.isOpen());
+  }
+
+  public void testFailsFastWhileThrottled() throws Exception {
+    server.faults.add(new RateLimitException(60));
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (RateLimitException e) {
+      assertEquals(60, e.getRateLimitDuration());
+    }
+    assertTrue(policy.isOpen());
+    try {
+      note_store.createNote("token", new Note());
+      fail();
+    }
+    catch (RateLimitException e) {
+      assertTrue(e.getRateLimitDuration() > 55);
+    }
+    assertEquals(1, server.calls.get());
+    assertEquals(1, policy.getRejectedCount());
+  }
+
+  public void testCircuitOpensAndRecovers() throws Exception {
+    ManualClock clock = new ManualClock();
+    policy.setClock(clock);
+    policy.setMaxRetries(0);
+    policy.setCircuitBreaker(3, 100);
+    for (int i = 0; i < 3; i++) {
+      server.faults.add(transportError());
+      try {
+        note_store.getNotebook("token", "a");
+        fail();
+      }
+      catch (TTransportException e) {
+        //Expected.
+      }
+    }
+    assertTrue(policy.isOpen());
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (TTransportException e) {
+      assertEquals(TTransportException.NOT_OPEN, e.getType());
+    }
+    assertEquals(3, server.calls.get());
+
+    clock.advance(99);
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (TTransportException e) {
+      assertEquals(TTransportException.NOT_OPEN, e.getType());
+    }
+    clock.advance(1);
+    //A failed trial opens the circuit again.
+    server.faults.add(transportError());
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (TTransportException e) {
+      assertEquals(TTransportException.END_OF_FILE, e.getType());
+    }
+    assertTrue(policy.isOpen());
+
+    clock.advance(100);
+    note_store.getNotebook("token", "a");
+    assertFalse(policy.isOpen());
+    assertEquals(5, server.calls.get());
+  }
+
+  public void testTrialFailingBeforeTheServiceIsLeftToLaterCalls() throws Exception {
+    final AtomicBoolean broken = new AtomicBoolean(false);
+    final NoteStoreIface stub = NoteStoreStubs.stub(server);
+    NoteStoreClientPool pool = new NoteStoreClientPool(
+      new NoteStoreClientPool.Factory() {
+        public NoteStoreIface create() {
+          if (broken.getAndSet(false)) {
+            throw new IllegalStateException("injected");
+          }
+          return stub;
+        }
+      },
+      NoteStoreClientPool.TRANSPORT_VALIDATOR, 2, Long.MAX_VALUE, 10 * 1000);
+    NoteStoreIface note_store = (NoteStoreIface) Proxy.newProxyInstance(
+      NoteStoreIface.class.getClassLoader(),
+      new Class[] {NoteStoreIface.class},
+      new NoteStoreInvocationHandler(NoteStoreIface.class, pool,
+        executor, APIExecutor.DIRECT_DELIVERY, APIExecutor.NORM_PRIORITY, policy, null));
+    ManualClock clock = new ManualClock();
+    policy.setClock(clock);
+    policy.setMaxRetries(0);
+    policy.setCircuitBreaker(1, 50);
+    server.faults.add(transportError());
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (TTransportException e) {
+      //Expected.
+    }
+    assertTrue(policy.isOpen());
+
+    clock.advance(50);
+    broken.set(true);
+    try {
+      note_store.getNotebook("token", "a");
+      fail();
+    }
+    catch (IllegalStateException e) {
+      //Expected.
+    }
+    note_store.getNotebook("token", "a");
+    assertFalse(policy.isOpen());
+    assertEquals(2, server.calls.get());
+  }
+
+  public void testCallbackIsCalledOnFailures() throws Exception {
+    policy.setMaxRetries(0);
+    server.faults.add(transportError());
+    NoteStoreProxy proxy = NoteStoreStubs.proxy(NoteStoreProxy.class, NoteStoreStubs.stub(server), executor, policy);
+    final CountDownLatch called = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    proxy.getNotebook("token", "a", new APICallBack<Notebook>() {
+      public void call(APIResult<Notebook> result) {
+        try {
+          result.get();
+        }
+        catch (Throwable e) {
+          error.set(e);
+        }
+        called.countDown();
+      }
+    });
+    assertTrue(called.await(5, TimeUnit.SECONDS));
+    assertTrue(error.get().getCause() instanceof TTransportException);
+  }
+
+  public void testBackoffHasJitterWithinBounds() {
+    policy.setBackoff(100, 1000);
+    for (int retries = 0; retries < 8; retries++) {
+      long cap = Math.min(1000, 100L << retries);
+      for (int i = 0; i < 20; i++) {
+        long backoff = policy.backoffMillis(retries);
+        assertTrue(backoff >= cap / 2);
+        assertTrue(backoff <= cap);
+      }
+    }
+  }
+}
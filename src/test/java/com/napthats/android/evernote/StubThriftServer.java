@@ -0,0 +1,118 @@
+package com.napthats.android.evernote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.thrift.TApplicationException;
+import com.evernote.thrift.TBase;
+import com.evernote.thrift.TException;
+import com.evernote.thrift.protocol.*;
+import com.evernote.thrift.transport.THttpClient;
+import com.evernote.thrift.transport.TTransportException;
+
+
+/**
+ * A minimal Thrift-over-HTTP server on localhost answering NoteStore calls with canned structs.
+ */
+class StubThriftServer {
+  private final HttpServer server;
+  private final Map<String, TBase<?>> replies = new ConcurrentHashMap<String, TBase<?>>();
+  private final AtomicInteger request_count = new AtomicInteger();
+
+  StubThriftServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        request_count.incrementAndGet();
+        byte[] response;
+        try {
+          response = reply(readAll(exchange.getRequestBody()));
+        }
+        catch (TException e) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/x-thrift");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Answer a method with a struct as the success value.
+   */
+  void setReply(String method, TBase<?> success) {
+    replies.put(method, success);
+  }
+
+  int getRequestCount() {
+    return request_count.get();
+  }
+
+  String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  NoteStore.Client createClient() throws TTransportException {
+    THttpClient transport = new THttpClient(getUrl());
+    return new NoteStore.Client(new TBinaryProtocol(transport), new TBinaryProtocol(transport));
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+
+  private byte[] reply(byte[] request) throws TException {
+    TProtocol in = new TBinaryProtocol(new StreamTransport(new ByteArrayInputStream(request), null));
+    TMessage message = in.readMessageBegin();
+    TProtocolUtil.skip(in, TType.STRUCT);
+    in.readMessageEnd();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    TProtocol out = new TBinaryProtocol(new StreamTransport(null, bytes));
+    TBase<?> success = replies.get(message.name);
+    if (success == null) {
+      out.writeMessageBegin(new TMessage(message.name, TMessageType.EXCEPTION, message.seqid));
+      new TApplicationException(TApplicationException.UNKNOWN_METHOD, message.name).write(out);
+    }
+    else {
+      out.writeMessageBegin(new TMessage(message.name, TMessageType.REPLY, message.seqid));
+      out.writeStructBegin(new TStruct(message.name + "_result"));
+      out.writeFieldBegin(new TField("success", TType.STRUCT, (short) 0));
+      success.write(out);
+      out.writeFieldEnd();
+      out.writeFieldStop();
+      out.writeStructEnd();
+    }
+    out.writeMessageEnd();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) >= 0) {
+      bytes.write(buf, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+}
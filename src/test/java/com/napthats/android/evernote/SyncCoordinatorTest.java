@@ -0,0 +1,283 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.notestore.NoteStoreIface;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.LinkedNotebook;
+import com.evernote.edam.userstore.AuthenticationResult;
+
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+public class SyncCoordinatorTest extends TestCase {
+  private static final int LATENCY_MILLIS = 20;
+
+  /**
+   * A shard serving linked notebooks, whose calls take LATENCY_MILLIS.
+   */
+  public static class Shard {
+    final String host;
+    final Map<String, SyncEngineTest.Server> notebooks = new HashMap<String, SyncEngineTest.Server>();
+    final AtomicInteger in_flight = new AtomicInteger();
+    final AtomicInteger max_in_flight = new AtomicInteger();
+    final AtomicInteger calls = new AtomicInteger();
+
+    Shard(String host) {
+      this.host = host;
+    }
+
+    /**
+     * Add a notebook shared by share_key, or public when share_key is null, with notes of the given count.
+     */
+    LinkedNotebook addNotebook(String guid, String share_key, int note_count) {
+      SyncEngineTest.Server server = new SyncEngineTest.Server();
+      server.addNotebook("shared-" + guid);
+      for (int i = 0; i < note_count; i++) {
+        server.addNote(guid + "-n" + i, "shared-" + guid);
+      }
+      notebooks.put(guid, server);
+      LinkedNotebook notebook = new LinkedNotebook();
+      notebook.setGuid(guid);
+      notebook.setShareKey(share_key);
+      notebook.setUri(share_key == null ? guid : null);
+      notebook.setNoteStoreUrl("https://" + host + "/shard/s1/notestore");
+      return notebook;
+    }
+
+    private void call() throws InterruptedException {
+      calls.incrementAndGet();
+      int n = in_flight.incrementAndGet();
+      synchronized (max_in_flight) {
+        max_in_flight.set(Math.max(max_in_flight.get(), n));
+      }
+      Thread.sleep(LATENCY_MILLIS);
+      in_flight.decrementAndGet();
+    }
+
+    public AuthenticationResult authenticateToSharedNotebook(String shareKey, String authToken) throws Exception {
+      call();
+      assertEquals("token", authToken);
+      if (shareKey.startsWith("revoked")) {
+        throw new EDAMNotFoundException();
+      }
+      AuthenticationResult result = new AuthenticationResult();
+      result.setAuthenticationToken("shared:" + shareKey);
+      return result;
+    }
+
+    public SyncState getLinkedNotebookSyncState(String authenticationToken, LinkedNotebook linkedNotebook) throws Exception {
+      call();
+      SyncEngineTest.Server server = serverOf(authenticationToken, linkedNotebook);
+      synchronized (server) {
+        return server.getSyncState();
+      }
+    }
+
+    public SyncChunk getLinkedNotebookSyncChunk(String authenticationToken, LinkedNotebook linkedNotebook,
+                                                int afterUSN, int maxEntries, boolean fullSyncOnly) throws Exception {
+      call();
+      SyncEngineTest.Server server = serverOf(authenticationToken, linkedNotebook);
+      synchronized (server) {
+        return server.getSyncChunk(afterUSN, maxEntries, fullSyncOnly);
+      }
+    }
+
+    private SyncEngineTest.Server serverOf(String token, LinkedNotebook notebook) {
+      assertEquals(notebook.isSetShareKey() ? "shared:" + notebook.getShareKey() : "token", token);
+      return notebooks.get(notebook.getGuid());
+    }
+  }
+
+  /**
+   * An account of linked notebooks only. Each change takes one USN.
+   */
+  static class Account implements SyncEngine.ChunkSource {
+    final List<Object> changes = new ArrayList<Object>();
+
+    synchronized void link(LinkedNotebook notebook) {
+      notebook.setUpdateSequenceNum(changes.size() + 1);
+      changes.add(notebook);
+    }
+
+    synchronized void unlink(String guid) {
+      changes.add(guid);
+    }
+
+    public synchronized SyncState getSyncState() {
+      SyncState state = new SyncState();
+      state.setCurrentTime(1000);
+      state.setUpdateCount(changes.size());
+      return state;
+    }
+
+    public synchronized SyncChunk getSyncChunk(int after, int max_entries, boolean full_sync_only) {
+      SyncChunk chunk = new SyncChunk();
+      chunk.setCurrentTime(1000);
+      chunk.setUpdateCount(changes.size());
+      int usn = after;
+      for (int n = 0; usn < changes.size() && n < max_entries; n++) {
+        Object change = changes.get(usn++);
+        if (change instanceof LinkedNotebook) {
+          chunk.addToLinkedNotebooks((LinkedNotebook) change);
+        }
+        else if (!full_sync_only) {
+          chunk.addToExpungedLinkedNotebooks((String) change);
+        }
+      }
+      if (usn > after) {
+        chunk.setChunkHighUSN(usn);
+      }
+      return chunk;
+    }
+  }
+
+  private File dir;
+  private Account account;
+  private Map<String, Shard> shards;
+  private SyncStore personal_store;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("sync-coordinator", "");
+    assertTrue(dir.delete());
+    account = new Account();
+    shards = new HashMap<String, Shard>();
+    for (String host : Arrays.asList("a.example.com", "b.example.com")) {
+      shards.put(host, new Shard(host));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    if (personal_store != null) {
+      personal_store.close();
+    }
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private SyncCoordinator coordinator() throws IOException {
+    personal_store = new SyncStore(new File(dir, "sync"));
+    SyncEngine personal = new SyncEngine(account, personal_store);
+    return new SyncCoordinator(personal, "token", new File(dir, "linked"), new SyncCoordinator.LinkedNoteStores() {
+      public NoteStoreIface open(LinkedNotebook notebook) {
+        return NoteStoreStubs.stub(shards.get(notebook.getNoteStoreUrl().split("/")[2]));
+      }
+    });
+  }
+
+  /**
+   * Link notebooks of 3 chunks each, shared ones and public ones on both shards.
+   */
+  private void linkNotebooks(int count) {
+    for (int i = 0; i < count; i++) {
+      Shard shard = shards.get(i % 2 == 0 ? "a.example.com" : "b.example.com");
+      account.link(shard.addNotebook("ln" + i, i % 3 == 0 ? null : "key" + i, 2 * SyncEngine.DEFAULT_MAX_ENTRIES));
+    }
+  }
+
+  private static void assertSuccess(Map<String, APIResult<Integer>> results, String guid, int chunks) throws Exception {
+    assertEquals(guid, Integer.valueOf(chunks), results.get(guid).get());
+  }
+
+  public void testSyncsLinkedNotebooksInParallel() throws Exception {
+    linkNotebooks(8);
+    SyncCoordinator coordinator = coordinator();
+    //Linked notebooks are unknown before the first sync of the account.
+    long started = System.nanoTime();
+    Map<String, APIResult<Integer>> results = coordinator.sync();
+    long millis = (System.nanoTime() - started) / 1000 / 1000;
+    assertEquals(9, results.size());
+    assertSuccess(results, SyncCoordinator.PERSONAL, 1);
+    for (int i = 0; i < 8; i++) {
+      assertSuccess(results, "ln" + i, 3);
+      assertEquals(201, coordinator.getLinkedStore("ln" + i).getUpdateCount());
+      assertEquals(200, coordinator.getLinkedStore("ln" + i).getNotes().size());
+    }
+    //36 calls: 720ms one by one, about 180ms on 2 hosts of 2 calls at a time.
+    assertTrue(millis + "ms", millis < 36 * LATENCY_MILLIS / 2);
+    for (Shard shard : shards.values()) {
+      assertEquals(SyncCoordinator.DEFAULT_MAX_CALLS_PER_HOST, shard.max_in_flight.get());
+    }
+    coordinator.close();
+  }
+
+  public void testResumesFromCheckpoints() throws Exception {
+    linkNotebooks(4);
+    SyncCoordinator coordinator = coordinator();
+    coordinator.sync();
+    shards.get("b.example.com").notebooks.get("ln1").addNote("ln1-new", "shared-ln1");
+    for (Shard shard : shards.values()) {
+      shard.calls.set(0);
+    }
+    Map<String, APIResult<Integer>> results = coordinator.sync();
+    assertSuccess(results, "ln0", 0);
+    assertSuccess(results, "ln1", 1);
+    assertEquals(202, coordinator.getLinkedStore("ln1").getUpdateCount());
+    //A state for each, an auth for shared ln1 and ln2, and a chunk for ln1.
+    assertEquals(3, shards.get("a.example.com").calls.get());
+    assertEquals(4, shards.get("b.example.com").calls.get());
+    coordinator.close();
+
+    //A new coordinator resumes from the stores on disk.
+    personal_store.close();
+    coordinator = coordinator();
+    results = coordinator.sync();
+    assertSuccess(results, SyncCoordinator.PERSONAL, 0);
+    assertSuccess(results, "ln1", 0);
+    assertEquals(202, coordinator.getLinkedStore("ln1").getUpdateCount());
+    coordinator.close();
+  }
+
+  public void testFailureOfNotebookDoesNotStopOthers() throws Exception {
+    linkNotebooks(2);
+    account.link(shards.get("a.example.com").addNotebook("revoked", "revoked-key", 1));
+    SyncCoordinator coordinator = coordinator();
+    Map<String, APIResult<Integer>> results = coordinator.sync();
+    assertSuccess(results, "ln0", 3);
+    assertSuccess(results, "ln1", 3);
+    try {
+      results.get("revoked").get();
+      fail();
+    }
+    catch (EDAMNotFoundException e) {
+      //Expected.
+    }
+    coordinator.close();
+  }
+
+  public void testUnlinkedNotebookIsDeleted() throws Exception {
+    linkNotebooks(2);
+    SyncCoordinator coordinator = coordinator();
+    coordinator.sync();
+    assertTrue(new File(dir, "linked/ln1").isDirectory());
+    account.unlink("ln1");
+    Map<String, APIResult<Integer>> results = coordinator.sync();
+    assertEquals(Arrays.asList(SyncCoordinator.PERSONAL, "ln0"), new ArrayList<String>(results.keySet()));
+    assertNull(coordinator.getLinkedStore("ln1"));
+    assertFalse(new File(dir, "linked/ln1").exists());
+    assertTrue(new File(dir, "linked/ln0").isDirectory());
+    coordinator.close();
+  }
+}
@@ -0,0 +1,231 @@
+package com.napthats.android.evernote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.Note;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.Tag;
+import com.evernote.thrift.transport.TTransportException;
+
+
+public class SyncEngineTest extends TestCase {
+  /**
+   * An account as a list of changes. Each change takes one USN.
+   */
+  static class Server implements SyncEngine.ChunkSource {
+    final List<Object> changes = new ArrayList<Object>();
+    long full_sync_before = 0;
+    int chunk_requests = 0;
+    int fail_after = Integer.MAX_VALUE;
+
+    int usn() {
+      return changes.size();
+    }
+
+    void addNotebook(String guid) {
+      Notebook notebook = new Notebook();
+      notebook.setGuid(guid);
+      notebook.setUpdateSequenceNum(usn() + 1);
+      changes.add(notebook);
+    }
+
+    void addNote(String guid, String notebook_guid) {
+      Note note = new Note();
+      note.setGuid(guid);
+      note.setNotebookGuid(notebook_guid);
+      note.setUpdateSequenceNum(usn() + 1);
+      changes.add(note);
+    }
+
+    void addTag(String guid) {
+      Tag tag = new Tag();
+      tag.setGuid(guid);
+      tag.setUpdateSequenceNum(usn() + 1);
+      changes.add(tag);
+    }
+
+    void expungeNotebook(String guid) {
+      changes.add("notebook:" + guid);
+    }
+
+    public SyncState getSyncState() {
+      SyncState state = new SyncState();
+      state.setCurrentTime(1000 + usn());
+      state.setFullSyncBefore(full_sync_before);
+      state.setUpdateCount(usn());
+      return state;
+    }
+
+    public SyncChunk getSyncChunk(int after, int max_entries, boolean full_sync_only) throws TTransportException {
+      if (chunk_requests++ >= fail_after) {
+        throw new TTransportException("connection lost");
+      }
+      SyncChunk chunk = new SyncChunk();
+      chunk.setCurrentTime(1000 + usn());
+      chunk.setUpdateCount(usn());
+      int usn = after;
+      for (int n = 0; usn < usn() && n < max_entries; n++) {
+        Object change = changes.get(usn++);
+        if (change instanceof Note) {
+          chunk.addToNotes((Note) change);
+        }
+        else if (change instanceof Notebook) {
+          chunk.addToNotebooks((Notebook) change);
+        }
+        else if (change instanceof Tag) {
+          chunk.addToTags((Tag) change);
+        }
+        else if (!full_sync_only) {
+          chunk.addToExpungedNotebooks(((String) change).substring("notebook:".length()));
+        }
+      }
+      if (usn > after) {
+        chunk.setChunkHighUSN(usn);
+      }
+      return chunk;
+    }
+  }
+
+  private File dir;
+  private Server server;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("sync", "");
+    assertTrue(dir.delete());
+    server = new Server();
+    server.addNotebook("nb1");
+    server.addNotebook("nb2");
+    for (int i = 0; i < 20; i++) {
+      server.addNote("n" + i, i % 2 == 0 ? "nb1" : "nb2");
+    }
+    server.addTag("t1");
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private SyncEngine engine(SyncStore store, int max_entries) {
+    SyncEngine engine = new SyncEngine(server, store);
+    engine.setMaxEntries(max_entries);
+    return engine;
+  }
+
+  public void testFullThenIncrementalSync() throws Exception {
+    SyncStore store = new SyncStore(dir);
+    assertEquals(5, engine(store, 5).sync());
+    assertEquals(23, store.getUpdateCount());
+    assertEquals(20, store.getNotes().size());
+    assertEquals(2, store.getNotebooks().size());
+    assertEquals(1, store.getTags().size());
+
+    server.addNote("n20", "nb1");
+    server.expungeNotebook("nb2");
+    server.chunk_requests = 0;
+    assertEquals(1, engine(store, 5).sync());
+    assertEquals(1, server.chunk_requests);
+    assertEquals(11, store.getNotes().size());
+    assertNull(store.getNote("n1"));
+    assertNotNull(store.getNote("n20"));
+    assertNull(store.getNotebook("nb2"));
+
+    //Nothing to fetch when up to date.
+    server.chunk_requests = 0;
+    assertEquals(0, engine(store, 5).sync());
+    assertEquals(0, server.chunk_requests);
+  }
+
+  public void testResumesAfterInterruption() throws Exception {
+    SyncStore store = new SyncStore(dir);
+    server.fail_after = 2;
+    try {
+      engine(store, 5).sync();
+      fail();
+    }
+    catch (TTransportException e) {
+      //Expected.
+    }
+    assertEquals(10, store.getUpdateCount());
+    store.close();
+
+    SyncStore reopened = new SyncStore(dir);
+    assertEquals(10, reopened.getUpdateCount());
+    assertEquals(8, reopened.getNotes().size());
+    server.fail_after = Integer.MAX_VALUE;
+    server.chunk_requests = 0;
+    assertEquals(3, engine(reopened, 5).sync());
+    assertEquals(20, reopened.getNotes().size());
+  }
+
+  public void testDropsTornJournalRecord() throws Exception {
+    SyncStore store = new SyncStore(dir);
+    engine(store, 10).sync();
+    store.close();
+    FileOutputStream journal = new FileOutputStream(new File(dir, "journal"), true);
+    journal.write(new byte[] {0, 0, 1, 0, 1, 2, 3});
+    journal.close();
+
+    SyncStore reopened = new SyncStore(dir);
+    assertEquals(23, reopened.getUpdateCount());
+    server.addTag("t2");
+    assertEquals(1, engine(reopened, 10).sync());
+    reopened.close();
+    assertEquals(2, new SyncStore(dir).getTags().size());
+  }
+
+  public void testDropsJournalRecordLongerThanFile() throws Exception {
+    SyncStore store = new SyncStore(dir);
+    engine(store, 10).sync();
+    store.close();
+    long valid = new File(dir, "journal").length();
+    FileOutputStream journal = new FileOutputStream(new File(dir, "journal"), true);
+    journal.write(new byte[] {0x7f, (byte) 0xff, (byte) 0xff, 0, 0, 0, 0, 0, 1, 2, 3});
+    journal.close();
+
+    SyncStore reopened = new SyncStore(dir);
+    assertEquals(23, reopened.getUpdateCount());
+    assertEquals(valid, new File(dir, "journal").length());
+  }
+
+  public void testCompactionKeepsState() throws Exception {
+    SyncStore store = new SyncStore(dir);
+    engine(store, 3).sync();
+    store.compact();
+    assertFalse(new File(dir, "journal").exists());
+    server.addTag("t2");
+    engine(store, 3).sync();
+    store.close();
+
+    SyncStore reopened = new SyncStore(dir);
+    assertEquals(24, reopened.getUpdateCount());
+    assertEquals(20, reopened.getNotes().size());
+    assertEquals(2, reopened.getTags().size());
+  }
+
+  public void testFullSyncBeforeClearsStore() throws Exception {
+    SyncStore store = new SyncStore(dir);
+    engine(store, 100).sync();
+    server.full_sync_before = store.getSyncTime() + 1;
+    server.addTag("t2");
+    server.chunk_requests = 0;
+    assertEquals(1, engine(store, 100).sync());
+    //Fetched again from USN 0.
+    assertEquals(1, server.chunk_requests);
+    assertEquals(24, store.getUpdateCount());
+    assertEquals(20, store.getNotes().size());
+    assertEquals(2, store.getTags().size());
+  }
+}
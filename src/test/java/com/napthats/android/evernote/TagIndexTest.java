@@ -0,0 +1,160 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMErrorCode;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.Tag;
+
+
+public class TagIndexTest extends TestCase {
+  /**
+   * An account with tags. Every change increments the update count.
+   */
+  public static class Account {
+    final List<Tag> tags = new ArrayList<Tag>();
+    final AtomicInteger list_count = new AtomicInteger();
+    final AtomicInteger create_count = new AtomicInteger();
+    volatile int update_count = 0;
+    volatile CountDownLatch create_gate = null;
+    volatile boolean hide_from_create = false;
+
+    synchronized Tag add(String name) {
+      Tag tag = new Tag();
+      tag.setName(name);
+      tag.setGuid("guid-" + name);
+      tag.setUpdateSequenceNum(++update_count);
+      tags.add(tag);
+      return tag;
+    }
+
+    public synchronized SyncState getSyncState(String authToken) {
+      SyncState state = new SyncState();
+      state.setUpdateCount(update_count);
+      return state;
+    }
+
+    public synchronized List<Tag> listTags(String authToken) {
+      list_count.incrementAndGet();
+      return new ArrayList<Tag>(tags);
+    }
+
+    public Tag createTag(String authToken, Tag tag) throws EDAMUserException, InterruptedException {
+      create_count.incrementAndGet();
+      if (create_gate != null) {
+        assertTrue(create_gate.await(5, TimeUnit.SECONDS));
+      }
+      synchronized (this) {
+        for (Tag existing : tags) {
+          if (existing.getName().equalsIgnoreCase(tag.getName())) {
+            throw new EDAMUserException(EDAMErrorCode.DATA_CONFLICT);
+          }
+        }
+        if (hide_from_create) {
+          //Another client creates the tag just before this call.
+          add(tag.getName());
+          throw new EDAMUserException(EDAMErrorCode.DATA_CONFLICT);
+        }
+        return add(tag.getName());
+      }
+    }
+  }
+
+  private Account account;
+
+  @Override
+  protected void setUp() {
+    account = new Account();
+    account.add("Work");
+    account.add("home");
+  }
+
+  private TagIndex index(long interval) {
+    return new TagIndex(NoteStoreStubs.stub(account), "token", interval);
+  }
+
+  public void testCaseInsensitiveLookupListsOnce() throws Exception {
+    TagIndex index = index(Long.MAX_VALUE);
+    assertEquals("guid-Work", index.getOrCreateTag("work").getGuid());
+    assertEquals("guid-home", index.getOrCreateTag("HOME").getGuid());
+    assertNull(index.find("none"));
+    assertEquals(1, account.list_count.get());
+    assertEquals(0, account.create_count.get());
+  }
+
+  public void testInvalidatedByUpdateCountButNotByOwnCreates() throws Exception {
+    TagIndex index = index(0);
+    index.find("work");
+    Tag created = index.getOrCreateTag("new");
+    assertEquals(created, index.find("NEW"));
+    assertEquals(1, account.list_count.get());
+
+    account.add("other");
+    assertNotNull(index.find("other"));
+    assertEquals(2, account.list_count.get());
+  }
+
+  public void testCoalescesConcurrentCreates() throws Exception {
+    final TagIndex index = index(Long.MAX_VALUE);
+    index.find("work");
+    account.create_gate = new CountDownLatch(1);
+    final List<Tag> results = new ArrayList<Tag>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final String name = i % 2 == 0 ? "shared" : "SHARED";
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            Tag tag = index.getOrCreateTag(name);
+            synchronized (results) {
+              results.add(tag);
+            }
+          }
+          catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    Thread.sleep(100);
+    account.create_gate.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    assertEquals(4, results.size());
+    for (Tag tag : results) {
+      assertSame(results.get(0), tag);
+    }
+    assertEquals(1, account.create_count.get());
+  }
+
+  public void testReloadsOnDataConflict() throws Exception {
+    TagIndex index = index(Long.MAX_VALUE);
+    index.find("work");
+    account.hide_from_create = true;
+    assertEquals("guid-raced", index.getOrCreateTag("raced").getGuid());
+    assertEquals(2, account.list_count.get());
+  }
+
+  public void testGetOrCreateTags() throws Exception {
+    TagIndex index = index(Long.MAX_VALUE);
+    Map<String, Tag> tags = index.getOrCreateTags(Arrays.asList("home", "fresh", "WORK", "Fresh"));
+    assertEquals(Arrays.asList("home", "fresh", "WORK", "Fresh"), new ArrayList<String>(tags.keySet()));
+    assertEquals("guid-home", tags.get("home").getGuid());
+    assertEquals("guid-Work", tags.get("WORK").getGuid());
+    assertSame(tags.get("fresh"), tags.get("Fresh"));
+    assertEquals(1, account.create_count.get());
+    assertEquals(1, account.list_count.get());
+  }
+}
@@ -0,0 +1,194 @@
+package com.napthats.android.evernote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.evernote.edam.error.EDAMErrorCode;
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.type.Note;
+
+import com.napthats.android.evernote.EvernoteActivity.APICallBack;
+import com.napthats.android.evernote.EvernoteActivity.APIResult;
+
+
+public class WritePipelineTest extends TestCase {
+  public static class Server {
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicInteger in_flight = new AtomicInteger();
+    final AtomicInteger max_in_flight = new AtomicInteger();
+    volatile long latency_millis = 20;
+    //Calls which hit a rate limit, by their order.
+    final Set<Integer> limited_calls = Collections.synchronizedSet(new HashSet<Integer>());
+
+    public Note createNote(String authToken, Note note) throws Exception {
+      int call = calls.incrementAndGet();
+      int now = in_flight.incrementAndGet();
+      try {
+        synchronized (max_in_flight) {
+          max_in_flight.set(Math.max(max_in_flight.get(), now));
+        }
+        Thread.sleep(latency_millis);
+        if (limited_calls.contains(call)) {
+          throw new RateLimitException(1);
+        }
+        if (note.getTitle().equals("bad")) {
+          throw new EDAMUserException(EDAMErrorCode.BAD_DATA_FORMAT);
+        }
+        Note created = note.deepCopy();
+        created.setGuid("guid of " + note.getTitle());
+        return created;
+      }
+      finally {
+        in_flight.decrementAndGet();
+      }
+    }
+  }
+
+  private static class Results implements APICallBack<Note> {
+    final List<String> guids = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger errors = new AtomicInteger();
+
+    public void call(APIResult<Note> result) {
+      try {
+        guids.add(result.get().getGuid());
+      }
+      catch (Exception e) {
+        errors.incrementAndGet();
+      }
+    }
+  }
+
+  private Server server;
+  private APIExecutor executor;
+
+  @Override
+  protected void setUp() {
+    server = new Server();
+    executor = new APIExecutor(8, 64);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  private WritePipeline pipeline(int max_in_flight) {
+    return new WritePipeline(NoteStoreStubs.stub(server), "token", executor, APIExecutor.DIRECT_DELIVERY,
+                             max_in_flight, 8, APIExecutor.NORM_PRIORITY);
+  }
+
+  private static Note note(String title) {
+    Note note = new Note();
+    note.setTitle(title);
+    return note;
+  }
+
+  public void testKeepsWindowInFlight() throws Exception {
+    WritePipeline pipeline = pipeline(4);
+    Results results = new Results();
+    long started = System.currentTimeMillis();
+    for (int i = 0; i < 40; i++) {
+      pipeline.createNote(note("n" + i), results);
+    }
+    assertTrue(pipeline.awaitIdle(5, TimeUnit.SECONDS));
+    long elapsed = System.currentTimeMillis() - started;
+    pipeline.close();
+
+    assertEquals(40, results.guids.size());
+    assertEquals(40, new HashSet<String>(results.guids).size());
+    assertEquals(4, server.max_in_flight.get());
+    //40 serial calls would take 800ms.
+    assertTrue("elapsed " + elapsed, elapsed < 600);
+    assertEquals(40, pipeline.getCompletedCount());
+  }
+
+  public void testErrorsGoToTheirCallbacks() throws Exception {
+    WritePipeline pipeline = pipeline(2);
+    Results results = new Results();
+    pipeline.createNote(note("a"), results);
+    pipeline.createNote(note("bad"), results);
+    pipeline.createNote(note("b"), results);
+    assertTrue(pipeline.awaitIdle(5, TimeUnit.SECONDS));
+    pipeline.close();
+
+    assertEquals(2, results.guids.size());
+    assertEquals(1, results.errors.get());
+    assertEquals(3, server.calls.get());
+    assertEquals(0, pipeline.getRateLimitedCount());
+  }
+
+  public void testRateLimitShrinksWindowAndRetries() throws Exception {
+    //The first window of calls hits the limit together.
+    for (int i = 1; i <= 4; i++) {
+      server.limited_calls.add(i);
+    }
+    WritePipeline pipeline = pipeline(4);
+    Results results = new Results();
+    long started = System.currentTimeMillis();
+    for (int i = 0; i < 8; i++) {
+      pipeline.createNote(note("n" + i), results);
+    }
+    while (pipeline.getRateLimitedCount() < 4) {
+      Thread.sleep(5);
+    }
+    //Halved once during the pause.
+    assertEquals(2, pipeline.getWindow());
+    assertTrue(pipeline.awaitIdle(10, TimeUnit.SECONDS));
+    long elapsed = System.currentTimeMillis() - started;
+    pipeline.close();
+
+    assertEquals(8, results.guids.size());
+    assertEquals(0, results.errors.get());
+    assertEquals(12, server.calls.get());
+    assertTrue("elapsed " + elapsed, elapsed >= 1000);
+    //Grown back by successes.
+    assertEquals(4, pipeline.getWindow());
+  }
+
+  public void testGivesUpAfterMaxRetries() throws Exception {
+    for (int i = 1; i <= 2; i++) {
+      server.limited_calls.add(i);
+    }
+    server.latency_millis = 0;
+    WritePipeline pipeline = pipeline(1);
+    pipeline.setMaxRetries(1);
+    Results results = new Results();
+    pipeline.createNote(note("a"), results);
+    assertTrue(pipeline.awaitIdle(10, TimeUnit.SECONDS));
+    pipeline.close();
+
+    assertEquals(1, results.errors.get());
+    assertEquals(2, server.calls.get());
+    assertEquals(1, pipeline.getWindow());
+  }
+
+  public void testClosedPipelineRefusesWrites() throws Exception {
+    WritePipeline pipeline = pipeline(1);
+    pipeline.close();
+    try {
+      pipeline.createNote(note("a"), new Results());
+      fail();
+    }
+    catch (IllegalStateException e) {
+      //Expected.
+    }
+  }
+
+  public void testRateLimitDetection() {
+    assertEquals(7, RateLimits.durationSeconds(new RateLimitException(7)));
+    //An error code unknown to this SDK.
+    assertEquals(RateLimits.DEFAULT_DURATION_SECONDS, RateLimits.durationSeconds(new EDAMSystemException()));
+    assertEquals(-1, RateLimits.durationSeconds(new EDAMSystemException(EDAMErrorCode.INTERNAL_ERROR)));
+    assertEquals(-1, RateLimits.durationSeconds(new EDAMUserException(EDAMErrorCode.BAD_DATA_FORMAT)));
+    assertEquals(-1, RateLimits.durationSeconds(null));
+  }
+}